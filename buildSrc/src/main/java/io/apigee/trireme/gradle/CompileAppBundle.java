@@ -0,0 +1,73 @@
+package io.apigee.trireme.gradle;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputDirectory;
+import org.gradle.api.tasks.JavaExec;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * Precompile an application and its node_modules in to a bundle jar for
+ * NodeEnvironment.addPrecompiledBundle. This runs the BundleCompiler from
+ * trireme-core, so the classpath must include trireme-core and its dependencies,
+ * for instance "classpath = configurations.runtimeClasspath".
+ */
+public abstract class CompileAppBundle extends JavaExec {
+  public static final String COMPILER_CLASS = "io.apigee.trireme.core.BundleCompiler";
+  public static final int DEFAULT_OPTIMIZATION = 9;
+
+  private int optLevel = DEFAULT_OPTIMIZATION;
+  private boolean generatingObserverCount = false;
+
+  public CompileAppBundle() {
+    setMain(COMPILER_CLASS);
+  }
+
+  /** This is the application directory, which is scanned for ".js" files. */
+  @PathSensitive(PathSensitivity.RELATIVE)
+  @InputDirectory
+  abstract DirectoryProperty getAppDir();
+
+  /** This is the bundle jar that is created. */
+  @OutputFile
+  abstract RegularFileProperty getBundleFile();
+
+  @Input
+  Integer getOptLevel() {
+    return optLevel;
+  }
+
+  void setOptLevel(Integer l) {
+    optLevel = l;
+  }
+
+  @Input
+  Boolean getGeneratingObserverCount() {
+    return generatingObserverCount;
+  }
+
+  void setGeneratingObserverCount(Boolean g) {
+    generatingObserverCount = g;
+  }
+
+  @Override
+  @TaskAction
+  public void exec() {
+    final List<String> a = new ArrayList<>();
+    a.add("--opt-level");
+    a.add(String.valueOf(optLevel));
+    if (generatingObserverCount) {
+      a.add("--observer-count");
+    }
+    a.add(getAppDir().getAsFile().get().getPath());
+    a.add(getBundleFile().getAsFile().get().getPath());
+    setArgs(a);
+    super.exec();
+  }
+}
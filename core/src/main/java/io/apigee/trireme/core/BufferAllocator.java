@@ -0,0 +1,39 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This interface allocates the memory for large Buffers when "NodeEnvironment.setOffHeapBuffers" is
+ * used. Buffers that are smaller than the threshold set there always use an ordinary byte array.
+ * Implementations must be thread-safe, since all the scripts in an environment share one allocator.
+ */
+
+public interface BufferAllocator
+{
+    /**
+     * Return a new buffer with a capacity of exactly "size" bytes, all set to zero, or null if the memory
+     * isn't available, in which case the Buffer is allocated on the heap instead.
+     */
+    ByteBuffer allocate(int size);
+}
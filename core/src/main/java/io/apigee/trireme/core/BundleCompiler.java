@@ -0,0 +1,365 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+import io.apigee.trireme.core.internal.PrecompiledBundle;
+import io.apigee.trireme.core.internal.RhinoContextFactory;
+import io.apigee.trireme.core.internal.ScriptUtils;
+import io.apigee.trireme.kernel.Charsets;
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * This class compiles every JavaScript file in an application directory, including everything under
+ * "node_modules," in to a jar that may be passed to "NodeEnvironment.addPrecompiledBundle." Scripts
+ * that use the bundle never compile those modules at runtime, which makes startup much faster.
+ * <p>
+ * It may be used from Java, or from the command line like this:
+ * </p>
+ * <pre>
+ * java -cp trireme-core.jar:... io.apigee.trireme.core.BundleCompiler [options] appDir bundle.jar
+ * </pre>
+ * <p>
+ * Each module is compiled from exactly the code that "module.js" would compile at runtime, and the bundle
+ * is indexed by a hash of that code, so modules that were changed after the bundle was built are
+ * simply compiled at runtime as usual. Since the bundle doesn't know where the application will be
+ * installed, stack traces from precompiled modules show paths relative to the application directory.
+ * </p>
+ */
+
+public class BundleCompiler
+{
+    private final File appDir;
+    private final File outputFile;
+    private int optLevel = NodeEnvironment.DEFAULT_OPT_LEVEL;
+    private boolean generateObserverCount;
+    private boolean verbose;
+
+    private int compiled;
+    private int skipped;
+
+    public BundleCompiler(File appDir, File outputFile)
+    {
+        this.appDir = appDir;
+        this.outputFile = outputFile;
+    }
+
+    public int getOptLevel() {
+        return optLevel;
+    }
+
+    /**
+     * Set the Rhino optimization level, which must be zero or more since the interpreter can't use
+     * precompiled classes. The default is the same as the default for NodeEnvironment.
+     */
+    public BundleCompiler setOptLevel(int optLevel)
+    {
+        if (optLevel < 0) {
+            throw new IllegalArgumentException("Optimization level must be zero or more");
+        }
+        this.optLevel = optLevel;
+        return this;
+    }
+
+    public boolean isGenerateObserverCount() {
+        return generateObserverCount;
+    }
+
+    /**
+     * Generate the instruction counting code that Rhino needs to enforce a script time limit. A bundle
+     * that's built with this setting is only used by environments that have a script time limit,
+     * and a bundle built without it is only used by environments that don't.
+     */
+    public BundleCompiler setGenerateObserverCount(boolean generateObserverCount)
+    {
+        this.generateObserverCount = generateObserverCount;
+        return this;
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    public BundleCompiler setVerbose(boolean verbose)
+    {
+        this.verbose = verbose;
+        return this;
+    }
+
+    /**
+     * Return the number of modules that were compiled in to the bundle by the last call to "compile."
+     */
+    public int getCompiledCount() {
+        return compiled;
+    }
+
+    /**
+     * Return the number of modules that were left out of the bundle, because they were too large or
+     * failed to compile, by the last call to "compile." Those are compiled or interpreted at runtime.
+     */
+    public int getSkippedCount() {
+        return skipped;
+    }
+
+    /**
+     * Compile all the modules and write the bundle.
+     *
+     * @throws IOException if the application directory can't be read or the bundle can't be written
+     */
+    public void compile()
+        throws IOException
+    {
+        if (!appDir.isDirectory()) {
+            throw new IOException(appDir.getPath() + " is not a directory");
+        }
+        compiled = 0;
+        skipped = 0;
+
+        ArrayList<String> paths = new ArrayList<String>();
+        findScripts(appDir, "", paths);
+
+        ClassCompiler compiler = new ClassCompiler(makeCompilerEnvirons());
+        HashSet<String> keys = new HashSet<String>();
+        StringBuilder index = new StringBuilder();
+
+        JarOutputStream jar = new JarOutputStream(new FileOutputStream(outputFile));
+        try {
+            for (String path : paths) {
+                String code = PrecompiledBundle.wrapModuleSource(readSource(new File(appDir, path)));
+                String key = PrecompiledBundle.makeKey(code);
+                if (key == null) {
+                    throw new IOException("Can't calculate " + PrecompiledBundle.KEY_HASH + " hash");
+                }
+                if (!keys.add(key)) {
+                    // Same code in another file, so the class we already compiled will do
+                    continue;
+                }
+
+                String className = PrecompiledBundle.CLASS_PREFIX + key.substring(0, 32);
+                byte[] classBytes = compileScript(compiler, code, path, className);
+                if (classBytes == null) {
+                    skipped++;
+                    continue;
+                }
+
+                jar.putNextEntry(new ZipEntry(className.replace('.', '/') + ".class"));
+                jar.write(classBytes);
+                jar.closeEntry();
+                index.append(key).append('\t').append(className).append('\t').append(path).append('\n');
+                compiled++;
+                if (verbose) {
+                    System.out.println("Compiled " + path);
+                }
+            }
+
+            jar.putNextEntry(new ZipEntry(PrecompiledBundle.INDEX_NAME));
+            jar.write(index.toString().getBytes(Charsets.UTF8));
+            jar.closeEntry();
+
+            Properties props = new Properties();
+            props.setProperty(PrecompiledBundle.PROP_LANGUAGE_VERSION,
+                              String.valueOf(NodeEnvironment.DEFAULT_JS_VERSION));
+            props.setProperty(PrecompiledBundle.PROP_OBSERVER_COUNT, String.valueOf(generateObserverCount));
+            jar.putNextEntry(new ZipEntry(PrecompiledBundle.PROPERTIES_NAME));
+            Writer w = new OutputStreamWriter(jar, Charsets.UTF8);
+            props.store(w, "Trireme precompiled bundle");
+            w.flush();
+            jar.closeEntry();
+
+        } finally {
+            jar.close();
+        }
+    }
+
+    /**
+     * Use the same settings as the Context that NodeEnvironment would create, since the compiler copies
+     * some of them in to the generated code.
+     */
+    private CompilerEnvirons makeCompilerEnvirons()
+    {
+        RhinoContextFactory factory = new RhinoContextFactory();
+        factory.setJsVersion(NodeEnvironment.DEFAULT_JS_VERSION);
+        factory.setOptLevel(optLevel);
+        factory.setCountOperations(generateObserverCount);
+
+        Context cx = factory.enterContext();
+        try {
+            CompilerEnvirons env = new CompilerEnvirons();
+            env.initFromContext(cx);
+            return env;
+        } finally {
+            Context.exit();
+        }
+    }
+
+    private byte[] compileScript(ClassCompiler compiler, String code, String path, String className)
+    {
+        if (code.length() > ScriptUtils.MAX_COMPILED_SCRIPT_LENGTH) {
+            System.err.println("Skipping " + path + ": too large to compile");
+            return null;
+        }
+
+        Object[] results;
+        try {
+            results = compiler.compileToClassFiles(code, path, 1, className);
+        } catch (EvaluatorException ee) {
+            if (ScriptUtils.BYTECODE_SIZE_MESSAGE.matcher(ee.getMessage()).matches()) {
+                System.err.println("Skipping " + path + ": too large to compile");
+            } else {
+                System.err.println("Skipping " + path + ": " + ee.getMessage());
+            }
+            return null;
+        } catch (RhinoException re) {
+            System.err.println("Skipping " + path + ": " + re.getMessage());
+            return null;
+        } catch (IllegalArgumentException iae) {
+            System.err.println("Skipping " + path + ": " + iae.getMessage());
+            return null;
+        }
+
+        // The results are pairs of class names and bytecode, and a script is always one class
+        if (results.length != 2) {
+            System.err.println("Skipping " + path + ": compiler produced more than one class");
+            return null;
+        }
+        return (byte[])results[1];
+    }
+
+    /**
+     * Collect the paths of all the ".js" files under "dir," relative to the application directory and
+     * separated by "/" so that the index is the same on every platform.
+     */
+    private static void findScripts(File dir, String prefix, List<String> paths)
+    {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            File f = new File(dir, name);
+            if (f.isDirectory()) {
+                findScripts(f, prefix + name + '/', paths);
+            } else if (name.endsWith(".js") && f.isFile()) {
+                paths.add(prefix + name);
+            }
+        }
+    }
+
+    private static String readSource(File f)
+        throws IOException
+    {
+        InputStream in = new FileInputStream(f);
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int r;
+            while ((r = in.read(buf)) > 0) {
+                bos.write(buf, 0, r);
+            }
+            return new String(bos.toByteArray(), Charsets.UTF8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void printUsage()
+    {
+        System.err.println("Usage: BundleCompiler [options] appDir bundle.jar");
+        System.err.println();
+        System.err.println("Options:");
+        System.err.println("  -O, --opt-level N      Rhino optimization level, 0 to 9 (default "
+                           + NodeEnvironment.DEFAULT_OPT_LEVEL + ')');
+        System.err.println("  --observer-count       Generate code for environments with a script time limit");
+        System.err.println("  -v, --verbose          Print the name of each compiled module");
+    }
+
+    public static void main(String[] args)
+    {
+        int optLevel = NodeEnvironment.DEFAULT_OPT_LEVEL;
+        boolean observerCount = false;
+        boolean verbose = false;
+        ArrayList<String> files = new ArrayList<String>();
+
+        int i = 0;
+        while (i < args.length) {
+            if ("-h".equals(args[i]) || "--help".equals(args[i])) {
+                printUsage();
+                System.exit(1);
+            } else if ("-O".equals(args[i]) || "--opt-level".equals(args[i])) {
+                i++;
+                try {
+                    optLevel = Integer.parseInt(args[i]);
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    printUsage();
+                    System.exit(1);
+                } catch (NumberFormatException nfe) {
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if ("--observer-count".equals(args[i])) {
+                observerCount = true;
+            } else if ("-v".equals(args[i]) || "--verbose".equals(args[i])) {
+                verbose = true;
+            } else {
+                files.add(args[i]);
+            }
+            i++;
+        }
+
+        if ((files.size() != 2) || (optLevel < 0)) {
+            printUsage();
+            System.exit(1);
+        }
+
+        BundleCompiler compiler = new BundleCompiler(new File(files.get(0)), new File(files.get(1)));
+        compiler.setOptLevel(optLevel).setGenerateObserverCount(observerCount).setVerbose(verbose);
+        try {
+            compiler.compile();
+        } catch (IOException ioe) {
+            System.err.println("Error: " + ioe.getMessage());
+            System.exit(2);
+        }
+        System.out.println("Compiled " + compiler.getCompiledCount() + " modules in to " + files.get(1) +
+                           ", skipped " + compiler.getSkippedCount());
+        System.exit(0);
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is the default BufferAllocator, which uses direct ByteBuffers. The JVM's own cleaner frees the
+ * memory once the Buffer is garbage-collected, and this class notices that using phantom references so
+ * that it can keep track of how much off-heap memory is in use. If "maxBytes" is set and a new Buffer
+ * would go over it, or if the JVM is out of direct memory, then the Buffer is put on the heap instead.
+ */
+
+public class DirectBufferAllocator
+    implements BufferAllocator
+{
+    private static final Logger log = LoggerFactory.getLogger(DirectBufferAllocator.class);
+
+    private final long maxBytes;
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final ReferenceQueue<ByteBuffer> queue = new ReferenceQueue<ByteBuffer>();
+    private final Set<Tracker> trackers =
+        Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+
+    /**
+     * Create an allocator with no limit other than the JVM's maximum direct memory size.
+     */
+    public DirectBufferAllocator()
+    {
+        this(0L);
+    }
+
+    /**
+     * Create an allocator that won't use more than "maxBytes" of off-heap memory at once.
+     */
+    public DirectBufferAllocator(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public ByteBuffer allocate(int size)
+    {
+        release();
+        if (!reserve(size)) {
+            return null;
+        }
+
+        ByteBuffer bb;
+        try {
+            bb = ByteBuffer.allocateDirect(size);
+        } catch (OutOfMemoryError oom) {
+            log.debug("Out of direct memory allocating {} bytes", size);
+            liveBytes.addAndGet(-size);
+            return null;
+        }
+        trackers.add(new Tracker(bb, queue));
+        allocations.incrementAndGet();
+        return bb;
+    }
+
+    /**
+     * Count the bytes as in use before allocating them, so that threads racing each other
+     * can't together go over "maxBytes."
+     */
+    private boolean reserve(int size)
+    {
+        if (maxBytes <= 0L) {
+            liveBytes.addAndGet(size);
+            return true;
+        }
+        long live;
+        do {
+            live = liveBytes.get();
+            if ((live + size) > maxBytes) {
+                return false;
+            }
+        } while (!liveBytes.compareAndSet(live, live + size));
+        return true;
+    }
+
+    /**
+     * Return the number of bytes in Buffers that have not yet been garbage-collected.
+     */
+    public long getLiveBytes()
+    {
+        release();
+        return liveBytes.get();
+    }
+
+    /**
+     * Return the number of Buffers that this allocator has created.
+     */
+    public long getAllocations()
+    {
+        return allocations.get();
+    }
+
+    private void release()
+    {
+        Reference<? extends ByteBuffer> ref;
+        while ((ref = queue.poll()) != null) {
+            Tracker t = (Tracker)ref;
+            if (trackers.remove(t)) {
+                liveBytes.addAndGet(-t.size);
+            }
+        }
+    }
+
+    private static final class Tracker
+        extends PhantomReference<ByteBuffer>
+    {
+        final int size;
+
+        Tracker(ByteBuffer bb, ReferenceQueue<ByteBuffer> queue)
+        {
+            super(bb, queue);
+            this.size = bb.capacity();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a single call made through a ScriptInvoker. It completes when the JavaScript function
+ * calls its callback, when the Promise (or other "thenable") that it returned settles, or when the
+ * function throws. Cancelling the future does not stop the JavaScript code, but it frees up the
+ * invoker to make another call.
+ */
+
+public class InvocationFuture
+    implements Future<Object>
+{
+    private final ScriptInvoker invoker;
+
+    private boolean done;
+    private boolean cancelled;
+    private Object result;
+    private Throwable cause;
+
+    InvocationFuture(ScriptInvoker invoker)
+    {
+        this.invoker = invoker;
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean interrupt)
+    {
+        if (done) {
+            return false;
+        }
+        cancelled = true;
+        setDone();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone()
+    {
+        return done;
+    }
+
+    @Override
+    public synchronized Object get()
+        throws InterruptedException, ExecutionException
+    {
+        while (!done) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized Object get(long timeout, TimeUnit timeUnit)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long now = System.currentTimeMillis();
+        long expiration = now + timeUnit.toMillis(timeout);
+        while (!done && (now < expiration)) {
+            wait(expiration - now);
+            now = System.currentTimeMillis();
+        }
+        if (!done) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private Object getResult()
+        throws ExecutionException
+    {
+        assert(Thread.holdsLock(this));
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (cause != null) {
+            throw new ExecutionException(cause);
+        }
+        return result;
+    }
+
+    synchronized void complete(Object val)
+    {
+        if (done) {
+            return;
+        }
+        result = val;
+        setDone();
+    }
+
+    synchronized void fail(Throwable t)
+    {
+        if (done) {
+            return;
+        }
+        cause = t;
+        setDone();
+    }
+
+    private void setDone()
+    {
+        assert(Thread.holdsLock(this));
+        done = true;
+        // Free up the slot in the invoker before anyone waiting on "get" can see that we are done
+        invoker.invocationDone(this);
+        notifyAll();
+    }
+}
@@ -23,10 +23,18 @@ package io.apigee.trireme.core;
 
 import io.apigee.trireme.core.internal.RootModuleRegistry;
 import io.apigee.trireme.core.internal.RhinoContextFactory;
+import io.apigee.trireme.core.internal.PrecompiledBundle;
+import io.apigee.trireme.core.internal.ScriptCompiler;
 import io.apigee.trireme.core.internal.SoftClassCache;
 import io.apigee.trireme.kernel.VersionMatcher;
 import io.apigee.trireme.core.spi.NodeImplementation;
 import io.apigee.trireme.kernel.NodeVersion;
+import io.apigee.trireme.kernel.fs.FileContentCache;
+import io.apigee.trireme.kernel.fs.FileWatcher;
+import io.apigee.trireme.kernel.fs.StatCache;
+import io.apigee.trireme.kernel.streams.ProcessPump;
+import io.apigee.trireme.kernel.streams.StreamDrainer;
+import io.apigee.trireme.kernel.util.BufferPool;
 import io.apigee.trireme.net.spi.HttpServerContainer;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextFactory;
@@ -35,11 +43,15 @@ import org.mozilla.javascript.StackStyle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ServiceLoader;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -80,8 +92,22 @@ public class
     private RhinoContextFactory contextFactory;
     private long                scriptTimeLimit;
     private ClassCache          classCache;
+    private int                 offHeapThreshold;
+    private BufferAllocator     bufferAllocator;
+    private int                 bufferPoolSize;
+    private final ScriptCompiler scriptCompiler = new ScriptCompiler(this);
+    private final List<PrecompiledBundle> precompiledBundles = new CopyOnWriteArrayList<PrecompiledBundle>();
     private String              defaultNodeVersion;
     private int                 maxAsyncPoolSize = MAX_POOL_SIZE;
+    private boolean             tlsPipelining;
+    private FileWatcher         fileWatcher;
+    private ProcessPump         processPump;
+    private StreamDrainer       streamDrainer;
+    private int                 statCacheSize = StatCache.DEFAULT_MAX_ENTRIES;
+    private StatCache           statCache;
+    private long                fileCacheSize;
+    private FileContentCache    fileCache;
+    private final HashMap<String, Object> sharedObjects = new HashMap<String, Object>();
 
     private int                 optLevel = DEFAULT_OPT_LEVEL;
 
@@ -122,6 +148,38 @@ public class
      */
     public void close()
     {
+        synchronized (initializationLock) {
+            if (fileWatcher != null) {
+                fileWatcher.close();
+                fileWatcher = null;
+            }
+            if (processPump != null) {
+                processPump.close();
+                processPump = null;
+            }
+            if (streamDrainer != null) {
+                streamDrainer.close();
+                streamDrainer = null;
+            }
+            for (Object shared : sharedObjects.values()) {
+                if (shared instanceof Closeable) {
+                    try {
+                        ((Closeable)shared).close();
+                    } catch (IOException ioe) {
+                        log.debug("Error closing shared object {}: {}", shared, ioe);
+                    }
+                }
+            }
+            sharedObjects.clear();
+            for (PrecompiledBundle bundle : precompiledBundles) {
+                try {
+                    bundle.close();
+                } catch (IOException ioe) {
+                    log.debug("Error closing precompiled bundle {}: {}", bundle.getFile(), ioe);
+                }
+            }
+            precompiledBundles.clear();
+        }
     }
 
     /**
@@ -329,6 +387,82 @@ public class
         return classCache;
     }
 
+    /**
+     * Keep the contents of Buffers that are "threshold" bytes or larger outside the Java heap, using memory
+     * from "allocator." This keeps large, long-lived binary data from inflating the heap and GC pause times.
+     * Native modules that work with ByteBuffers, such as "fs" and "net," use these Buffers without copying.
+     * A threshold of zero, which is the default, keeps every Buffer on the heap.
+     */
+    public NodeEnvironment setOffHeapBuffers(int threshold, BufferAllocator allocator) {
+        this.offHeapThreshold = threshold;
+        this.bufferAllocator = allocator;
+        return this;
+    }
+
+    /**
+     * Keep Buffers that are "threshold" bytes or larger outside the heap using a DirectBufferAllocator.
+     */
+    public NodeEnvironment setOffHeapBuffers(int threshold) {
+        return setOffHeapBuffers(threshold, (threshold > 0 ? new DirectBufferAllocator() : null));
+    }
+
+    public int getOffHeapThreshold() {
+        return offHeapThreshold;
+    }
+
+    public BufferAllocator getBufferAllocator() {
+        return bufferAllocator;
+    }
+
+    /**
+     * Set the size of the "slab" that each script uses to create small Buffers, like the Buffer pool in
+     * Node.js. Buffers smaller than half of this size share a slab instead of each getting an array of their
+     * own. The default is zero, which turns the pool off. {@link BufferPool#DEFAULT_SLAB_SIZE} is the 8K
+     * that Node uses. Each script has its own pool, but within a script, code that can see one pooled
+     * Buffer may be able to see the other data in its slab.
+     */
+    public NodeEnvironment setBufferPoolSize(int size) {
+        this.bufferPoolSize = size;
+        return this;
+    }
+
+    public int getBufferPoolSize() {
+        return bufferPoolSize;
+    }
+
+    /**
+     * Use modules that were compiled ahead of time by {@link BundleCompiler}. When a script loads a module
+     * whose source is in the bundle, and hasn't changed since the bundle was built, the precompiled class
+     * is used instead of compiling the module. This may be called more than once to add several bundles.
+     *
+     * @throws NodeException if the file can't be read or was not created by BundleCompiler
+     */
+    public NodeEnvironment addPrecompiledBundle(File jarFile)
+        throws NodeException
+    {
+        try {
+            precompiledBundles.add(PrecompiledBundle.open(jarFile));
+        } catch (IOException ioe) {
+            throw new NodeException("Can't load precompiled bundle " + jarFile.getPath() + ": " + ioe, ioe);
+        }
+        return this;
+    }
+
+    /**
+     * Internal: Get the bundles added by "addPrecompiledBundle."
+     */
+    public List<PrecompiledBundle> getPrecompiledBundles() {
+        return precompiledBundles;
+    }
+
+    /**
+     * Internal: Get the object that compiles code for the "vm" module and its relatives, using the
+     * class cache if there is one.
+     */
+    public ScriptCompiler getScriptCompiler() {
+        return scriptCompiler;
+    }
+
     /**
      * Set the maximum thread pool size of the "async pool," which will be used for running
      * short-duration blocking tasks like file I/O, DNS lookups, and some TLS operations. The default is 100.
@@ -343,6 +477,52 @@ public class
         return maxAsyncPoolSize;
     }
 
+    /**
+     * Enable "pipelined" TLS, in which the encryption and decryption of large amounts of data on TLS
+     * connections happens in the async pool rather than in the script thread. This lets a script that
+     * moves a lot of data over TLS use more than one CPU. The default is false.
+     * It must be called before "createScript" in order to have any effect.
+     */
+    public NodeEnvironment setTLSPipelining(boolean pipelining) {
+        this.tlsPipelining = pipelining;
+        return this;
+    }
+
+    public boolean isTLSPipelining() {
+        return tlsPipelining;
+    }
+
+    /**
+     * Set the maximum number of entries in the cache of "stat" and "realpath" results for files
+     * under immutable mounts (see Sandbox.mount). The cache is shared by all scripts in this environment.
+     * The default is 10000. Setting it to zero turns the cache off.
+     * It must be called before "createScript" in order to have any effect.
+     */
+    public NodeEnvironment setStatCacheSize(int size) {
+        this.statCacheSize = size;
+        return this;
+    }
+
+    public int getStatCacheSize() {
+        return statCacheSize;
+    }
+
+    /**
+     * Set the maximum number of bytes of small files that "fs.readFile" will keep in memory, shared by
+     * all scripts in this environment. A cached file is only used when its modification time and size
+     * have not changed. The cache is off by default. FileContentCache.DEFAULT_MAX_SIZE is a reasonable
+     * size for scripts that read the same small files over and over.
+     * It must be called before "createScript" in order to have any effect.
+     */
+    public NodeEnvironment setFileCacheSize(long size) {
+        this.fileCacheSize = size;
+        return this;
+    }
+
+    public long getFileCacheSize() {
+        return fileCacheSize;
+    }
+
     /**
      * Internal: Get the thread pool for async tasks.
      */
@@ -357,6 +537,106 @@ public class
         return scriptPool;
     }
 
+    /**
+     * Internal: Get the object that watches files for changes on behalf of all the scripts in this
+     * environment. It uses a single thread, which is started the first time that something is watched.
+     */
+    public FileWatcher getFileWatcher()
+    {
+        synchronized (initializationLock) {
+            if (fileWatcher == null) {
+                fileWatcher = new FileWatcher();
+            }
+            return fileWatcher;
+        }
+    }
+
+    /**
+     * Internal: Get the object that reads the output of child processes, and waits for them to exit,
+     * on behalf of all the scripts in this environment. It uses a small, bounded set of threads, which are
+     * started the first time that a process is spawned.
+     */
+    public ProcessPump getProcessPump()
+    {
+        synchronized (initializationLock) {
+            if (processPump == null) {
+                processPump = new ProcessPump();
+            }
+            return processPump;
+        }
+    }
+
+    /**
+     * Internal: Get the object that writes asynchronous standard output and error on behalf of all
+     * the scripts in this environment. It uses a single thread, which is started the first time that
+     * it is used.
+     */
+    public StreamDrainer getStreamDrainer()
+    {
+        synchronized (initializationLock) {
+            if (streamDrainer == null) {
+                streamDrainer = new StreamDrainer();
+            }
+            return streamDrainer;
+        }
+    }
+
+    /**
+     * Internal: Get an object that a module outside the core has shared with all the scripts in this
+     * environment, or null if nothing has been shared under that name.
+     */
+    public Object getSharedObject(String name)
+    {
+        synchronized (initializationLock) {
+            return sharedObjects.get(name);
+        }
+    }
+
+    /**
+     * Internal: Share an object with all the scripts in this environment, unless another script got there
+     * first, and return whichever object is now shared under that name. If the object is Closeable then
+     * it will be closed when the environment is closed.
+     */
+    public Object setSharedObjectIfAbsent(String name, Object obj)
+    {
+        synchronized (initializationLock) {
+            Object existing = sharedObjects.get(name);
+            if (existing != null) {
+                return existing;
+            }
+            sharedObjects.put(name, obj);
+            return obj;
+        }
+    }
+
+    /**
+     * Get the cache of "stat" and "realpath" results for files under immutable mounts, or null if the
+     * cache has been turned off. An application that changes files under such a mount anyway can call
+     * "invalidate" or "clear" on the cache afterwards.
+     */
+    public StatCache getStatCache()
+    {
+        synchronized (initializationLock) {
+            if ((statCache == null) && (statCacheSize > 0)) {
+                statCache = new StatCache(statCacheSize);
+            }
+            return statCache;
+        }
+    }
+
+    /**
+     * Internal: Get the cache that "fs.readFile" uses for small files, or null if it has been turned off.
+     */
+    public FileContentCache getFileContentCache()
+    {
+        synchronized (initializationLock) {
+            if ((fileCache == null) && (fileCacheSize > 0L)) {
+                fileCache = new FileContentCache(fileCacheSize, FileContentCache.DEFAULT_MAX_ENTRY_SIZE);
+            }
+            return fileCache;
+        }
+    }
+
     /**
      * Internal: Get the registry for a particular implementation
      */
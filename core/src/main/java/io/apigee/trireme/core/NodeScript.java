@@ -326,6 +326,19 @@ public class NodeScript
         return displayName;
     }
 
+    /**
+     * Return the resources that the script has used so far, or null if the script hasn't been started or
+     * resource accounting isn't turned on in its Sandbox. This may be called from any thread, including
+     * from a ScriptStatusListener after the script has exited.
+     */
+    public ResourceUsage getResourceUsage()
+    {
+        if ((runner == null) || (runner.getResourceAccounting() == null)) {
+            return null;
+        }
+        return runner.getResourceAccounting().getUsage();
+    }
+
     /**
      * Add an environment variable to the script without removing anything that already exists.
      */
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+/**
+ * A snapshot of the resources that a script has used so far. It is only available when resource accounting
+ * is turned on in the script's Sandbox. CPU time and allocation are measured on the script's own thread, so
+ * work done for the script in the async thread pool, such as filesystem calls, is not included.
+ */
+
+public class ResourceUsage
+{
+    private final long cpuTime;
+    private final long allocatedBytes;
+    private final long bufferBytes;
+    private final long throttleCount;
+    private final long throttledTime;
+
+    public ResourceUsage(long cpuTime, long allocatedBytes, long bufferBytes,
+                         long throttleCount, long throttledTime)
+    {
+        this.cpuTime = cpuTime;
+        this.allocatedBytes = allocatedBytes;
+        this.bufferBytes = bufferBytes;
+        this.throttleCount = throttleCount;
+        this.throttledTime = throttledTime;
+    }
+
+    /**
+     * Total CPU time used by the script's thread, in nanoseconds, or -1 if the JVM can't measure it.
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * Total bytes allocated on the Java heap by the script's thread, or -1 if the JVM can't measure it.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Bytes held by Buffers that the script created and that have not yet been garbage-collected.
+     */
+    public long getBufferBytes() {
+        return bufferBytes;
+    }
+
+    /**
+     * The number of times that the script was paused because it went over its quota.
+     */
+    public long getThrottleCount() {
+        return throttleCount;
+    }
+
+    /**
+     * Total time that the script spent paused because it went over its quota, in nanoseconds.
+     */
+    public long getThrottledTime() {
+        return throttledTime;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ResourceUsage{cpuTime=" + cpuTime + ", allocatedBytes=" + allocatedBytes +
+               ", bufferBytes=" + bufferBytes + ", throttleCount=" + throttleCount +
+               ", throttledTime=" + throttledTime + '}';
+    }
+}
@@ -21,6 +21,7 @@
  */
 package io.apigee.trireme.core;
 
+import io.apigee.trireme.kernel.handles.AsyncOutputStreamHandle;
 import io.apigee.trireme.kernel.net.NetworkPolicy;
 import org.mozilla.javascript.ClassShutter;
 import org.mozilla.javascript.Scriptable;
@@ -31,9 +32,12 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The Sandbox defines the execution environment for all scripts. It may be used when embedding Noderunner
@@ -42,9 +46,19 @@ import java.util.concurrent.ExecutorService;
  */
 public class Sandbox
 {
+    /**
+     * What happens when a script goes over its CPU or allocation quota. THROTTLE pauses the script's
+     * event loop until the current quota period is over, and KILL stops the script.
+     */
+    public enum QuotaPolicy { THROTTLE, KILL }
+
+    public static final long DEFAULT_QUOTA_PERIOD = TimeUnit.SECONDS.toNanos(1L);
+
     private OutputStream    stdout;
     private InputStream     stdin;
     private OutputStream    stderr;
+    private int             asyncOutputSize;
+    private AsyncOutputStreamHandle.OverflowPolicy asyncOutputPolicy;
     private Scriptable      stdoutStream;
     private Scriptable      stdinStream;
     private Scriptable      stderrStream;
@@ -54,10 +68,17 @@ public class Sandbox
     private NetworkPolicy networkPolicy;
     private SubprocessPolicy processPolicy;
     private List<Map.Entry<String, String>> mounts;
+    private Set<String>     immutableMounts;
     private boolean         hideOsDetails;
     private ClassShutter    extraClassShutter;
     private boolean         allowJarLoading = true;
     private ClassLoaderSupplier classLoaderSupplier = null;
+    private boolean         resourceAccounting;
+    private long            cpuQuota;
+    private long            allocationQuota;
+    private long            quotaPeriod = DEFAULT_QUOTA_PERIOD;
+    private long            bufferLimit;
+    private QuotaPolicy     quotaPolicy = QuotaPolicy.THROTTLE;
 
     /**
      * Create a new sandbox that will not affect anything in any way.
@@ -76,6 +97,8 @@ public class Sandbox
             this.stdout = parent.stdout;
             this.stdin = parent.stdin;
             this.stderr = parent.stderr;
+            this.asyncOutputSize = parent.asyncOutputSize;
+            this.asyncOutputPolicy = parent.asyncOutputPolicy;
             this.stdoutStream = parent.stdoutStream;
             this.stdinStream = parent.stdinStream;
             this.stderrStream = parent.stderrStream;
@@ -88,9 +111,18 @@ public class Sandbox
             this.extraClassShutter = parent.extraClassShutter;
             this.allowJarLoading = parent.allowJarLoading;
             this.classLoaderSupplier = parent.classLoaderSupplier;
+            this.resourceAccounting = parent.resourceAccounting;
+            this.cpuQuota = parent.cpuQuota;
+            this.allocationQuota = parent.allocationQuota;
+            this.quotaPeriod = parent.quotaPeriod;
+            this.bufferLimit = parent.bufferLimit;
+            this.quotaPolicy = parent.quotaPolicy;
             if (parent.mounts != null) {
                 this.mounts = new ArrayList<Map.Entry<String, String>>(parent.mounts);
             }
+            if (parent.immutableMounts != null) {
+                this.immutableMounts = new HashSet<String>(parent.immutableMounts);
+            }
         }
     }
 
@@ -130,10 +162,35 @@ public class Sandbox
         mounts.add(new AbstractMap.SimpleEntry<String, String>(prefix, target));
     }
 
+    /**
+     * Mount a location on the local filesystem just like "mount(prefix, target)". If "immutable" is true,
+     * then the caller promises that nothing under "target" will change while scripts are running. This
+     * is typically the case for a tree of pre-installed modules. Trireme then caches the results of "stat"
+     * and "realpath" for files under the mount in the NodeEnvironment, and shares them among all
+     * scripts, which makes "require" considerably cheaper.
+     */
+    public void mount(String prefix, String target, boolean immutable)
+    {
+        mount(prefix, target);
+        if (immutable) {
+            if (immutableMounts == null) {
+                immutableMounts = new HashSet<String>();
+            }
+            immutableMounts.add(prefix);
+        }
+    }
+
     public List<Map.Entry<String, String>> getMounts() {
         return mounts;
     }
 
+    /**
+     * Return whether the mount at the specified prefix was mounted as immutable.
+     */
+    public boolean isImmutableMount(String prefix) {
+        return ((immutableMounts != null) && immutableMounts.contains(prefix));
+    }
+
     /**
      * Set the working directory of this script. This is the directory for relative paths and for "process.cwd()".
      * This directory is relative to the filesystem root set in "setFilesystemRoot".
@@ -176,6 +233,34 @@ public class Sandbox
         return stderr;
     }
 
+    /**
+     * Write standard output and error asynchronously. Rather than writing to the streams set by
+     * "setStdout" and "setStderr" on the script thread, scripts copy output in to a buffer of
+     * "bufferSize" bytes, and a single thread shared by the whole NodeEnvironment writes it to the
+     * stream, combining small writes in to larger ones. This keeps a slow stream from blocking the
+     * event loop. "policy" says what happens when the buffer is full: QUEUE makes "write" return false
+     * until the buffer drains, just like a socket, BLOCK waits for room, and DROP discards the output.
+     * When a script exits, it waits a few seconds for its output to be written. This has no effect when
+     * output goes to the system console.
+     */
+    public Sandbox setAsyncOutput(int bufferSize, AsyncOutputStreamHandle.OverflowPolicy policy) {
+        this.asyncOutputSize = bufferSize;
+        this.asyncOutputPolicy = policy;
+        return this;
+    }
+
+    public boolean isAsyncOutput() {
+        return (asyncOutputSize > 0);
+    }
+
+    public int getAsyncOutputSize() {
+        return asyncOutputSize;
+    }
+
+    public AsyncOutputStreamHandle.OverflowPolicy getAsyncOutputPolicy() {
+        return asyncOutputPolicy;
+    }
+
     /**
      * Set the stream that scripts should use for standard input. By default, System.in will be used.
      * If this method is used to set the stream to non-null, then the corresponding stream will be used instead.
@@ -313,4 +398,86 @@ public class Sandbox
         return classLoaderSupplier;
     }
 
+    /**
+     * Measure the CPU time, heap allocation, and Buffer memory used by each script. The totals are available
+     * from NodeScript.getResourceUsage, and through JMX while the script runs. This is turned on
+     * automatically by any of the quotas below. CPU time and allocation are sampled between the phases
+     * of the event loop, so the cost is small, but every Buffer is tracked until it is garbage-collected.
+     */
+    public Sandbox setResourceAccounting(boolean accounting) {
+        this.resourceAccounting = accounting;
+        return this;
+    }
+
+    public boolean isResourceAccounting() {
+        return (resourceAccounting || (cpuQuota > 0L) || (allocationQuota > 0L) || (bufferLimit > 0L));
+    }
+
+    /**
+     * Limit each script to "time" of CPU time in every quota period. When a script goes over, the quota
+     * policy decides what happens. Since usage is checked between the phases of the event loop, a single
+     * callback that never returns is only stopped by the script time limit in NodeEnvironment.
+     */
+    public Sandbox setCpuQuota(long time, TimeUnit unit) {
+        this.cpuQuota = unit.toNanos(time);
+        return this;
+    }
+
+    /**
+     * Return the CPU quota in nanoseconds per quota period, or zero if there is none.
+     */
+    public long getCpuQuota() {
+        return cpuQuota;
+    }
+
+    /**
+     * Limit each script to allocating "bytes" of heap memory in every quota period.
+     */
+    public Sandbox setAllocationQuota(long bytes) {
+        this.allocationQuota = bytes;
+        return this;
+    }
+
+    public long getAllocationQuota() {
+        return allocationQuota;
+    }
+
+    /**
+     * Set the length of the period that the CPU and allocation quotas apply to. The default is one second.
+     */
+    public Sandbox setQuotaPeriod(long time, TimeUnit unit) {
+        this.quotaPeriod = unit.toNanos(time);
+        return this;
+    }
+
+    /**
+     * Return the quota period in nanoseconds.
+     */
+    public long getQuotaPeriod() {
+        return quotaPeriod;
+    }
+
+    /**
+     * Limit the bytes that each script may hold in Buffers at once. When a new Buffer would go over the
+     * limit, the script gets a RangeError instead, and if the quota policy is KILL, the script is stopped too.
+     * Buffers that Trireme creates for incoming data are counted but never refused.
+     */
+    public Sandbox setBufferLimit(long bytes) {
+        this.bufferLimit = bytes;
+        return this;
+    }
+
+    public long getBufferLimit() {
+        return bufferLimit;
+    }
+
+    public Sandbox setQuotaPolicy(QuotaPolicy policy) {
+        this.quotaPolicy = policy;
+        return this;
+    }
+
+    public QuotaPolicy getQuotaPolicy() {
+        return quotaPolicy;
+    }
+
 }
@@ -23,10 +23,12 @@ package io.apigee.trireme.core;
 
 import io.apigee.trireme.core.internal.NodeExitException;
 import io.apigee.trireme.core.internal.ScriptRunner;
+import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.RunnableFuture;
@@ -42,6 +44,7 @@ public class ScriptFuture
     private ScriptStatusListener listener;
     private ScriptStatus         result;
     private Scriptable           moduleResult;
+    private final ArrayList<ScriptInvoker> invokers = new ArrayList<ScriptInvoker>();
 
     private volatile boolean cancelled;
 
@@ -161,9 +164,48 @@ public class ScriptFuture
         return runner;
     }
 
+    /**
+     * Return an object that calls the named function from the module's "exports" from any thread, and
+     * delivers each result via a Future. This waits for the module to be loaded, just like
+     * "getModuleResult," so it only works for scripts started using "NodeScript.executeModule".
+     * See ScriptInvoker for the calling convention.
+     *
+     * @param functionName the name of the exported function
+     * @param maxInFlight the maximum number of calls that may be outstanding before "invoke" blocks
+     */
+    public ScriptInvoker createInvoker(String functionName, int maxInFlight)
+        throws InterruptedException, ExecutionException
+    {
+        Scriptable module = getModuleResult();
+        Object func = module.get(functionName, module);
+        if (!(func instanceof Function)) {
+            throw new IllegalArgumentException("Module does not export a function named " + functionName);
+        }
+
+        ScriptInvoker invoker = new ScriptInvoker(runner, (Function)func, module, maxInFlight);
+        synchronized (this) {
+            if (result != null) {
+                invoker.terminate(result);
+            } else {
+                invokers.add(invoker);
+            }
+        }
+        return invoker;
+    }
+
+    public ScriptInvoker createInvoker(String functionName)
+        throws InterruptedException, ExecutionException
+    {
+        return createInvoker(functionName, ScriptInvoker.DEFAULT_MAX_IN_FLIGHT);
+    }
+
     private synchronized void set(ScriptStatus status)
     {
         result = status;
+        for (ScriptInvoker invoker : invokers) {
+            invoker.terminate(status);
+        }
+        invokers.clear();
         if (listener != null) {
             listener.onComplete(runner.getScriptObject(), status);
         }
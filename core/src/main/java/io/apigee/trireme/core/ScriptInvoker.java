@@ -0,0 +1,333 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+import io.apigee.trireme.core.internal.NodeExitException;
+import io.apigee.trireme.core.internal.RhinoContextFactory;
+import io.apigee.trireme.core.internal.ScriptRunner;
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * This class calls a function exported by a module that was started using "NodeScript.executeModule".
+ * Get one from "ScriptFuture.createInvoker". It may be used from any thread.
+ * <p>
+ * The function is called in the script thread with the supplied arguments, plus a Node.js-style
+ * callback as the last argument. The call completes when the function calls the callback, or,
+ * if the function returns a Promise or anything else with a "then" method, when that settles.
+ * Either way, the result is delivered through an InvocationFuture. Arguments are converted
+ * using Context.javaToJS. Results are returned as they came from JavaScript, except that
+ * strings become java.lang.String and "undefined" becomes null. Errors, whether thrown or passed
+ * to the callback, cause the future to throw an ExecutionException.
+ * </p>
+ * <p>
+ * Calls do not wait for each other, so as long as the function does something asynchronous, many
+ * of them may be in progress at once. "invoke" blocks when "maxInFlight" calls are already outstanding,
+ * which keeps a fast producer from queueing up an unbounded amount of work. "invokeBatch" sends
+ * a whole list of calls to the script thread at once, which saves a thread hand-off for each one.
+ * </p>
+ * <p>
+ * The script thread itself must never wait for its own calls to complete, since that would deadlock.
+ * So when "invoke" or "invokeBatch" is called from the script thread and there is no room for the call,
+ * it throws IllegalStateException rather than blocking, and so does "awaitAll."
+ * </p>
+ */
+
+public class ScriptInvoker
+{
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private static final Logger log = LoggerFactory.getLogger(ScriptInvoker.class);
+
+    private final NodeRuntime runtime;
+    private final Function function;
+    private final Scriptable thisObj;
+    private final int maxInFlight;
+    private final Semaphore permits;
+    private final Set<InvocationFuture> outstanding =
+        Collections.newSetFromMap(new ConcurrentHashMap<InvocationFuture, Boolean>());
+
+    private volatile Throwable terminated;
+
+    ScriptInvoker(NodeRuntime runtime, Function function, Scriptable thisObj, int maxInFlight)
+    {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least one");
+        }
+        this.runtime = runtime;
+        this.function = function;
+        this.thisObj = thisObj;
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Call the function with the specified arguments. This method blocks if the maximum
+     * number of calls are already in progress.
+     *
+     * @throws IllegalStateException if called from the script thread while the maximum number of calls
+     * are in progress
+     */
+    public InvocationFuture invoke(Object... args)
+        throws InterruptedException
+    {
+        acquire(1);
+        InvocationFuture f = register();
+        runtime.enqueueTask(new InvokeTask(Collections.singletonList(args),
+                                           Collections.singletonList(f)));
+        return f;
+    }
+
+    /**
+     * Call the function once for each set of arguments in the list, using a single task in
+     * the script thread. The list may not be longer than "maxInFlight." This method blocks until
+     * there is room to start the whole batch, and returns one future per call, in order.
+     *
+     * @throws IllegalStateException if called from the script thread when there is not room
+     */
+    public List<InvocationFuture> invokeBatch(List<Object[]> argList)
+        throws InterruptedException
+    {
+        if (argList.size() > maxInFlight) {
+            throw new IllegalArgumentException("Batch of " + argList.size() +
+                                               " is larger than maxInFlight of " + maxInFlight);
+        }
+        acquire(argList.size());
+        ArrayList<InvocationFuture> futures = new ArrayList<InvocationFuture>(argList.size());
+        for (int i = 0; i < argList.size(); i++) {
+            futures.add(register());
+        }
+        // Copy the list since the caller is likely to reuse it for the next batch
+        runtime.enqueueTask(new InvokeTask(new ArrayList<Object[]>(argList), futures));
+        return futures;
+    }
+
+    /**
+     * Block until every call made so far has completed.
+     *
+     * @throws IllegalStateException if called from the script thread while any calls are in progress
+     */
+    public void awaitAll()
+        throws InterruptedException
+    {
+        acquire(maxInFlight);
+        permits.release(maxInFlight);
+    }
+
+    /**
+     * Return the number of calls that have not completed yet.
+     */
+    public int getInFlight()
+    {
+        return outstanding.size();
+    }
+
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    private void acquire(int count)
+        throws InterruptedException
+    {
+        if (!isScriptThread()) {
+            permits.acquire(count);
+        } else if (!permits.tryAcquire(count)) {
+            // Only the script thread can release permits, so waiting here would never end
+            throw new IllegalStateException("Cannot wait for calls to complete from the script thread");
+        }
+    }
+
+    private boolean isScriptThread()
+    {
+        Context cx = Context.getCurrentContext();
+        return ((cx != null) && (cx.getThreadLocal(ScriptRunner.RUNNER) == runtime));
+    }
+
+    private InvocationFuture register()
+    {
+        InvocationFuture f = new InvocationFuture(this);
+        outstanding.add(f);
+        // Check after adding so that we cannot miss a "terminate" that happens at the same time
+        if (terminated != null) {
+            f.fail(terminated);
+        }
+        return f;
+    }
+
+    void invocationDone(InvocationFuture f)
+    {
+        if (outstanding.remove(f)) {
+            permits.release();
+        }
+    }
+
+    /**
+     * Called by the ScriptFuture when the script exits, so that nothing waits forever on a call that
+     * will never run.
+     */
+    void terminate(ScriptStatus status)
+    {
+        terminated = status.hasCause() ? status.getCause() :
+            new NodeExitException(NodeExitException.Reason.NORMAL, status.getExitCode());
+        for (InvocationFuture f : outstanding) {
+            f.fail(terminated);
+        }
+    }
+
+    private static Object convertResult(Object val)
+    {
+        if ((val == null) || Undefined.instance.equals(val)) {
+            return null;
+        }
+        if (val instanceof CharSequence) {
+            return val.toString();
+        }
+        return val;
+    }
+
+    private static Throwable convertError(Object err)
+    {
+        if (err instanceof Throwable) {
+            return (Throwable)err;
+        }
+        return new JavaScriptException(err, null, 0);
+    }
+
+    private final class InvokeTask
+        implements ScriptTask
+    {
+        private final List<Object[]> argList;
+        private final List<InvocationFuture> futures;
+
+        InvokeTask(List<Object[]> argList, List<InvocationFuture> futures)
+        {
+            this.argList = argList;
+            this.futures = futures;
+        }
+
+        @Override
+        public void execute(Context cx, Scriptable scope)
+        {
+            for (int i = 0; i < futures.size(); i++) {
+                InvocationFuture f = futures.get(i);
+                if (f.isDone()) {
+                    // Cancelled before we got to it
+                    continue;
+                }
+                invokeOne(cx, scope, argList.get(i), f);
+            }
+        }
+
+        private void invokeOne(Context cx, Scriptable scope, Object[] args, InvocationFuture f)
+        {
+            try {
+                int argLen = (args == null ? 0 : args.length);
+                Object[] jsArgs = new Object[argLen + 1];
+                for (int i = 0; i < argLen; i++) {
+                    jsArgs[i] = Context.javaToJS(args[i], scope);
+                }
+                jsArgs[argLen] = new CompletionFunction(f, CompletionFunction.CALLBACK);
+
+                Object ret = function.call(cx, scope, thisObj, jsArgs);
+                if (ret instanceof Scriptable) {
+                    Object then = ScriptableObject.getProperty((Scriptable)ret, "then");
+                    if (then instanceof Function) {
+                        ((Function)then).call(cx, scope, (Scriptable)ret, new Object[] {
+                            new CompletionFunction(f, CompletionFunction.RESOLVE),
+                            new CompletionFunction(f, CompletionFunction.REJECT)
+                        });
+                    }
+                }
+            } catch (NodeExitException nee) {
+                // process.exit() and the script timeout end the whole script, not just this call
+                throw nee;
+            } catch (RhinoContextFactory.ScriptTimeoutException ste) {
+                throw ste;
+            } catch (RuntimeException re) {
+                // Any other error, from script code or native code, belongs to this call only
+                if (log.isDebugEnabled()) {
+                    log.debug("Invoked function threw {}", re);
+                }
+                f.fail(re);
+            }
+        }
+    }
+
+    /**
+     * This is the callback that we pass to the function, and also what we pass to "then" for a Promise.
+     */
+    private static final class CompletionFunction
+        extends BaseFunction
+    {
+        static final int CALLBACK = 0;
+        static final int RESOLVE = 1;
+        static final int REJECT = 2;
+
+        private final InvocationFuture future;
+        private final int mode;
+
+        CompletionFunction(InvocationFuture future, int mode)
+        {
+            this.future = future;
+            this.mode = mode;
+        }
+
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args)
+        {
+            Object first = (args.length > 0) ? args[0] : null;
+            switch (mode) {
+            case CALLBACK:
+                if ((first == null) || Undefined.instance.equals(first)) {
+                    future.complete(convertResult((args.length > 1) ? args[1] : null));
+                } else {
+                    future.fail(convertError(first));
+                }
+                break;
+            case RESOLVE:
+                future.complete(convertResult(first));
+                break;
+            case REJECT:
+                future.fail(convertError(first));
+                break;
+            default:
+                throw new AssertionError();
+            }
+            return Undefined.instance;
+        }
+    }
+}
@@ -31,6 +31,7 @@ public class ScriptStatus
     public static final int EXCEPTION_CODE = -1;
     public static final int CANCEL_CODE = -2;
     public static final int TIMEOUT_CODE = -3;
+    public static final int QUOTA_CODE = -4;
 
     private final int exitCode;
     private Throwable cause;
@@ -50,6 +51,12 @@ public class ScriptStatus
         this.cause = cause;
     }
 
+    public ScriptStatus(int exitCode, Throwable cause)
+    {
+        this.exitCode = exitCode;
+        this.cause = cause;
+    }
+
     public int getExitCode()
     {
         return exitCode;
@@ -74,6 +81,13 @@ public class ScriptStatus
         return (exitCode == CANCEL_CODE);
     }
 
+    /**
+     * Return true if the script was stopped because it went over a resource quota in its Sandbox.
+     */
+    public boolean isQuotaExceeded() {
+        return (exitCode == QUOTA_CODE);
+    }
+
     public boolean isOk() {
         return (exitCode == OK_CODE);
     }
@@ -21,6 +21,12 @@
  */
 package io.apigee.trireme.core;
 
+/**
+ * This is called when a script exits. A script that was stopped for going over a resource quota in its
+ * Sandbox has a status with the code QUOTA_CODE, and "NodeScript.getResourceUsage" returns what it
+ * used in total.
+ */
+
 public interface ScriptStatusListener
 {
     void onComplete(NodeScript script, ScriptStatus status);
@@ -125,6 +125,19 @@ public class Utils
         return StringUtils.stringToBuffer(str, cs);
     }
 
+    /**
+     * Like stringToBuffer, but for a string that came from script code. A string that cannot be
+     * decoded, like a hex string of odd length, causes a TypeError to be thrown in JavaScript.
+     */
+    public static ByteBuffer stringToBuffer(Context cx, Scriptable scope, String str, Charset cs)
+    {
+        try {
+            return StringUtils.stringToBuffer(str, cs);
+        } catch (IllegalArgumentException iae) {
+            throw makeTypeError(cx, scope, iae.getMessage());
+        }
+    }
+
     /**
      * Create a JavaScript Error object, which may be passed to a function that is expecting one.
      */
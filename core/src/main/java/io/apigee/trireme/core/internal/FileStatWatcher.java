@@ -0,0 +1,208 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import io.apigee.trireme.core.ScriptTask;
+import io.apigee.trireme.kernel.OSException;
+import io.apigee.trireme.kernel.fs.FileStats;
+import io.apigee.trireme.kernel.fs.FileWatcher;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This is the part of "fs.watchFile" that is the same for every version of Node. When possible it uses
+ * the environment's FileWatcher to find out when the file might have changed, and only then checks the
+ * stats. Otherwise it polls the stats on a timer. The "StatWatcher" class in each "fs" module wraps one
+ * of these, and handles pinning and turning the stats in to JavaScript objects.
+ */
+public class FileStatWatcher
+    implements FileWatcher.Listener
+{
+    private static final Logger log = LoggerFactory.getLogger(FileStatWatcher.class);
+
+    /**
+     * The stats that are reported when the file does not exist or can't be read.
+     */
+    public static final FileStats EMPTY_STATS = new FileStats();
+
+    public interface Listener
+    {
+        /**
+         * Called in the script thread when the stats of the file have changed.
+         */
+        void statsChanged(Context cx, FileStats oldStats, FileStats newStats);
+    }
+
+    private final ScriptRunner runner;
+    private final String origPath;
+    private final File file;
+    private final Listener listener;
+    private final Object statsLock = new Object();
+
+    private FileStats lastStats;
+    private Future<?> timer;
+    private FileWatcher.Registration registration;
+    private Object domain;
+    private volatile boolean stopped;
+
+    public FileStatWatcher(ScriptRunner runner, String path, Listener listener)
+    {
+        this.runner = runner;
+        this.origPath = path;
+        this.file = runner.translatePath(path);
+        this.listener = listener;
+    }
+
+    /**
+     * Start watching. "interval" is only used if we have to poll. This must be called from the
+     * script thread.
+     */
+    public void start(long interval)
+    {
+        domain = runner.getDomain();
+
+        // Get the initial stats before anything can report a change, so that the first change
+        // is compared with the stats from before it rather than after it.
+        synchronized (statsLock) {
+            lastStats = getStats();
+        }
+
+        // Find out about changes from the file watcher if we can, so that we don't have to
+        // keep calling "stat" on a file that is not changing.
+        if (file != null) {
+            try {
+                registration = runner.getEnvironment().getFileWatcher().watch(file, this);
+                runner.registerCloseable(registration);
+                if (log.isDebugEnabled()) {
+                    log.debug("Watching {} for changes using the file watcher", origPath);
+                }
+            } catch (OSException ose) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Can't watch {}: {}. Will poll instead.", origPath, ose);
+                }
+            }
+        }
+
+        if (registration == null) {
+            // Schedule the timer to check periodically. We do this now to prevent a race
+            // on shutdown. All work gets dispatched to the same thread pool anyway.
+            if (log.isDebugEnabled()) {
+                log.debug("Going to poll stats on {} every {} milliseconds", origPath, interval);
+            }
+            timer = runner.createTimedTask(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    updateStats();
+                }
+            }, interval, TimeUnit.MILLISECONDS, true, domain);
+        }
+    }
+
+    /**
+     * Stop watching, and return true if we were watching before.
+     */
+    public boolean stop()
+    {
+        stopped = true;
+        if ((timer == null) && (registration == null)) {
+            return false;
+        }
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        if (registration != null) {
+            registration.close();
+            runner.unregisterCloseable(registration);
+            registration = null;
+        }
+        return true;
+    }
+
+    private FileStats getStats()
+    {
+        if (file == null) {
+            return EMPTY_STATS;
+        }
+        try {
+            return runner.getFilesystem().stat(file, origPath, false);
+        } catch (OSException ose) {
+            // Always return something, even if empty.
+            return EMPTY_STATS;
+        }
+    }
+
+    /**
+     * Called in the file watcher thread when the file may have changed.
+     */
+    @Override
+    public void fileChanged(String event, String fileName)
+    {
+        updateStats();
+    }
+
+    /**
+     * On every turn of the timer, or every file watcher event, check the stats, and if they differ,
+     * fire off the callback.
+     */
+    private void updateStats()
+    {
+        if (stopped) {
+            return;
+        }
+        runner.getAsyncPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (statsLock) {
+                    if (stopped) {
+                        return;
+                    }
+                    final FileStats newStats = getStats();
+
+                    if (!newStats.equals(lastStats)) {
+                        log.debug("New and old stats differ -- firing callback");
+                        final FileStats oldStats = (lastStats == null ? EMPTY_STATS : lastStats);
+                        runner.enqueueTask(new ScriptTask() {
+                            @Override
+                            public void execute(Context cx, Scriptable scope)
+                            {
+                                // "stop" runs in this thread too, so nothing is delivered after it
+                                if (!stopped) {
+                                    listener.statsChanged(cx, oldStats, newStats);
+                                }
+                            }
+                        }, domain);
+                    }
+                    lastStats = newStats;
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import io.apigee.trireme.core.Utils;
+import io.apigee.trireme.core.modules.NativeModule;
+import io.apigee.trireme.kernel.Charsets;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+
+/**
+ * A jar of JavaScript modules that were compiled ahead of time by BundleCompiler. The jar contains one
+ * class for each module, plus an index that maps the hash of each module's source code, after it
+ * has been wrapped the way that "module.js" wraps it, to the class and to the path of the original file.
+ * The ScriptCompiler checks the bundles in the NodeEnvironment before compiling anything, so a module
+ * that hasn't changed since the bundle was built is never compiled at runtime.
+ * <p>
+ * Since the source code is part of the key, a module that was changed after the bundle was built is
+ * simply compiled as usual. A bundle is also ignored by scripts whose Rhino settings would make
+ * different code, such as when the environment has a script time limit but the bundle was built
+ * without instruction counting.
+ * </p>
+ */
+
+public class PrecompiledBundle
+    implements Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger(PrecompiledBundle.class);
+
+    public static final String INDEX_NAME = "META-INF/trireme/bundle.index";
+    public static final String PROPERTIES_NAME = "META-INF/trireme/bundle.properties";
+    public static final String CLASS_PREFIX = "trireme.bundle.S";
+    public static final String KEY_HASH = "SHA-256";
+
+    public static final String PROP_LANGUAGE_VERSION = "languageVersion";
+    public static final String PROP_OBSERVER_COUNT = "generateObserverCount";
+
+    private static final Pattern SHEBANG = Pattern.compile("^#!.*");
+
+    private final File file;
+    private final URLClassLoader loader;
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private final int languageVersion;
+    private final boolean observerCount;
+
+    private PrecompiledBundle(File file, Properties props)
+        throws IOException
+    {
+        this.file = file;
+        this.loader = new URLClassLoader(new URL[] { file.toURI().toURL() }, Script.class.getClassLoader());
+        try {
+            this.languageVersion = Integer.parseInt(props.getProperty(PROP_LANGUAGE_VERSION));
+        } catch (NumberFormatException nfe) {
+            throw new IOException(file.getPath() + " is not a valid Trireme bundle");
+        }
+        this.observerCount = Boolean.parseBoolean(props.getProperty(PROP_OBSERVER_COUNT));
+    }
+
+    /**
+     * Read the index of the specified jar file, which must have been created by BundleCompiler.
+     */
+    public static PrecompiledBundle open(File file)
+        throws IOException
+    {
+        JarFile jar = new JarFile(file);
+        try {
+            ZipEntry propsEntry = jar.getEntry(PROPERTIES_NAME);
+            ZipEntry indexEntry = jar.getEntry(INDEX_NAME);
+            if ((propsEntry == null) || (indexEntry == null)) {
+                throw new IOException(file.getPath() + " is not a Trireme bundle");
+            }
+
+            Properties props = new Properties();
+            InputStream in = jar.getInputStream(propsEntry);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+
+            PrecompiledBundle bundle = new PrecompiledBundle(file, props);
+            BufferedReader rdr =
+                new BufferedReader(new InputStreamReader(jar.getInputStream(indexEntry), Charsets.UTF8));
+            try {
+                String line;
+                while ((line = rdr.readLine()) != null) {
+                    // key, class name, and original path, separated by tabs
+                    String[] fields = line.split("\t", 3);
+                    if (fields.length == 3) {
+                        bundle.entries.put(fields[0], new Entry(fields[1], fields[2]));
+                    }
+                }
+            } finally {
+                rdr.close();
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Loaded {} precompiled modules from {}", bundle.entries.size(), file);
+            }
+            return bundle;
+        } finally {
+            jar.close();
+        }
+    }
+
+    /**
+     * Turn the contents of a module file in to the exact code that "module.js" compiles: without a byte
+     * order mark or a "#!" line, and wrapped in a function.
+     */
+    public static String wrapModuleSource(String source)
+    {
+        String s = source;
+        if ((s.length() > 0) && (s.charAt(0) == '\uFEFF')) {
+            s = s.substring(1);
+        }
+        s = SHEBANG.matcher(s).replaceFirst("");
+        return NativeModule.NativeImpl.wrap(s);
+    }
+
+    /**
+     * Return the key that identifies "code" in a bundle index, or null if it can't be calculated.
+     * Unlike the key that ScriptCompiler uses for the ClassCache, this one leaves out the file name,
+     * because a module is loaded from a different absolute path than the one it had when the bundle was
+     * built, and would never match. The cost is that Rhino compiles the file name in to the class, so
+     * stack traces from a precompiled module show the path relative to the directory that the bundle was
+     * built from, and a module whose code is identical to another's shows that one's path.
+     */
+    public static String makeKey(String code)
+    {
+        try {
+            MessageDigest md = MessageDigest.getInstance(KEY_HASH);
+            md.update(Utils.stringToBuffer(code, Charsets.UTF8));
+            return Utils.bufferToString(ByteBuffer.wrap(md.digest()), Charsets.NODE_HEX);
+        } catch (NoSuchAlgorithmException e) {
+            log.debug("Can't calculate bundle key: {}", e);
+            return null;
+        }
+    }
+
+    /**
+     * Return whether the classes in this bundle may be run using the specified context.
+     */
+    public boolean isCompatible(Context cx)
+    {
+        return ((cx.getOptimizationLevel() >= 0) &&
+                (cx.getLanguageVersion() == languageVersion) &&
+                (cx.generateObserverCount == observerCount));
+    }
+
+    /**
+     * Return a new instance of the script whose key is "key," or null if it's not in the bundle.
+     */
+    public Script getScript(String key)
+    {
+        Entry e = entries.get(key);
+        if (e == null) {
+            return null;
+        }
+
+        try {
+            Class<?> klass = e.klass;
+            if (klass == null) {
+                klass = loader.loadClass(e.className);
+                e.klass = klass;
+            }
+            return (Script)klass.getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException cnfe) {
+            log.debug("Precompiled class for {} not found in {}: {}", e.path, file, cnfe);
+        } catch (ReflectiveOperationException roe) {
+            log.debug("Can't create precompiled class for {}: {}", e.path, roe);
+        }
+        return null;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        loader.close();
+    }
+
+    private static final class Entry
+    {
+        final String className;
+        final String path;
+        volatile Class<?> klass;
+
+        Entry(String className, String path)
+        {
+            this.className = className;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import io.apigee.trireme.core.ResourceQuotaExceededException;
+import io.apigee.trireme.core.ResourceUsage;
+import io.apigee.trireme.core.Sandbox;
+import io.apigee.trireme.core.ScriptResourcesMXBean;
+import io.apigee.trireme.core.ScriptStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps track of the resources used by one script, and enforces the quotas in its Sandbox.
+ * CPU time and heap allocation come from the ThreadMXBean for the script's thread, and are sampled by
+ * the ScriptRunner between the phases of the event loop. Buffers are tracked using phantom references
+ * so that the count goes back down when they are garbage-collected.
+ * <p>
+ * Sampling and quota checks run on the script's thread. Buffers may also be created on other threads,
+ * such as the async pool when a file is read, so the Buffer count is kept in a concurrent set and an
+ * AtomicLong, and may be read from anywhere.
+ * </p>
+ */
+
+public class ResourceAccounting
+    implements ScriptResourcesMXBean
+{
+    private static final Logger log = LoggerFactory.getLogger(ResourceAccounting.class);
+
+    public static final String MBEAN_DOMAIN = "io.apigee.trireme";
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean allocationBean = getAllocationBean();
+    private static final AtomicLong nextId = new AtomicLong();
+
+    private final long cpuQuota;
+    private final long allocationQuota;
+    private final long quotaPeriod;
+    private final long bufferLimit;
+    private final Sandbox.QuotaPolicy policy;
+    private final boolean measureCpu;
+    private final boolean measureAllocation;
+
+    private final ReferenceQueue<Object> bufferQueue = new ReferenceQueue<Object>();
+    private final Set<BufferRef> bufferRefs =
+        Collections.newSetFromMap(new ConcurrentHashMap<BufferRef, Boolean>());
+    private final AtomicLong bufferBytes = new AtomicLong();
+
+    private String scriptName;
+    private long threadId;
+    private long lastCpu;
+    private long lastAllocated;
+    private long periodStart;
+    private long periodCpu;
+    private long periodAllocated;
+    private ObjectName mbeanName;
+
+    private volatile long cpuTime;
+    private volatile long allocatedBytes;
+    private volatile long throttleCount;
+    private volatile long throttledTime;
+    private volatile String exceeded;
+
+    public ResourceAccounting(Sandbox sandbox)
+    {
+        this.cpuQuota = sandbox.getCpuQuota();
+        this.allocationQuota = sandbox.getAllocationQuota();
+        this.quotaPeriod = sandbox.getQuotaPeriod();
+        this.bufferLimit = sandbox.getBufferLimit();
+        this.policy = sandbox.getQuotaPolicy();
+
+        this.measureCpu =
+            threadBean.isCurrentThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+        this.measureAllocation = (allocationBean != null) &&
+            allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled();
+        if (!measureCpu) {
+            cpuTime = -1L;
+        }
+        if (!measureAllocation) {
+            allocatedBytes = -1L;
+        }
+    }
+
+    /**
+     * The allocation counter is a HotSpot extension, so don't fail if it's not there.
+     */
+    private static com.sun.management.ThreadMXBean getAllocationBean()
+    {
+        try {
+            if (threadBean instanceof com.sun.management.ThreadMXBean) {
+                return (com.sun.management.ThreadMXBean)threadBean;
+            }
+        } catch (LinkageError le) {
+            log.debug("Thread allocation counters are not available: {}", le);
+        }
+        return null;
+    }
+
+    /**
+     * Start measuring. This must be called on the script's thread before it runs anything.
+     */
+    public void start(String name)
+    {
+        this.scriptName = name;
+        threadId = Thread.currentThread().getId();
+        if (measureCpu) {
+            lastCpu = threadBean.getCurrentThreadCpuTime();
+        }
+        if (measureAllocation) {
+            lastAllocated = allocationBean.getThreadAllocatedBytes(threadId);
+        }
+        periodStart = System.nanoTime();
+        register();
+    }
+
+    /**
+     * Take the last sample and remove the MBean. This is called when the script exits.
+     */
+    public void stop()
+    {
+        sample();
+        unregister();
+    }
+
+    /**
+     * Add the usage since the last sample to the totals, and subtract any Buffers that were collected.
+     */
+    public void sample()
+    {
+        if (measureCpu) {
+            long cpu = threadBean.getCurrentThreadCpuTime();
+            long delta = cpu - lastCpu;
+            lastCpu = cpu;
+            cpuTime += delta;
+            periodCpu += delta;
+        }
+        if (measureAllocation) {
+            long alloc = allocationBean.getThreadAllocatedBytes(threadId);
+            long delta = alloc - lastAllocated;
+            lastAllocated = alloc;
+            allocatedBytes += delta;
+            periodAllocated += delta;
+        }
+        pollBuffers();
+    }
+
+    /**
+     * Sample usage and enforce the quotas. If the script is over its CPU or allocation quota for the current
+     * period, then either pause until the period is over or return a status that stops the script,
+     * depending on the quota policy. Otherwise return null.
+     */
+    public ScriptStatus checkQuotas()
+    {
+        sample();
+        if ((exceeded != null) && (policy == Sandbox.QuotaPolicy.KILL)) {
+            return makeStatus(exceeded);
+        }
+        if ((cpuQuota <= 0L) && (allocationQuota <= 0L)) {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        if ((now - periodStart) >= quotaPeriod) {
+            startPeriod(now);
+        }
+
+        String over = null;
+        if ((cpuQuota > 0L) && (periodCpu > cpuQuota)) {
+            over = "CPU quota exceeded";
+        } else if ((allocationQuota > 0L) && (periodAllocated > allocationQuota)) {
+            over = "Allocation quota exceeded";
+        }
+        if (over == null) {
+            return null;
+        }
+
+        if (policy == Sandbox.QuotaPolicy.KILL) {
+            exceeded = over;
+            return makeStatus(over);
+        }
+
+        long pause = (periodStart + quotaPeriod) - now;
+        if (log.isDebugEnabled()) {
+            log.debug("{}: {}. Pausing for {} ms", scriptName, over, TimeUnit.NANOSECONDS.toMillis(pause));
+        }
+        throttleCount++;
+        try {
+            TimeUnit.NANOSECONDS.sleep(pause);
+        } catch (InterruptedException ie) {
+            // The script was probably cancelled -- keep the interrupt so that the event loop notices
+            Thread.currentThread().interrupt();
+        }
+        long end = System.nanoTime();
+        throttledTime += (end - now);
+        startPeriod(end);
+        return null;
+    }
+
+    /**
+     * Anything used beyond the quota in the last period counts against the next one, so that a script that
+     * goes far over in one callback is paused for long enough to make up for it.
+     */
+    private void startPeriod(long now)
+    {
+        periodStart = now;
+        periodCpu = Math.max(0L, periodCpu - cpuQuota);
+        periodAllocated = Math.max(0L, periodAllocated - allocationQuota);
+    }
+
+    private ScriptStatus makeStatus(String msg)
+    {
+        return new ScriptStatus(ScriptStatus.QUOTA_CODE, new ResourceQuotaExceededException(msg));
+    }
+
+    /**
+     * Count a new Buffer array. If "enforce" is true and the array would put the script over its Buffer
+     * limit, then don't count it and return false, so that the caller can throw an error instead.
+     */
+    public boolean trackBuffer(byte[] array, boolean enforce)
+    {
+        if (array == null) {
+            return true;
+        }
+        return track(array, array.length, enforce);
+    }
+
+    /**
+     * Count a new off-heap Buffer in the same way.
+     */
+    public boolean trackBuffer(ByteBuffer bb, boolean enforce)
+    {
+        if (bb == null) {
+            return true;
+        }
+        return track(bb, bb.capacity(), enforce);
+    }
+
+    private boolean track(Object memory, int length, boolean enforce)
+    {
+        if (length == 0) {
+            return true;
+        }
+        if (enforce && (bufferLimit > 0L)) {
+            if (!reserve(length)) {
+                pollBuffers();
+                if (!reserve(length)) {
+                    if (policy == Sandbox.QuotaPolicy.KILL) {
+                        exceeded = "Buffer limit exceeded";
+                    }
+                    return false;
+                }
+            }
+        } else {
+            bufferBytes.addAndGet(length);
+        }
+        bufferRefs.add(new BufferRef(memory, length, bufferQueue));
+        return true;
+    }
+
+    /**
+     * Add "length" to the Buffer count unless that would put it over the limit. Buffers may be counted
+     * on more than one thread at once, so the check and the update must happen together.
+     */
+    private boolean reserve(int length)
+    {
+        long current;
+        do {
+            current = bufferBytes.get();
+            if ((current + length) > bufferLimit) {
+                return false;
+            }
+        } while (!bufferBytes.compareAndSet(current, current + length));
+        return true;
+    }
+
+    private void pollBuffers()
+    {
+        Reference<?> ref;
+        while ((ref = bufferQueue.poll()) != null) {
+            BufferRef br = (BufferRef)ref;
+            if (bufferRefs.remove(br)) {
+                bufferBytes.addAndGet(-br.length);
+            }
+        }
+    }
+
+    public ResourceUsage getUsage()
+    {
+        return new ResourceUsage(cpuTime, allocatedBytes, bufferBytes.get(), throttleCount, throttledTime);
+    }
+
+    private void register()
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_DOMAIN + ":type=Script,id=" + nextId.incrementAndGet());
+            server.registerMBean(this, name);
+            mbeanName = name;
+        } catch (JMException je) {
+            log.debug("Can't register resource MBean for {}: {}", scriptName, je);
+        } catch (SecurityException se) {
+            log.debug("Can't register resource MBean for {}: {}", scriptName, se);
+        }
+    }
+
+    private void unregister()
+    {
+        if (mbeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (JMException je) {
+            log.debug("Can't unregister resource MBean {}: {}", mbeanName, je);
+        }
+        mbeanName = null;
+    }
+
+    public ObjectName getObjectName() {
+        return mbeanName;
+    }
+
+    @Override
+    public String getScriptName() {
+        return scriptName;
+    }
+
+    @Override
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public long getBufferBytes() {
+        return bufferBytes.get();
+    }
+
+    @Override
+    public long getThrottleCount() {
+        return throttleCount;
+    }
+
+    @Override
+    public long getThrottledTime() {
+        return throttledTime;
+    }
+
+    @Override
+    public boolean isQuotaExceeded() {
+        return (exceeded != null);
+    }
+
+    private static final class BufferRef
+        extends PhantomReference<Object>
+    {
+        final int length;
+
+        BufferRef(Object memory, int length, ReferenceQueue<Object> queue)
+        {
+            super(memory, queue);
+            this.length = length;
+        }
+    }
+}
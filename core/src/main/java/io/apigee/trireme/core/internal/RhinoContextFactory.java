@@ -76,7 +76,7 @@ public class RhinoContextFactory
         }
 
         if (System.currentTimeMillis() > (Long)timeoutObj) {
-            throw new JavaScriptException("Script timed out");
+            throw new ScriptTimeoutException();
         }
     }
 
@@ -198,4 +198,17 @@ public class RhinoContextFactory
             return cs2.visibleToScripts(s);
         }
     }
+
+    /**
+     * This is what a script sees when it runs past its timeout. It has its own class so that Java code that
+     * catches exceptions from script code can tell it apart and let it through to the event loop.
+     */
+    public static final class ScriptTimeoutException
+        extends JavaScriptException
+    {
+        public ScriptTimeoutException()
+        {
+            super("Script timed out");
+        }
+    }
 }
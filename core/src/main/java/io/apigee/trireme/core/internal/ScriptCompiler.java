@@ -0,0 +1,238 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import io.apigee.trireme.core.ClassCache;
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.Utils;
+import io.apigee.trireme.kernel.Charsets;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * This class compiles source code for all the implementations of "vm" and "contextify." If the
+ * NodeEnvironment has a ClassCache, then compiled scripts are looked up there first, and stored there
+ * afterwards, so that many scripts in the same environment that load the same modules only compile each
+ * one once. When two threads need the same script at the same time, only one compiles it and the other
+ * waits for the result. Before any of that, it looks for the script in the PrecompiledBundles that were
+ * added to the environment.
+ * <p>
+ * Like "ScriptUtils.tryCompile," "compile" returns null for scripts that are too large to compile, and
+ * those must be run in interpreted mode, which "run" does automatically. Since finding that out means
+ * generating most of the bytecode, it remembers which scripts were too large and doesn't try them again.
+ * </p>
+ */
+
+public class ScriptCompiler
+{
+    private static final Logger log = LoggerFactory.getLogger(ScriptCompiler.class);
+
+    public static final String CACHE_KEY_HASH = "SHA-256";
+
+    /** Forget all the scripts that were too large once we have seen this many of them. */
+    public static final int MAX_TOO_LARGE = 1024;
+
+    private final NodeEnvironment env;
+    private final ConcurrentHashMap<String, Compilation> inProgress =
+        new ConcurrentHashMap<String, Compilation>();
+    private final Set<String> tooLarge =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public ScriptCompiler(NodeEnvironment env)
+    {
+        this.env = env;
+    }
+
+    /**
+     * Get the compiler for the environment of the script that is running on this thread.
+     */
+    public static ScriptCompiler get(Context cx)
+    {
+        ScriptRunner runner = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
+        return runner.getEnvironment().getScriptCompiler();
+    }
+
+    /**
+     * Compile the script, or return it from the cache. Return null if the script is too large to compile,
+     * and throw if it can't be compiled for any other reason.
+     */
+    public Script compile(Context cx, String code, String fileName)
+    {
+        Script precompiled = findPrecompiled(cx, code);
+        if (precompiled != null) {
+            return precompiled;
+        }
+
+        String cacheKey = makeCacheKey(code, fileName);
+        if (cacheKey == null) {
+            return ScriptUtils.tryCompile(cx, code, fileName);
+        }
+        if (tooLarge.contains(cacheKey)) {
+            return null;
+        }
+
+        ClassCache cache = env.getClassCache();
+        if (cache == null) {
+            return tryCompile(cx, code, fileName, cacheKey);
+        }
+
+        Script compiled = cache.getCachedScript(cacheKey);
+        if (compiled != null) {
+            return compiled;
+        }
+
+        Compilation mine = new Compilation();
+        Compilation theirs = inProgress.putIfAbsent(cacheKey, mine);
+        if (theirs != null) {
+            // Someone else is compiling the same thing right now -- wait for them
+            if (theirs.await()) {
+                return theirs.result;
+            }
+            // They failed, so compile again to get the error on this thread
+            return ScriptUtils.tryCompile(cx, code, fileName);
+        }
+
+        boolean success = false;
+        try {
+            // Another thread may have finished compiling it since we looked
+            compiled = cache.getCachedScript(cacheKey);
+            if (compiled == null) {
+                compiled = tryCompile(cx, code, fileName, cacheKey);
+            }
+            if (compiled != null) {
+                cache.putCachedScript(cacheKey, compiled);
+            }
+            mine.result = compiled;
+            success = true;
+            return compiled;
+        } finally {
+            inProgress.remove(cacheKey);
+            mine.finish(success);
+        }
+    }
+
+    private Script tryCompile(Context cx, String code, String fileName, String cacheKey)
+    {
+        Script compiled = ScriptUtils.tryCompile(cx, code, fileName);
+        if (compiled == null) {
+            if (tooLarge.size() >= MAX_TOO_LARGE) {
+                tooLarge.clear();
+            }
+            tooLarge.add(cacheKey);
+        }
+        return compiled;
+    }
+
+    private Script findPrecompiled(Context cx, String code)
+    {
+        List<PrecompiledBundle> bundles = env.getPrecompiledBundles();
+        if (bundles.isEmpty()) {
+            return null;
+        }
+        String key = PrecompiledBundle.makeKey(code);
+        if (key == null) {
+            return null;
+        }
+        for (PrecompiledBundle bundle : bundles) {
+            if (bundle.isCompatible(cx)) {
+                Script s = bundle.getScript(key);
+                if (s != null) {
+                    return s;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compile the script, or get it from the cache, and run it in the specified scope. If it is too large
+     * to compile, then interpret it instead.
+     */
+    public Object run(Context cx, Scriptable scope, String code, String fileName)
+    {
+        Script compiled = compile(cx, code, fileName);
+        if (compiled == null) {
+            return ScriptUtils.interpretScript(cx, scope, code, fileName);
+        }
+        return compiled.exec(cx, scope);
+    }
+
+    /**
+     * The file name is part of the key because Rhino compiles it in to the class, where it is used in
+     * stack traces.
+     */
+    private static String makeCacheKey(String code, String fileName)
+    {
+        try {
+            MessageDigest md = MessageDigest.getInstance(CACHE_KEY_HASH);
+            if (fileName != null) {
+                md.update(Utils.stringToBuffer(fileName, Charsets.UTF8));
+            }
+            md.update((byte)0);
+            md.update(Utils.stringToBuffer(code, Charsets.UTF8));
+            ByteBuffer keyBuf = ByteBuffer.wrap(md.digest());
+            return Utils.bufferToString(keyBuf, Charsets.BASE64);
+
+        } catch (NoSuchAlgorithmException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Can't calculate cache key for source code: " + e);
+            }
+            return null;
+        }
+    }
+
+    private static final class Compilation
+    {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile boolean success;
+        volatile Script result;
+
+        void finish(boolean success)
+        {
+            this.success = success;
+            latch.countDown();
+        }
+
+        boolean await()
+        {
+            try {
+                latch.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return success;
+        }
+    }
+}
@@ -40,6 +40,7 @@ import io.apigee.trireme.kernel.fs.AdvancedFilesystem;
 import io.apigee.trireme.kernel.fs.BasicFilesystem;
 import io.apigee.trireme.kernel.net.NetworkPolicy;
 import io.apigee.trireme.kernel.net.SelectorHandler;
+import io.apigee.trireme.kernel.util.BufferPool;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextAction;
 import org.mozilla.javascript.EcmaError;
@@ -63,7 +64,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.ArrayList;
@@ -82,6 +82,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -112,10 +113,14 @@ public class ScriptRunner
     private final  Sandbox                 sandbox;
     private final PathTranslator pathTranslator;
     private final  ExecutorService         asyncPool;
+    private final  ResourceAccounting      accounting;
+    private final  BufferPool              bufferPool;
     private final IdentityHashMap<Closeable, Closeable> openHandles =
         new IdentityHashMap<Closeable, Closeable>();
 
     private final  ConcurrentLinkedQueue<Activity> tickFunctions = new ConcurrentLinkedQueue<Activity>();
+    private final  ConcurrentLinkedQueue<IpcMessage> ipcQueue = new ConcurrentLinkedQueue<IpcMessage>();
+    private final  AtomicBoolean                 ipcDeliveryScheduled = new AtomicBoolean();
     private final  PriorityQueue<Activity>       timerQueue    = new PriorityQueue<Activity>();
     private final  Selector                      selector;
     private        int                           timerSequence;
@@ -196,10 +201,31 @@ public class ScriptRunner
 
         if ((sandbox != null) && (sandbox.getMounts() != null)) {
             for (Map.Entry<String, String> mount : sandbox.getMounts()) {
-                pathTranslator.mount(mount.getKey(), new File(mount.getValue()));
+                pathTranslator.mount(mount.getKey(), new File(mount.getValue()),
+                                     sandbox.isImmutableMount(mount.getKey()));
             }
         }
 
+        if ((sandbox != null) && sandbox.isResourceAccounting()) {
+            this.accounting = new ResourceAccounting(sandbox);
+        } else {
+            this.accounting = null;
+        }
+
+        this.bufferPool =
+            new BufferPool(env == null ? 0 : env.getBufferPoolSize()) {
+                @Override
+                protected byte[] newSlab(int size)
+                {
+                    byte[] slab = super.newSlab(size);
+                    // Pooled Buffers are counted a slab at a time, and a slab counts against the Buffer limit
+                    if ((accounting != null) && !accounting.trackBuffer(slab, true)) {
+                        throw Utils.makeRangeError(Context.getCurrentContext(), scope, "Buffer limit exceeded");
+                    }
+                    return slab;
+                }
+            };
+
         try {
             this.selector = Selector.open();
         } catch (IOException ioe) {
@@ -245,6 +271,21 @@ public class ScriptRunner
         return sandbox;
     }
 
+    /**
+     * Return the resource accounting for this script, or null if the sandbox didn't turn it on.
+     */
+    public ResourceAccounting getResourceAccounting() {
+        return accounting;
+    }
+
+    /**
+     * Return the pool that small Buffers for this script come from. It is turned off unless the
+     * environment has a non-zero Buffer pool size.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
     @Override
     public NetworkPolicy getNetworkPolicy() {
         return (sandbox == null ? null : sandbox.getNetworkPolicy());
@@ -447,102 +488,113 @@ public class ScriptRunner
 
     /**
      * This method is used by the "child_process" module when sending an IPC message between child processes
-     * in the same JVM.
+     * in the same JVM. The message is serialized right away, so that later changes by the sender do not
+     * affect it, and re-created in the receiving script when it is delivered. All the messages that arrive
+     * before the receiver gets around to processing them are delivered in a single task.
      *
      * @param message A JavaScript object, String, or Buffer. We will make a copy to prevent confusion.
      * @param child If null, deliver the message to the "process" object. Otherwise, deliver it to the
      *              specified child.
      */
-    public void enqueueIpc(Context cx, Object message, final TriremeProcess child)
+    public void enqueueIpc(Context cx, Object message, TriremeProcess child)
     {
-        Object toDeliver;
-        String event = "message";
+        IpcMessage msg = new IpcMessage(child);
 
         if (message == TriremeProcess.IPC_DISCONNECT) {
-            event = "disconnect";
-            toDeliver = Undefined.instance;
+            msg.event = "disconnect";
+            msg.value = Undefined.instance;
 
         } else if (message instanceof Buffer.BufferImpl) {
             // Copy the bytes, because a buffer might be modified between apps
-            ByteBuffer bb = ((Buffer.BufferImpl)message).getBuffer();
-            toDeliver = Buffer.BufferImpl.newBuffer(cx, scope, bb, true);
+            msg.serialized = StructuredClone.serialize(message);
 
         } else if (message instanceof Scriptable) {
             // Copy the object because we can't rely on safely sharing them between apps.
             Scriptable s = (Scriptable)message;
-            toDeliver = copy(cx, s);
+            msg.serialized = StructuredClone.serialize(s);
             if (s.has("cmd", s)) {
                 String cmd = Context.toString(s.get("cmd", s));
                 if (cmd.startsWith("NODE_")) {
-                    event = "internalMessage";
+                    msg.event = "internalMessage";
                 }
             }
 
         } else if (message instanceof String) {
             // Strings are immutable in Java!
-            toDeliver = message;
+            msg.value = message;
         } else {
             throw new AssertionError("Unsupported object type for IPC");
         }
 
-        final Object reallyDeliver = toDeliver;
-        final String fevent = event;
         if (child == null) {
-            // We are called on child's script runtime, so enqueue a task here
-            enqueueTask(new ScriptTask() {
-                @Override
-                public void execute(Context cx, Scriptable scope)
-                {
-                    process.emitEvent(fevent, reallyDeliver, cx, scope);
-                }
-            });
-
+            // We are called on child's script runtime, so deliver it here
+            deliverIpc(msg);
         } else {
-            // We are the child's script runtime. Enqueue task that sends to the parent
-            // "child" here actually refers to the "child_process" object inside the parent!
-            assert(child.getRuntime() != this);
-            child.getRuntime().enqueueTask(new ScriptTask()
-            {
+            // Deliver to the parent. "child" here actually refers to the "child_process" object
+            // inside the parent!
+            child.getRuntime().deliverIpc(msg);
+        }
+    }
+
+    /**
+     * Add the message to the queue and make sure that a task is scheduled to process it. This may be
+     * called from any thread.
+     */
+    private void deliverIpc(IpcMessage msg)
+    {
+        ipcQueue.offer(msg);
+        scheduleIpcDelivery();
+    }
+
+    private void scheduleIpcDelivery()
+    {
+        if (ipcDeliveryScheduled.compareAndSet(false, true)) {
+            enqueueTask(new ScriptTask() {
                 @Override
                 public void execute(Context cx, Scriptable scope)
                 {
-                    // Now we should be running inside the script thread of the other script
-                    child.getOnMessage().call(cx, scope, null, new Object[] { fevent, reallyDeliver });
+                    processIpcQueue(cx, scope);
                 }
             });
         }
     }
 
     /**
-     * Copy one JavaScript object to another, taking nested objects into account. Don't copy primitive fields
-     * because we assume that they are immutable (string, boolean, and number).
+     * Now we are running inside the script thread of the receiver, so create the messages here.
      */
-    private Scriptable copy(Context cx, Scriptable s)
+    private void processIpcQueue(Context cx, Scriptable scope)
     {
-        if (s instanceof Function) {
-            return null;
-        }
-        Scriptable t = cx.newObject(scope);
-        for (Object id : s.getIds()) {
-            if (id instanceof String) {
-                String n = (String)id;
-                Object val = s.get(n, s);
-                if (val instanceof Scriptable) {
-                    val = copy(cx, (Scriptable)val);
-                }
-                t.put(n, t, val);
-            } else if (id instanceof Number) {
-                int i = ((Number)id).intValue();
-                Object val = s.get(i, s);
-                if (val instanceof Scriptable) {
-                    val = copy(cx, (Scriptable)val);
+        ipcDeliveryScheduled.set(false);
+        try {
+            IpcMessage msg;
+            while ((msg = ipcQueue.poll()) != null) {
+                Object val = (msg.serialized == null) ? msg.value :
+                             StructuredClone.deserialize(cx, scope, msg.serialized);
+                if (msg.child == null) {
+                    process.emitEvent(msg.event, val, cx, scope);
+                } else {
+                    msg.child.getOnMessage().call(cx, scope, null, new Object[] { msg.event, val });
                 }
-                t.put(i, t, val);
-            } else {
-                throw new AssertionError();
+            }
+        } finally {
+            // If a listener threw, don't strand the rest of the batch
+            if (!ipcQueue.isEmpty()) {
+                scheduleIpcDelivery();
             }
         }
-        return t;
+    }
+
+    private static final class IpcMessage
+    {
+        final TriremeProcess child;
+        String event = "message";
+        Object value;
+        byte[] serialized;
+
+        IpcMessage(TriremeProcess child)
+        {
+            this.child = child;
+        }
     }
 
     @Override
@@ -673,7 +725,8 @@ public class ScriptRunner
         }
         fs.cleanup();
 
-        for (Closeable c: openHandles.values()) {
+        // Copy, since closing a handle may unregister it
+        for (Closeable c: new ArrayList<Closeable>(openHandles.values())) {
             if (log.isDebugEnabled()) {
                 log.debug("Closing leaked handle {}", c);
             }
@@ -699,7 +752,14 @@ public class ScriptRunner
             @Override
             public Object run(Context cx)
             {
-                return runScript(cx);
+                try {
+                    return runScript(cx);
+                } finally {
+                    // Unregister the MBean however the script ends
+                    if (accounting != null) {
+                        accounting.stop();
+                    }
+                }
             }
         });
         return (ScriptStatus)ret;
@@ -718,6 +778,10 @@ public class ScriptRunner
 
         cx.putThreadLocal(RUNNER, this);
         now = System.currentTimeMillis();
+        if (accounting != null) {
+            accounting.start(scriptObject.getDisplayName() == null ?
+                             scriptFileName : scriptObject.getDisplayName());
+        }
 
         try {
             // All scripts get their own global scope. This is a lot safer than sharing them in case a script wants
@@ -901,6 +965,14 @@ public class ScriptRunner
                     return ScriptStatus.CANCELLED;
                 }
 
+                // Measure what the last pass through the loop used, and pause or stop if over quota
+                if (accounting != null) {
+                    ScriptStatus quotaStatus = accounting.checkQuotas();
+                    if (quotaStatus != null) {
+                        return quotaStatus;
+                    }
+                }
+
                 // Call tick functions scheduled by process.nextTick. Node.js docs for
                 // process.nextTick say that these things run before anything else in the event loop
                 executeNextTicks(cx);
@@ -1205,6 +1277,8 @@ public class ScriptRunner
                 // Ignore version number -- it is processed by the shell.
             } else if ("--debug".equals(arg) || "--trace".equals(arg)) {
                 // Actual processing happens elsewhere
+            } else if (sa.startsWith("--debug-port") || sa.startsWith("--debug_port")) {
+                // The "cluster" module passes this to every worker, but we have no debugger to use it
             } else {
                 throw new NodeException("Unsupported command-line option " + arg);
             }
@@ -40,14 +40,14 @@ public class ScriptUtils
     private static final Logger log = LoggerFactory.getLogger(ScriptUtils.class.getName());
 
     /** This is the message that Rhino emits if it knows that bytecode is too large */
-    private static final Pattern BYTECODE_SIZE_MESSAGE =
+    public static final Pattern BYTECODE_SIZE_MESSAGE =
         Pattern.compile(".*generated bytecode .+ exceeds 64K limit.*");
 
     /**
      * This is the maximum size, in characters, of source code that we know will generate more than 64K
      * of code. This allows us to short-circuit an expensive compilation step.
      */
-    private static final int MAX_COMPILED_SCRIPT_LENGTH = 128 * 1024;
+    public static final int MAX_COMPILED_SCRIPT_LENGTH = 128 * 1024;
 
     /**
      * Try to compile the script, and return null if the script is too large.
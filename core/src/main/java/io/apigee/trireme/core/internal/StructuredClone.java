@@ -0,0 +1,314 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import io.apigee.trireme.core.modules.Buffer;
+import io.apigee.trireme.kernel.Charsets;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Undefined;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * This class serializes a JavaScript value into a compact binary form so that it may be passed
+ * between two scripts in the same JVM, and re-creates it later inside the receiving script.
+ * Serialization happens in the sending script's thread, so the message is not affected by later
+ * changes to the original objects, and nothing is created in the receiver until the message is
+ * delivered. Like the HTML "structured clone" algorithm, it preserves Buffers, Dates, arrays, and
+ * shared or circular references. Functions are replaced with null.
+ */
+
+public class StructuredClone
+{
+    private static final byte TAG_UNDEFINED = 0;
+    private static final byte TAG_NULL = 1;
+    private static final byte TAG_TRUE = 2;
+    private static final byte TAG_FALSE = 3;
+    private static final byte TAG_INT = 4;
+    private static final byte TAG_DOUBLE = 5;
+    private static final byte TAG_STRING = 6;
+    private static final byte TAG_OBJECT = 7;
+    private static final byte TAG_ARRAY = 8;
+    private static final byte TAG_BUFFER = 9;
+    private static final byte TAG_DATE = 10;
+    private static final byte TAG_REF = 11;
+
+    private static final int INITIAL_SIZE = 256;
+
+    private ByteBuffer out;
+    private final IdentityHashMap<Object, Integer> seen = new IdentityHashMap<Object, Integer>();
+
+    private StructuredClone()
+    {
+        out = ByteBuffer.allocate(INITIAL_SIZE);
+    }
+
+    /**
+     * Serialize the value, which may be any JavaScript value.
+     */
+    public static byte[] serialize(Object val)
+    {
+        StructuredClone c = new StructuredClone();
+        c.write(val);
+        c.out.flip();
+        byte[] ret = new byte[c.out.remaining()];
+        c.out.get(ret);
+        return ret;
+    }
+
+    /**
+     * Create a new JavaScript value in the specified scope from the result of "serialize".
+     */
+    public static Object deserialize(Context cx, Scriptable scope, byte[] data)
+    {
+        return new Reader(cx, scope, data).read();
+    }
+
+    private void write(Object val)
+    {
+        if ((val == null) || (val instanceof Function)) {
+            writeTag(TAG_NULL);
+        } else if (val instanceof Undefined) {
+            writeTag(TAG_UNDEFINED);
+        } else if (val instanceof Boolean) {
+            writeTag((Boolean)val ? TAG_TRUE : TAG_FALSE);
+        } else if ((val instanceof Integer) || (val instanceof Short) || (val instanceof Byte)) {
+            writeTag(TAG_INT);
+            ensure(4);
+            out.putInt(((Number)val).intValue());
+        } else if (val instanceof Number) {
+            writeTag(TAG_DOUBLE);
+            ensure(8);
+            out.putDouble(((Number)val).doubleValue());
+        } else if (val instanceof CharSequence) {
+            writeTag(TAG_STRING);
+            writeString(val.toString());
+        } else if (val instanceof Scriptable) {
+            writeObject((Scriptable)val);
+        } else {
+            // Some other Java object that the script got hold of -- send its string form
+            writeTag(TAG_STRING);
+            writeString(val.toString());
+        }
+    }
+
+    private void writeObject(Scriptable s)
+    {
+        Integer ref = seen.get(s);
+        if (ref != null) {
+            writeTag(TAG_REF);
+            ensure(4);
+            out.putInt(ref);
+            return;
+        }
+        seen.put(s, seen.size());
+
+        if (s instanceof Buffer.BufferImpl) {
+            Buffer.BufferImpl buf = (Buffer.BufferImpl)s;
+            writeTag(TAG_BUFFER);
+            ensure(4 + buf.getLength());
+            out.putInt(buf.getLength());
+            out.put(buf.getBuffer());
+
+        } else if ("Date".equals(s.getClassName())) {
+            writeTag(TAG_DATE);
+            ensure(8);
+            out.putDouble(ScriptRuntime.toNumber(s));
+
+        } else {
+            Object[] ids = s.getIds();
+            if (s instanceof NativeArray) {
+                long length = ((NativeArray)s).getLength();
+                writeTag(TAG_ARRAY);
+                ensure(8);
+                if (length <= Integer.MAX_VALUE) {
+                    out.putInt((int)length);
+                    out.putInt(ids.length);
+                } else {
+                    // Too long for the header, so send an empty array and set "length" as a property
+                    out.putInt(0);
+                    out.putInt(ids.length + 1);
+                    writeTag(TAG_STRING);
+                    writeString("length");
+                    write(Double.valueOf(length));
+                }
+            } else {
+                writeTag(TAG_OBJECT);
+                ensure(4);
+                out.putInt(ids.length);
+            }
+
+            for (Object id : ids) {
+                if (id instanceof String) {
+                    String n = (String)id;
+                    writeTag(TAG_STRING);
+                    writeString(n);
+                    write(s.get(n, s));
+                } else if (id instanceof Number) {
+                    int i = ((Number)id).intValue();
+                    writeTag(TAG_INT);
+                    ensure(4);
+                    out.putInt(i);
+                    write(s.get(i, s));
+                } else {
+                    throw new AssertionError();
+                }
+            }
+        }
+    }
+
+    private void writeTag(byte tag)
+    {
+        ensure(1);
+        out.put(tag);
+    }
+
+    private void writeString(String s)
+    {
+        int len = s.length();
+        ensure(4 + len);
+        int start = out.position();
+        out.putInt(len);
+
+        // Most property names and values are ASCII, so try that before falling back to UTF-8
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                out.position(start);
+                byte[] utf = s.getBytes(Charsets.UTF8);
+                ensure(4 + utf.length);
+                out.putInt(-utf.length - 1);
+                out.put(utf);
+                return;
+            }
+            out.put((byte)c);
+        }
+    }
+
+    private void ensure(int len)
+    {
+        if (out.remaining() < len) {
+            ByteBuffer newOut = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + len));
+            out.flip();
+            newOut.put(out);
+            out = newOut;
+        }
+    }
+
+    private static final class Reader
+    {
+        private final Context cx;
+        private final Scriptable scope;
+        private final ByteBuffer in;
+        private final ArrayList<Object> objects = new ArrayList<Object>();
+
+        Reader(Context cx, Scriptable scope, byte[] data)
+        {
+            this.cx = cx;
+            this.scope = scope;
+            this.in = ByteBuffer.wrap(data);
+        }
+
+        Object read()
+        {
+            byte tag = in.get();
+            switch (tag) {
+            case TAG_UNDEFINED:
+                return Undefined.instance;
+            case TAG_NULL:
+                return null;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_INT:
+                return in.getInt();
+            case TAG_DOUBLE:
+                return in.getDouble();
+            case TAG_STRING:
+                return readString();
+            case TAG_REF:
+                return objects.get(in.getInt());
+            case TAG_BUFFER:
+                byte[] data = new byte[in.getInt()];
+                in.get(data);
+                Buffer.BufferImpl buf = Buffer.BufferImpl.newBuffer(cx, scope, data);
+                objects.add(buf);
+                return buf;
+            case TAG_DATE:
+                Scriptable date = cx.newObject(scope, "Date", new Object[] { in.getDouble() });
+                objects.add(date);
+                return date;
+            case TAG_ARRAY:
+                Scriptable array = cx.newArray(scope, in.getInt());
+                objects.add(array);
+                readProperties(array);
+                return array;
+            case TAG_OBJECT:
+                Scriptable obj = cx.newObject(scope);
+                objects.add(obj);
+                readProperties(obj);
+                return obj;
+            default:
+                throw new AssertionError("Invalid serialized tag " + tag);
+            }
+        }
+
+        private void readProperties(Scriptable s)
+        {
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                byte keyTag = in.get();
+                if (keyTag == TAG_INT) {
+                    int index = in.getInt();
+                    s.put(index, s, read());
+                } else {
+                    assert(keyTag == TAG_STRING);
+                    String name = readString();
+                    s.put(name, s, read());
+                }
+            }
+        }
+
+        private String readString()
+        {
+            int len = in.getInt();
+            if (len < 0) {
+                int utfLen = -len - 1;
+                String s = new String(in.array(), in.position(), utfLen, Charsets.UTF8);
+                in.position(in.position() + utfLen);
+                return s;
+            }
+            char[] chars = new char[len];
+            for (int i = 0; i < len; i++) {
+                chars[i] = (char)in.get();
+            }
+            return new String(chars);
+        }
+    }
+}
@@ -21,12 +21,19 @@
  */
 package io.apigee.trireme.core.modules;
 
+import io.apigee.trireme.core.BufferAllocator;
 import io.apigee.trireme.core.NodeModule;
 import io.apigee.trireme.core.NodeRuntime;
 import io.apigee.trireme.core.internal.AbstractIdObject;
 import io.apigee.trireme.core.internal.IdPropertyMap;
+import io.apigee.trireme.core.internal.ResourceAccounting;
+import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.charsets.Base64Codec;
+import io.apigee.trireme.kernel.charsets.HexCodec;
+import io.apigee.trireme.kernel.charsets.Utf8Codec;
 import io.apigee.trireme.core.Utils;
+import io.apigee.trireme.kernel.util.BufferPool;
 import io.apigee.trireme.kernel.util.StringUtils;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.EvaluatorException;
@@ -39,6 +46,8 @@ import org.mozilla.javascript.Undefined;
 
 import static io.apigee.trireme.core.ArgUtils.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
@@ -66,7 +75,15 @@ public class Buffer
         throws InvocationTargetException, IllegalAccessException, InstantiationException
     {
         Scriptable exp = cx.newObject(scope);
-        Function buffer = new BufferImpl().exportAsClass(exp);
+        ScriptRunner sr = (ScriptRunner)runner;
+        BufferImpl proto = new BufferImpl();
+        proto.accounting = sr.getResourceAccounting();
+        proto.pool = sr.getBufferPool();
+        if ((sr.getEnvironment() != null) && (sr.getEnvironment().getBufferAllocator() != null)) {
+            proto.offHeapThreshold = sr.getEnvironment().getOffHeapThreshold();
+            proto.allocator = sr.getEnvironment().getBufferAllocator();
+        }
+        Function buffer = proto.exportAsClass(exp);
         exp.put("Buffer", exp, buffer);
         exp.put("SlowBuffer", exp, buffer);
         Scriptable jsBuffer = (Scriptable)runner.require("_trireme_buffer", cx);
@@ -142,9 +159,16 @@ public class Buffer
             props.addProperty("offset", Prop_offset, ScriptableObject.READONLY);
         }
 
+        // Exactly one of these is set. "direct" is indexed from zero for the whole off-heap allocation,
+        // and "bufOffset" is relative to that, just as it is for "buf."
         private byte[] buf;
+        private ByteBuffer direct;
         private int bufOffset;
         private int bufLength;
+        private ResourceAccounting accounting;
+        private int offHeapThreshold;
+        private BufferAllocator allocator;
+        private BufferPool pool;
 
         public BufferImpl()
         {
@@ -164,10 +188,16 @@ public class Buffer
         protected BufferImpl defaultConstructor(Context cx, Object[] args)
         {
             BufferImpl buf = new BufferImpl();
+            buf.accounting = accounting;
+            buf.offHeapThreshold = offHeapThreshold;
+            buf.allocator = allocator;
+            buf.pool = pool;
 
             if (args.length == 0) {
                 return buf;
             }
+            // Pooled Buffers share a slab, and the whole slab is counted when it is created
+            boolean pooled = false;
             if (args[0] instanceof CharSequence) {
                 // If a string, encode and create -- this is in the docs
                 String s = stringArg(args, 0);
@@ -176,7 +206,11 @@ public class Buffer
                 if (cs == null) {
                     throw Utils.makeTypeError(cx, this, "Invalid encoding " + enc);
                 }
-                buf.fromStringInternal(s, cs);
+                try {
+                    pooled = buf.fromStringInternal(s, cs);
+                } catch (IllegalArgumentException iae) {
+                    throw Utils.makeTypeError(cx, this, iae.getMessage());
+                }
 
             } else if (args[0] instanceof Number) {
                 // If a non-negative integer, use that, otherwise 0 -- from the tests and docs
@@ -184,17 +218,22 @@ public class Buffer
                 if ((len < 0) || (len > MAX_LENGTH)) {
                     throw Utils.makeRangeError(cx, this, "Length out of range");
                 }
-                buf.buf = new byte[len];
-                buf.bufOffset = 0;
-                buf.bufLength = len;
+                pooled = buf.allocate(len, true);
 
             } else if (args[0] instanceof BufferImpl) {
                 // This is the constructor used by the "slice" operation.
                 BufferImpl src = (BufferImpl)args[0];
+                // Node 0.10 passes a negative length when "end" is before "start"
+                int len = Math.max(intArg(args, 1, src.bufLength), 0);
+                int off = intArg(args, 2, 0);
+                // Small Buffers share a slab with others, so a slice must never reach outside its source
+                if ((off < 0) || (len > (src.bufLength - off))) {
+                    throw Utils.makeRangeError(cx, this, "Slice out of range");
+                }
                 buf.buf = src.buf;
-                buf.bufLength = intArg(args, 1, src.bufLength);
-                buf.bufOffset = intArg(args, 2, 0);
-                buf.bufOffset += src.bufOffset;
+                buf.direct = src.direct;
+                buf.bufLength = len;
+                buf.bufOffset = src.bufOffset + off;
 
             } else if (args[0] instanceof Scriptable) {
                 // Array of integers, or apparently in some cases an array of strings containing integers...
@@ -231,9 +270,59 @@ public class Buffer
             } else {
                 throw Utils.makeTypeError(cx, this, "Invalid argument type");
             }
+
+            if ((accounting != null) && !(args[0] instanceof BufferImpl) && !pooled && !buf.track(true)) {
+                throw Utils.makeRangeError(cx, this, "Buffer limit exceeded");
+            }
             return buf;
         }
 
+        /**
+         * Allocate new, empty memory, off the heap if this Buffer is large enough, or from the pool if it
+         * is small enough and "pooled" is set. Return true if it came from the pool.
+         */
+        private boolean allocate(int len, boolean pooled)
+        {
+            if ((allocator != null) && (offHeapThreshold > 0) && (len >= offHeapThreshold)) {
+                direct = allocator.allocate(len);
+            }
+            if (direct == null) {
+                if (pooled && (pool != null) && pool.isPooled(len)) {
+                    bufOffset = pool.reserve(len);
+                    buf = pool.getSlab();
+                    bufLength = len;
+                    return true;
+                }
+                buf = new byte[len];
+            }
+            bufOffset = 0;
+            bufLength = len;
+            return false;
+        }
+
+        private boolean track(boolean enforce)
+        {
+            if (direct == null) {
+                return accounting.trackBuffer(buf, enforce);
+            }
+            return accounting.trackBuffer(direct, enforce);
+        }
+
+        /**
+         * Return a ByteBuffer whose position is "start," an index in to the whole array or allocation
+         * including "bufOffset," and whose limit is "len" bytes after that.
+         */
+        private ByteBuffer region(int start, int len)
+        {
+            if (direct == null) {
+                return ByteBuffer.wrap(buf, start, len);
+            }
+            ByteBuffer bb = direct.duplicate();
+            bb.limit(start + len);
+            bb.position(start);
+            return bb;
+        }
+
         @Override
         protected void fillConstructorProperties(IdFunctionObject c)
         {
@@ -320,7 +409,7 @@ public class Buffer
         {
             switch (id) {
             case Id_byteLength:
-                return byteLength(args);
+                return byteLength(cx, scope, args);
             case Id_compare:
                 return compare(cx, scope, args);
             case Id_toFloat:
@@ -332,11 +421,25 @@ public class Buffer
             }
         }
 
-        private static int byteLength(Object[] args)
+        private static int byteLength(Context cx, Scriptable scope, Object[] args)
         {
             String data = stringArg(args, 0);
             Charset charset = resolveEncoding(args, 1);
 
+            if (Charsets.BASE64.equals(charset)) {
+                return Base64Codec.decodedLength(data);
+            }
+            if (Charsets.NODE_HEX.equals(charset)) {
+                try {
+                    return HexCodec.decodedLength(data);
+                } catch (IllegalArgumentException iae) {
+                    throw Utils.makeTypeError(cx, scope, iae.getMessage());
+                }
+            }
+            if (Charsets.UTF8.equals(charset)) {
+                return Utf8Codec.encodedLength(data);
+            }
+
             // Encode the characters and replace, just as we would do in the constructor
             CharsetEncoder encoder = getCharsetEncoder(charset, true);
 
@@ -365,8 +468,8 @@ public class Buffer
             Buffer.BufferImpl b2 = objArg(cx, scope, args, 1, Buffer.BufferImpl.class, true);
 
             int cmpLen = Math.min(b1.bufLength, b2.bufLength);
-            ByteBuffer bb1 = ByteBuffer.wrap(b1.buf, b1.bufOffset, cmpLen);
-            ByteBuffer bb2 = ByteBuffer.wrap(b2.buf, b2.bufOffset, cmpLen);
+            ByteBuffer bb1 = b1.region(b1.bufOffset, cmpLen);
+            ByteBuffer bb2 = b2.region(b2.bufOffset, cmpLen);
 
             int cmp = bb1.compareTo(bb2);
 
@@ -392,11 +495,29 @@ public class Buffer
             if (len <= 0) {
                 return "";
             }
+            return decode(start + bufOffset, len, cs);
+        }
 
-            start += bufOffset;
-            end += bufOffset;
+        /**
+         * Turn "len" bytes, starting at "start" in the underlying array or allocation, in to a string.
+         */
+        private String decode(int start, int len, Charset cs)
+        {
+            if (Charsets.BASE64.equals(cs) || Charsets.NODE_HEX.equals(cs)) {
+                byte[] src = buf;
+                if (direct != null) {
+                    // The codecs only work on arrays
+                    src = new byte[len];
+                    region(start, len).get(src);
+                    start = 0;
+                }
+                if (Charsets.BASE64.equals(cs)) {
+                    return Base64Codec.encode(src, start, len);
+                }
+                return HexCodec.encode(src, start, len);
+            }
 
-            ByteBuffer bb = ByteBuffer.wrap(buf, start, len);
+            ByteBuffer bb = region(start, len);
             return StringUtils.bufferToString(bb, cs);
         }
 
@@ -414,7 +535,37 @@ public class Buffer
             }
 
             off += bufOffset;
-            ByteBuffer writeBuf = ByteBuffer.wrap(buf, off, len);
+
+            if (Charsets.BASE64.equals(cs) || Charsets.NODE_HEX.equals(cs)) {
+                try {
+                    return writeDecoded(s, off, len, cs, proto);
+                } catch (IllegalArgumentException iae) {
+                    throw Utils.makeTypeError(cx, this, iae.getMessage());
+                }
+            }
+
+            if ((direct != null) && Charsets.UTF8.equals(cs)) {
+                // The UTF-8 codec only works on arrays, so encode in to one that is just big enough
+                ByteBuffer tmp = ByteBuffer.allocate(Math.min(len, s.length() * 3));
+                int chars = Utf8Codec.encode(s, tmp);
+                tmp.flip();
+                region(off, tmp.remaining()).put(tmp);
+                if (proto != null) {
+                    proto.put("_charsWritten", proto, chars);
+                }
+                return tmp.limit();
+            }
+
+            ByteBuffer writeBuf = region(off, len);
+
+            if (Charsets.UTF8.equals(cs)) {
+                // Encoded in one pass, stopping before any character that does not fit
+                int chars = Utf8Codec.encode(s, writeBuf);
+                if (proto != null) {
+                    proto.put("_charsWritten", proto, chars);
+                }
+                return writeBuf.position() - off;
+            }
 
             // When encoding, it's important that we stop on any incomplete character
             // as per the spec.
@@ -430,6 +581,43 @@ public class Buffer
             return writeBuf.position() - off;
         }
 
+        /**
+         * Base64 and hex decode straight into the array without going through a CharsetEncoder.
+         */
+        private int writeDecoded(String s, int off, int len, Charset cs, Scriptable proto)
+        {
+            if (direct != null) {
+                // Decode in to a temporary array, since the codecs only work on arrays
+                byte[] tmp = new byte[len];
+                int written = writeDecoded(s, tmp, 0, len, cs, proto);
+                region(off, written).put(tmp, 0, written);
+                return written;
+            }
+            return writeDecoded(s, buf, off, len, cs, proto);
+        }
+
+        private static int writeDecoded(String s, byte[] buf, int off, int len, Charset cs, Scriptable proto)
+        {
+            int written;
+            int charsWritten;
+            if (Charsets.BASE64.equals(cs)) {
+                int total = Base64Codec.decodedLength(s);
+                written = Base64Codec.decode(s, buf, off, Math.min(len, total));
+                if (written == total) {
+                    charsWritten = s.length();
+                } else {
+                    charsWritten = Base64Codec.charsConsumed(s, written);
+                }
+            } else {
+                written = HexCodec.decode(s, buf, off, len);
+                charsWritten = written * 2;
+            }
+            if (proto != null) {
+                proto.put("_charsWritten", proto, charsWritten);
+            }
+            return written;
+        }
+
         private void fill(Context cx, Object[] args)
         {
             ensureArg(args, 0);
@@ -441,11 +629,9 @@ public class Buffer
             end += bufOffset;
 
             if (val instanceof Number) {
-                Arrays.fill(buf, start, end,
-                            (byte)(((Number)val).intValue()));
+                fillByte(start, end, (byte)(((Number)val).intValue()));
             } else if (val instanceof Boolean) {
-                Arrays.fill(buf, start, end,
-                            ((Boolean)val).booleanValue() ? (byte)1 : (byte)0);
+                fillByte(start, end, ((Boolean)val).booleanValue() ? (byte)1 : (byte)0);
             } else if (val instanceof String) {
                 fillString((String)val, start, end);
             } else {
@@ -453,15 +639,26 @@ public class Buffer
             }
         }
 
+        private void fillByte(int start, int end, byte b)
+        {
+            if (direct == null) {
+                Arrays.fill(buf, start, end, b);
+            } else {
+                for (int i = start; i < end; i++) {
+                    direct.put(i, b);
+                }
+            }
+        }
+
         private void fillString(String s, int start, int end)
         {
             if (s.isEmpty()) {
-                Arrays.fill(buf, start, end, (byte)0);
+                fillByte(start, end, (byte)0);
             } else {
                 byte[] tmp = s.getBytes(Charsets.UTF8);
                 if (tmp.length == 1) {
-                    Arrays.fill(buf, start, end, tmp[0]);
-                } else {
+                    fillByte(start, end, tmp[0]);
+                } else if (direct == null) {
                     int pos = start;
                     while ((pos + tmp.length) <= end) {
                         System.arraycopy(tmp, 0, buf, pos, tmp.length);
@@ -469,6 +666,12 @@ public class Buffer
                     }
                     int len = Math.min(tmp.length, end - pos);
                     System.arraycopy(tmp, 0, buf, pos, len);
+                } else {
+                    ByteBuffer bb = region(start, end - start);
+                    while (bb.remaining() >= tmp.length) {
+                        bb.put(tmp);
+                    }
+                    bb.put(tmp, 0, bb.remaining());
                 }
             }
         }
@@ -483,7 +686,11 @@ public class Buffer
             start += bufOffset;
             end += bufOffset;
 
-            System.arraycopy(buf, start, target.buf, targetStart, end - start);
+            if ((direct == null) && (target.direct == null)) {
+                System.arraycopy(buf, start, target.buf, targetStart, end - start);
+            } else {
+                target.region(targetStart, end - start).put(region(start, end - start));
+            }
             return end - start;
         }
 
@@ -599,16 +806,20 @@ public class Buffer
             int off = intArg(args, 1);
             if ((off + 8) <= bufLength) {
                 long l = Double.doubleToLongBits(val);
+                // Unlike the readers, the writers add "bufOffset" themselves
                 if (bigEndian) {
-                    writeInt64BE(l, off + bufOffset);
+                    writeInt64BE(l, off);
                 } else {
-                    writeInt64LE(l, off + bufOffset);
+                    writeInt64LE(l, off);
                 }
             }
         }
 
         private long readInt64BE(int offset)
         {
+            if (direct != null) {
+                return direct.getLong(offset);
+            }
             return (((long)buf[offset] & 0xffL) << 56L) |
                 (((long)buf[offset + 1] & 0xffL) << 48L) |
                 (((long)buf[offset + 2] & 0xffL) << 40L) |
@@ -621,6 +832,9 @@ public class Buffer
 
         private long readInt64LE(int offset)
         {
+            if (direct != null) {
+                return Long.reverseBytes(direct.getLong(offset));
+            }
             return ((long)buf[offset] & 0xffL)|
                 (((long)buf[offset + 1] & 0xffL) << 8L) |
                 (((long)buf[offset + 2] & 0xffL) << 16L) |
@@ -633,6 +847,9 @@ public class Buffer
 
         private int readInt32BE(int offset)
         {
+            if (direct != null) {
+                return direct.getInt(bufOffset + offset);
+            }
             return (((int)buf[bufOffset +offset] & 0xff) << 24) |
                 (((int)buf[bufOffset +offset + 1] & 0xff) << 16) |
                 (((int)buf[bufOffset +offset + 2] & 0xff) << 8) |
@@ -641,6 +858,9 @@ public class Buffer
 
         private int readInt32LE(int offset)
         {
+            if (direct != null) {
+                return Integer.reverseBytes(direct.getInt(bufOffset + offset));
+            }
             return ((int)buf[bufOffset +offset] & 0xff) |
                 (((int)buf[bufOffset +offset + 1] & 0xff) << 8) |
                 (((int)buf[bufOffset +offset + 2] & 0xff) << 16) |
@@ -649,6 +869,10 @@ public class Buffer
 
         private void writeInt64BE(long value, int offset)
         {
+            if (direct != null) {
+                direct.putLong(bufOffset + offset, value);
+                return;
+            }
             buf[bufOffset + offset] = (byte)((value >>> 56L) & 0xffL);
             buf[bufOffset +offset + 1] = (byte)((value >>> 48L) & 0xffL);
             buf[bufOffset +offset + 2] = (byte)((value >>> 40L) & 0xffL);
@@ -661,6 +885,10 @@ public class Buffer
 
         private void writeInt64LE(long value, int offset)
         {
+            if (direct != null) {
+                direct.putLong(bufOffset + offset, Long.reverseBytes(value));
+                return;
+            }
             buf[bufOffset +offset] = (byte)(value & 0xffL);
             buf[bufOffset +offset + 1] = (byte)((value >>> 8L) & 0xffL);
             buf[bufOffset +offset + 2] = (byte)((value >>> 16L) & 0xffL);
@@ -673,6 +901,10 @@ public class Buffer
 
         private void writeInt32BE(long value, int offset)
         {
+            if (direct != null) {
+                direct.putInt(bufOffset + offset, (int)value);
+                return;
+            }
             buf[bufOffset +offset] = (byte)((value >>> 24L) & 0xffL);
             buf[bufOffset +offset + 1] = (byte)((value >>> 16L) & 0xffL);
             buf[bufOffset +offset + 2] = (byte)((value >>> 8L) & 0xffL);
@@ -681,6 +913,10 @@ public class Buffer
 
         private void writeInt32LE(long value, int offset)
         {
+            if (direct != null) {
+                direct.putInt(bufOffset + offset, Integer.reverseBytes((int)value));
+                return;
+            }
             buf[bufOffset +offset] = (byte)(value & 0xffL);
             buf[bufOffset +offset + 1] = (byte)((value >>> 8L) & 0xffL);
             buf[bufOffset +offset + 2] = (byte)((value >>> 16L) & 0xffL);
@@ -689,10 +925,22 @@ public class Buffer
 
         /**
          * Read the bytes from the corresponding buffer into this one. If "copy" is true then
-         * make a new copy. In either case, the position of the original buffer is not changed.
+         * make a new copy, which is off the heap if it is large enough, or a slice of the script's
+         * Buffer pool if it is small. Otherwise the new Buffer shares the memory of "bb," whether it is
+         * on the heap or not. In either case, the position of the original buffer is not changed.
          */
         public static BufferImpl newBuffer(Context cx, Scriptable scope,
                                            ByteBuffer bb, boolean copy)
+        {
+            return newBuffer(cx, scope, bb, copy, true);
+        }
+
+        /**
+         * Like the other "newBuffer," but if "pooled" is false then a copy always gets memory of its own.
+         * Use that for keys and other secrets, which should not share a slab with other Buffers.
+         */
+        public static BufferImpl newBuffer(Context cx, Scriptable scope,
+                                           ByteBuffer bb, boolean copy, boolean pooled)
         {
             BufferImpl buf = (BufferImpl)cx.newObject(scope, CLASS_NAME);
             if (bb == null) {
@@ -702,13 +950,17 @@ public class Buffer
                 buf.buf = bb.array();
                 buf.bufOffset = bb.arrayOffset() + bb.position();
                 buf.bufLength = bb.remaining();
+            } else if (bb.isDirect() && !copy) {
+                buf.direct = bb.duplicate();
+                buf.direct.clear();
+                buf.bufOffset = bb.position();
+                buf.bufLength = bb.remaining();
             } else {
                 ByteBuffer tmp = bb.duplicate();
-                buf.buf = new byte[tmp.remaining()];
-                tmp.get(buf.buf);
-                buf.bufOffset = 0;
-                buf.bufLength = buf.buf.length;
+                buf.allocate(tmp.remaining(), pooled);
+                buf.region(buf.bufOffset, buf.bufLength).put(tmp);
             }
+            buf.trackNewBuffer();
             return buf;
         }
 
@@ -726,11 +978,27 @@ public class Buffer
             buf.buf = bb;
             buf.bufOffset = offset;
             buf.bufLength = length;
+            buf.trackNewBuffer();
             return buf;
         }
 
+        /**
+         * Count a Buffer that was created from Java code. We only count it if it covers the whole array,
+         * because otherwise the array is probably shared with other Buffers.
+         */
+        private void trackNewBuffer()
+        {
+            if ((accounting != null) && (bufOffset == 0) &&
+                (bufLength == (direct == null ? buf.length : direct.capacity()))) {
+                track(false);
+            }
+        }
+
         public ByteBuffer getBuffer()
         {
+            if (direct != null) {
+                return region(bufOffset, bufLength).slice();
+            }
 
             // https://github.com/apigee/trireme/issues/181
             // For cases where Trireme's Buffer is using a byte buffer with an offset we must copy the in-use portion of
@@ -747,16 +1015,56 @@ public class Buffer
             }
         }
 
+        /**
+         * Return a ByteBuffer for part of this Buffer, starting "off" bytes in. Its position is not necessarily
+         * zero. Writing to it changes the contents of this Buffer, so it may be passed to native code
+         * that reads directly in to the Buffer.
+         */
+        public ByteBuffer getBuffer(int off, int len)
+        {
+            return region(bufOffset + off, len);
+        }
+
+        /**
+         * Return a stream that reads the contents of this Buffer. It only makes a copy if the Buffer is
+         * off the heap.
+         */
+        public InputStream getInputStream()
+        {
+            if (direct != null) {
+                return new ByteArrayInputStream(toArray());
+            }
+            return new ByteArrayInputStream(buf, bufOffset, bufLength);
+        }
+
+        /**
+         * Return true if this Buffer's memory is outside the Java heap, in which case "getArray" returns null.
+         */
+        public boolean isDirect()
+        {
+            return (direct != null);
+        }
+
         public String getString(String encoding)
         {
             Charset cs = Charsets.get().getCharset(encoding);
+            if (direct != null) {
+                return decode(bufOffset, bufLength, cs);
+            }
+            if (Charsets.BASE64.equals(cs)) {
+                return Base64Codec.encode(buf, bufOffset, bufLength);
+            }
+            if (Charsets.NODE_HEX.equals(cs)) {
+                return HexCodec.encode(buf, bufOffset, bufLength);
+            }
             return StringUtils.bufferToString(ByteBuffer.wrap(buf, bufOffset, bufLength), cs);
         }
 
         /**
          * Return the raw byte array under the buffer. Note that the actual buffer may be
          * longer than this, so users must either take "getLength" into account, or
-         * call "toArray," which always returns an array of the exact length.
+         * call "toArray," which always returns an array of the exact length. This returns null
+         * if the Buffer is off the heap, so code that may see large Buffers should use "getBuffer" instead.
          */
         public byte[] getArray() {
             return buf;
@@ -772,7 +1080,11 @@ public class Buffer
         public byte[] toArray()
         {
             byte[] ret = new byte[bufLength];
-            System.arraycopy(buf, bufOffset, ret, 0, bufLength);
+            if (direct == null) {
+                System.arraycopy(buf, bufOffset, ret, 0, bufLength);
+            } else {
+                region(bufOffset, bufLength).get(ret);
+            }
             return ret;
         }
 
@@ -792,6 +1104,9 @@ public class Buffer
 
         public int get(int index)
         {
+            if (direct != null) {
+                return (int)direct.get(index + bufOffset) & 0xff;
+            }
             return (int)buf[index + bufOffset] & 0xff;
         }
 
@@ -804,10 +1119,9 @@ public class Buffer
         @Override
         public void put(int i, Scriptable start, Object value)
         {
-            int index = i + bufOffset;
-            if ((index >= 0) && (index < bufLength)) {
+            if ((i >= 0) && (i < bufLength)) {
                 int val = ScriptRuntime.toInt32(value);
-                putByte(index, val);
+                putByte(i + bufOffset, val);
             } else {
                 throw Utils.makeRangeError(Context.getCurrentContext(), this, "index out of range");
             }
@@ -819,7 +1133,11 @@ public class Buffer
             if (val < 0) {
                 val = 0xff + val + 1;
             }
-            buf[pos] = (byte)(val & 0xff);
+            if (direct == null) {
+                buf[pos] = (byte)(val & 0xff);
+            } else {
+                direct.put(pos, (byte)(val & 0xff));
+            }
         }
 
         public int getLength()
@@ -827,14 +1145,40 @@ public class Buffer
             return bufLength;
         }
 
-        private void fromStringInternal(String s, Charset cs)
+        /**
+         * Fill the Buffer from the string and return true if it used memory from the pool.
+         */
+        private boolean fromStringInternal(String s, Charset cs)
         {
-            ByteBuffer writeBuf =
-                StringUtils.stringToBuffer(s, cs);
-            assert(!writeBuf.isDirect());
-            buf = writeBuf.array();
-            bufOffset = writeBuf.arrayOffset();
-            bufLength = writeBuf.remaining();
+            // The common encodings go straight to an array of exactly the right length
+            if (Charsets.UTF8.equals(cs)) {
+                if (pool != null) {
+                    int len = Utf8Codec.encodedLength(s);
+                    if (pool.isPooled(len)) {
+                        bufOffset = pool.reserve(len);
+                        buf = pool.getSlab();
+                        bufLength = len;
+                        Utf8Codec.encode(s, ByteBuffer.wrap(buf, bufOffset, len));
+                        return true;
+                    }
+                }
+                buf = Utf8Codec.encode(s);
+            } else if (Charsets.BASE64.equals(cs)) {
+                buf = Base64Codec.decode(s);
+            } else if (Charsets.NODE_HEX.equals(cs)) {
+                buf = HexCodec.decode(s);
+            } else {
+                ByteBuffer writeBuf =
+                    StringUtils.stringToBuffer(s, cs);
+                assert(!writeBuf.isDirect());
+                buf = writeBuf.array();
+                bufOffset = writeBuf.arrayOffset();
+                bufLength = writeBuf.remaining();
+                return false;
+            }
+            bufOffset = 0;
+            bufLength = buf.length;
+            return false;
         }
 
         private void fromArrayInternal(Context cx, Scriptable s)
@@ -136,7 +136,7 @@ public class Crypto
     {
         if (o instanceof String) {
             Charset cs = Charsets.get().resolveCharset(encoding);
-            return Utils.stringToBuffer((String)o, cs);
+            return Utils.stringToBuffer(cx, scope, (String)o, cs);
         } else if (o instanceof Buffer.BufferImpl) {
             return ((Buffer.BufferImpl)o).getBuffer();
         } else {
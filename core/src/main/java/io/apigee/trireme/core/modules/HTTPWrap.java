@@ -781,7 +781,7 @@ public class HTTPWrap
             return response.getClientAttachment();
         }
 
-        private ByteBuffer gatherData(Object data, Object encoding)
+        private ByteBuffer gatherData(Context cx, Object data, Object encoding)
         {
             if ((data == null) || (data == Context.getUndefinedValue())) {
                 return null;
@@ -789,11 +789,11 @@ public class HTTPWrap
 
             if (data instanceof String) {
                 if ((encoding == null) || (encoding == Context.getUndefinedValue())) {
-                    return Utils.stringToBuffer((String)data, Charsets.get().getCharset(Charsets.DEFAULT_ENCODING));
+                    return Utils.stringToBuffer(cx, this, (String)data, Charsets.get().getCharset(Charsets.DEFAULT_ENCODING));
                 } else {
                     String encStr = Context.toString(encoding);
                     String str = Context.toString(data);
-                    return Utils.stringToBuffer(str, Charsets.get().resolveCharset(encStr));
+                    return Utils.stringToBuffer(cx, this, str, Charsets.get().resolveCharset(encStr));
                 }
             } else if (data instanceof Buffer.BufferImpl) {
                 return (((Buffer.BufferImpl)data).getBuffer());
@@ -818,13 +818,12 @@ public class HTTPWrap
             boolean last = booleanArg(args, 6);
             Function cb = objArg(cx, thisObj, args, 7, Function.class, false);
             ResponseAdapter self = (ResponseAdapter)thisObj;
+            ByteBuffer buf = self.gatherData(cx, data, encoding);
 
             if (last) {
                 self.server.requestComplete(self);
             }
 
-            ByteBuffer buf = self.gatherData(data, encoding);
-
             self.response.setStatusCode(statusCode);
 
             boolean hasDate = false;
@@ -880,12 +879,11 @@ public class HTTPWrap
             boolean last = booleanArg(args, 3);
             Function cb = objArg(cx, thisObj, args, 4, Function.class, false);
             ResponseAdapter self = (ResponseAdapter)thisObj;
+            ByteBuffer buf = self.gatherData(cx, data, encoding);
 
             if (last) {
                 self.server.requestComplete(self);
             }
-
-            ByteBuffer buf = self.gatherData(data, encoding);
             if (last) {
                 self.addTrailers(trailers, self.response);
             }
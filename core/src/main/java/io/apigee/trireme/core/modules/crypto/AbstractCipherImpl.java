@@ -79,11 +79,14 @@ public abstract class AbstractCipherImpl
             throw new AssertionError(ne);
         }
 
+        byte[] pwBytes = (pwBuf.isDirect() ? pwBuf.toArray() : pwBuf.getArray());
+        int pwOffset = (pwBuf.isDirect() ? 0 : pwBuf.getArrayOffset());
+
         // Generate a key using the same algorithm used by the real Node code. It is not as secure as
         // PBKDF as there is no salt and MD5 is used, but this is what Node uses.
         KeyGenerator.Key generatedKey =
             KeyGenerator.generateKey(digest,
-                                     pwBuf.getArray(), pwBuf.getArrayOffset(), pwBuf.getLength(),
+                                     pwBytes, pwOffset, pwBuf.getLength(),
                                      spec.getKeyLen(), spec.getIvLen(), 1);
 
         key = ByteBuffer.wrap(generatedKey.getKey());
@@ -178,14 +181,20 @@ public abstract class AbstractCipherImpl
             if ("buffer".equals(enc)) {
                 enc = "binary";
             }
-            buf = Utils.stringToBuffer((String)args[0], Charsets.get().resolveCharset(enc));
+            buf = Utils.stringToBuffer(cx, this, (String)args[0], Charsets.get().resolveCharset(enc));
         } else {
             Buffer.BufferImpl jsBuf = objArg(args, 0, Buffer.BufferImpl.class, true);
             buf = jsBuf.getBuffer();
         }
 
-        byte[] out =
-            cipher.update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        byte[] out;
+        if (buf.hasArray()) {
+            out = cipher.update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        } else {
+            byte[] in = new byte[buf.remaining()];
+            buf.get(in);
+            out = cipher.update(in);
+        }
         if (out == null) {
             return Buffer.BufferImpl.newBuffer(cx, this, EMPTY);
         }
@@ -142,6 +142,7 @@ public class ConnectionImpl
         this.requestCert = requestCert;
         this.rejectUnauthorized = rejectUnauth;
         this.processor = new TLSConnection(runtime, serverMode, serverName, port);
+        processor.setPipelined(runtime.getEnvironment().isTLSPipelining());
     }
 
     /**
@@ -99,13 +99,13 @@ public class HashImpl
 
         if (args[0] instanceof String) {
             ByteBuffer bb =
-                Utils.stringToBuffer(stringArg(args, 0),
+                Utils.stringToBuffer(cx, thisObj, stringArg(args, 0),
                                      Charsets.get().resolveCharset(encoding));
             thisClass.messageDigest.update(bb.array(), bb.arrayOffset(),
                                            bb.limit());
         } else {
             Buffer.BufferImpl buf = objArg(args, 0, Buffer.BufferImpl.class, true);
-            thisClass.messageDigest.update(buf.getArray(), buf.getArrayOffset(), buf.getLength());
+            thisClass.messageDigest.update(buf.getBuffer());
         }
     }
 
@@ -84,8 +84,10 @@ public class MacImpl
         }
 
         if ((buf != null) && (buf.getLength() > 0)) {
-            SecretKeySpec key = new SecretKeySpec(buf.getArray(), buf.getArrayOffset(),
-                                                  buf.getLength(), jceAlgorithm);
+            SecretKeySpec key =
+                (buf.isDirect() ?
+                    new SecretKeySpec(buf.toArray(), jceAlgorithm) :
+                    new SecretKeySpec(buf.getArray(), buf.getArrayOffset(), buf.getLength(), jceAlgorithm));
             try {
                 self.digest.init(key);
             } catch (InvalidKeyException e) {
@@ -104,13 +106,13 @@ public class MacImpl
 
         if (args[0] instanceof String) {
             ByteBuffer bb =
-                Utils.stringToBuffer(stringArg(args, 0),
+                Utils.stringToBuffer(cx, thisObj, stringArg(args, 0),
                                      Charsets.get().resolveCharset(encoding));
             thisClass.digest.update(bb.array(), bb.arrayOffset(),
                                     bb.limit());
         } else {
             Buffer.BufferImpl buf = objArg(args, 0, Buffer.BufferImpl.class, true);
-            thisClass.digest.update(buf.getArray(), buf.getArrayOffset(), buf.getLength());
+            thisClass.digest.update(buf.getBuffer());
         }
     }
 
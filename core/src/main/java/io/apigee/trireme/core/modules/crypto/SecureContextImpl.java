@@ -48,6 +48,7 @@ import javax.net.ssl.X509TrustManager;
 import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.KeyPair;
@@ -358,8 +359,7 @@ public class SecureContextImpl
         self.initialized = false;
 
         try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(pfxBuf.getArray(),
-                                                                pfxBuf.getArrayOffset(), pfxBuf.getLength());
+            InputStream bis = pfxBuf.getInputStream();
             KeyStore keyStore = KeyStore.getInstance("PKCS12");
             keyStore.load(bis, passphrase);
             KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
@@ -32,8 +32,8 @@ import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.annotations.JSFunction;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
@@ -97,9 +97,7 @@ public class SignImpl
         SignImpl self = (SignImpl)thisObj;
 
         KeyPair pair;
-        ByteArrayInputStream bis =
-            new ByteArrayInputStream(keyBuf.getArray(), keyBuf.getArrayOffset(),
-                                     keyBuf.getLength());
+        InputStream bis = keyBuf.getInputStream();
         try {
             pair = Crypto.getCryptoService().readKeyPair(self.algorithm.getKeyFormat(), bis, null);
         } catch (IOException ioe) {
@@ -33,8 +33,8 @@ import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.annotations.JSFunction;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
@@ -102,9 +102,7 @@ public class VerifyImpl
         Certificate cert = null;
         PublicKey pubKey = null;
 
-        ByteArrayInputStream bis =
-            new ByteArrayInputStream(certBuf.getArray(), certBuf.getArrayOffset(),
-                                     certBuf.getLength());
+        InputStream bis = certBuf.getInputStream();
 
         CryptoService crypto = Crypto.getCryptoService();
         try {
@@ -153,6 +151,9 @@ public class VerifyImpl
             for (ByteBuffer bb : self.buffers) {
                 verifier.update(bb);
             }
+            if (sigBuf.isDirect()) {
+                return verifier.verify(sigBuf.toArray());
+            }
             return verifier.verify(sigBuf.getArray(), sigBuf.getArrayOffset(),
                                    sigBuf.getLength());
 
@@ -6,6 +6,8 @@ import io.apigee.trireme.kernel.http.HTTPParsingMachine;
 import org.junit.Test;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 
 import static org.junit.Assert.*;
@@ -473,6 +475,200 @@ public class HTTPParserTest
         parser.parse(null);
     }
 
+    @Test
+    public void testHeaderArray()
+    {
+        HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.REQUEST);
+        HTTPParsingMachine.Result r =
+            parser.parse(Utils.stringToBuffer(COMPLETE_REQUEST_MIXED_HEADERS, Charsets.ASCII));
+        assertFalse(r.isError());
+        assertTrue(r.isComplete());
+        assertEquals("POST", r.getMethod());
+        assertEquals("/foo?bar=baz qux", r.getUri());
+
+        Object[] hdrs = r.getHeaderArray();
+        assertEquals(8, hdrs.length);
+        assertEquals("host", hdrs[0]);
+        assertEquals("mybox", hdrs[1]);
+        assertEquals("X-Custom", hdrs[2]);
+        assertEquals("onetwo", hdrs[3]);
+        assertEquals("Content-Length", hdrs[4]);
+        assertEquals("0", hdrs[5]);
+        assertEquals("Empty", hdrs[6]);
+        assertEquals("", hdrs[7]);
+        // Common names and methods are shared rather than copied
+        assertSame("host", hdrs[0]);
+        assertSame("Content-Length", hdrs[4]);
+        assertSame("POST", r.getMethod());
+    }
+
+    @Test
+    public void testDirectBufferSplit()
+    {
+        byte[] whole = COMPLETE_REQUEST_LENGTH.getBytes(Charsets.ASCII);
+        HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.REQUEST);
+        StringBuilder body = new StringBuilder();
+        HTTPParsingMachine.Result r = null;
+
+        // Feed the message a few bytes at a time, in buffers that have no array
+        for (int p = 0; p < whole.length; p += 5) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(Math.min(5, whole.length - p));
+            buf.put(whole, p, buf.remaining());
+            buf.flip();
+            r = parser.parse(buf);
+            assertFalse(r.isError());
+            if (r.hasBody()) {
+                body.append(Utils.bufferToString(r.getBody(), Charsets.ASCII));
+            }
+        }
+        assertTrue(r.isComplete());
+        assertEquals("GET", r.getMethod());
+        assertEquals("/foo/bar/baz", r.getUri());
+        assertEquals("Hello, World!", body.toString());
+    }
+
+    @Test
+    public void testBadRequestLine()
+    {
+        assertTrue(parseError(HTTPParsingMachine.ParsingMode.REQUEST, "GET /foo HTTQ/1.1\r\n\r\n"));
+        assertTrue(parseError(HTTPParsingMachine.ParsingMode.REQUEST, "GET HTTP/1.1\r\n\r\n"));
+        assertTrue(parseError(HTTPParsingMachine.ParsingMode.REQUEST, "G(T /foo HTTP/1.1\r\n\r\n"));
+        assertTrue(parseError(HTTPParsingMachine.ParsingMode.REQUEST, "GET /foo HTTP/1.1\r\nBad Header: x\r\n\r\n"));
+        assertTrue(parseError(HTTPParsingMachine.ParsingMode.RESPONSE, "HTTP/1.1 OK\r\n\r\n"));
+        assertTrue(parseError(HTTPParsingMachine.ParsingMode.RESPONSE, "HTTP/1.1 200 OK\r\n" +
+                                                                      "Transfer-Encoding: chunked\r\n\r\nzz\r\n"));
+        assertFalse(parseError(HTTPParsingMachine.ParsingMode.RESPONSE, "HTTP/1.0 404 Not Found \r\n\r\n"));
+    }
+
+    @Test
+    public void testHeaderOverflow()
+    {
+        HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.REQUEST);
+        parser.setMaxHeaderSize(100);
+        HTTPParsingMachine.Result r =
+            parser.parse(Utils.stringToBuffer(COMPLETE_REQUEST_LENGTH, Charsets.ASCII));
+        assertFalse(r.isError());
+        assertTrue(r.isComplete());
+
+        // A line that never ends fails once the stored part of it is too big
+        parser.reset();
+        r = parser.parse(Utils.stringToBuffer("GET /foo HTTP/1.1\r\nCookie: ", Charsets.ASCII));
+        assertFalse(r.isError());
+        for (int i = 0; (i < 10) && !r.isError(); i++) {
+            r = parser.parse(Utils.stringToBuffer("0123456789abcdef", Charsets.ASCII));
+        }
+        assertTrue(r.isError());
+        assertTrue(r.isHeaderOverflow());
+
+        // So do too many complete headers
+        parser.reset();
+        StringBuilder msg = new StringBuilder("GET /foo HTTP/1.1\r\n");
+        for (int i = 0; i < 10; i++) {
+            msg.append("X-Header-").append(i).append(": value\r\n");
+        }
+        r = parser.parse(Utils.stringToBuffer(msg.toString(), Charsets.ASCII));
+        assertTrue(r.isError());
+        assertTrue(r.isHeaderOverflow());
+        assertTrue(r.hasHeaders());
+    }
+
+    @Test
+    public void testHeadersOneByteAtATime()
+    {
+        byte[] whole = COMPLETE_CHUNKED_RESPONSE_TRAILERS.getBytes(Charsets.ASCII);
+        HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.RESPONSE);
+        parser.setMaxHeaderSize(whole.length);
+        ArrayList<Object> headers = new ArrayList<Object>();
+        ArrayList<Object> trailers = new ArrayList<Object>();
+        StringBuilder body = new StringBuilder();
+        HTTPParsingMachine.Result r = null;
+
+        for (int p = 0; p < whole.length; p++) {
+            r = parser.parse(ByteBuffer.wrap(whole, p, 1));
+            assertFalse(r.isError());
+            if (r.hasHeaders()) {
+                headers.addAll(Arrays.asList(r.getHeaderArray()));
+            }
+            if (r.hasTrailers()) {
+                trailers.addAll(Arrays.asList(r.getTrailerArray()));
+            }
+            if (r.hasBody()) {
+                body.append(Utils.bufferToString(r.getBody(), Charsets.ASCII));
+            }
+        }
+        assertTrue(r.isComplete());
+        assertEquals(200, r.getStatusCode());
+        assertEquals("OK", r.getStatusMessage());
+        assertEquals(Arrays.<Object>asList("Date", "Wed, 27 Feb 2013 23:56:17 GMT",
+                                           "Connection", "keep-alive",
+                                           "Transfer-Encoding", "chunked"), headers);
+        assertEquals(Arrays.<Object>asList("Trailer1", "Foo", "Trailer2", "Bar"), trailers);
+        assertEquals("ok", body.toString());
+    }
+
+    @Test
+    public void testFoldedHeaderSplit()
+    {
+        byte[] whole = COMPLETE_REQUEST_MIXED_HEADERS.getBytes(Charsets.ASCII);
+        int folded = COMPLETE_REQUEST_MIXED_HEADERS.indexOf("\t two");
+
+        // Split everywhere in and around the continuation line, including right before it
+        for (int split = folded - 2; split < folded + 8; split++) {
+            HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.REQUEST);
+            ArrayList<Object> headers = new ArrayList<Object>();
+
+            HTTPParsingMachine.Result r = parser.parse(ByteBuffer.wrap(whole, 0, split));
+            assertFalse(r.isError());
+            if (r.hasHeaders()) {
+                headers.addAll(Arrays.asList(r.getHeaderArray()));
+            }
+            r = parser.parse(ByteBuffer.wrap(whole, split, whole.length - split));
+            assertFalse(r.isError());
+            assertTrue(r.isComplete());
+            if (r.hasHeaders()) {
+                headers.addAll(Arrays.asList(r.getHeaderArray()));
+            }
+            assertEquals("Split at " + split,
+                         Arrays.<Object>asList("host", "mybox", "X-Custom", "onetwo",
+                                               "Content-Length", "0", "Empty", ""), headers);
+        }
+    }
+
+    @Test
+    public void testFoldedTrailerSplit()
+    {
+        String msg = "HTTP/1.1 200 OK\r\n" +
+                     "Transfer-Encoding: chunked\r\n" +
+                     "\r\n" +
+                     "0\r\n" +
+                     "Trailer1: Foo\r\n" +
+                     " Bar\r\n" +
+                     "\r\n";
+        byte[] whole = msg.getBytes(Charsets.ASCII);
+        int split = msg.indexOf(" Bar") + 2;
+
+        HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.RESPONSE);
+        ArrayList<Object> trailers = new ArrayList<Object>();
+        HTTPParsingMachine.Result r = parser.parse(ByteBuffer.wrap(whole, 0, split));
+        assertFalse(r.isError());
+        if (r.hasTrailers()) {
+            trailers.addAll(Arrays.asList(r.getTrailerArray()));
+        }
+        r = parser.parse(ByteBuffer.wrap(whole, split, whole.length - split));
+        assertFalse(r.isError());
+        assertTrue(r.isComplete());
+        if (r.hasTrailers()) {
+            trailers.addAll(Arrays.asList(r.getTrailerArray()));
+        }
+        assertEquals(Arrays.<Object>asList("Trailer1", "FooBar"), trailers);
+    }
+
+    private static boolean parseError(HTTPParsingMachine.ParsingMode mode, String msg)
+    {
+        HTTPParsingMachine parser = new HTTPParsingMachine(mode);
+        return parser.parse(Utils.stringToBuffer(msg, Charsets.ASCII)).isError();
+    }
+
     private static String getFirstHeader(HTTPParsingMachine.Result r, String name)
     {
         if (r.getHeaders() == null) {
@@ -515,6 +711,15 @@ public class HTTPParserTest
     "\r\n" +
     "Hello, World!";
 
+    private static final String COMPLETE_REQUEST_MIXED_HEADERS =
+    "POST /foo?bar=baz qux HTTP/1.1\r\n" +
+    "host: mybox\r\n" +
+    "X-Custom:  one\r\n" +
+    "\t two \r\n" +
+    "Content-Length: 0\r\n" +
+    "Empty:\r\n" +
+    "\r\n";
+
     private static final String COMPLETE_REQUEST_LENGTH_BLANK_HDR =
     "GET /foo/bar/baz HTTP/1.1\r\n" +
     "Host: mybox\r\n" +
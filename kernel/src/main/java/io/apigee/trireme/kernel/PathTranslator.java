@@ -49,6 +49,7 @@ public class PathTranslator
     private String canonicalRoot;
     private File workingDir;
     private List<Map.Entry<String, File>> mounts = Collections.emptyList();
+    private List<ImmutableMount> immutableMounts = Collections.emptyList();
 
     public PathTranslator()
     {
@@ -91,6 +92,79 @@ public class PathTranslator
         mounts.add(new AbstractMap.SimpleEntry<String, File>(prefix, path));
     }
 
+    /**
+     * Mount a path just like the other "mount" method. If "immutable" is set, then the files under
+     * the mount are promised not to change, and "isImmutable" will return true for them so that the
+     * results of filesystem calls may be cached.
+     */
+    public void mount(String prefix, File path, boolean immutable)
+    {
+        mount(prefix, path);
+        if (immutable) {
+            String canon;
+            try {
+                canon = path.getCanonicalPath();
+            } catch (IOException ioe) {
+                canon = path.getAbsolutePath();
+            }
+            if (immutableMounts.isEmpty()) {
+                immutableMounts = new ArrayList<ImmutableMount>();
+            }
+            immutableMounts.add(new ImmutableMount(prefix, path.getPath(), canon));
+        }
+    }
+
+    public boolean hasImmutableMounts() {
+        return !immutableMounts.isEmpty();
+    }
+
+    /**
+     * Return true if the specified native path, as returned by "translate," lies under a mount that
+     * was marked immutable.
+     */
+    public boolean isImmutable(File nativePath)
+    {
+        if (immutableMounts.isEmpty()) {
+            return false;
+        }
+        String path = nativePath.getPath();
+        if (path.contains("..")) {
+            // Don't bother trying to figure out whether this escapes the mount
+            return false;
+        }
+        for (ImmutableMount mount : immutableMounts) {
+            if (isUnder(path, mount.target) || isUnder(path, mount.canonicalTarget)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Given a native path that has had all symbolic links resolved, return the Node.js path for it if
+     * it lies under an immutable mount, and null otherwise.
+     */
+    public String reverseTranslateImmutable(File realPath)
+    {
+        String path = realPath.getPath();
+        for (ImmutableMount mount : immutableMounts) {
+            if (isUnder(path, mount.canonicalTarget)) {
+                String remaining = path.substring(mount.canonicalTarget.length());
+                if (File.separatorChar != '/') {
+                    remaining = remaining.replace(File.separatorChar, '/');
+                }
+                return mount.prefix + remaining;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isUnder(String path, String dir)
+    {
+        return (startsWithFS(path, dir) &&
+                ((path.length() == dir.length()) || (path.charAt(dir.length()) == File.separatorChar)));
+    }
+
     /**
      * Convert a Node.js path to a native (Java) path based on the specified root.
      * If the path is "above" the current root, then return null -- the caller must treat this as "file not found".
@@ -204,4 +278,18 @@ public class PathTranslator
     private static boolean startsWithFS(final String path, final String prefix) {
     	return caseSensitive ? path.startsWith(prefix) : path.length() >= prefix.length() && prefix.equalsIgnoreCase(path.substring(0, prefix.length()));
     }
+
+    private static final class ImmutableMount
+    {
+        final String prefix;
+        final String target;
+        final String canonicalTarget;
+
+        ImmutableMount(String prefix, String target, String canonicalTarget)
+        {
+            this.prefix = prefix;
+            this.target = target;
+            this.canonicalTarget = canonicalTarget;
+        }
+    }
 }
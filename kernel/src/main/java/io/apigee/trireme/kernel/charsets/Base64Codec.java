@@ -0,0 +1,216 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.charsets;
+
+import io.apigee.trireme.kernel.Charsets;
+
+import java.util.Arrays;
+
+/**
+ * A table-driven Base64 codec that works directly on byte arrays and strings. Unlike Base64Charset,
+ * it sizes its output exactly up front rather than growing a buffer as it goes.
+ * Decoding follows Node: it stops at the first "=", whitespace and any other character outside the
+ * standard and "URL-safe" alphabets are skipped, and leftover bits that do not make up a whole byte
+ * are dropped.
+ */
+
+public final class Base64Codec
+{
+    private static final byte[] ENCODING =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(Charsets.ASCII);
+
+    private static final byte[] DECODING = new byte[128];
+    private static final int PAD = -2;
+
+    static {
+        Arrays.fill(DECODING, (byte)-1);
+        for (int i = 0; i < ENCODING.length; i++) {
+            DECODING[ENCODING[i]] = (byte)i;
+        }
+        DECODING['-'] = 62;
+        DECODING['_'] = 63;
+        DECODING['='] = PAD;
+    }
+
+    private Base64Codec()
+    {
+    }
+
+    /**
+     * Return the number of characters that "encode" will produce for the specified number of bytes.
+     */
+    public static int encodedLength(int len)
+    {
+        return ((len + 2) / 3) * 4;
+    }
+
+    /**
+     * Encode the specified range of the array as padded Base64.
+     */
+    public static String encode(byte[] src, int off, int len)
+    {
+        byte[] out = new byte[encodedLength(len)];
+        int sp = off;
+        int end = off + (len - (len % 3));
+        int dp = 0;
+
+        while (sp < end) {
+            int bits = ((src[sp] & 0xff) << 16) | ((src[sp + 1] & 0xff) << 8) | (src[sp + 2] & 0xff);
+            sp += 3;
+            out[dp] = ENCODING[bits >>> 18];
+            out[dp + 1] = ENCODING[(bits >>> 12) & 0x3f];
+            out[dp + 2] = ENCODING[(bits >>> 6) & 0x3f];
+            out[dp + 3] = ENCODING[bits & 0x3f];
+            dp += 4;
+        }
+
+        switch (len % 3) {
+        case 1:
+            int b1 = src[sp] & 0xff;
+            out[dp] = ENCODING[b1 >>> 2];
+            out[dp + 1] = ENCODING[(b1 & 0x3) << 4];
+            out[dp + 2] = (byte)'=';
+            out[dp + 3] = (byte)'=';
+            break;
+        case 2:
+            int bits = ((src[sp] & 0xff) << 8) | (src[sp + 1] & 0xff);
+            out[dp] = ENCODING[bits >>> 10];
+            out[dp + 1] = ENCODING[(bits >>> 4) & 0x3f];
+            out[dp + 2] = ENCODING[(bits << 2) & 0x3f];
+            out[dp + 3] = (byte)'=';
+            break;
+        }
+        // Every character is ASCII, and on newer JVMs this is nearly a straight copy
+        return new String(out, Charsets.ASCII);
+    }
+
+    /**
+     * Return the exact number of bytes that "decode" will produce for the string.
+     */
+    public static int decodedLength(CharSequence src)
+    {
+        int valid = 0;
+        int len = src.length();
+        for (int i = 0; i < len; i++) {
+            int v = lookup(src.charAt(i));
+            if (v >= 0) {
+                valid++;
+            } else if (v == PAD) {
+                break;
+            }
+        }
+        return ((valid / 4) * 3) + ((valid % 4) * 3 / 4);
+    }
+
+    /**
+     * Decode the whole string into a new array of exactly the right size.
+     */
+    public static byte[] decode(CharSequence src)
+    {
+        byte[] out = new byte[decodedLength(src)];
+        decode(src, out, 0, out.length);
+        return out;
+    }
+
+    /**
+     * Decode as much of the string as will fit into "len" bytes of the array, starting at "off",
+     * and return the number of bytes written.
+     */
+    public static int decode(CharSequence src, byte[] dst, int off, int len)
+    {
+        int srcLen = src.length();
+        int dp = off;
+        int limit = off + len;
+        int bits = 0;
+        int nBits = 0;
+
+        int i = 0;
+        while ((i < srcLen) && (dp < limit)) {
+            if ((nBits == 0) && ((i + 4) <= srcLen) && ((dp + 3) <= limit)) {
+                // Fast path for a whole group of four valid characters, which is nearly all of them
+                int group = (lookup(src.charAt(i)) << 18) | (lookup(src.charAt(i + 1)) << 12) |
+                            (lookup(src.charAt(i + 2)) << 6) | lookup(src.charAt(i + 3));
+                if (group >= 0) {
+                    dst[dp] = (byte)(group >>> 16);
+                    dst[dp + 1] = (byte)(group >>> 8);
+                    dst[dp + 2] = (byte)group;
+                    dp += 3;
+                    i += 4;
+                    continue;
+                }
+            }
+
+            int v = lookup(src.charAt(i));
+            i++;
+            if (v == PAD) {
+                break;
+            }
+            if (v < 0) {
+                continue;
+            }
+            bits = ((bits << 6) | v) & 0xfff;
+            nBits += 6;
+            if (nBits >= 8) {
+                nBits -= 8;
+                dst[dp++] = (byte)(bits >>> nBits);
+            }
+        }
+        return dp - off;
+    }
+
+    /**
+     * Return the number of characters of the string that "decode" had to read in order to
+     * produce "bytes" bytes of output. This is only interesting when the output was truncated.
+     */
+    public static int charsConsumed(CharSequence src, int bytes)
+    {
+        if (bytes <= 0) {
+            return 0;
+        }
+        int srcLen = src.length();
+        int produced = 0;
+        int nBits = 0;
+        for (int i = 0; i < srcLen; i++) {
+            int v = lookup(src.charAt(i));
+            if (v == PAD) {
+                break;
+            }
+            if (v < 0) {
+                continue;
+            }
+            nBits += 6;
+            if (nBits >= 8) {
+                nBits -= 8;
+                produced++;
+                if (produced == bytes) {
+                    return i + 1;
+                }
+            }
+        }
+        return srcLen;
+    }
+
+    private static int lookup(char c)
+    {
+        return (c < 128) ? DECODING[c] : -1;
+    }
+}
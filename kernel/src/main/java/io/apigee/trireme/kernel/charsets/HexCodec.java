@@ -0,0 +1,131 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.charsets;
+
+import io.apigee.trireme.kernel.Charsets;
+
+import java.util.Arrays;
+
+/**
+ * A table-driven hex codec that works directly on byte arrays and strings, like Base64Codec.
+ * Like Node 0.10, decoding rejects a string of odd length, or one that contains anything but hex
+ * digits, with an IllegalArgumentException whose message is the one that Node uses for its TypeError.
+ */
+
+public final class HexCodec
+{
+    public static final String INVALID_MESSAGE = "Invalid hex string";
+
+    private static final byte[] ENCODING = "0123456789abcdef".getBytes(Charsets.ASCII);
+
+    private static final byte[] DECODING = new byte[128];
+
+    static {
+        Arrays.fill(DECODING, (byte)-1);
+        for (int i = 0; i < 10; i++) {
+            DECODING['0' + i] = (byte)i;
+        }
+        for (int i = 0; i < 6; i++) {
+            DECODING['a' + i] = (byte)(10 + i);
+            DECODING['A' + i] = (byte)(10 + i);
+        }
+    }
+
+    private HexCodec()
+    {
+    }
+
+    /**
+     * Encode the specified range of the array as lower-case hex.
+     */
+    public static String encode(byte[] src, int off, int len)
+    {
+        byte[] out = new byte[len * 2];
+        int dp = 0;
+        int end = off + len;
+        for (int sp = off; sp < end; sp++) {
+            int b = src[sp];
+            out[dp] = ENCODING[(b >>> 4) & 0xf];
+            out[dp + 1] = ENCODING[b & 0xf];
+            dp += 2;
+        }
+        // Every character is ASCII, and on newer JVMs this is nearly a straight copy
+        return new String(out, Charsets.ASCII);
+    }
+
+    /**
+     * Return the number of bytes that "decode" will produce for the string.
+     *
+     * @throws IllegalArgumentException if the string has an odd length
+     */
+    public static int decodedLength(CharSequence src)
+    {
+        checkLength(src);
+        return src.length() / 2;
+    }
+
+    /**
+     * Decode the whole string into a new array of exactly the right size.
+     *
+     * @throws IllegalArgumentException if the string is not valid hex
+     */
+    public static byte[] decode(CharSequence src)
+    {
+        byte[] out = new byte[decodedLength(src)];
+        decode(src, out, 0, out.length);
+        return out;
+    }
+
+    /**
+     * Decode as much of the string as will fit into "len" bytes of the array, starting at "off",
+     * and return the number of bytes written.
+     *
+     * @throws IllegalArgumentException if the string has an odd length, or if the part that fits is not
+     * valid hex
+     */
+    public static int decode(CharSequence src, byte[] dst, int off, int len)
+    {
+        checkLength(src);
+        int count = Math.min(src.length() / 2, len);
+        for (int i = 0; i < count; i++) {
+            int hi = digit(src.charAt(i * 2));
+            int lo = digit(src.charAt((i * 2) + 1));
+            if ((hi < 0) || (lo < 0)) {
+                throw new IllegalArgumentException(INVALID_MESSAGE);
+            }
+            dst[off + i] = (byte)((hi << 4) | lo);
+        }
+        return count;
+    }
+
+    private static void checkLength(CharSequence src)
+    {
+        if ((src.length() % 2) != 0) {
+            throw new IllegalArgumentException(INVALID_MESSAGE);
+        }
+    }
+
+    private static int digit(char c)
+    {
+        return (c < 128) ? DECODING[c] : -1;
+    }
+}
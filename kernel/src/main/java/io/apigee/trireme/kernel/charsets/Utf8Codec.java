@@ -0,0 +1,154 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.charsets;
+
+import io.apigee.trireme.kernel.Charsets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A single-pass UTF-8 encoder that counts or writes bytes straight from the characters of a string,
+ * without a CharsetEncoder or any intermediate buffers. Like Node, it replaces unpaired surrogates
+ * with U+FFFD, and never writes part of a character when the output is full.
+ */
+
+public final class Utf8Codec
+{
+    private static final int REPLACEMENT = 0xfffd;
+
+    private Utf8Codec()
+    {
+    }
+
+    /**
+     * Return the exact number of bytes that "encode" will produce for the string.
+     */
+    public static int encodedLength(CharSequence src)
+    {
+        int len = src.length();
+        int i = 0;
+        while ((i < len) && (src.charAt(i) < 0x80)) {
+            i++;
+        }
+
+        int total = i;
+        while (i < len) {
+            char c = src.charAt(i);
+            if (c < 0x80) {
+                total++;
+            } else if (c < 0x800) {
+                total += 2;
+            } else if (isSurrogatePair(src, i, len)) {
+                total += 4;
+                i++;
+            } else {
+                // Includes unpaired surrogates, which become the three-byte replacement character
+                total += 3;
+            }
+            i++;
+        }
+        return total;
+    }
+
+    /**
+     * Encode the whole string into a new array of exactly the right size.
+     */
+    public static byte[] encode(String src)
+    {
+        int len = encodedLength(src);
+        if (len == src.length()) {
+            // Pure ASCII, which is a simple copy
+            return src.getBytes(Charsets.ASCII);
+        }
+        byte[] out = new byte[len];
+        encode(src, ByteBuffer.wrap(out));
+        return out;
+    }
+
+    /**
+     * Encode as much of the string as will fit into the buffer, which must have an accessible array.
+     * Stop rather than write a partial character, move the buffer's position past the output, and
+     * return the number of characters that were consumed.
+     */
+    public static int encode(CharSequence src, ByteBuffer dst)
+    {
+        byte[] out = dst.array();
+        int dp = dst.arrayOffset() + dst.position();
+        int limit = dst.arrayOffset() + dst.limit();
+        int len = src.length();
+        int i = 0;
+
+        int asciiEnd = Math.min(len, limit - dp);
+        char c;
+        while ((i < asciiEnd) && ((c = src.charAt(i)) < 0x80)) {
+            out[dp++] = (byte)c;
+            i++;
+        }
+
+        while (i < len) {
+            c = src.charAt(i);
+            if (c < 0x80) {
+                if (dp >= limit) {
+                    break;
+                }
+                out[dp++] = (byte)c;
+            } else if (c < 0x800) {
+                if ((dp + 2) > limit) {
+                    break;
+                }
+                out[dp] = (byte)(0xc0 | (c >> 6));
+                out[dp + 1] = (byte)(0x80 | (c & 0x3f));
+                dp += 2;
+            } else if (isSurrogatePair(src, i, len)) {
+                if ((dp + 4) > limit) {
+                    break;
+                }
+                int cp = Character.toCodePoint(c, src.charAt(i + 1));
+                out[dp] = (byte)(0xf0 | (cp >> 18));
+                out[dp + 1] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                out[dp + 2] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                out[dp + 3] = (byte)(0x80 | (cp & 0x3f));
+                dp += 4;
+                i++;
+            } else {
+                if ((dp + 3) > limit) {
+                    break;
+                }
+                int cp = Character.isSurrogate(c) ? REPLACEMENT : c;
+                out[dp] = (byte)(0xe0 | (cp >> 12));
+                out[dp + 1] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                out[dp + 2] = (byte)(0x80 | (cp & 0x3f));
+                dp += 3;
+            }
+            i++;
+        }
+
+        dst.position(dp - dst.arrayOffset());
+        return i;
+    }
+
+    private static boolean isSurrogatePair(CharSequence src, int i, int len)
+    {
+        return Character.isHighSurrogate(src.charAt(i)) &&
+               ((i + 1) < len) && Character.isLowSurrogate(src.charAt(i + 1));
+    }
+}
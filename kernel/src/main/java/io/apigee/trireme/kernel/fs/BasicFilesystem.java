@@ -423,6 +423,16 @@ public class BasicFilesystem
         throw new OSException(ErrorCodes.EACCES, origPath);
     }
 
+    /**
+     * Return the handle for an open regular file, so that its channel may be used directly, as when
+     * sending a file to a socket. Throws EBADF if the descriptor isn't valid.
+     */
+    public AbstractFileHandle getFileHandle(int fd)
+        throws OSException
+    {
+        return ensureRegularFileHandle(fd);
+    }
+
     protected AbstractFileHandle ensureHandle(int fd)
         throws OSException
     {
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.fs;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.OSException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class reads whole files into byte arrays, as for "fs.readFile," in one operation, sized from the
+ * file's attributes. Small files are also kept in an LRU cache that is limited by the total number of
+ * bytes. An entry is only used if the modification time and size of the file have not changed since it was read, so the cache never returns
+ * stale data for a file that was modified more than a clock tick ago.
+ * <p>
+ * Callers get their own copy of the data, since Buffers may be modified.
+ * </p>
+ */
+
+public class FileContentCache
+{
+    private static final Logger log = LoggerFactory.getLogger(FileContentCache.class);
+
+    public static final long DEFAULT_MAX_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 64 * 1024;
+    /** The largest file that we will read, which is the largest possible Buffer. */
+    public static final long MAX_FILE_SIZE = 0x3fffffffL;
+
+    private static final int UNKNOWN_SIZE_CHUNK = 8192;
+
+    private final long maxSize;
+    private final int maxEntrySize;
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long currentSize;
+
+    public FileContentCache()
+    {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_ENTRY_SIZE);
+    }
+
+    public FileContentCache(long maxSize, int maxEntrySize)
+    {
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    /**
+     * Return the whole contents of the file, from the cache if it hasn't changed since it was last read.
+     */
+    public byte[] readFile(File f, String origPath)
+        throws OSException
+    {
+        Path p = f.toPath();
+        BasicFileAttributes attrs = readAttributes(p, origPath);
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+
+        if ((size == 0L) || (size > maxEntrySize)) {
+            return readFile(p, attrs, origPath);
+        }
+
+        String key = f.getPath();
+        synchronized (entries) {
+            Entry e = entries.get(key);
+            if (e != null) {
+                if ((e.mtime == mtime) && (e.data.length == size)) {
+                    if (log.isTraceEnabled()) {
+                        log.trace("readFile: {} found in cache", origPath);
+                    }
+                    return e.data.clone();
+                }
+                removeEntry(key);
+            }
+        }
+
+        byte[] data = readFile(p, attrs, origPath);
+        if (data.length == size) {
+            synchronized (entries) {
+                removeEntry(key);
+                entries.put(key, new Entry(data.clone(), mtime));
+                currentSize += data.length;
+                trim();
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Remove the entry for the file, if any.
+     */
+    public void invalidate(File f)
+    {
+        synchronized (entries) {
+            removeEntry(f.getPath());
+        }
+    }
+
+    public void clear()
+    {
+        synchronized (entries) {
+            entries.clear();
+            currentSize = 0L;
+        }
+    }
+
+    public long getCurrentSize()
+    {
+        synchronized (entries) {
+            return currentSize;
+        }
+    }
+
+    private void removeEntry(String key)
+    {
+        Entry e = entries.remove(key);
+        if (e != null) {
+            currentSize -= e.data.length;
+        }
+    }
+
+    private void trim()
+    {
+        while (currentSize > maxSize) {
+            Map.Entry<String, Entry> eldest = entries.entrySet().iterator().next();
+            removeEntry(eldest.getKey());
+        }
+    }
+
+    /**
+     * Read the whole file without using any cache.
+     */
+    public static byte[] readWholeFile(File f, String origPath)
+        throws OSException
+    {
+        Path p = f.toPath();
+        return readFile(p, readAttributes(p, origPath), origPath);
+    }
+
+    private static BasicFileAttributes readAttributes(Path p, String origPath)
+        throws OSException
+    {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(p, BasicFileAttributes.class);
+        } catch (IOException ioe) {
+            throw new OSException(getErrorCode(ioe), ioe, origPath);
+        }
+        if (attrs.isDirectory()) {
+            throw new OSException(ErrorCodes.EISDIR, origPath);
+        }
+        if (attrs.size() > MAX_FILE_SIZE) {
+            throw new OSException(ErrorCodes.EINVAL, origPath);
+        }
+        return attrs;
+    }
+
+    private static byte[] readFile(Path p, BasicFileAttributes attrs, String origPath)
+        throws OSException
+    {
+        int size = (int)attrs.size();
+        try {
+            FileChannel file = FileChannel.open(p, StandardOpenOption.READ);
+            try {
+                if (size == 0) {
+                    // Many special files claim to be empty, so read until there is nothing left
+                    return readUnknownSize(file);
+                }
+
+                byte[] data = new byte[size];
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                int r;
+                do {
+                    r = file.read(buf, buf.position());
+                } while ((r > 0) && buf.hasRemaining());
+
+                if (buf.hasRemaining()) {
+                    // The file got shorter while we were reading it
+                    return Arrays.copyOf(data, buf.position());
+                }
+                return data;
+
+            } finally {
+                file.close();
+            }
+        } catch (IOException ioe) {
+            throw new OSException(getErrorCode(ioe), ioe, origPath);
+        }
+    }
+
+    private static byte[] readUnknownSize(FileChannel file)
+        throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(UNKNOWN_SIZE_CHUNK);
+        while (file.read(buf) > 0) {
+            if (!buf.hasRemaining()) {
+                ByteBuffer newBuf = ByteBuffer.allocate(buf.capacity() * 2);
+                buf.flip();
+                newBuf.put(buf);
+                buf = newBuf;
+            }
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    private static int getErrorCode(IOException ioe)
+    {
+        if (ioe instanceof NoSuchFileException) {
+            return ErrorCodes.ENOENT;
+        } else if (ioe instanceof NotDirectoryException) {
+            return ErrorCodes.ENOTDIR;
+        } else if (ioe instanceof AccessDeniedException) {
+            return ErrorCodes.EACCES;
+        }
+        return ErrorCodes.EIO;
+    }
+
+    private static final class Entry
+    {
+        final byte[] data;
+        final long mtime;
+
+        Entry(byte[] data, long mtime)
+        {
+            this.data = data;
+            this.mtime = mtime;
+        }
+    }
+}
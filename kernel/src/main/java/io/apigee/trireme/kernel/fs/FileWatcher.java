@@ -0,0 +1,328 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.fs;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.OSException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class uses a single java.nio WatchService, and a single thread, to watch any number of files and
+ * directories for changes. It is meant to be shared by all the scripts in an environment, so that
+ * "fs.watch" and "fs.watchFile" don't need a thread, or a polling timer, for every file.
+ * <p>
+ * Since a WatchService can only watch directories, a regular file is watched by watching its parent
+ * directory and only passing on the events for that file. Many watches on the same directory share a
+ * single WatchKey.
+ * </p>
+ * <p>
+ * Listeners are called in the watcher thread, so they must hand off any real work to the script thread.
+ * </p>
+ */
+
+public class FileWatcher
+    implements Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger(FileWatcher.class);
+
+    public static final String EVENT_CHANGE = "change";
+    public static final String EVENT_RENAME = "rename";
+
+    public interface Listener
+    {
+        /**
+         * Called in the watcher thread when something changes. "event" is either "change" or
+         * "rename," like in Node, and "fileName" is the name of the file relative to the directory
+         * that contains it. It may be null if the underlying service lost track of events.
+         */
+        void fileChanged(String event, String fileName);
+    }
+
+    private final HashMap<Path, DirectoryWatch> directories = new HashMap<Path, DirectoryWatch>();
+    private final HashMap<WatchKey, DirectoryWatch> keys = new HashMap<WatchKey, DirectoryWatch>();
+
+    private WatchService service;
+    private Thread thread;
+    private boolean closed;
+
+    /**
+     * Start watching a file or directory. If "file" is a directory, then the listener will get events
+     * for everything in the directory. Otherwise, it will get events only for the file, which does not
+     * need to exist yet as long as its directory does.
+     *
+     * @return a handle that must be closed to stop watching.
+     */
+    public Registration watch(File file, Listener listener)
+        throws OSException
+    {
+        Path dir;
+        String name;
+        if (file.isDirectory()) {
+            dir = file.toPath().toAbsolutePath();
+            name = null;
+        } else {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if ((parent == null) || !parent.isDirectory()) {
+                throw new OSException(ErrorCodes.ENOENT, file.getPath());
+            }
+            dir = parent.toPath();
+            name = file.getName();
+        }
+
+        Registration reg = new Registration(listener, name, (name != null) && file.exists());
+
+        synchronized (this) {
+            if (closed) {
+                throw new OSException(ErrorCodes.EINVAL);
+            }
+
+            DirectoryWatch dw = directories.get(dir);
+            if (dw == null) {
+                try {
+                    ensureStarted();
+                    WatchKey key = dir.register(service,
+                                                StandardWatchEventKinds.ENTRY_CREATE,
+                                                StandardWatchEventKinds.ENTRY_DELETE,
+                                                StandardWatchEventKinds.ENTRY_MODIFY);
+                    dw = new DirectoryWatch(dir, key);
+                } catch (IOException ioe) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Can't watch {}: {}", dir, ioe);
+                    }
+                    throw new OSException(ErrorCodes.EIO, ioe, file.getPath());
+                }
+                directories.put(dir, dw);
+                keys.put(dw.key, dw);
+                if (log.isDebugEnabled()) {
+                    log.debug("Watching directory {}", dir);
+                }
+            }
+            dw.registrations.add(reg);
+            reg.directory = dw;
+        }
+        return reg;
+    }
+
+    /**
+     * Stop watching everything and stop the thread.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            directories.clear();
+            keys.clear();
+            if (service != null) {
+                try {
+                    service.close();
+                } catch (IOException ioe) {
+                    log.debug("Error closing watch service: {}", ioe);
+                }
+            }
+        }
+    }
+
+    private void ensureStarted()
+        throws IOException
+    {
+        if (service == null) {
+            service = FileSystems.getDefault().newWatchService();
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    watchLoop();
+                }
+            }, "Trireme File Watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private synchronized void unregister(Registration reg)
+    {
+        DirectoryWatch dw = reg.directory;
+        if ((dw == null) || !dw.registrations.remove(reg)) {
+            return;
+        }
+        if (dw.registrations.isEmpty()) {
+            if (log.isDebugEnabled()) {
+                log.debug("No longer watching directory {}", dw.path);
+            }
+            dw.key.cancel();
+            directories.remove(dw.path);
+            keys.remove(dw.key);
+        }
+    }
+
+    private void watchLoop()
+    {
+        WatchService ws;
+        synchronized (this) {
+            ws = service;
+        }
+
+        while (true) {
+            WatchKey key;
+            try {
+                key = ws.take();
+            } catch (InterruptedException ie) {
+                continue;
+            } catch (ClosedWatchServiceException cwe) {
+                log.debug("Watch service closed -- file watcher thread exiting");
+                return;
+            }
+
+            List<WatchEvent<?>> events = key.pollEvents();
+            boolean valid = key.reset();
+
+            List<Registration> regs;
+            synchronized (this) {
+                DirectoryWatch dw = keys.get(key);
+                if (dw == null) {
+                    continue;
+                }
+                regs = new ArrayList<Registration>(dw.registrations);
+                if (!valid) {
+                    // The directory itself went away, and we will never hear from it again
+                    directories.remove(dw.path);
+                    keys.remove(key);
+                    dw.registrations.clear();
+                }
+            }
+
+            for (WatchEvent<?> event : events) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // We don't know what happened, so tell everyone that something did
+                    for (Registration reg : regs) {
+                        reg.deliver(EVENT_CHANGE, reg.fileName);
+                    }
+                    continue;
+                }
+
+                String name = ((Path)event.context()).toString();
+                if (log.isTraceEnabled()) {
+                    log.trace("{} {}: {}", event.kind(), name, event.count());
+                }
+                for (Registration reg : regs) {
+                    if (reg.fileName == null) {
+                        reg.deliver((event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) ?
+                                      EVENT_CHANGE : EVENT_RENAME,
+                                    name);
+                    } else if (reg.fileName.equals(name)) {
+                        reg.deliverFileEvent(event.kind());
+                    }
+                }
+            }
+
+            if (!valid) {
+                for (Registration reg : regs) {
+                    reg.deliver(EVENT_RENAME, reg.fileName);
+                }
+            }
+        }
+    }
+
+    private static final class DirectoryWatch
+    {
+        final Path path;
+        final WatchKey key;
+        final ArrayList<Registration> registrations = new ArrayList<Registration>();
+
+        DirectoryWatch(Path path, WatchKey key)
+        {
+            this.path = path;
+            this.key = key;
+        }
+    }
+
+    /**
+     * This represents a single call to "watch." Closing it stops events from being delivered.
+     */
+    public final class Registration
+        implements Closeable
+    {
+        private final Listener listener;
+        private final String fileName;
+        private DirectoryWatch directory;
+        private volatile boolean closed;
+        private boolean exists;
+
+        Registration(Listener listener, String fileName, boolean exists)
+        {
+            this.listener = listener;
+            this.fileName = fileName;
+            this.exists = exists;
+        }
+
+        /**
+         * When watching a single file, keep track of whether it exists. That way we ignore a stale
+         * create or delete event that happened just before we registered, which we might otherwise see
+         * because the directory was already being watched. Only called by the watcher thread.
+         */
+        void deliverFileEvent(WatchEvent.Kind<?> kind)
+        {
+            if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+                deliver(EVENT_CHANGE, fileName);
+            } else {
+                boolean created = (kind == StandardWatchEventKinds.ENTRY_CREATE);
+                if (created != exists) {
+                    exists = created;
+                    deliver(EVENT_RENAME, fileName);
+                }
+            }
+        }
+
+        void deliver(String event, String name)
+        {
+            if (!closed) {
+                listener.fileChanged(event, name);
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+            unregister(this);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.fs;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.OSException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class caches the results of "stat," "lstat," and "realpath" on native paths. It is meant to be
+ * shared by all the scripts in a NodeEnvironment, and to be used only for files that are known not to
+ * change, such as a tree of modules mounted as immutable in the Sandbox. Module resolution stats many
+ * files that don't exist, so failures are cached as well as successes.
+ * <p>
+ * The cache is an LRU cache limited to a maximum number of entries. Since FileStats is never modified
+ * once it is created, cached instances are returned directly.
+ * </p>
+ */
+
+public class StatCache
+{
+    private static final Logger log = LoggerFactory.getLogger(StatCache.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private static final char STAT = 'S';
+    private static final char LSTAT = 'L';
+    private static final char REALPATH = 'R';
+
+    private final LRUMap entries;
+
+    private long hits;
+    private long misses;
+
+    public StatCache()
+    {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public StatCache(int maxEntries)
+    {
+        this.entries = new LRUMap(maxEntries);
+    }
+
+    /**
+     * Return the stats for the file, calling "fs" only if they are not already in the cache. If the
+     * file could not be stat-ed, then the same exception will be thrown again until the entry is invalidated.
+     */
+    public FileStats stat(BasicFilesystem fs, File f, String origPath, boolean noFollow)
+        throws OSException
+    {
+        String key = makeKey(noFollow ? LSTAT : STAT, f);
+        Object cached = get(key);
+        if (cached != null) {
+            return (FileStats)checkError(cached, origPath);
+        }
+
+        try {
+            FileStats stats = fs.stat(f, origPath, noFollow);
+            put(key, stats);
+            return stats;
+        } catch (OSException ose) {
+            put(key, ose.getCode());
+            throw ose;
+        }
+    }
+
+    /**
+     * Return the native path of the file with all symbolic links resolved.
+     */
+    public File realPath(File f, String origPath)
+        throws OSException
+    {
+        String key = makeKey(REALPATH, f);
+        Object cached = get(key);
+        if (cached != null) {
+            return (File)checkError(cached, origPath);
+        }
+
+        try {
+            File real = f.toPath().toRealPath().toFile();
+            put(key, real);
+            return real;
+        } catch (IOException ioe) {
+            int code;
+            if (ioe instanceof NoSuchFileException) {
+                code = ErrorCodes.ENOENT;
+            } else if (ioe instanceof NotDirectoryException) {
+                code = ErrorCodes.ENOTDIR;
+            } else {
+                code = ErrorCodes.EIO;
+            }
+            put(key, code);
+            throw new OSException(code, ioe, origPath);
+        }
+    }
+
+    /**
+     * Remove everything cached for the specified native path, and for everything underneath it.
+     */
+    public void invalidate(File f)
+    {
+        String path = f.getPath();
+        synchronized (entries) {
+            Iterator<String> it = entries.keySet().iterator();
+            while (it.hasNext()) {
+                String key = it.next();
+                if (key.startsWith(path, 1) &&
+                    ((key.length() == path.length() + 1) || (key.charAt(path.length() + 1) == File.separatorChar))) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void clear()
+    {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size()
+    {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits()
+    {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    public long getMisses()
+    {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    private static String makeKey(char type, File f)
+    {
+        return type + f.getPath();
+    }
+
+    private Object get(String key)
+    {
+        synchronized (entries) {
+            Object val = entries.get(key);
+            if (val == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return val;
+        }
+    }
+
+    private void put(String key, Object val)
+    {
+        synchronized (entries) {
+            entries.put(key, val);
+        }
+    }
+
+    private static Object checkError(Object cached, String origPath)
+        throws OSException
+    {
+        if (cached instanceof Integer) {
+            if (log.isTraceEnabled()) {
+                log.trace("Cached error {} for {}", cached, origPath);
+            }
+            throw new OSException((Integer)cached, origPath);
+        }
+        return cached;
+    }
+
+    private static final class LRUMap
+        extends LinkedHashMap<String, Object>
+    {
+        private final int maxEntries;
+
+        LRUMap(int maxEntries)
+        {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest)
+        {
+            return (size() > maxEntries);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.handles;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.GenericNodeRuntime;
+import io.apigee.trireme.kernel.streams.MemoryPipe;
+import io.apigee.trireme.kernel.streams.StreamDrainer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This handle writes to a Java output stream without blocking the script thread. Writes are copied in to
+ * a fixed-size MemoryPipe, and the shared StreamDrainer thread copies them from there to the stream.
+ * What happens when the pipe is full depends on the OverflowPolicy. When the script exits, the handle
+ * waits for the drainer to write everything, so that output isn't lost. Whenever the handle blocks, it
+ * gives up after CLOSE_TIMEOUT seconds without progress, and counts what it could not write in
+ * "getDroppedBytes," so that a stalled stream can't hang the script.
+ */
+
+public class AsyncOutputStreamHandle
+    extends AbstractHandle
+    implements Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger(AsyncOutputStreamHandle.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+    public static final long CLOSE_TIMEOUT = 10L;
+
+    public enum OverflowPolicy
+    {
+        /**
+         * Queue writes that don't fit, and complete them as the pipe drains, so that the stream sees
+         * backpressure just like with a socket. "write" returns false and "drain" is emitted later on.
+         */
+        QUEUE,
+        /** Block the script thread until there is room, or until CLOSE_TIMEOUT passes with no progress. */
+        BLOCK,
+        /** Throw away whatever doesn't fit, and count it in "getDroppedBytes". */
+        DROP
+    }
+
+    private final MemoryPipe pipe;
+    private final GenericNodeRuntime runtime;
+    private final OverflowPolicy policy;
+    private final MemoryPipeWriteHandle queuedWriter;
+    private final StreamDrainer.Target target;
+
+    private long droppedBytes;
+    private boolean closed;
+
+    public AsyncOutputStreamHandle(OutputStream out, int bufferSize, OverflowPolicy policy,
+                                   StreamDrainer drainer, GenericNodeRuntime runtime)
+    {
+        this.pipe = new MemoryPipe(bufferSize);
+        this.runtime = runtime;
+        this.policy = policy;
+        this.queuedWriter = (policy == OverflowPolicy.QUEUE ? new MemoryPipeWriteHandle(pipe, runtime) : null);
+        this.target = drainer.drain(pipe, out);
+        runtime.registerCloseable(this);
+    }
+
+    @Override
+    public int write(ByteBuffer buf, IOCompletionHandler<Integer> handler)
+    {
+        int len = buf.remaining();
+        switch (policy) {
+        case QUEUE:
+            return queuedWriter.write(buf, handler);
+
+        case BLOCK:
+            try {
+                if (!pipe.getOutputStream().write(buf, CLOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Output stream stalled: dropping {} bytes", buf.remaining());
+                    }
+                    droppedBytes += buf.remaining();
+                    buf.position(buf.limit());
+                }
+            } catch (IOException ioe) {
+                handler.ioComplete(ErrorCodes.EPIPE, 0);
+                return 0;
+            }
+            break;
+
+        case DROP:
+            if (pipe.write(buf) < 0) {
+                handler.ioComplete(ErrorCodes.EPIPE, 0);
+                return 0;
+            }
+            if (buf.hasRemaining()) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Output buffer full: dropping {} bytes", buf.remaining());
+                }
+                droppedBytes += buf.remaining();
+                buf.position(buf.limit());
+            }
+            break;
+
+        default:
+            throw new AssertionError();
+        }
+
+        handler.ioComplete(0, len);
+        return len;
+    }
+
+    @Override
+    public int getWritesOutstanding()
+    {
+        return (queuedWriter == null ? 0 : queuedWriter.getWritesOutstanding());
+    }
+
+    /**
+     * Return the number of bytes that were thrown away, either because the buffer was full and the policy
+     * is DROP, or because the output stream stopped taking data for CLOSE_TIMEOUT.
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * Write whatever is still queued and wait for the drainer to finish with it. This blocks the
+     * script thread, and is meant to be called when the script exits. Each wait is bounded by
+     * CLOSE_TIMEOUT, and queued data that can't be written in time is counted as dropped.
+     */
+    @Override
+    public void close()
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        runtime.unregisterCloseable(this);
+
+        if (queuedWriter == null) {
+            pipe.closeWrite();
+        } else {
+            droppedBytes += queuedWriter.flushAndClose(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+        }
+        try {
+            if (!target.awaitFinished(CLOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                log.debug("Timed out waiting for output to be written");
+            }
+        } catch (InterruptedException ie) {
+            log.debug("Interrupted waiting for output to be written");
+        }
+    }
+}
@@ -27,17 +27,30 @@ import io.apigee.trireme.kernel.OSException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * This is the handle that a worker script gets when a server handle is passed to it over IPC, which is
+ * what the "cluster" module does. When the worker listens, the parent handle starts to accept connections
+ * in the thread of the script that owns it, and hands each new connection to one of the workers using
+ * this class. Each connection is then processed in the worker's own thread, so that a single server
+ * can use all the CPUs in the JVM.
+ */
 public class ChildServerHandle
     extends AbstractHandle
-    implements SocketHandle
+    implements SocketHandle, Closeable
 {
     private static final Logger log = LoggerFactory.getLogger(ChildServerHandle.class);
 
     private final GenericNodeRuntime runtime;
     private final NIOSocketHandle parent;
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile IOCompletionHandler<AbstractHandle> connectionHandler;
+    private volatile boolean closed;
 
     public ChildServerHandle(NIOSocketHandle parent, GenericNodeRuntime runtime)
     {
@@ -51,12 +64,77 @@ public class ChildServerHandle
      */
     public void serverSelected(final SocketChannel newChannel)
     {
-        // TODO or maybe we don't need this class at all?
+        connections.incrementAndGet();
+        runtime.executeScriptTask(new Runnable() {
+            @Override
+            public void run()
+            {
+                acceptChannel(newChannel);
+            }
+        }, null);
+    }
+
+    private void acceptChannel(SocketChannel newChannel)
+    {
+        if (closed) {
+            // We stopped listening while this was on its way, so let another worker have it
+            connections.decrementAndGet();
+            parent.distributeConnection(newChannel);
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Worker accepted new socket {}", newChannel);
+        }
+
+        boolean success = false;
+        try {
+            runtime.registerCloseable(newChannel);
+            NIOSocketHandle sock = new NIOSocketHandle(runtime, newChannel);
+            sock.setAcceptedBy(this);
+            connectionHandler.ioComplete(0, sock);
+            success = true;
+
+        } catch (IOException ioe) {
+            log.error("Error accepting a new socket: {}", ioe);
+        } catch (OSException ose) {
+            log.error("Error accepting a new socket: {}", ose);
+        } finally {
+            if (!success) {
+                connections.decrementAndGet();
+                runtime.unregisterCloseable(newChannel);
+                try {
+                    newChannel.close();
+                } catch (IOException ioe) {
+                    log.debug("Error closing channel that might be closed: {}", ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when a connection that we accepted is closed.
+     */
+    void connectionClosed()
+    {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Return the number of connections handed to this worker that are still open.
+     */
+    public int getConnectionCount()
+    {
+        return connections.get();
     }
 
     @Override
     public void close()
     {
+        if (!closed) {
+            closed = true;
+            parent.removeChildServer(this);
+            runtime.unregisterCloseable(this);
+        }
     }
 
     @Override
@@ -70,7 +148,19 @@ public class ChildServerHandle
     public void listen(int backlog, IOCompletionHandler<AbstractHandle> handler)
         throws OSException
     {
+        if (closed || (connectionHandler != null)) {
+            throw new OSException(ErrorCodes.EINVAL);
+        }
         log.debug("Listening from a TCP server delivered via IPC.");
+        this.connectionHandler = handler;
+        try {
+            parent.addChildServer(this, backlog);
+        } catch (OSException ose) {
+            connectionHandler = null;
+            throw ose;
+        }
+        // Stop listening if the script exits without closing the server
+        runtime.registerCloseable(this);
     }
 
     @Override
@@ -88,9 +178,8 @@ public class ChildServerHandle
     @Override
     public InetSocketAddress getSockName()
     {
-        return null;
+        return parent.getSockName();
     }
-
     @Override
     public InetSocketAddress getPeerName()
     {
@@ -208,6 +208,18 @@ public class IpcHandle
         partner = null;
     }
 
+    /**
+     * Called when the script on the other end of the pipe has exited, to deliver EOF as if it had
+     * closed its end first.
+     */
+    public void partnerExited()
+    {
+        IpcHandle p = partner;
+        if (p != null) {
+            p.close();
+        }
+    }
+
     private void deliverWrite(final QueuedWrite qw)
     {
         if ((handler != null) || (ipcCallback != null)) {
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.handles;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.GenericNodeRuntime;
+import io.apigee.trireme.kernel.streams.MemoryPipe;
+import io.apigee.trireme.kernel.util.PinState;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This handle reads from a MemoryPipe. Unlike JavaInputStreamHandle, no thread blocks waiting for data.
+ * Instead, the writer's thread schedules a task on the script's event loop whenever the pipe
+ * goes from empty to non-empty, and that task delivers whatever is in the pipe.
+ */
+
+public class MemoryPipeReadHandle
+    extends AbstractHandle
+{
+    private final MemoryPipe pipe;
+    private final GenericNodeRuntime runtime;
+    private final PinState pinState = new PinState();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private IOCompletionHandler<ByteBuffer> handler;
+    private boolean reading;
+    private boolean deliveredEof;
+
+    private final Runnable listener = new Runnable() {
+        @Override
+        public void run()
+        {
+            if (scheduled.compareAndSet(false, true)) {
+                runtime.executeScriptTask(drainTask, null);
+            }
+        }
+    };
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run()
+        {
+            // Clear the flag first so that a write that happens while we are reading schedules us again
+            scheduled.set(false);
+            drain();
+        }
+    };
+
+    public MemoryPipeReadHandle(MemoryPipe pipe, GenericNodeRuntime runtime)
+    {
+        this.pipe = pipe;
+        this.runtime = runtime;
+    }
+
+    @Override
+    public void startReading(IOCompletionHandler<ByteBuffer> handler)
+    {
+        if (reading) {
+            return;
+        }
+
+        // Pin for the same reason as JavaInputStreamHandle
+        this.handler = handler;
+        reading = true;
+        pinState.requestPin(runtime);
+        pipe.setReadListener(listener);
+        // There may already be something in the pipe
+        listener.run();
+    }
+
+    /**
+     * Deliver one pipe's worth of data at a time, and come back later for the rest, so that a fast
+     * writer can't keep the event loop here forever.
+     */
+    private void drain()
+    {
+        if (!reading || deliveredEof) {
+            return;
+        }
+
+        ByteBuffer buf = pipe.read(pipe.totalCapacity());
+        if (buf == null) {
+            return;
+        }
+        if (buf.hasRemaining()) {
+            handler.ioComplete(0, buf);
+            // Come back for the rest, or for EOF if the writer closed while we were already scheduled
+            if ((pipe.available() > 0) || pipe.isWriteClosed()) {
+                listener.run();
+            }
+        } else {
+            deliveredEof = true;
+            handler.ioComplete(ErrorCodes.EOF, null);
+        }
+    }
+
+    @Override
+    public void stopReading()
+    {
+        if (reading) {
+            pinState.clearPin(runtime);
+            reading = false;
+            pipe.setReadListener(null);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        stopReading();
+        pipe.closeRead();
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.handles;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.GenericNodeRuntime;
+import io.apigee.trireme.kernel.streams.MemoryPipe;
+import io.apigee.trireme.kernel.util.PinState;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This handle writes to a MemoryPipe. Writes that fit in the pipe complete right away. The rest are
+ * queued, and the reader's thread schedules a task on this script's event loop to write more
+ * once it frees up space. Queued bytes are reported in "getWritesOutstanding" so that streams
+ * see backpressure just as they would from a socket.
+ */
+
+public class MemoryPipeWriteHandle
+    extends AbstractHandle
+{
+    private static final Logger log = LoggerFactory.getLogger(MemoryPipeWriteHandle.class);
+
+    /**
+     * How many seconds "flushOnExit" waits for the reader to make room before it gives up.
+     */
+    public static final long EXIT_FLUSH_TIMEOUT = 10L;
+
+    private final MemoryPipe pipe;
+    private final GenericNodeRuntime runtime;
+    private final PinState pinState = new PinState();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ArrayDeque<AbstractNIOHandle.QueuedWrite> writeQueue =
+        new ArrayDeque<AbstractNIOHandle.QueuedWrite>();
+
+    private int queuedBytes;
+    private boolean closePending;
+
+    private final Runnable listener = new Runnable() {
+        @Override
+        public void run()
+        {
+            if (scheduled.compareAndSet(false, true)) {
+                runtime.executeScriptTask(flushTask, null);
+            }
+        }
+    };
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run()
+        {
+            scheduled.set(false);
+            processWrites();
+        }
+    };
+
+    public MemoryPipeWriteHandle(MemoryPipe pipe, GenericNodeRuntime runtime)
+    {
+        this.pipe = pipe;
+        this.runtime = runtime;
+    }
+
+    @Override
+    public int write(ByteBuffer buf, IOCompletionHandler<Integer> handler)
+    {
+        int len = buf.remaining();
+        if (writeQueue.isEmpty()) {
+            int written = pipe.write(buf);
+            if (written < 0) {
+                handler.ioComplete(ErrorCodes.EPIPE, 0);
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                handler.ioComplete(0, len);
+                return len;
+            }
+        }
+
+        // Keep the script running until the reader has taken everything
+        AbstractNIOHandle.QueuedWrite qw = new AbstractNIOHandle.QueuedWrite(buf, handler);
+        qw.setLength(len);
+        if (writeQueue.isEmpty()) {
+            pinState.requestPin(runtime);
+            pipe.setWriteListener(listener);
+        }
+        writeQueue.addLast(qw);
+        queuedBytes += len;
+        // The reader may have freed space before the listener was set
+        listener.run();
+        return len;
+    }
+
+    @Override
+    public int getWritesOutstanding()
+    {
+        return queuedBytes;
+    }
+
+    private void processWrites()
+    {
+        AbstractNIOHandle.QueuedWrite qw;
+        while ((qw = writeQueue.peekFirst()) != null) {
+            int written = pipe.write(qw.getBuf());
+            if (written < 0) {
+                writeQueue.pollFirst();
+                queuedBytes -= qw.getLength();
+                qw.getHandler().ioComplete(ErrorCodes.EPIPE, 0);
+            } else if (qw.getBuf().hasRemaining()) {
+                return;
+            } else {
+                writeQueue.pollFirst();
+                queuedBytes -= qw.getLength();
+                qw.getHandler().ioComplete(0, qw.getLength());
+            }
+        }
+
+        assert(queuedBytes == 0);
+        pipe.setWriteListener(null);
+        pinState.clearPin(runtime);
+        if (closePending) {
+            pipe.closeWrite();
+        }
+    }
+
+    /**
+     * Write everything that is still queued, blocking until the reader makes room, and close the pipe.
+     * This is for when the script is going away, so the event loop won't run again and completion
+     * handlers are not called. If the reader frees no space for "timeout," then give up and throw away
+     * the rest. Return the number of bytes that were thrown away.
+     */
+    public long flushAndClose(long timeout, TimeUnit unit)
+    {
+        AbstractNIOHandle.QueuedWrite qw;
+        long dropped = 0L;
+        pipe.setWriteListener(null);
+        try {
+            while ((qw = writeQueue.peekFirst()) != null) {
+                if (!pipe.getOutputStream().write(qw.getBuf(), timeout, unit)) {
+                    log.debug("Timed out writing to pipe on close");
+                    break;
+                }
+                writeQueue.pollFirst();
+                queuedBytes -= qw.getLength();
+            }
+        } catch (IOException ioe) {
+            // Reader closed the pipe, so there is nowhere for the rest to go
+            log.debug("Pipe closed before queued writes were flushed");
+        }
+        while ((qw = writeQueue.pollFirst()) != null) {
+            dropped += qw.getBuf().remaining();
+        }
+        queuedBytes = 0;
+        pinState.clearPin(runtime);
+        pipe.closeWrite();
+        return dropped;
+    }
+
+    /**
+     * Call "flushAndClose" when the script exits, so that a script that writes a lot and then exits
+     * does not lose what is still queued. This is for stdout and stderr of a spawned script, where
+     * the process is expected to deliver all of its output before the parent sees EOF.
+     */
+    public void flushOnExit()
+    {
+        runtime.registerCloseable(new Closeable() {
+            @Override
+            public void close()
+            {
+                long dropped = flushAndClose(EXIT_FLUSH_TIMEOUT, TimeUnit.SECONDS);
+                if ((dropped > 0L) && log.isDebugEnabled()) {
+                    log.debug("Dropped {} bytes of output that the reader did not take", dropped);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close()
+    {
+        if (writeQueue.isEmpty()) {
+            pipe.closeWrite();
+        } else {
+            closePending = true;
+        }
+    }
+}
@@ -36,9 +36,11 @@ import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 
 /**
  * Node's own script modules use this internal module to implement the guts of async TCP.
@@ -51,6 +53,11 @@ public class NIOSocketHandle
 
     public static final int    READ_BUFFER_SIZE = 32767;
 
+    /**
+     * How a server handle that is shared by worker scripts picks the worker for each new connection.
+     */
+    public enum Distribution { ROUND_ROBIN, LEAST_CONNECTIONS }
+
     private InetSocketAddress       boundAddress;
     private ServerSocketChannel     svrChannel;
     private SocketChannel           clientChannel;
@@ -60,6 +67,15 @@ public class NIOSocketHandle
     private IOCompletionHandler<Integer>        clientConnectionHandler;
     private IOCompletionHandler<ByteBuffer>     readHandler;
 
+    // Worker scripts listening on this server handle, and the state used to pick one of them.
+    private final ArrayList<ChildServerHandle> childServers = new ArrayList<ChildServerHandle>();
+    private volatile Distribution distribution = Distribution.ROUND_ROBIN;
+    private int                     nextChild;
+
+    // For a connection accepted on behalf of a worker, the worker's listener, which counts connections.
+    private ChildServerHandle       acceptedBy;
+    private volatile boolean        transferred;
+
     public NIOSocketHandle(GenericNodeRuntime runtime)
     {
         super(runtime);
@@ -82,8 +98,20 @@ public class NIOSocketHandle
                                         });
     }
 
+    /**
+     * Return true if this is a server handle, which may be listening or may only be bound. A handle that
+     * is only bound can still be shared with worker scripts, which makes it listen.
+     */
     public boolean isServerChannel() {
-        return (svrChannel != null);
+        return ((svrChannel != null) || ((clientChannel == null) && (boundAddress != null)));
+    }
+
+    public Distribution getDistribution() {
+        return distribution;
+    }
+
+    public void setDistribution(Distribution d) {
+        this.distribution = d;
     }
 
     private void clientInit()
@@ -97,6 +125,17 @@ public class NIOSocketHandle
     @Override
     public void close()
     {
+        if (acceptedBy != null) {
+            acceptedBy.connectionClosed();
+            acceptedBy = null;
+        }
+        if (transferred) {
+            // The channel now belongs to another handle in another script
+            return;
+        }
+        synchronized (childServers) {
+            childServers.clear();
+        }
         try {
             if (clientChannel != null) {
                 if (log.isDebugEnabled()) {
@@ -159,22 +198,25 @@ public class NIOSocketHandle
                       boundAddress, backlog);
         }
 
+        openServerChannel(backlog);
+        registerServerChannel();
+    }
+
+    /**
+     * Open the server channel and bind it, so that binding errors are reported to the caller right away.
+     * This may be called from any thread.
+     */
+    private void openServerChannel(int backlog)
+        throws OSException
+    {
         boolean success = false;
+        ServerSocketChannel newChannel = null;
         try {
-            svrChannel = ServerSocketChannel.open();
-            runtime.registerCloseable(svrChannel);
-            svrChannel.configureBlocking(false);
-            svrChannel.socket().setReuseAddress(true);
-            svrChannel.socket().bind(boundAddress, backlog);
-            svrChannel.register(runtime.getSelector(), SelectionKey.OP_ACCEPT,
-                                new SelectorHandler()
-                                {
-                                    @Override
-                                    public void selected(SelectionKey key)
-                                    {
-                                        serverSelected(key);
-                                    }
-                                });
+            newChannel = ServerSocketChannel.open();
+            newChannel.configureBlocking(false);
+            newChannel.socket().setReuseAddress(true);
+            newChannel.socket().bind(boundAddress, backlog);
+            svrChannel = newChannel;
             success = true;
 
         } catch (BindException be) {
@@ -184,10 +226,9 @@ public class NIOSocketHandle
             log.debug("Error listening: {}", ioe);
             throw new OSException(ErrorCodes.EIO);
         } finally {
-            if (!success && (svrChannel != null)) {
-                runtime.unregisterCloseable(svrChannel);
+            if (!success && (newChannel != null)) {
                 try {
-                    svrChannel.close();
+                    newChannel.close();
                 } catch (IOException ioe) {
                     log.debug("Error closing channel that might be closed: {}", ioe);
                 }
@@ -195,6 +236,168 @@ public class NIOSocketHandle
         }
     }
 
+    /**
+     * Register the open server channel with our selector. This must happen in the thread of the script
+     * that owns this handle.
+     */
+    private void registerServerChannel()
+        throws OSException
+    {
+        runtime.registerCloseable(svrChannel);
+        try {
+            svrChannel.register(runtime.getSelector(), SelectionKey.OP_ACCEPT,
+                                new SelectorHandler()
+                                {
+                                    @Override
+                                    public void selected(SelectionKey key)
+                                    {
+                                        serverSelected(key);
+                                    }
+                                });
+        } catch (ClosedChannelException cce) {
+            log.debug("Server channel was closed before it could be registered");
+            runtime.unregisterCloseable(svrChannel);
+            throw new OSException(ErrorCodes.EIO);
+        }
+    }
+
+    /**
+     * Called by a worker script, in its own thread, when it listens on this handle after it was passed to
+     * it using IPC. The first worker makes the handle listen, and from then on we accept new connections
+     * in the thread of the script that owns this handle, and hand each one to a worker, so that
+     * many scripts can serve the same port.
+     */
+    void addChildServer(ChildServerHandle child, int backlog)
+        throws OSException
+    {
+        synchronized (childServers) {
+            if (svrChannel == null) {
+                if (boundAddress == null) {
+                    throw new OSException(ErrorCodes.EINVAL);
+                }
+                NetworkPolicy netPolicy = getNetworkPolicy();
+                if ((netPolicy != null) && !netPolicy.allowListening(boundAddress)) {
+                    log.debug("Address {} not allowed by network policy", boundAddress);
+                    throw new OSException(ErrorCodes.EINVAL);
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Shared server listening on {} with backlog {}", boundAddress, backlog);
+                }
+
+                openServerChannel(backlog);
+                runtime.executeScriptTask(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            registerServerChannel();
+                        } catch (OSException ose) {
+                            log.debug("Error registering shared server channel: {}", ose);
+                        }
+                    }
+                }, null);
+            }
+            childServers.add(child);
+        }
+    }
+
+    void removeChildServer(ChildServerHandle child)
+    {
+        synchronized (childServers) {
+            childServers.remove(child);
+        }
+    }
+
+    /**
+     * Pick the worker that gets the next connection. Ties in the number of connections go to the
+     * next worker in round-robin order, so that idle workers share the load evenly too.
+     */
+    private ChildServerHandle selectChildServer()
+    {
+        synchronized (childServers) {
+            int n = childServers.size();
+            if (n == 0) {
+                return null;
+            }
+            int start = nextChild % n;
+            int selected = start;
+            if (distribution == Distribution.LEAST_CONNECTIONS) {
+                int min = Integer.MAX_VALUE;
+                for (int i = 0; i < n; i++) {
+                    int ix = (start + i) % n;
+                    int count = childServers.get(ix).getConnectionCount();
+                    if (count < min) {
+                        min = count;
+                        selected = ix;
+                    }
+                }
+            }
+            nextChild = selected + 1;
+            return childServers.get(selected);
+        }
+    }
+
+    /**
+     * Hand a new connection to a worker script, or close it if there are none left. This may be called
+     * from any thread.
+     */
+    void distributeConnection(SocketChannel child)
+    {
+        ChildServerHandle target = selectChildServer();
+        if (target == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("No worker is listening -- closing {}", child);
+            }
+            try {
+                child.close();
+            } catch (IOException ioe) {
+                log.debug("Error closing channel that might be closed: {}", ioe);
+            }
+        } else {
+            target.serverSelected(child);
+        }
+    }
+
+    /**
+     * Move a connected socket to another script, so that its I/O happens on that script's thread.
+     * This handle gives up the channel, so closing it later has no effect. This is called in
+     * the thread of the script that is receiving the socket.
+     */
+    public NIOSocketHandle transfer(GenericNodeRuntime newRuntime)
+        throws OSException
+    {
+        if (clientChannel == null) {
+            throw new OSException(ErrorCodes.EINVAL);
+        }
+        final SocketChannel channel = clientChannel;
+        final GenericNodeRuntime oldRuntime = runtime;
+        transferred = true;
+        if (selKey != null) {
+            selKey.cancel();
+        }
+        oldRuntime.executeScriptTask(new Runnable() {
+            @Override
+            public void run()
+            {
+                oldRuntime.unregisterCloseable(channel);
+            }
+        }, null);
+
+        newRuntime.registerCloseable(channel);
+        try {
+            return new NIOSocketHandle(newRuntime, channel);
+        } catch (IOException ioe) {
+            log.debug("Error transferring socket: {}", ioe);
+            newRuntime.unregisterCloseable(channel);
+            throw new OSException(ErrorCodes.EIO);
+        }
+    }
+
+    void setAcceptedBy(ChildServerHandle child)
+    {
+        this.acceptedBy = child;
+    }
+
     protected void serverSelected(SelectionKey key)
     {
         if (!key.isValid()) {
@@ -213,6 +416,11 @@ public class NIOSocketHandle
                         if (log.isDebugEnabled()) {
                             log.debug("Accepted new socket {}", child);
                         }
+                        if (serverConnectionHandler == null) {
+                            // We are listening on behalf of worker scripts
+                            distributeConnection(child);
+                            continue;
+                        }
 
                         boolean success = false;
                         try {
@@ -251,6 +459,33 @@ public class NIOSocketHandle
         return qw.length;
     }
 
+    /**
+     * Write part of a file to the socket using FileChannel.transferTo, so that the data never has to be
+     * copied into the Java heap. The transfer goes through the write queue just like any other write, so
+     * it happens in order with other writes, and is only attempted when the socket is writable.
+     * The handler is called with the number of bytes transferred, which may be less than "length" if
+     * the file was shorter than that.
+     *
+     * @param file the file to read. It is not closed when the transfer is done.
+     * @param position where in the file to start
+     * @param length how many bytes to transfer, or -1 to transfer until the end of the file
+     */
+    public int sendFile(FileChannel file, long position, long length, IOCompletionHandler<Integer> handler)
+        throws OSException
+    {
+        long len = length;
+        if (len < 0) {
+            try {
+                len = Math.max(0L, file.size() - position);
+            } catch (IOException ioe) {
+                throw new OSException(ErrorCodes.EIO, ioe);
+            }
+        }
+        FileWrite fw = new FileWrite(file, position, len, handler);
+        offerWrite(fw);
+        return fw.length;
+    }
+
     @Override
     public void shutdown(IOCompletionHandler<Integer> handler)
     {
@@ -262,9 +497,9 @@ public class NIOSocketHandle
     private void offerWrite(QueuedWrite qw)
     {
         if (writeQueue.isEmpty() && !qw.shutdown) {
-            int written;
+            boolean complete;
             try {
-                written = clientChannel.write(qw.buf);
+                complete = writeOne(qw);
             } catch (IOException ioe) {
                 if (log.isDebugEnabled()) {
                     log.debug("Write error: {}", ioe.toString());
@@ -274,15 +509,12 @@ public class NIOSocketHandle
                 }
                 return;
             }
-            if (log.isDebugEnabled()) {
-                log.debug("Wrote {} to {} from {}", written, clientChannel, qw.buf);
-            }
-            if (qw.buf.hasRemaining()) {
+            if (complete) {
+                completeWrite(qw);
+            } else {
                 // We didn't write the whole thing.
                 writeReady = false;
                 queueWrite(qw);
-            } else {
-                qw.getHandler().ioComplete(0, qw.getLength());
             }
         } else {
             queueWrite(qw);
@@ -439,19 +671,15 @@ public class NIOSocketHandle
                     clientChannel.socket().shutdownOutput();
                     qw.getHandler().ioComplete(0, 0);
                 } else {
-                    int written = clientChannel.write(qw.buf);
-                    if (log.isDebugEnabled()) {
-                        log.debug("Wrote {} to {} from {}", written, clientChannel, qw.buf);
-                    }
-                    if (qw.buf.hasRemaining()) {
+                    if (writeOne(qw)) {
+                        completeWrite(qw);
+                    } else {
                         // We didn't write the whole thing -- need to keep writing.
                         writeReady = false;
                         writeQueue.addFirst(qw);
                         queuedBytes += qw.getLength();
                         addInterest(SelectionKey.OP_WRITE);
                         break;
-                    } else {
-                        qw.getHandler().ioComplete(0, qw.getLength());
                     }
                 }
 
@@ -469,6 +697,44 @@ public class NIOSocketHandle
         }
     }
 
+    /**
+     * Write as much of the queued write as the socket will take, and return true if it was all written.
+     */
+    private boolean writeOne(QueuedWrite qw)
+        throws IOException
+    {
+        if (qw instanceof FileWrite) {
+            FileWrite fw = (FileWrite)qw;
+            long written = fw.file.transferTo(fw.position, fw.remaining, clientChannel);
+            if (log.isDebugEnabled()) {
+                log.debug("Transferred {} to {} from {} at {}", written, clientChannel, fw.file, fw.position);
+            }
+            fw.position += written;
+            fw.remaining -= written;
+            fw.transferred += written;
+            if ((written == 0) && (fw.position >= fw.file.size())) {
+                // The file is shorter than we were told
+                fw.remaining = 0;
+            }
+            return (fw.remaining <= 0);
+        }
+
+        int written = clientChannel.write(qw.buf);
+        if (log.isDebugEnabled()) {
+            log.debug("Wrote {} to {} from {}", written, clientChannel, qw.buf);
+        }
+        return !qw.buf.hasRemaining();
+    }
+
+    private static void completeWrite(QueuedWrite qw)
+    {
+        if (qw instanceof FileWrite) {
+            qw.getHandler().ioComplete(0, (int)Math.min(((FileWrite)qw).transferred, Integer.MAX_VALUE));
+        } else {
+            qw.getHandler().ioComplete(0, qw.getLength());
+        }
+    }
+
     @Override
     protected void processReads()
     {
@@ -506,10 +772,13 @@ public class NIOSocketHandle
     @Override
     public InetSocketAddress getSockName()
     {
-        if (svrChannel == null) {
+        if (svrChannel != null) {
+            return (InetSocketAddress)(svrChannel.socket().getLocalSocketAddress());
+        }
+        if (clientChannel != null) {
             return (InetSocketAddress)(clientChannel.socket().getLocalSocketAddress());
         }
-        return (InetSocketAddress)(svrChannel.socket().getLocalSocketAddress());
+        return boundAddress;
     }
 
     @Override
@@ -548,5 +817,22 @@ public class NIOSocketHandle
             }
         }
     }
-}
 
+    private static final class FileWrite
+        extends QueuedWrite
+    {
+        final FileChannel file;
+        long position;
+        long remaining;
+        long transferred;
+
+        FileWrite(FileChannel file, long position, long length, IOCompletionHandler<Integer> handler)
+        {
+            super(null, handler);
+            this.file = file;
+            this.position = position;
+            this.remaining = length;
+            this.length = (int)Math.min(length, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.handles;
+
+import io.apigee.trireme.kernel.GenericNodeRuntime;
+import io.apigee.trireme.kernel.streams.ProcessPump;
+import io.apigee.trireme.kernel.util.PinState;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * This handle reads the stdout or stderr of a child OS process using the shared ProcessPump, rather than
+ * a thread of its own like JavaInputStreamHandle. When reading stops, the pump stops reading too, so the
+ * child process sees backpressure through the OS pipe.
+ */
+
+public class ProcessStreamHandle
+    extends AbstractHandle
+{
+    private final GenericNodeRuntime runtime;
+    private final ProcessPump.Source source;
+    private final PinState pinState = new PinState();
+
+    private volatile IOCompletionHandler<ByteBuffer> handler;
+    private boolean reading;
+
+    public ProcessStreamHandle(Process proc, InputStream in, ProcessPump pump, GenericNodeRuntime runtime)
+    {
+        this.runtime = runtime;
+        this.source = pump.pipe(proc, in, new IOCompletionHandler<ByteBuffer>() {
+            @Override
+            public void ioComplete(int errCode, ByteBuffer buf)
+            {
+                deliverResult(errCode, buf);
+            }
+        });
+    }
+
+    @Override
+    public void startReading(IOCompletionHandler<ByteBuffer> handler)
+    {
+        if (reading) {
+            return;
+        }
+
+        // Pin for the same reason as JavaInputStreamHandle
+        this.handler = handler;
+        reading = true;
+        pinState.requestPin(runtime);
+        source.resume();
+    }
+
+    private void deliverResult(final int err, final ByteBuffer val)
+    {
+        runtime.executeScriptTask(new Runnable() {
+            @Override
+            public void run()
+            {
+                IOCompletionHandler<ByteBuffer> h = handler;
+                if (h != null) {
+                    h.ioComplete(err, val);
+                }
+            }
+        }, null);
+    }
+
+    @Override
+    public void stopReading()
+    {
+        if (reading) {
+            pinState.clearPin(runtime);
+            reading = false;
+            source.pause();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        stopReading();
+        source.close();
+    }
+}
@@ -65,4 +65,28 @@ public interface HTTPGrammar
     public static final Pattern HEADER_CONTINUATION_PATTERN = Pattern.compile(HEADER_CONTINUATION);
     public static final Pattern REQUEST_LINE_PATTERN = Pattern.compile(REQUEST_LINE);
     public static final Pattern STATUS_LINE_PATTERN = Pattern.compile(STATUS_LINE);
+
+    /**
+     * Methods that the parser returns as shared String constants rather than allocating new ones.
+     */
+    public static final String[] COMMON_METHODS = {
+        "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "CONNECT", "TRACE"
+    };
+
+    /**
+     * Header names that the parser returns as shared String constants. Names are matched with exact case,
+     * so both the canonical and the lower-case forms are interned.
+     */
+    public static final String[] COMMON_HEADERS = {
+        "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges",
+        "Age", "Allow", "Authorization", "Cache-Control", "Connection", "Content-Disposition",
+        "Content-Encoding", "Content-Language", "Content-Length", "Content-Location", "Content-Range",
+        "Content-Type", "Cookie", "Date", "ETag", "Expect", "Expires", "Forwarded", "From", "Host",
+        "If-Match", "If-Modified-Since", "If-None-Match", "If-Range", "If-Unmodified-Since",
+        "Keep-Alive", "Last-Modified", "Link", "Location", "Origin", "Pragma", "Proxy-Authenticate",
+        "Proxy-Authorization", "Proxy-Connection", "Range", "Referer", "Retry-After", "Server",
+        "Set-Cookie", "TE", "Trailer", "Transfer-Encoding", "Upgrade", "User-Agent", "Vary", "Via",
+        "Warning", "WWW-Authenticate", "X-Forwarded-For", "X-Forwarded-Host", "X-Forwarded-Proto",
+        "X-Requested-With"
+    };
 }
@@ -26,13 +26,18 @@ import io.apigee.trireme.kernel.Charsets;
 import java.nio.ByteBuffer;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
 
 /**
  * This is a generic HTTP parser that obeys the basic contract expected by Node. The "HTTPParser"
  * module uses this to perform parsing in a native way for Node.
+ * <p>
+ * The parser works directly on the bytes of each line rather than on strings. Common methods and
+ * header names are returned as shared constants, and headers are returned as a flat array of
+ * alternating names and values so that they may be handed to a script without further copying.
+ * </p>
  */
 public class HTTPParsingMachine
 {
@@ -52,7 +57,37 @@ public class HTTPParsingMachine
 
     public static final String CONNECT_METHOD = "CONNECT";
 
+    /**
+     * The most bytes that we will accept in the start line and headers, or in the trailers. This is the same
+     * as the limit in Node's native parser.
+     */
+    public static final int DEFAULT_MAX_HEADER_SIZE = 80 * 1024;
+
+    private static final byte[] HTTP_PREFIX = "HTTP/".getBytes(Charsets.ASCII);
+    private static final int VERSION_LENGTH = HTTP_PREFIX.length + 3;
+    private static final int MAX_STATUS_DIGITS = 9;
+    private static final int INITIAL_LINE_SIZE = 256;
+    private static final int INITIAL_FIELDS = 32;
+
+    private static final String[][] METHOD_TABLE = makeInternTable(HTTPGrammar.COMMON_METHODS, false);
+    private static final String[][] HEADER_TABLE = makeInternTable(HTTPGrammar.COMMON_HEADERS, true);
+
+    /**
+     * Characters allowed in a method or header name, per RFC 7230.
+     */
+    private static final boolean[] TOKEN_CHARS = new boolean[256];
+
+    static {
+        for (int i = 0x21; i < 0x7f; i++) {
+            TOKEN_CHARS[i] = true;
+        }
+        for (char c : "()<>@,;:\\\"/[]?={}".toCharArray()) {
+            TOKEN_CHARS[c] = false;
+        }
+    }
+
     private final ParsingMode     mode;
+    private int                   maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
     private BodyMode              bodyMode;
     private Status                state;
     private ByteBuffer            oddData;
@@ -70,10 +105,20 @@ public class HTTPParsingMachine
     private boolean     upgradeHeader;
     private boolean     connectionUpgrade;
     private boolean     connectMethod;
-    private Map.Entry<String, String> lastHeader;
-    private Map.Entry<String, String> lastTrailer;
     private int         contentLength;
     private int         readLength;
+    private int         headerBytes;
+    private boolean     headerOverflow;
+
+    // The current line, which is only valid until the next call to "readLine"
+    private byte[]      line;
+    private int         lineStart;
+    private int         lineEnd;
+
+    // Headers or trailers parsed but not yet returned, as alternating names and values. When a call ends
+    // in the middle of the headers, the last one may be kept here for the next call, in case it is folded.
+    private Object[]    fields = new Object[INITIAL_FIELDS];
+    private int         fieldCount;
 
     public HTTPParsingMachine(ParsingMode mode)
     {
@@ -157,9 +202,25 @@ public class HTTPParsingMachine
         upgradeHeader = false;
         connectionUpgrade = false;
         connectMethod = false;
-        lastHeader = null;
         contentLength = 0;
+        headerBytes = 0;
+        headerOverflow = false;
         readLength = -1;
+        fieldCount = 0;
+    }
+
+    /**
+     * Set the maximum number of bytes allowed in the start line and headers, and separately in the trailers.
+     * Past that point, parsing fails and the result reports "isHeaderOverflow."
+     */
+    public void setMaxHeaderSize(int max)
+    {
+        this.maxHeaderSize = max;
+    }
+
+    public int getMaxHeaderSize()
+    {
+        return maxHeaderSize;
     }
 
     /**
@@ -188,55 +249,29 @@ public class HTTPParsingMachine
     private boolean processStart(ByteBuffer buf, Result r)
     {
         skipBlankLine(buf);
-        String startLine = readLine(buf);
-        if (startLine == null) {
+        if (!readLine(buf)) {
             // We don't have a complete start line yet
-            storeRemaining(buf);
+            storePartialLine(buf);
             return false;
         }
+        if (!countLine()) {
+            return true;
+        }
 
-        Matcher m;
+        boolean ok;
         switch (mode) {
         case REQUEST:
-            m = HTTPGrammar.REQUEST_LINE_PATTERN.matcher(startLine);
-            if (!m.matches() || (m.groupCount() != 4)) {
-                state = Status.ERROR;
-                return true;
-            }
-            method = m.group(1);
-            if (CONNECT_METHOD.equalsIgnoreCase(method)) {
-                connectMethod = true;
-            }
-            uri = m.group(2);
-            try {
-                majorVersion = Integer.parseInt(m.group(3));
-                minorVersion = Integer.parseInt(m.group(4));
-            } catch (NumberFormatException nfe) {
-                state = Status.ERROR;
-                return true;
-            }
+            ok = parseRequestLine(line, lineStart, lineEnd);
             break;
-
         case RESPONSE:
-            m = HTTPGrammar.STATUS_LINE_PATTERN.matcher(startLine);
-            if (!m.matches() || (m.groupCount() < 4)) {
-                state = Status.ERROR;
-                return true;
-            }
-            try {
-                majorVersion = Integer.parseInt(m.group(1));
-                minorVersion = Integer.parseInt(m.group(2));
-                statusCode = Integer.parseInt(m.group(3));
-            } catch (NumberFormatException nfe) {
-                state = Status.ERROR;
-                return true;
-            }
-            if (m.group(4) == null) {
-                reasonPhrase = "";
-            } else {
-                reasonPhrase = m.group(4).trim();
-            }
+            ok = parseStatusLine(line, lineStart, lineEnd);
             break;
+        default:
+            throw new AssertionError();
+        }
+        if (!ok) {
+            state = Status.ERROR;
+            return true;
         }
 
         // Initialize keep alive -- we will explictly check the "Connection" header later
@@ -248,53 +283,122 @@ public class HTTPParsingMachine
         return true;
     }
 
+    /**
+     * Parse "METHOD SP URI SP HTTP/x.y" directly from the line bytes.
+     */
+    private boolean parseRequestLine(byte[] b, int start, int end)
+    {
+        end = trimEnd(b, start, end);
+        int p = start;
+        while ((p < end) && TOKEN_CHARS[b[p] & 0xff]) {
+            p++;
+        }
+        if ((p == start) || (p >= end) || (b[p] != ' ')) {
+            return false;
+        }
+
+        int uriStart = p + 1;
+        int versionStart = end - VERSION_LENGTH;
+        if (((versionStart - 1) <= uriStart) || (b[versionStart - 1] != ' ') ||
+            !parseVersion(b, versionStart) || !isText(b, uriStart, versionStart - 1)) {
+            return false;
+        }
+
+        method = intern(METHOD_TABLE, b, start, p);
+        if (CONNECT_METHOD.equalsIgnoreCase(method)) {
+            connectMethod = true;
+        }
+        uri = toString(b, uriStart, versionStart - 1);
+        return true;
+    }
+
+    /**
+     * Parse "HTTP/x.y SP CODE [SP REASON]" directly from the line bytes.
+     */
+    private boolean parseStatusLine(byte[] b, int start, int end)
+    {
+        end = trimEnd(b, start, end);
+        int p = start + VERSION_LENGTH;
+        if ((p >= end) || !parseVersion(b, start) || (b[p] != ' ')) {
+            return false;
+        }
+
+        p++;
+        int code = 0;
+        int digits = 0;
+        while ((p < end) && (b[p] >= '0') && (b[p] <= '9')) {
+            if (++digits > MAX_STATUS_DIGITS) {
+                return false;
+            }
+            code = (code * 10) + (b[p] - '0');
+            p++;
+        }
+        if (digits == 0) {
+            return false;
+        }
+        statusCode = code;
+
+        if (p == end) {
+            reasonPhrase = "";
+        } else if ((b[p] == ' ') && isText(b, p, end)) {
+            reasonPhrase = toString(b, skipSpace(b, p, end), end);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parse "HTTP/x.y" at the specified position, which must be followed by at least
+     * VERSION_LENGTH bytes.
+     */
+    private boolean parseVersion(byte[] b, int p)
+    {
+        for (int i = 0; i < HTTP_PREFIX.length; i++) {
+            if (b[p + i] != HTTP_PREFIX[i]) {
+                return false;
+            }
+        }
+        byte major = b[p + HTTP_PREFIX.length];
+        byte dot = b[p + HTTP_PREFIX.length + 1];
+        byte minor = b[p + HTTP_PREFIX.length + 2];
+        if ((major < '0') || (major > '9') || (dot != '.') || (minor < '0') || (minor > '9')) {
+            return false;
+        }
+        majorVersion = major - '0';
+        minorVersion = minor - '0';
+        return true;
+    }
+
     /**
      * Process lines until either we can't read a complete line, or we get to the end of the headers.
      */
     private boolean processHeaders(ByteBuffer buf, Result r)
     {
-        ArrayList<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
-        r.setHeaders(headers);
-        String line = readLine(buf);
-
-        while (line != null) {
-            if (line.isEmpty()) {
+        while (readLine(buf)) {
+            if (!countLine()) {
+                r.setHeaders(takeFields());
+                return true;
+            }
+            if (lineStart == lineEnd) {
+                r.setHeaders(takeFields());
+                headerBytes = 0;
                 state = Status.BODY;
                 if ((upgradeHeader && connectionUpgrade) || connectMethod) {
                     // Stop processing data after headers on a CONNECT or Upgrade
                     return false;
                 }
                 return true;
-
-            } else {
-                Matcher m = HTTPGrammar.HEADER_PATTERN.matcher(line);
-                if (m.matches() && (m.groupCount() == 2)) {
-                    Map.Entry<String, String> hdr =
-                        new AbstractMap.SimpleEntry<String, String>(m.group(1), m.group(2).trim());
-                    headers.add(hdr);
-                    lastHeader = hdr;
-                    if (!processHeader(hdr.getKey(), hdr.getValue())) {
-                        state = Status.ERROR;
-                        return true;
-                    }
-
-                } else if (lastHeader != null) {
-                    Matcher cm = HTTPGrammar.HEADER_CONTINUATION_PATTERN.matcher(line);
-                    if (cm.matches() && (cm.groupCount() == 1)) {
-                        lastHeader.setValue(lastHeader.getValue() + cm.group(1));
-                    } else {
-                        state = Status.ERROR;
-                        return true;
-                    }
-                } else {
-                    state = Status.ERROR;
-                    return true;
-                }
             }
-            line = readLine(buf);
+            if (!parseField(line, lineStart, lineEnd, true)) {
+                r.setHeaders(takeFields());
+                state = Status.ERROR;
+                return true;
+            }
         }
         // If we get here then we can't read a full line and aren't done
-        storeRemaining(buf);
+        storePartialLine(buf);
+        r.setHeaders(mayContinue() ? takeCompleteFields() : takeFields());
         return false;
     }
 
@@ -303,43 +407,125 @@ public class HTTPParsingMachine
      */
     private boolean processTrailers(ByteBuffer buf, Result r)
     {
-        ArrayList<Map.Entry<String, String>> trailers = new ArrayList<Map.Entry<String, String>>();
-        r.setTrailers(trailers);
-        String line = readLine(buf);
-
-        while (line != null) {
-            if (line.isEmpty()) {
+        while (readLine(buf)) {
+            if (!countLine()) {
+                r.setTrailers(takeFields());
+                return true;
+            }
+            if (lineStart == lineEnd) {
+                r.setTrailers(takeFields());
                 state = Status.COMPLETE;
                 return true;
-
-            } else {
-                Matcher m = HTTPGrammar.HEADER_PATTERN.matcher(line);
-                if (m.matches() && (m.groupCount() == 2)) {
-                    Map.Entry<String, String> hdr =
-                        new AbstractMap.SimpleEntry<String, String>(m.group(1), m.group(2));
-                    trailers.add(hdr);
-                    lastTrailer = hdr;
-
-                } else if (lastTrailer != null) {
-                    Matcher cm = HTTPGrammar.HEADER_CONTINUATION_PATTERN.matcher(line);
-                    if (cm.matches() && (cm.groupCount() == 1)) {
-                        lastTrailer.setValue(lastTrailer.getValue() + cm.group(1));
-                    } else {
-                        state = Status.ERROR;
-                        return true;
-                    }
-                } else {
-                    state = Status.ERROR;
-                    return true;
-                }
             }
-            line = readLine(buf);
+            if (!parseField(line, lineStart, lineEnd, false)) {
+                r.setTrailers(takeFields());
+                state = Status.ERROR;
+                return true;
+            }
         }
         // If we get here then we can't read a full line and aren't done
-        storeRemaining(buf);
+        storePartialLine(buf);
+        r.setTrailers(mayContinue() ? takeCompleteFields() : takeFields());
         return false;
     }
 
+    /**
+     * Parse a "name: value" line, or a continuation of the previous one, and add it to the field list.
+     */
+    private boolean parseField(byte[] b, int start, int end, boolean isHeader)
+    {
+        if ((b[start] == ' ') || (b[start] == '\t')) {
+            // Obsolete line folding -- the value continues the previous field. Like Node, join
+            // the parts without any whitespace.
+            end = trimEnd(b, start, end);
+            int valueStart = skipSpace(b, start, end);
+            if (!isText(b, valueStart, end)) {
+                return false;
+            }
+            if (fieldCount == 0) {
+                // Nothing to continue
+                return false;
+            }
+            String prev = (String)fields[fieldCount - 1];
+            fields[fieldCount - 1] = prev + toString(b, valueStart, end);
+            return true;
+        }
+
+        end = trimEnd(b, start, end);
+        int p = start;
+        while ((p < end) && TOKEN_CHARS[b[p] & 0xff]) {
+            p++;
+        }
+        if ((p == start) || (p >= end) || (b[p] != ':')) {
+            return false;
+        }
+        int valueStart = skipSpace(b, p + 1, end);
+        if (!isText(b, valueStart, end)) {
+            return false;
+        }
+
+        String name = intern(HEADER_TABLE, b, start, p);
+        String value = toString(b, valueStart, end);
+        addField(name, value);
+        if (isHeader) {
+            return processHeader(name, value);
+        }
+        return true;
+    }
+
+    private void addField(String name, String value)
+    {
+        if ((fieldCount + 2) > fields.length) {
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        }
+        fields[fieldCount++] = name;
+        fields[fieldCount++] = value;
+    }
+
+    /**
+     * Return the fields parsed so far in an array of exactly the right size, or null if there are none.
+     */
+    private Object[] takeFields()
+    {
+        if (fieldCount == 0) {
+            return null;
+        }
+        Object[] ret = Arrays.copyOf(fields, fieldCount);
+        fieldCount = 0;
+        return ret;
+    }
+
+    /**
+     * Return whether the line that we are still waiting for may be a continuation of the last field, which
+     * is the case unless we already have its first character and that is not a space or tab.
+     */
+    private boolean mayContinue()
+    {
+        if (state == Status.ERROR) {
+            return false;
+        }
+        if ((oddData == null) || (oddData.position() == 0)) {
+            return true;
+        }
+        byte first = oddData.get(0);
+        return ((first == ' ') || (first == '\t'));
+    }
+
+    /**
+     * Like "takeFields," but keep the last field back, because the next line may be a continuation of it.
+     */
+    private Object[] takeCompleteFields()
+    {
+        if (fieldCount <= 2) {
+            return null;
+        }
+        Object[] ret = Arrays.copyOf(fields, fieldCount - 2);
+        fields[0] = fields[fieldCount - 2];
+        fields[1] = fields[fieldCount - 1];
+        fieldCount = 2;
+        return ret;
+    }
+
     /**
      * Treat any headers that we care about because we need to handle the rest of the protocol.
      */
@@ -438,29 +624,43 @@ public class HTTPParsingMachine
      */
     private boolean processChunkHeader(ByteBuffer buf)
     {
-        String line = readLine(buf);
-        if (line == null) {
-            storeRemaining(buf);
+        if (!readLine(buf)) {
+            storePartialLine(buf);
             return false;
         }
-        try {
-            String hdr = line;
-            int semi = hdr.indexOf(';');
-            if (semi > 0) {
-                hdr = line.substring(0, semi);
+
+        byte[] b = line;
+        int end = lineEnd;
+        int p = lineStart;
+        long len = 0;
+        while (p < end) {
+            int digit = hexValue(b[p]);
+            if (digit < 0) {
+                break;
             }
-            contentLength = Integer.parseInt(hdr, 16);
-            readLength = 0;
-            if (contentLength == 0) {
-                state = Status.TRAILERS;
-            } else {
-                state = Status.CHUNK_BODY;
+            len = (len * 16) + digit;
+            if (len > Integer.MAX_VALUE) {
+                state = Status.ERROR;
+                return true;
             }
-            return true;
-        } catch (NumberFormatException nfe) {
+            p++;
+        }
+        // Anything after the length must be a chunk extension, which we ignore
+        p = skipSpace(b, p, end);
+        if ((p == lineStart) || ((p < end) && (b[p] != ';'))) {
             state = Status.ERROR;
             return true;
         }
+
+        contentLength = (int)len;
+        readLength = 0;
+        if (contentLength == 0) {
+            headerBytes = 0;
+            state = Status.TRAILERS;
+        } else {
+            state = Status.CHUNK_BODY;
+        }
+        return true;
     }
 
     /**
@@ -468,9 +668,8 @@ public class HTTPParsingMachine
      */
     private boolean processChunkTrailer(ByteBuffer buf)
     {
-        String line = readLine(buf);
-        if (line == null) {
-            storeRemaining(buf);
+        if (!readLine(buf)) {
+            storePartialLine(buf);
             return false;
         }
         if (contentLength == 0) {
@@ -535,54 +734,104 @@ public class HTTPParsingMachine
 
     /**
      * Read a single line according to the HTTP spec -- read the line up to the end of a CRLF pair (not anything
-     * else, just CRLF and exactly that) and turn it into an ASCII (not UTF-8) string. For other protocols, like SIP,
-     * we'd want to modify this.
+     * else, just CRLF and exactly that). If a line is found, return true and set "line," "lineStart," and
+     * "lineEnd" to the bytes of the line, not including the CRLF. The line points either directly into
+     * "buf" or, if it started in a previous buffer, into the "odd data" buffer, so it is only valid until
+     * the next call. For other protocols, like SIP, we'd want to modify this.
      */
-    private String readLine(ByteBuffer buf)
+    private boolean readLine(ByteBuffer buf)
     {
         if (buf == null) {
-            return null;
+            return false;
+        }
+        // Search for the first CRLF pair before end of buffer. We only ever scan new bytes -- "readCR"
+        // remembers whether the data already stored in "oddData" ended in the middle of a CRLF.
+        int eol = buf.hasArray() ? findLineEnd(buf.array(), buf.arrayOffset(), buf.position(), buf.limit())
+                                 : findLineEnd(buf);
+        if (eol < 0) {
+            return false;
+        }
+        readCR = false;
+
+        if (((oddData == null) || (oddData.position() == 0)) && buf.hasArray()) {
+            // Common case -- the whole line is in this buffer so parse it in place
+            line = buf.array();
+            lineStart = buf.arrayOffset() + buf.position();
+            lineEnd = buf.arrayOffset() + eol - 2;
+            buf.position(eol);
+        } else {
+            // Be sure to read from the odd-data buffer as well.
+            ByteBuffer rest = buf.duplicate();
+            rest.limit(eol);
+            appendOddData(rest);
+            buf.position(eol);
+            line = oddData.array();
+            lineStart = oddData.arrayOffset();
+            lineEnd = lineStart + oddData.position() - 2;
+            oddData.clear();
         }
-        int p = buf.position();
-        while (p < buf.limit()) {
-            // Search for the first CRLF pair before end of buffer
+        return true;
+    }
+
+    private int findLineEnd(byte[] a, int offset, int p, int limit)
+    {
+        boolean cr = readCR;
+        for (int i = offset + p; i < offset + limit; i++) {
+            byte b = a[i];
+            if (cr && (b == '\n')) {
+                return i - offset + 1;
+            }
+            cr = (b == '\r');
+        }
+        readCR = cr;
+        return -1;
+    }
+
+    private int findLineEnd(ByteBuffer buf)
+    {
+        for (int p = buf.position(); p < buf.limit(); p++) {
             byte b = buf.get(p);
             if (readCR && (b == '\n')) {
-                // If we get here then "p" points to the last character in the line. Slice the buffer.
-                readCR = false;
-                ByteBuffer line = buf.duplicate();
-                p++;
-                line.limit(p);
-                buf.position(p);
-
-                // Be sure to read from the odd-data buffer as well.
-                String ret;
-                if (oddData == null) {
-                    ret = bufferToString(line);
-                } else {
-                    oddData.flip();
-                    // This is only valid because we know that the line is ASCII
-                    ret = bufferToString(oddData) + bufferToString(line);
-                    oddData.clear();
-                }
-                assert(ret.endsWith("\r\n"));
-                return ret.substring(0, ret.length() - 2);
-
-            } else if (!readCR && (b == '\r')) {
-                readCR = true;
-            } else {
-                readCR = false;
+                return p + 1;
             }
-            p++;
+            readCR = (b == '\r');
         }
-        return null;
+        return -1;
     }
 
-    private String bufferToString(ByteBuffer buf)
+    /**
+     * Count the line that we just read toward the limit on header size, and fail if we are over.
+     */
+    private boolean countLine()
     {
-        assert(buf.hasArray());
-        return new String(buf.array(), buf.arrayOffset() + buf.position(),
-                          buf.remaining(), Charsets.ASCII);
+        headerBytes += (lineEnd - lineStart) + 2;
+        return checkHeaderSize(0);
+    }
+
+    /**
+     * Save the rest of the buffer, which does not contain a complete line, for the next call, unless
+     * that would put us over the limit on header size. This keeps a client that never sends a CRLF from
+     * making us buffer without limit.
+     */
+    private void storePartialLine(ByteBuffer buf)
+    {
+        if (buf == null) {
+            return;
+        }
+        int pending = (oddData == null) ? 0 : oddData.position();
+        if (checkHeaderSize(pending + buf.remaining())) {
+            storeRemaining(buf);
+        }
+    }
+
+    private boolean checkHeaderSize(int extra)
+    {
+        if ((headerBytes + extra) > maxHeaderSize) {
+            headerOverflow = true;
+            state = Status.ERROR;
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -592,26 +841,25 @@ public class HTTPParsingMachine
     private void skipBlankLine(ByteBuffer buf)
     {
         // Tricky because we have to look in two different buffers.
-        if (oddData == null) {
-            if (buf.remaining() >= 2) {
+        int stored = (oddData == null) ? 0 : oddData.position();
+        if (stored == 0) {
+            if ((buf != null) && (buf.remaining() >= 2)) {
                 if ((buf.get(buf.position()) == '\r') && (buf.get(buf.position() + 1) == '\n')) {
                     buf.position(buf.position() + 2);
                 }
             }
-        } else if (oddData.remaining() == 1) {
-            if (buf.remaining() >= 1) {
+        } else if (stored == 1) {
+            if ((buf != null) && buf.hasRemaining()) {
                 if ((oddData.get(0) == '\r') && (buf.get(buf.position()) == '\n')) {
-                    oddData = null;
+                    oddData.clear();
+                    readCR = false;
                     buf.position(buf.position() + 1);
                 }
             }
-        } else if (oddData.remaining() >= 2) {
-            if ((oddData.get(0) == '\r') && (oddData.get(1) == '\n')) {
-                oddData.position(2);
-                if (!oddData.hasRemaining()) {
-                    oddData = null;
-                }
-            }
+        } else if ((oddData.get(0) == '\r') && (oddData.get(1) == '\n')) {
+            oddData.flip();
+            oddData.position(2);
+            oddData.compact();
         }
     }
 
@@ -621,14 +869,19 @@ public class HTTPParsingMachine
      */
     private void storeRemaining(ByteBuffer buf)
     {
-        if (buf == null) {
+        if ((buf == null) || !buf.hasRemaining()) {
             return;
         }
-        // TODO should we slice the buffer instead and make a list of buffers?
+        appendOddData(buf);
+    }
+
+    private void appendOddData(ByteBuffer buf)
+    {
         if (oddData == null) {
-            oddData = ByteBuffer.allocate(buf.remaining());
+            oddData = ByteBuffer.allocate(Math.max(buf.remaining(), INITIAL_LINE_SIZE));
         } else if (oddData.remaining() < buf.remaining()) {
-            ByteBuffer newData = ByteBuffer.allocate(oddData.position() + buf.remaining());
+            ByteBuffer newData =
+                ByteBuffer.allocate(Math.max(oddData.position() + buf.remaining(), oddData.capacity() * 2));
             oddData.flip();
             newData.put(oddData);
             oddData = newData;
@@ -636,10 +889,120 @@ public class HTTPParsingMachine
         oddData.put(buf);
     }
 
+    private static int trimEnd(byte[] b, int start, int end)
+    {
+        while ((end > start) && ((b[end - 1] == ' ') || (b[end - 1] == '\t'))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static int skipSpace(byte[] b, int start, int end)
+    {
+        while ((start < end) && ((b[start] == ' ') || (b[start] == '\t'))) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Return true if the range contains no control characters other than tabs.
+     */
+    private static boolean isText(byte[] b, int start, int end)
+    {
+        for (int i = start; i < end; i++) {
+            int c = b[i] & 0xff;
+            if (((c < 0x20) && (c != '\t')) || (c == 0x7f)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hexValue(byte b)
+    {
+        if ((b >= '0') && (b <= '9')) {
+            return b - '0';
+        }
+        if ((b >= 'a') && (b <= 'f')) {
+            return b - 'a' + 10;
+        }
+        if ((b >= 'A') && (b <= 'F')) {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Turn the bytes into a string one byte per character, which is how Node treats headers.
+     */
+    private static String toString(byte[] b, int start, int end)
+    {
+        if (start == end) {
+            return "";
+        }
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char)(b[start + i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Return a constant from the table if the bytes match one exactly, and otherwise make a new string.
+     */
+    private static String intern(String[][] table, byte[] b, int start, int end)
+    {
+        int len = end - start;
+        if ((len < table.length) && (table[len] != null)) {
+            for (String candidate : table[len]) {
+                int i = 0;
+                while ((i < len) && (candidate.charAt(i) == (b[start + i] & 0xff))) {
+                    i++;
+                }
+                if (i == len) {
+                    return candidate;
+                }
+            }
+        }
+        return toString(b, start, end);
+    }
+
+    /**
+     * Build a lookup table of strings indexed by their length.
+     */
+    private static String[][] makeInternTable(String[] names, boolean addLowerCase)
+    {
+        int maxLen = 0;
+        for (String n : names) {
+            maxLen = Math.max(maxLen, n.length());
+        }
+        String[][] table = new String[maxLen + 1][];
+        for (String n : names) {
+            addToTable(table, n);
+            if (addLowerCase) {
+                addToTable(table, n.toLowerCase().intern());
+            }
+        }
+        return table;
+    }
+
+    private static void addToTable(String[][] table, String n)
+    {
+        String[] entries = table[n.length()];
+        if (entries == null) {
+            table[n.length()] = new String[] { n };
+        } else if (!Arrays.asList(entries).contains(n)) {
+            entries = Arrays.copyOf(entries, entries.length + 1);
+            entries[entries.length - 1] = n;
+            table[n.length()] = entries;
+        }
+    }
+
     public class Result
     {
-        private List<Map.Entry<String, String>> headers;
-        private List<Map.Entry<String, String>> trailers;
+        private Object[] headers;
+        private Object[] trailers;
         private ByteBuffer body;
 
         public boolean isError()
@@ -647,6 +1010,15 @@ public class HTTPParsingMachine
             return (state == Status.ERROR);
         }
 
+        /**
+         * Return true if parsing failed because the start line and headers, or the trailers, were larger
+         * than the maximum header size. A server should respond with a 431 in this case.
+         */
+        public boolean isHeaderOverflow()
+        {
+            return headerOverflow;
+        }
+
         public boolean isComplete()
         {
             return (state == Status.COMPLETE);
@@ -702,34 +1074,64 @@ public class HTTPParsingMachine
             return reasonPhrase;
         }
 
-        public List<Map.Entry<String, String>> getHeaders()
+        /**
+         * Return the headers parsed in this call as an array of alternating names and values, or null if
+         * there are none. The array is an Object array of exactly the right length so that it may be used
+         * as the backing store for a script array.
+         */
+        public Object[] getHeaderArray()
         {
             return headers;
         }
 
-        void setHeaders(List<Map.Entry<String, String>> h)
+        void setHeaders(Object[] h)
         {
             this.headers = h;
         }
 
+        /**
+         * Return the headers as a list, which is convenient but slower than "getHeaderArray."
+         */
+        public List<Map.Entry<String, String>> getHeaders()
+        {
+            return toList(headers);
+        }
+
         public boolean hasHeaders()
         {
-            return ((headers != null) && !headers.isEmpty());
+            return (headers != null);
         }
 
-        public List<Map.Entry<String, String>> getTrailers()
+        public Object[] getTrailerArray()
         {
             return trailers;
         }
 
-        void setTrailers(List<Map.Entry<String, String>> h)
+        void setTrailers(Object[] h)
         {
             this.trailers = h;
         }
 
+        public List<Map.Entry<String, String>> getTrailers()
+        {
+            return toList(trailers);
+        }
+
         public boolean hasTrailers()
         {
-            return ((trailers != null) && !trailers.isEmpty());
+            return (trailers != null);
+        }
+
+        private List<Map.Entry<String, String>> toList(Object[] a)
+        {
+            if (a == null) {
+                return null;
+            }
+            ArrayList<Map.Entry<String, String>> l = new ArrayList<Map.Entry<String, String>>(a.length / 2);
+            for (int i = 0; i < a.length; i += 2) {
+                l.add(new AbstractMap.SimpleEntry<String, String>((String)a[i], (String)a[i + 1]));
+            }
+            return l;
         }
 
         public ByteBuffer getBody()
@@ -0,0 +1,411 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory pipe between two threads, with exactly one reader and one writer. It uses the same
+ * layout as CircularByteBuffer -- a single array with one slot always left open -- but the capacity
+ * is fixed and the read and write positions are volatile, so that the reader and writer can run on
+ * different threads without locking.
+ * <p>
+ * Rather than blocking, the reader and writer may register a listener, which is called (on the other
+ * thread) when data becomes available or space becomes free. This is how the pipe handles plug it in to
+ * the event loop of each script. For code that still needs a plain stream, "getInputStream" and
+ * "getOutputStream" return streams that block.
+ * </p>
+ */
+public class MemoryPipe
+{
+    private final byte[] buf;
+    private volatile int readPos;
+    private volatile int writePos;
+
+    private volatile boolean writeClosed;
+    private volatile boolean readClosed;
+
+    private volatile Runnable readListener;
+    private volatile Runnable writeListener;
+
+    private final Object lock = new Object();
+    private volatile int waiters;
+
+    private final PipeInputStream inputStream = new PipeInputStream();
+    private final PipeOutputStream outputStream = new PipeOutputStream();
+
+    public MemoryPipe(int capacity)
+    {
+        // always keep one slot open
+        this.buf = new byte[capacity + 1];
+    }
+
+    public int totalCapacity()
+    {
+        return buf.length - 1;
+    }
+
+    /**
+     * Return the number of bytes that may be read. Only accurate on the reader thread.
+     */
+    public int available()
+    {
+        int w = writePos;
+        int r = readPos;
+        if (w >= r) {
+            return w - r;
+        }
+        return buf.length - (r - w);
+    }
+
+    /**
+     * Return the number of bytes that may be written. Only accurate on the writer thread.
+     */
+    public int freeCapacity()
+    {
+        int w = writePos;
+        int r = readPos;
+        if (w >= r) {
+            return (buf.length - 1) - (w - r);
+        }
+        return r - w - 1;
+    }
+
+    /**
+     * Copy as much of the buffer as will fit in to the pipe, and advance its position. Return the
+     * number of bytes written, which may be zero if the pipe is full, or -1 if the reader has
+     * closed the pipe.
+     */
+    public int write(ByteBuffer in)
+    {
+        if (readClosed) {
+            return -1;
+        }
+        int len = Math.min(in.remaining(), freeCapacity());
+        if (len == 0) {
+            return 0;
+        }
+
+        int w = writePos;
+        if (w + len < buf.length) {
+            in.get(buf, w, len);
+            w += len;
+        } else {
+            int firstLen = buf.length - w;
+            int secondLen = len - firstLen;
+            in.get(buf, w, firstLen);
+            in.get(buf, 0, secondLen);
+            w = secondLen;
+        }
+        writePos = w;
+
+        signal(readListener);
+        return len;
+    }
+
+    /**
+     * Read up to "len" bytes. Return the number of bytes read, which may be zero if the pipe is
+     * empty, or -1 if the pipe is empty and the writer has closed it.
+     */
+    public int read(byte[] out, int offset, int len)
+    {
+        // Check for close before checking what's available, so that we never miss the last write
+        boolean closed = writeClosed;
+        len = Math.min(len, available());
+        if (len == 0) {
+            return (closed ? -1 : 0);
+        }
+
+        int r = readPos;
+        if (r + len < buf.length) {
+            System.arraycopy(buf, r, out, offset, len);
+            r += len;
+        } else {
+            int firstLen = buf.length - r;
+            int secondLen = len - firstLen;
+            System.arraycopy(buf, r, out, offset, firstLen);
+            System.arraycopy(buf, 0, out, offset + firstLen, secondLen);
+            r = secondLen;
+        }
+        readPos = r;
+
+        signal(writeListener);
+        return len;
+    }
+
+    /**
+     * Read everything that is available in to a new buffer, up to "max" bytes. Return null if the
+     * pipe is empty, or an empty buffer if it is empty and the writer has closed it.
+     */
+    public ByteBuffer read(int max)
+    {
+        boolean closed = writeClosed;
+        int len = Math.min(max, available());
+        if (len == 0) {
+            return (closed ? ByteBuffer.allocate(0) : null);
+        }
+        byte[] out = new byte[len];
+        read(out, 0, len);
+        return ByteBuffer.wrap(out);
+    }
+
+    /**
+     * Called by the writer to indicate that there will be no more data.
+     */
+    public void closeWrite()
+    {
+        writeClosed = true;
+        signal(readListener);
+    }
+
+    /**
+     * Called by the reader to indicate that it will no longer read, so the writer should stop.
+     */
+    public void closeRead()
+    {
+        readClosed = true;
+        signal(writeListener);
+    }
+
+    public boolean isWriteClosed() {
+        return writeClosed;
+    }
+
+    public boolean isReadClosed() {
+        return readClosed;
+    }
+
+    /**
+     * Set a listener that will be called, from the writer's thread, whenever new data is written
+     * or the writer closes the pipe.
+     */
+    public void setReadListener(Runnable l) {
+        this.readListener = l;
+    }
+
+    /**
+     * Set a listener that will be called, from the reader's thread, whenever space is freed
+     * or the reader closes the pipe.
+     */
+    public void setWriteListener(Runnable l) {
+        this.writeListener = l;
+    }
+
+    public PipeInputStream getInputStream() {
+        return inputStream;
+    }
+
+    public PipeOutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    private void signal(Runnable listener)
+    {
+        if (listener != null) {
+            listener.run();
+        }
+        if (waiters > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void await()
+        throws InterruptedIOException
+    {
+        try {
+            lock.wait();
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void await(long nanos)
+        throws InterruptedIOException
+    {
+        try {
+            TimeUnit.NANOSECONDS.timedWait(lock, nanos);
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * The reading side of the pipe as a stream that blocks when the pipe is empty.
+     */
+    public class PipeInputStream
+        extends InputStream
+    {
+        public MemoryPipe getPipe() {
+            return MemoryPipe.this;
+        }
+
+        @Override
+        public int available()
+        {
+            return MemoryPipe.this.available();
+        }
+
+        @Override
+        public int read()
+            throws IOException
+        {
+            byte[] b = new byte[1];
+            int r = read(b, 0, 1);
+            return (r < 0 ? -1 : (b[0] & 0xff));
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+            throws IOException
+        {
+            if (len == 0) {
+                return 0;
+            }
+            int r = MemoryPipe.this.read(b, off, len);
+            if (r != 0) {
+                return r;
+            }
+
+            synchronized (lock) {
+                waiters++;
+                try {
+                    while ((r = MemoryPipe.this.read(b, off, len)) == 0) {
+                        await();
+                    }
+                } finally {
+                    waiters--;
+                }
+            }
+            return r;
+        }
+
+        @Override
+        public void close()
+        {
+            closeRead();
+        }
+    }
+
+    /**
+     * The writing side of the pipe as a stream that blocks when the pipe is full.
+     */
+    public class PipeOutputStream
+        extends OutputStream
+    {
+        public MemoryPipe getPipe() {
+            return MemoryPipe.this;
+        }
+
+        @Override
+        public void write(int b)
+            throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            write(ByteBuffer.wrap(b, off, len));
+        }
+
+        /**
+         * Write everything in the buffer, blocking until there is room.
+         */
+        public void write(ByteBuffer in)
+            throws IOException
+        {
+            if (MemoryPipe.this.write(in) < 0) {
+                throw new IOException("Pipe closed");
+            }
+            if (!in.hasRemaining()) {
+                return;
+            }
+
+            synchronized (lock) {
+                waiters++;
+                try {
+                    while (in.hasRemaining()) {
+                        if (MemoryPipe.this.write(in) < 0) {
+                            throw new IOException("Pipe closed");
+                        }
+                        if (in.hasRemaining()) {
+                            await();
+                        }
+                    }
+                } finally {
+                    waiters--;
+                }
+            }
+        }
+
+        /**
+         * Write everything in the buffer, blocking until there is room, but give up and return false
+         * if the reader does not free any space for "timeout." Whatever was not written is left in the buffer.
+         */
+        public boolean write(ByteBuffer in, long timeout, TimeUnit unit)
+            throws IOException
+        {
+            long limit = unit.toNanos(timeout);
+            synchronized (lock) {
+                waiters++;
+                try {
+                    long remaining = limit;
+                    while (in.hasRemaining()) {
+                        int written = MemoryPipe.this.write(in);
+                        if (written < 0) {
+                            throw new IOException("Pipe closed");
+                        }
+                        if (written > 0) {
+                            remaining = limit;
+                        }
+                        if (in.hasRemaining()) {
+                            if (remaining <= 0L) {
+                                return false;
+                            }
+                            long start = System.nanoTime();
+                            await(remaining);
+                            remaining -= (System.nanoTime() - start);
+                        }
+                    }
+                } finally {
+                    waiters--;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+            closeWrite();
+        }
+    }
+}
@@ -0,0 +1,521 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.streams;
+
+import io.apigee.trireme.kernel.Callback;
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.GenericNodeRuntime;
+import io.apigee.trireme.kernel.handles.IOCompletionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class copies the output of any number of child OS processes, and finds out when they exit, using
+ * a small, bounded set of threads. It is meant to be shared by all the scripts in an environment, so that
+ * spawning a process doesn't start a StreamPiper for stdout and stderr plus another thread to wait for it
+ * to exit.
+ * <p>
+ * Java has no non-blocking I/O for process streams, so each stream that is being read is handed to one of
+ * up to "maxReaders" reader threads, which does a blocking read sized by what "available" reports. After
+ * each read the stream goes back to the pool, and a paused stream is not handed out at all until
+ * "resume" is called, so no thread waits on behalf of a stream that isn't being read. When every reader
+ * is busy, the streams that are left over are polled by the watcher thread until a reader frees up.
+ * </p>
+ * <p>
+ * The watcher thread also checks for process exit. It backs off to MAX_POLL_INTERVAL when nothing
+ * happens, is woken early whenever a stream reaches EOF, and waits without polling at all when there is
+ * nothing to watch.
+ * </p>
+ * <p>
+ * Handlers and exit listeners are called in pump threads, so they must hand off any real work to
+ * the script thread.
+ * </p>
+ */
+
+public class ProcessPump
+    implements Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger(ProcessPump.class);
+
+    public static final int MAX_READ_SIZE = 65536;
+    public static final int DEFAULT_MAX_READERS = 16;
+    public static final long MIN_POLL_INTERVAL = 1L;
+    public static final long MAX_POLL_INTERVAL = 100L;
+    public static final long READER_KEEP_ALIVE = 60L;
+
+    private final int maxReaders;
+    private final ArrayList<Source> overflow = new ArrayList<Source>();
+    private final ArrayList<ExitWatch> exitWatches = new ArrayList<ExitWatch>();
+
+    private Thread thread;
+    private ThreadPoolExecutor readers;
+    private boolean closed;
+    private boolean kicked;
+
+    public ProcessPump()
+    {
+        this(DEFAULT_MAX_READERS);
+    }
+
+    /**
+     * Create a pump that never uses more than "maxReaders" threads to read process output.
+     */
+    public ProcessPump(int maxReaders)
+    {
+        this.maxReaders = maxReaders;
+    }
+
+    /**
+     * Start copying everything from "in," which is one of the output streams of "proc," to "handler."
+     * Data is delivered as buffers with an error code of zero, and EOF or an error ends the stream. The
+     * source starts out paused.
+     */
+    public Source pipe(Process proc, InputStream in, IOCompletionHandler<ByteBuffer> handler)
+    {
+        return new Source(proc, in, handler);
+    }
+
+    /**
+     * Copy everything from "in" to "out" until EOF, without closing either one. The writes happen in a
+     * pump thread, so this is only for streams that never block, like a BitBucketOutputStream.
+     */
+    public Source pipe(Process proc, InputStream in, final OutputStream out)
+    {
+        Source src = pipe(proc, in, new IOCompletionHandler<ByteBuffer>() {
+            @Override
+            public void ioComplete(int errCode, ByteBuffer buf)
+            {
+                if (errCode == 0) {
+                    writeOutput(out, buf);
+                }
+            }
+        });
+        src.resume();
+        return src;
+    }
+
+    /**
+     * Copy everything from "in" to "out" until EOF, without closing either one. The writes happen on the
+     * script thread of "runtime," one at a time, and the source is paused while each one is pending, so
+     * that a slow "out" holds up only this process.
+     */
+    public Source pipe(Process proc, InputStream in, OutputStream out, GenericNodeRuntime runtime)
+    {
+        LoopWriter writer = new LoopWriter(out, runtime);
+        Source src = pipe(proc, in, writer);
+        writer.source = src;
+        src.resume();
+        return src;
+    }
+
+    /**
+     * Call "listener" with the exit code of "proc" once it exits.
+     */
+    public void watchExit(Process proc, Callback<Integer> listener)
+    {
+        synchronized (this) {
+            if (!closed) {
+                ensureStarted();
+                exitWatches.add(new ExitWatch(proc, listener));
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stop the pump threads. Nothing else will be delivered.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            overflow.clear();
+            exitWatches.clear();
+            if (readers != null) {
+                readers.shutdown();
+            }
+            notifyAll();
+        }
+    }
+
+    private void ensureStarted()
+    {
+        if (thread == null) {
+            // No queue, so that a stream is only accepted when there is a thread free to read it
+            readers = new ThreadPoolExecutor(0, maxReaders, READER_KEEP_ALIVE, TimeUnit.SECONDS,
+                                             new SynchronousQueue<Runnable>(),
+                                             new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "Trireme Process Pump Reader");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    watchLoop();
+                }
+            }, "Trireme Process Pump");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Wake up the watcher thread and have it check everything right away.
+     */
+    private synchronized void kick()
+    {
+        kicked = true;
+        notifyAll();
+    }
+
+    private void watchLoop()
+    {
+        ArrayList<Source> activeSources = new ArrayList<Source>();
+        ArrayList<ExitWatch> activeWatches = new ArrayList<ExitWatch>();
+        long interval = MIN_POLL_INTERVAL;
+
+        while (true) {
+            synchronized (this) {
+                while (!closed && overflow.isEmpty() && exitWatches.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        // Check again
+                    }
+                }
+                if (closed) {
+                    log.debug("Process pump closed -- thread exiting");
+                    return;
+                }
+                kicked = false;
+                activeSources.clear();
+                activeSources.addAll(overflow);
+                activeWatches.clear();
+                activeWatches.addAll(exitWatches);
+            }
+
+            boolean progress = false;
+            for (Source src : activeSources) {
+                if (src.poll()) {
+                    progress = true;
+                }
+            }
+            for (ExitWatch ew : activeWatches) {
+                if (ew.poll()) {
+                    progress = true;
+                }
+            }
+
+            synchronized (this) {
+                Iterator<ExitWatch> ei = exitWatches.iterator();
+                while (ei.hasNext()) {
+                    if (ei.next().done) {
+                        ei.remove();
+                    }
+                }
+
+                if (progress || kicked) {
+                    interval = MIN_POLL_INTERVAL;
+                } else {
+                    // Sleep on the monitor so that new work and EOF wake us early
+                    try {
+                        wait(interval);
+                    } catch (InterruptedException ie) {
+                        // Keep going
+                    }
+                    interval = Math.min(interval * 2L, MAX_POLL_INTERVAL);
+                }
+            }
+        }
+    }
+
+    private static boolean hasExited(Process proc)
+    {
+        try {
+            proc.exitValue();
+            return true;
+        } catch (IllegalThreadStateException itse) {
+            return false;
+        }
+    }
+
+    private static void writeOutput(OutputStream out, ByteBuffer buf)
+    {
+        try {
+            out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        } catch (IOException ioe) {
+            log.debug("Error writing process output: {}", ioe);
+        }
+    }
+
+    /**
+     * One output stream of a process. Only one read is ever in progress for a source: "active" is set
+     * while it belongs to a reader thread or to the watcher, and it is handed out again after each read
+     * unless it was paused in the meantime.
+     */
+    public final class Source
+        implements Runnable
+    {
+        private final Process proc;
+        private final InputStream in;
+        private final IOCompletionHandler<ByteBuffer> handler;
+        private boolean paused = true;
+        private boolean active;
+        private boolean done;
+
+        Source(Process proc, InputStream in, IOCompletionHandler<ByteBuffer> handler)
+        {
+            this.proc = proc;
+            this.in = in;
+            this.handler = handler;
+        }
+
+        /**
+         * Stop reading. Anything that the process writes stays in the OS pipe until "resume" is called,
+         * so the process blocks once the pipe fills up. A read that is already in progress still
+         * delivers its data.
+         */
+        public void pause()
+        {
+            synchronized (ProcessPump.this) {
+                paused = true;
+            }
+        }
+
+        public void resume()
+        {
+            synchronized (ProcessPump.this) {
+                paused = false;
+                schedule();
+            }
+        }
+
+        /**
+         * Stop delivering data, and close the stream.
+         */
+        public void close()
+        {
+            synchronized (ProcessPump.this) {
+                paused = true;
+                done = true;
+                overflow.remove(this);
+            }
+            try {
+                in.close();
+            } catch (IOException ioe) {
+                log.debug("Error closing process stream: {}", ioe);
+            }
+        }
+
+        /**
+         * Hand the source to a reader thread if it should be read, or to the watcher if they are all
+         * busy. Called with the pump locked.
+         */
+        private void schedule()
+        {
+            if (active || paused || done || closed) {
+                return;
+            }
+            ensureStarted();
+            active = true;
+            try {
+                readers.execute(this);
+            } catch (RejectedExecutionException ree) {
+                overflow.add(this);
+                ProcessPump.this.notifyAll();
+            }
+        }
+
+        /**
+         * Called in a reader thread to do one blocking read.
+         */
+        @Override
+        public void run()
+        {
+            int len;
+            byte[] buf;
+            try {
+                buf = new byte[Math.max(StreamPiper.BUFFER_SIZE, Math.min(in.available(), MAX_READ_SIZE))];
+                len = in.read(buf);
+            } catch (IOException ioe) {
+                finish(ioe);
+                return;
+            }
+
+            if (len < 0) {
+                synchronized (ProcessPump.this) {
+                    done = true;
+                    active = false;
+                }
+                handler.ioComplete(ErrorCodes.EOF, null);
+                // The process has most likely exited, so don't wait for the next poll to find out
+                kick();
+                return;
+            }
+
+            if (len > 0) {
+                handler.ioComplete(0, ByteBuffer.wrap(buf, 0, len));
+            }
+            synchronized (ProcessPump.this) {
+                active = false;
+                schedule();
+            }
+        }
+
+        /**
+         * Called in the watcher thread while this source is waiting for a reader. Return true if we
+         * read something.
+         */
+        boolean poll()
+        {
+            synchronized (ProcessPump.this) {
+                if (paused || done) {
+                    // "resume" will schedule it again
+                    overflow.remove(this);
+                    active = false;
+                    return false;
+                }
+                try {
+                    readers.execute(this);
+                    overflow.remove(this);
+                    return true;
+                } catch (RejectedExecutionException ree) {
+                    // Still no reader free, so read whatever is there without blocking
+                }
+            }
+
+            try {
+                int avail = in.available();
+                if (avail > 0) {
+                    byte[] buf = new byte[Math.min(avail, MAX_READ_SIZE)];
+                    int len = in.read(buf);
+                    if (len > 0) {
+                        handler.ioComplete(0, ByteBuffer.wrap(buf, 0, len));
+                        return true;
+                    }
+                }
+            } catch (IOException ioe) {
+                synchronized (ProcessPump.this) {
+                    overflow.remove(this);
+                }
+                finish(ioe);
+            }
+            return false;
+        }
+
+        private void finish(IOException ioe)
+        {
+            synchronized (ProcessPump.this) {
+                done = true;
+                active = false;
+            }
+            // Closing the stream from our side shows up as an exception, just like in JavaInputStreamHandle
+            if ("Stream Closed".equalsIgnoreCase(ioe.getMessage())) {
+                handler.ioComplete(ErrorCodes.EOF, null);
+            } else {
+                log.debug("Error reading process output: {}", ioe);
+                handler.ioComplete(ErrorCodes.EIO, null);
+            }
+        }
+    }
+
+    /**
+     * Write each buffer to an OutputStream on the script thread, and keep the source paused until the
+     * write is done.
+     */
+    private static final class LoopWriter
+        implements IOCompletionHandler<ByteBuffer>
+    {
+        private final OutputStream out;
+        private final GenericNodeRuntime runtime;
+        volatile Source source;
+
+        LoopWriter(OutputStream out, GenericNodeRuntime runtime)
+        {
+            this.out = out;
+            this.runtime = runtime;
+        }
+
+        @Override
+        public void ioComplete(int errCode, final ByteBuffer buf)
+        {
+            if (errCode != 0) {
+                return;
+            }
+            source.pause();
+            runtime.executeScriptTask(new Runnable() {
+                @Override
+                public void run()
+                {
+                    writeOutput(out, buf);
+                    source.resume();
+                }
+            }, null);
+        }
+    }
+
+    private static final class ExitWatch
+    {
+        final Process proc;
+        final Callback<Integer> listener;
+        boolean done;
+
+        ExitWatch(Process proc, Callback<Integer> listener)
+        {
+            this.proc = proc;
+            this.listener = listener;
+        }
+
+        boolean poll()
+        {
+            if (hasExited(proc)) {
+                done = true;
+                listener.call(proc.exitValue());
+                return true;
+            }
+            return false;
+        }
+    }
+}
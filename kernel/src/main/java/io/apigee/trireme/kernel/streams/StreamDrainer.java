@@ -0,0 +1,213 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.streams;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class uses a single thread to copy data from any number of MemoryPipes to the OutputStreams behind
+ * them. It is meant to be shared by all the scripts in an environment, so that a script can write its
+ * standard output and error to a slow stream without blocking its event loop, and without a thread of
+ * its own for each stream.
+ * <p>
+ * A pipe is queued for the drainer thread when data is written to it. The thread then reads whatever is
+ * available, up to MAX_WRITE_SIZE, and writes it in one call, so that lots of small writes from the script
+ * turn in to a few large writes to the stream. If there is more, the pipe goes to the back of the queue,
+ * so that one busy stream can't keep the others waiting.
+ * </p>
+ */
+
+public class StreamDrainer
+    implements Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger(StreamDrainer.class);
+
+    public static final int MAX_WRITE_SIZE = 65536;
+
+    private final LinkedBlockingQueue<Target> ready = new LinkedBlockingQueue<Target>();
+    private final byte[] writeBuf = new byte[MAX_WRITE_SIZE];
+
+    private Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Start copying everything written to "pipe" to "out," until the writer closes the pipe. "out" is
+     * flushed after each batch of writes but it is never closed. If "out" throws an exception, then
+     * the pipe is closed for reading, so that the writer will get an error.
+     */
+    public Target drain(MemoryPipe pipe, OutputStream out)
+    {
+        Target t = new Target(pipe, out);
+        synchronized (this) {
+            if (closed) {
+                t.finish();
+                return t;
+            }
+            ensureStarted();
+        }
+        pipe.setReadListener(t.listener);
+        // Something may have been written before the listener was set
+        t.listener.run();
+        return t;
+    }
+
+    /**
+     * Stop the drainer thread once it has finished whatever is ready right now.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private void ensureStarted()
+    {
+        if (thread == null) {
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    drainLoop();
+                }
+            }, "Trireme Stream Drainer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void drainLoop()
+    {
+        while (!closed) {
+            try {
+                ready.take().drain();
+            } catch (InterruptedException ie) {
+                // Check again
+            }
+        }
+
+        Target t;
+        while ((t = ready.poll()) != null) {
+            t.drain();
+        }
+        log.debug("Stream drainer closed -- thread exiting");
+    }
+
+    /**
+     * A single pipe that is being copied to an output stream.
+     */
+    public final class Target
+    {
+        private final MemoryPipe pipe;
+        private final OutputStream out;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private boolean finished;
+
+        final Runnable listener = new Runnable() {
+            @Override
+            public void run()
+            {
+                if (scheduled.compareAndSet(false, true)) {
+                    ready.add(Target.this);
+                }
+            }
+        };
+
+        Target(MemoryPipe pipe, OutputStream out)
+        {
+            this.pipe = pipe;
+            this.out = out;
+        }
+
+        /**
+         * Called on the drainer thread only.
+         */
+        void drain()
+        {
+            // Reset first, so that anything written from now on queues us again
+            scheduled.set(false);
+            boolean eof;
+            try {
+                int r = pipe.read(writeBuf, 0, writeBuf.length);
+                if (r > 0) {
+                    out.write(writeBuf, 0, r);
+                    out.flush();
+                    if ((pipe.available() > 0) || pipe.isWriteClosed()) {
+                        // Take another turn later, and find out about EOF then if that's what is next
+                        listener.run();
+                    }
+                }
+                eof = (r < 0);
+            } catch (IOException ioe) {
+                log.debug("Error writing to output stream: {}", ioe);
+                pipe.closeRead();
+                eof = true;
+            }
+
+            if (eof) {
+                pipe.setReadListener(null);
+                finish();
+            }
+        }
+
+        synchronized void finish()
+        {
+            finished = true;
+            notifyAll();
+        }
+
+        public synchronized boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * Wait until everything has been written to the output stream and the writer has closed the pipe,
+         * or until the timeout expires. Return whether everything was written.
+         */
+        public synchronized boolean awaitFinished(long timeout, TimeUnit unit)
+            throws InterruptedException
+        {
+            long end = System.currentTimeMillis() + unit.toMillis(timeout);
+            long now = System.currentTimeMillis();
+            while (!finished && (now < end)) {
+                wait(end - now);
+                now = System.currentTimeMillis();
+            }
+            return finished;
+        }
+    }
+}
@@ -41,10 +41,19 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This class abstracts the icky stuff around an SSLEngine, including all the looping and wrapping and unwrapping.
  * Higher-level classes map it to stuff that can actually be called by JavaScript.
+ * <p>
+ * By default all wrapping and unwrapping happens on the script thread. In "pipelined" mode, once the handshake
+ * is complete, large batches of queued application data are encrypted or decrypted in the async pool instead,
+ * one batch at a time per connection so that results are always delivered in order. This lets a single script
+ * that is moving a lot of data over many TLS connections use more than one core.
+ * </p>
  */
 
 public class TLSConnection
@@ -53,6 +62,25 @@ public class TLSConnection
 
     private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
 
+    /**
+     * In pipelined mode, don't move work to the thread pool unless at least this much data is queued,
+     * because for small records the thread hop costs more than the encryption.
+     */
+    public static final int DEFAULT_PIPELINE_THRESHOLD = 16384;
+
+    /**
+     * Stop adding chunks to a pipelined batch once it is this big, so that one batch doesn't hold up
+     * the delivery of everything else for too long.
+     */
+    public static final int MAX_PIPELINE_BATCH = 256 * 1024;
+
+    /**
+     * Pool threads keep their scratch buffer between batches, unless it has grown larger than this.
+     */
+    private static final int MAX_SCRATCH_SIZE = MAX_PIPELINE_BATCH * 2;
+
+    private static final ThreadLocal<ByteBuffer> scratchBuffer = new ThreadLocal<ByteBuffer>();
+
     private final ArrayDeque<TLSChunk> outgoing = new ArrayDeque<TLSChunk>();
     private final ArrayDeque<TLSChunk> incoming = new ArrayDeque<TLSChunk>();
 
@@ -63,6 +91,8 @@ public class TLSConnection
 
     private boolean requestCert;
     private boolean rejectUnauthorized;
+    private boolean pipelined;
+    private int pipelineThreshold = DEFAULT_PIPELINE_THRESHOLD;
 
     private TriCallback<ByteBuffer, Boolean, Object> writeCallback;
     private BiCallback<ByteBuffer, Integer> readCallback;
@@ -79,6 +109,9 @@ public class TLSConnection
     private boolean initFinished;
     private boolean sentShutdown;
     private boolean receivedShutdown;
+    private boolean offloaded;
+    private int wrapBatches;
+    private int unwrapBatches;
 
     private SSLException error;
     private SSLException verifyError;
@@ -142,6 +175,26 @@ public class TLSConnection
         }
     }
 
+    /**
+     * Enable or disable pipelined mode, in which bulk encryption and decryption of application data
+     * runs in the async pool after the handshake is done.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Set the minimum number of queued bytes that will cause a batch to be processed in the async pool
+     * when in pipelined mode.
+     */
+    public void setPipelineThreshold(int threshold) {
+        this.pipelineThreshold = threshold;
+    }
+
     public void setWriteCallback(TriCallback<ByteBuffer, Boolean, Object> cb) {
         this.writeCallback = cb;
     }
@@ -182,6 +235,20 @@ public class TLSConnection
         return receivedShutdown;
     }
 
+    /**
+     * Return the number of batches that have been wrapped in the async pool in pipelined mode.
+     */
+    public int getWrapBatchCount() {
+        return wrapBatches;
+    }
+
+    /**
+     * Return the number of batches that have been unwrapped in the async pool in pipelined mode.
+     */
+    public int getUnwrapBatchCount() {
+        return unwrapBatches;
+    }
+
     public int getWriteQueueLength()
     {
         int len = 0;
@@ -249,6 +316,10 @@ public class TLSConnection
     private void encodeLoop()
     {
         while (true) {
+            if (offloaded) {
+                // A batch is running in the thread pool, and we will be called again when it is done
+                return;
+            }
             if (log.isTraceEnabled()) {
                 log.trace("engine status: {} incoming: {} outgoing: {}", engine.getHandshakeStatus(),
                           incoming.size(), outgoing.size());
@@ -275,6 +346,9 @@ public class TLSConnection
                 if (outgoing.isEmpty() && incoming.isEmpty()) {
                     return;
                 }
+                if (pipelined && initFinished && offloadBatch()) {
+                    return;
+                }
 
                 if (!outgoing.isEmpty()) {
                     if (!doWrap()) {
@@ -495,6 +569,360 @@ public class TLSConnection
         }
     }
 
+    /**
+     * If there is enough application data at the head of one of the queues, send it to the thread pool
+     * and return true. Otherwise return false so that the caller processes the queues in this thread.
+     */
+    private boolean offloadBatch()
+    {
+        List<TLSChunk> batch = collectBatch(outgoing);
+        boolean isWrap = (batch != null);
+        if (!isWrap) {
+            batch = collectBatch(incoming);
+            if (batch == null) {
+                return false;
+            }
+        }
+
+        final List<TLSChunk> work = batch;
+        final boolean wrapping = isWrap;
+        final Object domain = runtime.getDomain();
+
+        if (log.isTraceEnabled()) {
+            log.trace("Pipelining {} chunks to {}", work.size(), wrapping ? "wrap" : "unwrap");
+        }
+
+        offloaded = true;
+        try {
+            runtime.getAsyncPool().execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    final BatchResult result = (wrapping ? wrapBatch(work) : unwrapBatch(work));
+
+                    runtime.executeScriptTask(new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            if (wrapping) {
+                                completeWrapBatch(work, result);
+                            } else {
+                                completeUnwrapBatch(work, result);
+                            }
+                        }
+                    }, domain);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // Pool is saturated, so just do the work here like we always used to
+            log.trace("Async pool rejected TLS batch -- processing in the script thread");
+            offloaded = false;
+            return false;
+        }
+        if (wrapping) {
+            wrapBatches++;
+        } else {
+            unwrapBatches++;
+        }
+        return true;
+    }
+
+    /**
+     * Return a list of the chunks at the head of the queue that contain nothing but data, or null if
+     * the amount of data is below the pipelining threshold.
+     */
+    private List<TLSChunk> collectBatch(ArrayDeque<TLSChunk> queue)
+    {
+        ArrayList<TLSChunk> batch = null;
+        int len = 0;
+
+        for (TLSChunk c : queue) {
+            if (c.isShutdown() || (c.getInboundErr() != 0) ||
+                (c.getBuf() == null) || !c.getBuf().hasRemaining() ||
+                (len >= MAX_PIPELINE_BATCH)) {
+                break;
+            }
+            if (batch == null) {
+                batch = new ArrayList<TLSChunk>();
+            }
+            batch.add(c);
+            len += c.getBuf().remaining();
+        }
+
+        if (len < pipelineThreshold) {
+            return null;
+        }
+        return batch;
+    }
+
+    /**
+     * Wrap a batch of chunks in the thread pool. The output for each chunk is collected into one buffer
+     * so that we deliver far fewer buffers than one per TLS record. The whole batch is wrapped into the
+     * scratch buffer and copied out once at the end, and each chunk's output is a slice of that copy.
+     * The script thread is not touching the engine or these chunks until we are done.
+     */
+    private BatchResult wrapBatch(List<TLSChunk> batch)
+    {
+        BatchResult r = new BatchResult(batch.size());
+        int[] ends = new int[batch.size()];
+        int packetSize = engine.getSession().getPacketBufferSize();
+        ByteBuffer out = getScratchBuffer(packetSize);
+
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                ByteBuffer bb = batch.get(i).getBuf();
+                while (bb.hasRemaining() && !r.stopped) {
+                    if (out.remaining() < packetSize) {
+                        out = BufferUtils.doubleBuffer(out);
+                    }
+
+                    SSLEngineResult result = engine.wrap(bb, out);
+                    if (log.isTraceEnabled()) {
+                        log.trace("pipelined wrap result: {}", result);
+                    }
+                    r.handshakeStatus = result.getHandshakeStatus();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        out = BufferUtils.doubleBuffer(out);
+                    } else if ((result.getStatus() != SSLEngineResult.Status.OK) ||
+                               (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)) {
+                        // Something changed so let the regular loop in the script thread take over
+                        r.stopped = true;
+                    }
+                }
+
+                ends[i] = out.position();
+                if (bb.hasRemaining()) {
+                    break;
+                }
+                r.completed++;
+            }
+        } catch (SSLException ssle) {
+            r.error = ssle;
+            ends[r.completed] = out.position();
+        }
+
+        ByteBuffer all = copyScratch(out);
+        if (all != null) {
+            int start = 0;
+            for (int i = 0; i < ends.length; i++) {
+                // A chunk that produced nothing, or that we never got to, has no output
+                if (ends[i] > start) {
+                    all.limit(ends[i]);
+                    all.position(start);
+                    r.output[i] = all.slice();
+                    start = ends[i];
+                }
+            }
+        }
+        releaseScratchBuffer(out);
+        return r;
+    }
+
+    /**
+     * Back in the script thread, deliver the results of a wrapped batch in order.
+     */
+    private void completeWrapBatch(List<TLSChunk> batch, BatchResult r)
+    {
+        // Keep "offloaded" set until we are done so that any new writes from the callbacks
+        // don't get ahead of the ones that we are delivering.
+        for (int i = 0; i < batch.size(); i++) {
+            ByteBuffer bb = r.output[i];
+            Callback<Object> cb = null;
+            if (i < r.completed) {
+                outgoing.remove();
+                cb = batch.get(i).removeCallback();
+            }
+
+            if (bb != null) {
+                if (log.isTraceEnabled()) {
+                    log.trace("Delivering {} pipelined bytes to the onwrap callback", bb.remaining());
+                }
+                if (writeCallback == null) {
+                    if (cb != null) {
+                        cb.call(null);
+                    }
+                } else {
+                    writeCallback.call(bb, false, cb);
+                }
+            } else if (cb != null) {
+                cb.call(null);
+            }
+        }
+
+        offloaded = false;
+
+        if (r.error != null) {
+            TLSChunk qc = outgoing.peek();
+            handleEncodingError(qc, r.error);
+            if (qc != null) {
+                outgoing.remove();
+            }
+            return;
+        }
+        if (r.handshakeStatus == SSLEngineResult.HandshakeStatus.FINISHED) {
+            processNotHandshaking();
+        }
+        encodeLoop();
+    }
+
+    /**
+     * Unwrap a batch of chunks in the thread pool, producing a single buffer of plaintext. Partial
+     * records are merged with the next chunk just like in "doUnwrap."
+     */
+    private BatchResult unwrapBatch(List<TLSChunk> batch)
+    {
+        BatchResult r = new BatchResult(1);
+        int appSize = engine.getSession().getApplicationBufferSize();
+        ByteBuffer out = getScratchBuffer(appSize);
+
+        try {
+            int i = 0;
+            ByteBuffer bb = batch.get(0).getBuf();
+            while (!r.stopped) {
+                if (out.remaining() < appSize) {
+                    out = BufferUtils.doubleBuffer(out);
+                }
+
+                SSLEngineResult result = engine.unwrap(bb, out);
+                if (log.isTraceEnabled()) {
+                    log.trace("pipelined unwrap result: {}", result);
+                }
+                r.handshakeStatus = result.getHandshakeStatus();
+
+                switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    out = BufferUtils.doubleBuffer(out);
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if ((i + 1) < batch.size()) {
+                        // Combine what's left with the next chunk, which consumes this one
+                        TLSChunk next = batch.get(i + 1);
+                        next.setBuf(BufferUtils.catBuffers(bb, next.getBuf()));
+                        bb = next.getBuf();
+                        i++;
+                        r.completed++;
+                    } else {
+                        r.underflow = true;
+                        r.stopped = true;
+                    }
+                    break;
+                case CLOSED:
+                    r.closed = true;
+                    r.stopped = true;
+                    break;
+                default:
+                    if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                        r.stopped = true;
+                    }
+                    break;
+                }
+
+                if (!bb.hasRemaining() && !r.underflow) {
+                    r.completed++;
+                    i++;
+                    if (i >= batch.size()) {
+                        break;
+                    }
+                    bb = batch.get(i).getBuf();
+                }
+            }
+        } catch (SSLException ssle) {
+            r.error = ssle;
+        }
+
+        r.output[0] = copyScratch(out);
+        releaseScratchBuffer(out);
+        return r;
+    }
+
+    /**
+     * Back in the script thread, deliver the results of an unwrapped batch.
+     */
+    private void completeUnwrapBatch(List<TLSChunk> batch, BatchResult r)
+    {
+        for (int i = 0; i < r.completed; i++) {
+            incoming.remove();
+            Callback<Object> cb = batch.get(i).removeCallback();
+            if (cb != null) {
+                cb.call(null);
+            }
+        }
+        if (r.underflow) {
+            // Deliver the callback so that we get some more data, just like "doUnwrap"
+            Callback<Object> cb = batch.get(r.completed).removeCallback();
+            if (cb != null) {
+                cb.call(null);
+            }
+        }
+
+        int err = 0;
+        if (r.closed && !receivedShutdown) {
+            receivedShutdown = true;
+            err = ErrorCodes.EOF;
+        }
+
+        if ((r.output[0] != null) || (err != 0)) {
+            if (log.isTraceEnabled()) {
+                log.trace("Delivering {} pipelined bytes to the onunwrap callback. err = {}",
+                          r.output[0], err);
+            }
+            if (readCallback != null) {
+                readCallback.call(r.output[0], err);
+            }
+        }
+
+        offloaded = false;
+
+        if (r.error != null) {
+            handleEncodingError(incoming.peek(), r.error);
+            return;
+        }
+        if (r.handshakeStatus == SSLEngineResult.HandshakeStatus.FINISHED) {
+            processNotHandshaking();
+        }
+        encodeLoop();
+    }
+
+    /**
+     * Get a buffer for use by the current thread pool thread, so that we are not allocating a new
+     * one for every batch.
+     */
+    private static ByteBuffer getScratchBuffer(int minSize)
+    {
+        ByteBuffer buf = scratchBuffer.get();
+        if ((buf == null) || (buf.capacity() < minSize)) {
+            return ByteBuffer.allocate(minSize);
+        }
+        scratchBuffer.set(null);
+        buf.clear();
+        return buf;
+    }
+
+    private static void releaseScratchBuffer(ByteBuffer buf)
+    {
+        if (buf.capacity() <= MAX_SCRATCH_SIZE) {
+            buf.clear();
+            scratchBuffer.set(buf);
+        }
+    }
+
+    /**
+     * Copy whatever is in the scratch buffer to a new buffer of exactly the right size and clear it,
+     * or return null if it was empty.
+     */
+    private static ByteBuffer copyScratch(ByteBuffer scratch)
+    {
+        if (scratch.position() == 0) {
+            return null;
+        }
+        scratch.flip();
+        ByteBuffer bb = ByteBuffer.allocate(scratch.remaining());
+        bb.put(scratch);
+        bb.flip();
+        scratch.clear();
+        return bb;
+    }
+
     private void processHandshaking()
     {
         if (!handshaking && !sentShutdown && !receivedShutdown) {
@@ -726,4 +1154,23 @@ public class TLSConnection
         }
         return engine.getSession().getProtocol();
     }
+
+    /**
+     * The result of processing a batch of chunks in the thread pool.
+     */
+    private static final class BatchResult
+    {
+        final ByteBuffer[] output;
+        int completed;
+        boolean stopped;
+        boolean underflow;
+        boolean closed;
+        SSLEngineResult.HandshakeStatus handshakeStatus;
+        SSLException error;
+
+        BatchResult(int size)
+        {
+            output = new ByteBuffer[size];
+        }
+    }
 }
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class hands out small buffers as slices of a larger "slab," the same way that Node.js creates small
+ * Buffers from its 8K pool. Allocations smaller than half of the slab size share the current slab until it
+ * fills up, and then a new slab is created. Larger ones, and all allocations when the slab size is zero,
+ * get an array of their own. This saves an array header and the bookkeeping of a separate allocation for
+ * each of the many tiny buffers that a script creates.
+ * <p>
+ * A slab stays in memory as long as any buffer that uses it is reachable, and a script that can see one of
+ * the buffers may be able to see the rest of the slab. So code that handles keys and other secrets should
+ * not use the pool. There is one pool per script, and like the rest of the runtime it is not thread-safe
+ * and must only be used from the script thread.
+ * </p>
+ */
+
+public class BufferPool
+{
+    public static final int DEFAULT_SLAB_SIZE = 8192;
+
+    /** Node aligns pooled Buffers on 8-byte boundaries so that typed arrays may use them. */
+    private static final int ALIGNMENT = 8;
+
+    private final int slabSize;
+    private final int maxPooled;
+    private byte[] slab;
+    private int position;
+
+    public BufferPool()
+    {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Create a pool with slabs of the specified size. A size of zero turns pooling off.
+     */
+    public BufferPool(int slabSize)
+    {
+        this.slabSize = slabSize;
+        this.maxPooled = slabSize >>> 1;
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * Return true if an allocation of this size would come from a slab.
+     */
+    public boolean isPooled(int len)
+    {
+        return ((len > 0) && (len < maxPooled));
+    }
+
+    /**
+     * Return a heap buffer with "len" bytes remaining. It is backed by an array that may be shared with
+     * other buffers, so its position is not necessarily zero, and callers must use "arrayOffset" and
+     * "position" if they use the array. Its contents are zero unless the caller changes them.
+     */
+    public ByteBuffer allocate(int len)
+    {
+        if (!isPooled(len)) {
+            return ByteBuffer.allocate(len);
+        }
+        int offset = reserve(len);
+        return ByteBuffer.wrap(slab, offset, len);
+    }
+
+    /**
+     * Reserve "len" bytes, which must be small enough that "isPooled" is true, and return the offset of the
+     * first one in the array that "getSlab" returns right afterwards. This is for callers that only
+     * need an array and offset, so that they don't have to create a ByteBuffer.
+     */
+    public int reserve(int len)
+    {
+        assert(isPooled(len));
+        if ((slab == null) || ((slabSize - position) < len)) {
+            slab = newSlab(slabSize);
+            position = 0;
+        }
+        int offset = position;
+        position = (position + len + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+        return offset;
+    }
+
+    /**
+     * Return the slab that the last call to "reserve" used.
+     */
+    public byte[] getSlab() {
+        return slab;
+    }
+
+    /**
+     * Return a buffer that contains a copy of the remaining bytes in "src," and move the position of "src"
+     * to its limit.
+     */
+    public ByteBuffer copy(ByteBuffer src)
+    {
+        ByteBuffer ret = allocate(src.remaining());
+        int start = ret.position();
+        ret.put(src);
+        ret.position(start);
+        return ret;
+    }
+
+    /**
+     * Create a new slab. Subclasses may override this to keep track of the memory, or throw an exception
+     * to refuse it, in which case "allocate" or "reserve" throws the same exception.
+     */
+    protected byte[] newSlab(int size)
+    {
+        return new byte[size];
+    }
+}
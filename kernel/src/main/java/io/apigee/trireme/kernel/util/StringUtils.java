@@ -22,12 +22,13 @@
 package io.apigee.trireme.kernel.util;
 
 import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.charsets.Base64Codec;
+import io.apigee.trireme.kernel.charsets.HexCodec;
 
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
 import java.util.regex.Matcher;
@@ -45,6 +46,15 @@ public class StringUtils
      */
     public static String bufferToString(ByteBuffer buf, Charset cs)
     {
+        if (buf.hasArray() && (Charsets.BASE64.equals(cs) || Charsets.NODE_HEX.equals(cs))) {
+            // These have table-driven codecs that skip the decoder entirely
+            int off = buf.arrayOffset() + buf.position();
+            String s = Charsets.BASE64.equals(cs) ?
+                Base64Codec.encode(buf.array(), off, buf.remaining()) :
+                HexCodec.encode(buf.array(), off, buf.remaining());
+            buf.position(buf.limit());
+            return s;
+        }
         if (buf.hasArray()) {
             // For common character sets like ASCII and UTF-8, this is actually much more efficient
             String s = new String(buf.array(),
@@ -116,35 +126,17 @@ public class StringUtils
     /**
      * Using a CharsetEncoder, translate a string to a ByteBuffer, allocating a new buffer
      * as necessary.
+     *
+     * @throws IllegalArgumentException if the encoding is hex and the string is not valid hex
      */
     public static ByteBuffer stringToBuffer(String str, Charset cs)
     {
         if (Charsets.BASE64.equals(cs)) {
-            // Special handling for Base64 -- ignore unmappable characters
-            CharsetEncoder enc = Charsets.get().getEncoder(cs);
-            enc.onMalformedInput(CodingErrorAction.REPORT);
-            enc.onUnmappableCharacter(CodingErrorAction.IGNORE);
-
-            CharBuffer chars = CharBuffer.wrap(str);
-            int bufLen = (int)(chars.remaining() * enc.averageBytesPerChar());
-            ByteBuffer writeBuf =  ByteBuffer.allocate(bufLen);
-
-            CoderResult result;
-            do {
-                result = enc.encode(chars, writeBuf, true);
-                if (result.isOverflow()) {
-                    writeBuf = BufferUtils.doubleBuffer(writeBuf);
-                }
-            } while (result.isOverflow());
-            do {
-                result = enc.flush(writeBuf);
-                if (result.isOverflow()) {
-                    writeBuf = BufferUtils.doubleBuffer(writeBuf);
-                }
-            } while (result.isOverflow());
-
-            writeBuf.flip();
-            return writeBuf;
+            // Base64 skips unmappable characters as Node does, while hex rejects them
+            return ByteBuffer.wrap(Base64Codec.decode(str));
+        }
+        if (Charsets.NODE_HEX.equals(cs)) {
+            return ByteBuffer.wrap(HexCodec.decode(str));
         }
 
         // Use default decoding options, and this is optimized for common charsets as well
@@ -144,7 +144,6 @@ public class Compressor
             len = out.remaining();
         } else {
             buf = new byte[out.remaining()];
-            out.duplicate().get(buf);
             off = 0;
             len = out.remaining();
         }
@@ -168,7 +167,12 @@ public class Compressor
         }
 
         in.position(in.position() + numRead);
-        out.position(out.position() + numWritten);
+        if (out.hasArray()) {
+            out.position(out.position() + numWritten);
+        } else {
+            // We deflated in to a temporary array, so copy it to the real output
+            out.put(buf, off, numWritten);
+        }
 
         if ((mode == GZIP) && deflater.finished()) {
             trailer =
@@ -113,7 +113,6 @@ public class Decompressor
             len = out.remaining();
         } else {
             buf = new byte[out.remaining()];
-            out.duplicate().get(buf);
             off = 0;
             len = out.remaining();
         }
@@ -133,7 +132,12 @@ public class Decompressor
         if (in != null) {
             in.position(in.position() + (int)numRead);
         }
-        out.position(out.position() + numWritten);
+        if (out.hasArray()) {
+            out.position(out.position() + numWritten);
+        } else {
+            // We inflated in to a temporary array, so copy it to the real output
+            out.put(buf, off, numWritten);
+        }
 
         if ((numWritten == 0) && inflater.needsDictionary()) {
             if (dictionary == null) {
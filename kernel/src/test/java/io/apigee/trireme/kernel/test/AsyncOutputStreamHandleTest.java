@@ -0,0 +1,265 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.handles.AsyncOutputStreamHandle;
+import io.apigee.trireme.kernel.handles.IOCompletionHandler;
+import io.apigee.trireme.kernel.streams.MemoryPipe;
+import io.apigee.trireme.kernel.streams.StreamDrainer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Write through an AsyncOutputStreamHandle to streams that are slow or stuck, using each overflow policy.
+ */
+
+public class AsyncOutputStreamHandleTest
+{
+    private static final long TIMEOUT = 10000L;
+
+    private static StubNodeRuntime runtime;
+    private static StreamDrainer drainer;
+
+    @Test
+    public void testCoalesce()
+    {
+        final int WRITES = 1000;
+        CountingOutputStream out = new CountingOutputStream();
+        AsyncOutputStreamHandle handle =
+            new AsyncOutputStreamHandle(out, 1024, AsyncOutputStreamHandle.OverflowPolicy.BLOCK, drainer, runtime);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < WRITES; i++) {
+            byte[] b = ("Line " + i + '\n').getBytes();
+            expected.write(b, 0, b.length);
+            assertEquals(b.length, handle.write(ByteBuffer.wrap(b), new NullHandler()));
+        }
+        handle.close();
+
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+        assertTrue(out.getWrites() < WRITES);
+    }
+
+    @Test
+    public void testDrop()
+    {
+        BlockingOutputStream out = new BlockingOutputStream();
+        AsyncOutputStreamHandle handle =
+            new AsyncOutputStreamHandle(out, 16, AsyncOutputStreamHandle.OverflowPolicy.DROP, drainer, runtime);
+
+        byte[] data = makeData(100);
+        AtomicInteger result = new AtomicInteger(-1);
+        assertEquals(100, handle.write(ByteBuffer.wrap(data), new ResultHandler(result)));
+        // Completes right away even though the stream is stuck
+        assertEquals(0, result.get());
+        assertEquals(84, handle.getDroppedBytes());
+        assertEquals(0, handle.getWritesOutstanding());
+
+        out.release();
+        handle.close();
+        assertArrayEquals(Arrays.copyOf(data, 16), out.toByteArray());
+    }
+
+    @Test
+    public void testQueue()
+        throws InterruptedException
+    {
+        BlockingOutputStream out = new BlockingOutputStream();
+        final AsyncOutputStreamHandle handle =
+            new AsyncOutputStreamHandle(out, 16, AsyncOutputStreamHandle.OverflowPolicy.QUEUE, drainer, runtime);
+
+        final byte[] data = makeData(100);
+        final AtomicInteger result = new AtomicInteger(-1);
+        final AtomicInteger outstanding = new AtomicInteger(-1);
+        runtime.executeScriptTask(new Runnable() {
+            @Override
+            public void run()
+            {
+                handle.write(ByteBuffer.wrap(data), new ResultHandler(result));
+                outstanding.set(handle.getWritesOutstanding());
+            }
+        }, null);
+
+        // The write waits for the stream, so the stream sees backpressure
+        Thread.sleep(100L);
+        assertEquals(100, outstanding.get());
+        assertEquals(-1, result.get());
+
+        out.release();
+        long start = System.currentTimeMillis();
+        while ((result.get() < 0) && ((System.currentTimeMillis() - start) < TIMEOUT)) {
+            Thread.sleep(10L);
+        }
+        assertEquals(0, result.get());
+        assertEquals(0, handle.getWritesOutstanding());
+
+        handle.close();
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void testDrainerTakesTurns()
+        throws InterruptedException
+    {
+        // Hold up the drainer thread so that it sees both pipes at once
+        BlockingOutputStream gateOut = new BlockingOutputStream();
+        MemoryPipe gate = new MemoryPipe(16);
+        gate.write(ByteBuffer.wrap(makeData(1)));
+        gate.closeWrite();
+        StreamDrainer.Target gateTarget = drainer.drain(gate, gateOut);
+        Thread.sleep(100L);
+
+        // Fill one pipe with several writes' worth, and the other with just one
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        MemoryPipe busy = new MemoryPipe(StreamDrainer.MAX_WRITE_SIZE * 4);
+        busy.write(ByteBuffer.wrap(new byte[StreamDrainer.MAX_WRITE_SIZE * 4]));
+        busy.closeWrite();
+        MemoryPipe quiet = new MemoryPipe(16);
+        quiet.write(ByteBuffer.wrap(makeData(16)));
+        quiet.closeWrite();
+
+        StreamDrainer.Target busyTarget = drainer.drain(busy, new NamedOutputStream("busy", order));
+        StreamDrainer.Target quietTarget = drainer.drain(quiet, new NamedOutputStream("quiet", order));
+        gateOut.release();
+        assertTrue(gateTarget.awaitFinished(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(busyTarget.awaitFinished(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(quietTarget.awaitFinished(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // The quiet stream got its turn right after the first write from the busy one
+        assertEquals(5, order.size());
+        assertEquals(1, order.indexOf("quiet"));
+    }
+
+    private static byte[] makeData(int len)
+    {
+        byte[] data = new byte[len];
+        for (int i = 0; i < len; i++) {
+            data[i] = (byte)i;
+        }
+        return data;
+    }
+
+    private static final class NullHandler
+        implements IOCompletionHandler<Integer>
+    {
+        @Override
+        public void ioComplete(int errCode, Integer value)
+        {
+            assertEquals(0, errCode);
+        }
+    }
+
+    private static final class ResultHandler
+        implements IOCompletionHandler<Integer>
+    {
+        private final AtomicInteger result;
+
+        ResultHandler(AtomicInteger result)
+        {
+            this.result = result;
+        }
+
+        @Override
+        public void ioComplete(int errCode, Integer value)
+        {
+            result.set(errCode);
+        }
+    }
+
+    private static final class CountingOutputStream
+        extends ByteArrayOutputStream
+    {
+        private int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len)
+        {
+            writes++;
+            super.write(b, off, len);
+        }
+
+        synchronized int getWrites() {
+            return writes;
+        }
+    }
+
+    private static final class NamedOutputStream
+        extends OutputStream
+    {
+        private final String name;
+        private final List<String> order;
+
+        NamedOutputStream(String name, List<String> order)
+        {
+            this.name = name;
+            this.order = order;
+        }
+
+        @Override
+        public void write(int b)
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            order.add(name);
+        }
+    }
+
+    private static final class BlockingOutputStream
+        extends ByteArrayOutputStream
+    {
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        void release()
+        {
+            latch.countDown();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            try {
+                latch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignore) {
+            }
+            synchronized (this) {
+                super.write(b, off, len);
+            }
+        }
+
+        @Override
+        public synchronized byte[] toByteArray()
+        {
+            return super.toByteArray();
+        }
+    }
+
+    @BeforeClass
+    public static void init()
+    {
+        runtime = new StubNodeRuntime();
+        drainer = new StreamDrainer();
+    }
+
+    @AfterClass
+    public static void terminate()
+    {
+        drainer.close();
+        runtime.close();
+    }
+}
@@ -0,0 +1,75 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.util.BufferPool;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest
+{
+    @Test
+    public void testSharedSlab()
+    {
+        BufferPool pool = new BufferPool();
+        ByteBuffer b1 = pool.allocate(10);
+        ByteBuffer b2 = pool.allocate(100);
+        assertSame(b1.array(), b2.array());
+        assertEquals(BufferPool.DEFAULT_SLAB_SIZE, b1.array().length);
+        assertEquals(10, b1.remaining());
+        assertEquals(100, b2.remaining());
+
+        // The second one starts on the next 8-byte boundary after the first
+        assertEquals(0, b1.arrayOffset() + b1.position());
+        assertEquals(16, b2.arrayOffset() + b2.position());
+    }
+
+    @Test
+    public void testNewSlab()
+    {
+        BufferPool pool = new BufferPool();
+        ByteBuffer first = pool.allocate(4000);
+        ByteBuffer second = pool.allocate(4000);
+        assertSame(first.array(), second.array());
+        ByteBuffer third = pool.allocate(4000);
+        assertNotSame(first.array(), third.array());
+        assertEquals(0, third.arrayOffset() + third.position());
+    }
+
+    @Test
+    public void testLargeNotPooled()
+    {
+        BufferPool pool = new BufferPool();
+        assertTrue(pool.isPooled(4095));
+        assertFalse(pool.isPooled(4096));
+        assertFalse(pool.isPooled(0));
+        ByteBuffer big = pool.allocate(4096);
+        assertEquals(4096, big.array().length);
+    }
+
+    @Test
+    public void testPoolOff()
+    {
+        BufferPool pool = new BufferPool(0);
+        assertFalse(pool.isPooled(1));
+        ByteBuffer b = pool.allocate(1);
+        assertEquals(1, b.array().length);
+    }
+
+    @Test
+    public void testCopy()
+    {
+        BufferPool pool = new BufferPool();
+        pool.allocate(3);
+        ByteBuffer src = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 });
+        src.position(1);
+        ByteBuffer copy = pool.copy(src);
+        assertFalse(src.hasRemaining());
+        assertEquals(4, copy.remaining());
+        assertEquals(2, copy.get());
+        assertEquals(3, copy.get());
+        assertEquals(4, copy.get());
+        assertEquals(5, copy.get());
+    }
+}
@@ -0,0 +1,217 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.charsets.Base64Codec;
+import io.apigee.trireme.kernel.charsets.HexCodec;
+import io.apigee.trireme.kernel.charsets.Utf8Codec;
+import io.apigee.trireme.kernel.util.StringUtils;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compare the table-driven Base64 and hex codecs to the Charset-based path that Buffer used to take
+ * through StringUtils, using payloads about the size of a JWT and of a larger binary blob in JSON,
+ * and the single-pass UTF-8 encoder to the CharsetEncoder that Buffer used for byteLength and write.
+ * This only runs when "runBenchmarks" is set:
+ *
+ * mvn test -Dtest=CodecBenchmarkTest -DrunBenchmarks=true
+ */
+
+public class CodecBenchmarkTest
+{
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 100000;
+    private static final int[] SIZES = { 300, 16384 };
+
+    @Test
+    public void benchmarkBase64()
+        throws Exception
+    {
+        Assume.assumeTrue(Boolean.getBoolean("runBenchmarks"));
+
+        for (int size : SIZES) {
+            byte[] data = CodecTest.makeData(size);
+            String encoded = Base64Codec.encode(data, 0, size);
+            int iterations = ITERATIONS * SIZES[0] / size;
+
+            runBase64Codec(data, encoded, WARMUP_ITERATIONS);
+            runBase64Charset(data, encoded, WARMUP_ITERATIONS);
+
+            long start = System.nanoTime();
+            int codecCount = runBase64Codec(data, encoded, iterations);
+            long codecTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int charsetCount = runBase64Charset(data, encoded, iterations);
+            long charsetTime = System.nanoTime() - start;
+
+            assertEquals(charsetCount, codecCount);
+            System.out.println("Base64Codec, " + size + " bytes: " + (codecTime / iterations) + " ns per round trip");
+            System.out.println("Base64Charset, " + size + " bytes: " + (charsetTime / iterations) + " ns per round trip");
+        }
+    }
+
+    @Test
+    public void benchmarkHex()
+    {
+        Assume.assumeTrue(Boolean.getBoolean("runBenchmarks"));
+
+        for (int size : SIZES) {
+            byte[] data = CodecTest.makeData(size);
+            String encoded = HexCodec.encode(data, 0, size);
+            int iterations = ITERATIONS * SIZES[0] / size;
+
+            runHexCodec(data, encoded, WARMUP_ITERATIONS);
+            runHexCharset(data, encoded, WARMUP_ITERATIONS);
+
+            long start = System.nanoTime();
+            int codecCount = runHexCodec(data, encoded, iterations);
+            long codecTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int charsetCount = runHexCharset(data, encoded, iterations);
+            long charsetTime = System.nanoTime() - start;
+
+            assertEquals(charsetCount, codecCount);
+            System.out.println("HexCodec, " + size + " bytes: " + (codecTime / iterations) + " ns per round trip");
+            System.out.println("HexCharset, " + size + " bytes: " + (charsetTime / iterations) + " ns per round trip");
+        }
+    }
+
+    @Test
+    public void benchmarkUtf8()
+    {
+        Assume.assumeTrue(Boolean.getBoolean("runBenchmarks"));
+
+        String[] strs = {
+            makeString("{\"id\":12345,\"name\":\"widget\",\"tags\":[\"a\",\"b\"]}", SIZES[1]),
+            makeString("{\"name\":\"caf\u00e9 \u65e5\u672c\u8a9e\"}", SIZES[1])
+        };
+        String[] names = { "ASCII", "non-ASCII" };
+
+        for (int s = 0; s < strs.length; s++) {
+            String str = strs[s];
+            byte[] out = new byte[Utf8Codec.encodedLength(str)];
+
+            runUtf8Codec(str, out, WARMUP_ITERATIONS);
+            runUtf8Charset(str, out, WARMUP_ITERATIONS);
+
+            long start = System.nanoTime();
+            int codecCount = runUtf8Codec(str, out, ITERATIONS / 10);
+            long codecTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int charsetCount = runUtf8Charset(str, out, ITERATIONS / 10);
+            long charsetTime = System.nanoTime() - start;
+
+            assertEquals(charsetCount, codecCount);
+            System.out.println("Utf8Codec, " + names[s] + ": " + (codecTime / (ITERATIONS / 10)) +
+                               " ns per length and write");
+            System.out.println("CharsetEncoder, " + names[s] + ": " + (charsetTime / (ITERATIONS / 10)) +
+                               " ns per length and write");
+        }
+    }
+
+    private static int runBase64Codec(byte[] data, String encoded, int iterations)
+    {
+        int count = 0;
+        for (int i = 0; i < iterations; i++) {
+            count += Base64Codec.encode(data, 0, data.length).length();
+            count += Base64Codec.decode(encoded).length;
+        }
+        return count;
+    }
+
+    /**
+     * This is how Buffer used to convert to and from Base64. A read-only buffer has no accessible
+     * array, so StringUtils has to use the CharsetDecoder.
+     */
+    private static int runBase64Charset(byte[] data, String encoded, int iterations)
+        throws Exception
+    {
+        int count = 0;
+        for (int i = 0; i < iterations; i++) {
+            count += StringUtils.bufferToString(ByteBuffer.wrap(data).asReadOnlyBuffer(), Charsets.BASE64).length();
+            count += CodecTest.encodeWithCharset(encoded).length;
+        }
+        return count;
+    }
+
+    private static int runUtf8Codec(String str, byte[] out, int iterations)
+    {
+        int count = 0;
+        for (int i = 0; i < iterations; i++) {
+            count += Utf8Codec.encodedLength(str);
+            ByteBuffer bb = ByteBuffer.wrap(out);
+            Utf8Codec.encode(str, bb);
+            count += bb.position();
+        }
+        return count;
+    }
+
+    /**
+     * This is how Buffer used to count and write UTF-8 -- a CharsetEncoder into a small scratch buffer
+     * just to get the length, and then another one to write into the buffer.
+     */
+    private static int runUtf8Charset(String str, byte[] out, int iterations)
+    {
+        int count = 0;
+        for (int i = 0; i < iterations; i++) {
+            CharsetEncoder enc = Charsets.get().getEncoder(Charsets.UTF8);
+            enc.onMalformedInput(CodingErrorAction.REPLACE);
+            CharBuffer chars = CharBuffer.wrap(str);
+            ByteBuffer tmp = ByteBuffer.allocate(256);
+            CoderResult result;
+            do {
+                tmp.clear();
+                result = enc.encode(chars, tmp, true);
+                count += tmp.position();
+            } while (result.isOverflow());
+
+            enc = Charsets.get().getEncoder(Charsets.UTF8);
+            enc.onMalformedInput(CodingErrorAction.REPORT);
+            ByteBuffer bb = ByteBuffer.wrap(out);
+            enc.encode(CharBuffer.wrap(str), bb, true);
+            enc.flush(bb);
+            count += bb.position();
+        }
+        return count;
+    }
+
+    private static String makeString(String chunk, int len)
+    {
+        StringBuilder str = new StringBuilder(len + chunk.length());
+        while (str.length() < len) {
+            str.append(chunk);
+        }
+        return str.toString();
+    }
+
+    private static int runHexCodec(byte[] data, String encoded, int iterations)
+    {
+        int count = 0;
+        for (int i = 0; i < iterations; i++) {
+            count += HexCodec.encode(data, 0, data.length).length();
+            count += HexCodec.decode(encoded).length;
+        }
+        return count;
+    }
+
+    private static int runHexCharset(byte[] data, String encoded, int iterations)
+    {
+        int count = 0;
+        for (int i = 0; i < iterations; i++) {
+            count += StringUtils.bufferToString(ByteBuffer.wrap(data).asReadOnlyBuffer(), Charsets.NODE_HEX).length();
+            count += encoded.getBytes(Charsets.NODE_HEX).length;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,185 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.charsets.Base64Codec;
+import io.apigee.trireme.kernel.charsets.HexCodec;
+import io.apigee.trireme.kernel.charsets.Utf8Codec;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CodecTest
+{
+    private static final Random rand = new Random();
+
+    @Test
+    public void testBase64MatchesCharset()
+        throws Exception
+    {
+        for (int len = 0; len < 100; len++) {
+            byte[] data = makeData(len);
+            String encoded = Base64Codec.encode(data, 0, len);
+            assertEquals(new String(data, Charsets.BASE64), encoded);
+            assertEquals(Base64Codec.encodedLength(len), encoded.length());
+
+            assertEquals(len, Base64Codec.decodedLength(encoded));
+            assertArrayEquals(data, Base64Codec.decode(encoded));
+            assertArrayEquals(encodeWithCharset(encoded), Base64Codec.decode(encoded));
+        }
+    }
+
+    @Test
+    public void testBase64Range()
+    {
+        byte[] data = makeData(50);
+        assertEquals(new String(data, 7, 31, Charsets.BASE64), Base64Codec.encode(data, 7, 31));
+    }
+
+    @Test
+    public void testBase64Lenient()
+    {
+        assertEquals("Hello, World!", decodeBase64("SGVsbG8s\r\n IFdvcmxkIQ=="));
+        assertEquals("Hello, World!", decodeBase64("SGVsbG8sIFdvcmxkIQ"));
+        assertEquals("Hello, World!", decodeBase64("SG!Vs*bG8sIF$dvcmxkIQ=="));
+        // URL-safe alphabet
+        assertArrayEquals(new byte[] { (byte)0xfb, (byte)0xff }, Base64Codec.decode("-_8"));
+        assertArrayEquals(new byte[] { (byte)0xfb, (byte)0xff }, Base64Codec.decode("+/8="));
+        // Leftover bits that do not make a whole byte are dropped
+        assertEquals("a", decodeBase64("YR"));
+        assertEquals(0, Base64Codec.decode("Y").length);
+        assertEquals(0, Base64Codec.decode("").length);
+        assertEquals(0, Base64Codec.decode("====").length);
+        // Decoding stops at the first padding character
+        assertEquals("a", decodeBase64("YQ==YWJj"));
+        assertEquals(1, Base64Codec.decodedLength("YQ==YWJj"));
+    }
+
+    @Test
+    public void testBase64Truncated()
+    {
+        String encoded = "SGVsbG8sIFdvcmxkIQ==";
+        byte[] out = new byte[5];
+        assertEquals(5, Base64Codec.decode(encoded, out, 0, 5));
+        assertEquals("Hello", new String(out, Charsets.ASCII));
+        assertEquals(7, Base64Codec.charsConsumed(encoded, 5));
+        assertEquals(0, Base64Codec.charsConsumed(encoded, 0));
+    }
+
+    @Test
+    public void testHexMatchesCharset()
+    {
+        for (int len = 0; len < 100; len++) {
+            byte[] data = makeData(len);
+            String encoded = HexCodec.encode(data, 0, len);
+            assertEquals(new String(data, Charsets.NODE_HEX), encoded);
+            assertEquals(len, HexCodec.decodedLength(encoded));
+            assertArrayEquals(data, HexCodec.decode(encoded));
+            assertArrayEquals(data, HexCodec.decode(encoded.toUpperCase()));
+        }
+    }
+
+    @Test
+    public void testHexInvalid()
+    {
+        String[] invalid = { "0102zz03", "01020", "0g", "0" };
+        for (String s : invalid) {
+            try {
+                HexCodec.decode(s);
+                fail("Expected " + s + " to be invalid");
+            } catch (IllegalArgumentException iae) {
+                assertEquals(HexCodec.INVALID_MESSAGE, iae.getMessage());
+            }
+        }
+        try {
+            HexCodec.decodedLength("abc");
+            fail("Expected an odd length to be invalid");
+        } catch (IllegalArgumentException iae) {
+            // Expected
+        }
+
+        byte[] out = new byte[2];
+        assertEquals(2, HexCodec.decode("aabbcc", out, 0, 2));
+        assertArrayEquals(new byte[] { (byte)0xaa, (byte)0xbb }, out);
+    }
+
+    @Test
+    public void testUtf8MatchesJava()
+    {
+        String[] strs = {
+            "", "Hello, World!", "caf\u00e9", "\u00fcber alles", "\u20ac100", "\u65e5\u672c\u8a9e",
+            "emoji \ud83d\ude00 and \ud834\udd1e", "mixed \u007f\u0080\u07ff\u0800\uffff"
+        };
+        for (String s : strs) {
+            byte[] expected = s.getBytes(Charsets.UTF8);
+            assertEquals(s, expected.length, Utf8Codec.encodedLength(s));
+            assertArrayEquals(s, expected, Utf8Codec.encode(s));
+
+            byte[] out = new byte[expected.length + 4];
+            ByteBuffer bb = ByteBuffer.wrap(out, 2, expected.length);
+            assertEquals(s.length(), Utf8Codec.encode(s, bb));
+            assertEquals(expected.length + 2, bb.position());
+        }
+    }
+
+    @Test
+    public void testUtf8Replacement()
+    {
+        byte[] replacement = { (byte)0xef, (byte)0xbf, (byte)0xbd };
+        assertArrayEquals(replacement, Utf8Codec.encode("\ud800"));
+        assertArrayEquals(replacement, Utf8Codec.encode("\udc00"));
+        assertEquals(3, Utf8Codec.encodedLength("\ud83d"));
+        assertEquals(5, Utf8Codec.encodedLength("a\ude00a"));
+        // A high surrogate followed by something other than a low surrogate
+        assertEquals(4, Utf8Codec.encodedLength("\ud83da"));
+        assertArrayEquals(new byte[] { (byte)0xef, (byte)0xbf, (byte)0xbd, 'a' }, Utf8Codec.encode("\ud83da"));
+    }
+
+    @Test
+    public void testUtf8Partial()
+    {
+        // Never write part of a character
+        ByteBuffer bb = ByteBuffer.allocate(7);
+        assertEquals(3, Utf8Codec.encode("ab\u20ac\u20ac", bb));
+        assertEquals(5, bb.position());
+
+        bb = ByteBuffer.allocate(4);
+        assertEquals(2, Utf8Codec.encode("ab\ud83d\ude00", bb));
+        assertEquals(2, bb.position());
+
+        bb = ByteBuffer.allocate(3);
+        assertEquals(3, Utf8Codec.encode("abcdef", bb));
+        assertEquals(3, bb.position());
+
+        bb = ByteBuffer.allocate(0);
+        assertEquals(0, Utf8Codec.encode("abc", bb));
+    }
+
+    private static String decodeBase64(String s)
+    {
+        return new String(Base64Codec.decode(s), Charsets.ASCII);
+    }
+
+    static byte[] encodeWithCharset(String s)
+        throws Exception
+    {
+        CharsetEncoder enc = Charsets.BASE64.newEncoder();
+        enc.onUnmappableCharacter(CodingErrorAction.IGNORE);
+        ByteBuffer bb = enc.encode(CharBuffer.wrap(s));
+        byte[] ret = new byte[bb.remaining()];
+        bb.get(ret);
+        return ret;
+    }
+
+    static byte[] makeData(int len)
+    {
+        byte[] data = new byte[len];
+        rand.nextBytes(data);
+        return data;
+    }
+}
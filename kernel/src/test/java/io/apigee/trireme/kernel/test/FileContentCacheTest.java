@@ -0,0 +1,128 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.OSException;
+import io.apigee.trireme.kernel.fs.FileContentCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FileContentCacheTest
+{
+    private File dir;
+
+    @Before
+    public void createDir()
+    {
+        dir = new File("./target/cachetest");
+        dir.mkdirs();
+    }
+
+    @After
+    public void cleanup()
+    {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testSmallFile()
+        throws IOException, OSException
+    {
+        FileContentCache cache = new FileContentCache();
+        File f = new File(dir, "small");
+        byte[] data = writeFile(f, 1000);
+
+        assertArrayEquals(data, cache.readFile(f, "small"));
+        assertEquals(1000L, cache.getCurrentSize());
+        byte[] cached = cache.readFile(f, "small");
+        assertArrayEquals(data, cached);
+
+        // Callers must not be able to modify what's in the cache
+        cached[0]++;
+        assertArrayEquals(data, cache.readFile(f, "small"));
+
+        // A file of a different size must be read again
+        byte[] newData = writeFile(f, 2000);
+        assertArrayEquals(newData, cache.readFile(f, "small"));
+        assertEquals(2000L, cache.getCurrentSize());
+    }
+
+    @Test
+    public void testCacheLimit()
+        throws IOException, OSException
+    {
+        FileContentCache cache = new FileContentCache(3000L, 2000);
+        File one = new File(dir, "one");
+        File two = new File(dir, "two");
+        File big = new File(dir, "big");
+        writeFile(one, 1500);
+        writeFile(two, 1500);
+        byte[] bigData = writeFile(big, 2001);
+
+        cache.readFile(one, "one");
+        cache.readFile(two, "two");
+        assertEquals(3000L, cache.getCurrentSize());
+        cache.readFile(one, "one");
+        cache.readFile(two, "two");
+        assertEquals(3000L, cache.getCurrentSize());
+
+        // Too big to cache at all
+        assertArrayEquals(bigData, cache.readFile(big, "big"));
+        assertEquals(3000L, cache.getCurrentSize());
+    }
+
+    @Test
+    public void testLargeFile()
+        throws IOException, OSException
+    {
+        File f = new File(dir, "large");
+        byte[] data = writeFile(f, 3 * 1024 * 1024 + 11);
+        assertArrayEquals(data, FileContentCache.readWholeFile(f, "large"));
+    }
+
+    @Test
+    public void testErrors()
+        throws IOException
+    {
+        FileContentCache cache = new FileContentCache();
+        try {
+            cache.readFile(new File(dir, "notfound"), "notfound");
+            fail("Expected ENOENT");
+        } catch (OSException ose) {
+            assertEquals(ErrorCodes.ENOENT, ose.getCode());
+        }
+        try {
+            cache.readFile(dir, "dir");
+            fail("Expected EISDIR");
+        } catch (OSException ose) {
+            assertEquals(ErrorCodes.EISDIR, ose.getCode());
+        }
+    }
+
+    private static byte[] writeFile(File f, int len)
+        throws IOException
+    {
+        byte[] data = new byte[len];
+        new Random().nextBytes(data);
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return data;
+    }
+}
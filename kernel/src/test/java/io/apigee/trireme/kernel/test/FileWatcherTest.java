@@ -0,0 +1,132 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.OSException;
+import io.apigee.trireme.kernel.fs.FileWatcher;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FileWatcherTest
+{
+    private static final long TIMEOUT = 30L;
+
+    private static FileWatcher watcher;
+    private static File dir;
+
+    @BeforeClass
+    public static void init()
+    {
+        watcher = new FileWatcher();
+        dir = new File("./target/watchtest");
+        dir.mkdirs();
+    }
+
+    @AfterClass
+    public static void terminate()
+    {
+        watcher.close();
+    }
+
+    @Test
+    public void testWatchFile()
+        throws IOException, OSException, InterruptedException
+    {
+        File f = new File(dir, "watchfile.txt");
+        File other = new File(dir, "otherfile.txt");
+        writeFile(f, "Hello");
+
+        Events events = new Events();
+        FileWatcher.Registration reg = watcher.watch(f, events);
+        try {
+            // Changes to other files in the same directory should not be seen
+            writeFile(other, "Nope");
+            writeFile(f, "World");
+            assertEquals("change:watchfile.txt", events.next());
+
+            assertTrue(f.delete());
+            assertEquals("rename:watchfile.txt", events.nextOfType("rename"));
+        } finally {
+            reg.close();
+        }
+    }
+
+    @Test
+    public void testWatchDirectory()
+        throws IOException, OSException, InterruptedException
+    {
+        File subdir = new File(dir, "subdir");
+        subdir.mkdirs();
+        File f = new File(subdir, "newfile.txt");
+        f.delete();
+
+        Events events = new Events();
+        FileWatcher.Registration reg = watcher.watch(subdir, events);
+        try {
+            writeFile(f, "Hello");
+            assertEquals("rename:newfile.txt", events.next());
+        } finally {
+            reg.close();
+        }
+    }
+
+    @Test
+    public void testMissingDirectory()
+    {
+        try {
+            watcher.watch(new File(dir, "notfound/notfound.txt"), new Events());
+            fail("Expected an error");
+        } catch (OSException ose) {
+            assertEquals(ErrorCodes.ENOENT, ose.getCode());
+        }
+    }
+
+    private static void writeFile(File f, String data)
+        throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data.getBytes("UTF8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static final class Events
+        implements FileWatcher.Listener
+    {
+        private final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+
+        @Override
+        public void fileChanged(String event, String fileName)
+        {
+            queue.add(event + ':' + fileName);
+        }
+
+        String next()
+            throws InterruptedException
+        {
+            String e = queue.poll(TIMEOUT, TimeUnit.SECONDS);
+            assertNotNull("Timed out waiting for an event", e);
+            return e;
+        }
+
+        String nextOfType(String type)
+            throws InterruptedException
+        {
+            String e;
+            do {
+                e = next();
+            } while (!e.startsWith(type));
+            return e;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.handles.IOCompletionHandler;
+import io.apigee.trireme.kernel.handles.MemoryPipeReadHandle;
+import io.apigee.trireme.kernel.handles.MemoryPipeWriteHandle;
+import io.apigee.trireme.kernel.streams.MemoryPipe;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Push data through a MemoryPipe between two runtimes, each with its own event loop.
+ */
+
+public class MemoryPipeTest
+{
+    private static final int PIPE_SIZE = 16 * 1024;
+    private static final int DATA_SIZE = 4 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 65536;
+    private static final long TIMEOUT = 30000L;
+
+    private static StubNodeRuntime writeRuntime;
+    private static StubNodeRuntime readRuntime;
+
+    @Test
+    public void testSmall()
+    {
+        MemoryPipe pipe = new MemoryPipe(8);
+        assertEquals(8, pipe.totalCapacity());
+        assertEquals(8, pipe.freeCapacity());
+
+        assertEquals(5, pipe.write(ByteBuffer.wrap("Hello".getBytes())));
+        assertEquals(5, pipe.available());
+        ByteBuffer out = pipe.read(3);
+        assertEquals("Hel", new String(out.array()));
+
+        // Wrap around the end of the array
+        ByteBuffer in = ByteBuffer.wrap(", World!".getBytes());
+        assertEquals(6, pipe.write(in));
+        assertEquals(2, in.remaining());
+        assertEquals(0, pipe.write(in));
+        assertEquals("lo, Worl", new String(pipe.read(100).array()));
+        assertEquals(2, pipe.write(in));
+        assertEquals("d!", new String(pipe.read(100).array()));
+
+        assertNull(pipe.read(100));
+        pipe.closeWrite();
+        assertEquals(0, pipe.read(100).remaining());
+
+        pipe.closeRead();
+        assertEquals(-1, pipe.write(ByteBuffer.wrap("Hello".getBytes())));
+    }
+
+    @Test
+    public void testHandles()
+        throws InterruptedException
+    {
+        final byte[] data = makeData();
+        MemoryPipe pipe = new MemoryPipe(PIPE_SIZE);
+        final MemoryPipeWriteHandle writer = new MemoryPipeWriteHandle(pipe, writeRuntime);
+        final MemoryPipeReadHandle reader = new MemoryPipeReadHandle(pipe, readRuntime);
+
+        final OutputAccumulator output = new OutputAccumulator();
+        readRuntime.executeScriptTask(new Runnable() {
+            @Override
+            public void run()
+            {
+                reader.startReading(output);
+            }
+        }, null);
+
+        final AtomicInteger writesDone = new AtomicInteger();
+        writeRuntime.executeScriptTask(new Runnable() {
+            @Override
+            public void run()
+            {
+                for (int p = 0; p < DATA_SIZE; p += CHUNK_SIZE) {
+                    writer.write(ByteBuffer.wrap(data, p, CHUNK_SIZE), new IOCompletionHandler<Integer>() {
+                        @Override
+                        public void ioComplete(int errCode, Integer value)
+                        {
+                            assertEquals(0, errCode);
+                            assertEquals(CHUNK_SIZE, value.intValue());
+                            writesDone.incrementAndGet();
+                        }
+                    });
+                }
+                // Nothing can have been read yet, since we are still on the same thread
+                assertTrue(writer.getWritesOutstanding() > 0);
+                writer.close();
+            }
+        }, null);
+
+        waitForEof(output);
+        assertEquals(ErrorCodes.EOF, output.getErrorCode());
+        assertArrayEquals(data, output.getResults());
+        assertEquals(DATA_SIZE / CHUNK_SIZE, writesDone.get());
+        assertEquals(0, writer.getWritesOutstanding());
+    }
+
+    @Test
+    public void testOutputStream()
+        throws IOException, InterruptedException
+    {
+        final byte[] data = makeData();
+        MemoryPipe pipe = new MemoryPipe(PIPE_SIZE);
+        final MemoryPipeReadHandle reader = new MemoryPipeReadHandle(pipe, readRuntime);
+
+        final OutputAccumulator output = new OutputAccumulator();
+        readRuntime.executeScriptTask(new Runnable() {
+            @Override
+            public void run()
+            {
+                reader.startReading(output);
+            }
+        }, null);
+
+        // Writes block until the reader catches up
+        OutputStream out = pipe.getOutputStream();
+        for (int p = 0; p < DATA_SIZE; p += CHUNK_SIZE) {
+            out.write(data, p, CHUNK_SIZE);
+        }
+        out.close();
+
+        waitForEof(output);
+        assertEquals(ErrorCodes.EOF, output.getErrorCode());
+        assertArrayEquals(data, output.getResults());
+    }
+
+    @Test
+    public void testInputStream()
+        throws IOException
+    {
+        final byte[] data = makeData();
+        MemoryPipe pipe = new MemoryPipe(PIPE_SIZE);
+        final MemoryPipeWriteHandle writer = new MemoryPipeWriteHandle(pipe, writeRuntime);
+
+        writeRuntime.executeScriptTask(new Runnable() {
+            @Override
+            public void run()
+            {
+                writer.write(ByteBuffer.wrap(data), new IOCompletionHandler<Integer>() {
+                    @Override
+                    public void ioComplete(int errCode, Integer value)
+                    {
+                        writer.close();
+                    }
+                });
+            }
+        }, null);
+
+        // Reads block until the writer writes more
+        InputStream in = pipe.getInputStream();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[7919];
+        int r;
+        do {
+            r = in.read(buf);
+            if (r > 0) {
+                bos.write(buf, 0, r);
+            }
+        } while (r >= 0);
+
+        assertArrayEquals(data, bos.toByteArray());
+    }
+
+    @Test
+    public void testReaderClosed()
+        throws InterruptedException
+    {
+        MemoryPipe pipe = new MemoryPipe(PIPE_SIZE);
+        final MemoryPipeWriteHandle writer = new MemoryPipeWriteHandle(pipe, writeRuntime);
+        final AtomicInteger result = new AtomicInteger(1);
+
+        writeRuntime.executeScriptTask(new Runnable() {
+            @Override
+            public void run()
+            {
+                // Bigger than the pipe, so it has to wait for a reader that never comes
+                writer.write(ByteBuffer.allocate(PIPE_SIZE * 2), new IOCompletionHandler<Integer>() {
+                    @Override
+                    public void ioComplete(int errCode, Integer value)
+                    {
+                        result.set(errCode);
+                    }
+                });
+            }
+        }, null);
+
+        Thread.sleep(100L);
+        assertEquals(1, result.get());
+        pipe.closeRead();
+
+        long start = System.currentTimeMillis();
+        while ((result.get() == 1) && ((System.currentTimeMillis() - start) < TIMEOUT)) {
+            Thread.sleep(10L);
+        }
+        assertEquals(ErrorCodes.EPIPE, result.get());
+        assertEquals(0, writer.getWritesOutstanding());
+    }
+
+    private static byte[] makeData()
+    {
+        byte[] data = new byte[DATA_SIZE];
+        new Random().nextBytes(data);
+        return data;
+    }
+
+    private static void waitForEof(OutputAccumulator output)
+        throws InterruptedException
+    {
+        long start = System.currentTimeMillis();
+        while ((output.getErrorCode() == 0) &&
+               ((System.currentTimeMillis() - start) < TIMEOUT)) {
+            Thread.sleep(10L);
+        }
+    }
+
+    @BeforeClass
+    public static void init()
+    {
+        writeRuntime = new StubNodeRuntime();
+        readRuntime = new StubNodeRuntime();
+    }
+
+    @AfterClass
+    public static void terminate()
+    {
+        writeRuntime.close();
+        readRuntime.close();
+    }
+}
@@ -0,0 +1,147 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.Callback;
+import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.streams.ProcessPump;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Run "java -version" a few times, since that's a command that we know exists, and read its output
+ * using the pump.
+ */
+
+public class ProcessPumpTest
+{
+    private static final int NUM_PROCESSES = 20;
+    private static final long TIMEOUT = 60L;
+
+    private static ProcessPump pump;
+
+    @Test
+    public void testOutputAndExit()
+        throws IOException, InterruptedException
+    {
+        Process proc = startJava();
+        final OutputAccumulator stderr = new OutputAccumulator();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger exitCode = new AtomicInteger(-1);
+
+        ProcessPump.Source src = pump.pipe(proc, proc.getErrorStream(), stderr);
+        pump.pipe(proc, proc.getInputStream(), new ByteArrayOutputStream());
+        pump.watchExit(proc, new Callback<Integer>() {
+            @Override
+            public void call(Integer val)
+            {
+                exitCode.set(val);
+                latch.countDown();
+            }
+        });
+        src.resume();
+
+        assertTrue(latch.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(0, exitCode.get());
+
+        long start = System.currentTimeMillis();
+        while ((stderr.getErrorCode() == 0) &&
+               ((System.currentTimeMillis() - start) < (TIMEOUT * 1000L))) {
+            Thread.sleep(10L);
+        }
+        assertEquals(ErrorCodes.EOF, stderr.getErrorCode());
+        String output = new String(stderr.getResults(), Charsets.UTF8);
+        assertTrue(output, output.contains("version"));
+    }
+
+    @Test
+    public void testManyProcesses()
+        throws IOException, InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch(NUM_PROCESSES);
+        final ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[NUM_PROCESSES];
+
+        for (int i = 0; i < NUM_PROCESSES; i++) {
+            Process proc = startJava();
+            outputs[i] = new ByteArrayOutputStream();
+            pump.pipe(proc, proc.getErrorStream(), outputs[i]);
+            pump.pipe(proc, proc.getInputStream(), new ByteArrayOutputStream());
+            pump.watchExit(proc, new Callback<Integer>() {
+                @Override
+                public void call(Integer val)
+                {
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMoreStreamsThanReaders()
+        throws IOException, InterruptedException
+    {
+        ProcessPump small = new ProcessPump(1);
+        try {
+            final CountDownLatch latch = new CountDownLatch(NUM_PROCESSES);
+            OutputAccumulator[] outputs = new OutputAccumulator[NUM_PROCESSES];
+
+            for (int i = 0; i < NUM_PROCESSES; i++) {
+                Process proc = startJava();
+                outputs[i] = new OutputAccumulator();
+                small.pipe(proc, proc.getErrorStream(), outputs[i]).resume();
+                small.pipe(proc, proc.getInputStream(), new ByteArrayOutputStream());
+                small.watchExit(proc, new Callback<Integer>() {
+                    @Override
+                    public void call(Integer val)
+                    {
+                        latch.countDown();
+                    }
+                });
+            }
+            assertTrue(latch.await(TIMEOUT, TimeUnit.SECONDS));
+
+            for (OutputAccumulator out : outputs) {
+                long start = System.currentTimeMillis();
+                while ((out.getErrorCode() == 0) &&
+                       ((System.currentTimeMillis() - start) < (TIMEOUT * 1000L))) {
+                    Thread.sleep(10L);
+                }
+                assertEquals(ErrorCodes.EOF, out.getErrorCode());
+                String output = new String(out.getResults(), Charsets.UTF8);
+                assertTrue(output, output.contains("version"));
+            }
+        } finally {
+            small.close();
+        }
+    }
+
+    private static Process startJava()
+        throws IOException
+    {
+        File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+        return new ProcessBuilder(java.getPath(), "-version").start();
+    }
+
+    @BeforeClass
+    public static void init()
+    {
+        pump = new ProcessPump();
+    }
+
+    @AfterClass
+    public static void terminate()
+    {
+        pump.close();
+    }
+}
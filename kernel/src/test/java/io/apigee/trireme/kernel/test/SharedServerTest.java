@@ -0,0 +1,314 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.handles.AbstractHandle;
+import io.apigee.trireme.kernel.handles.ChildServerHandle;
+import io.apigee.trireme.kernel.handles.IOCompletionHandler;
+import io.apigee.trireme.kernel.handles.NIOSocketHandle;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Share one listening socket between a few "worker" runtimes, each with its own event loop, the way that
+ * the "cluster" module does, and make sure that connections are spread across them.
+ */
+
+public class SharedServerTest
+{
+    private static final int NUM_WORKERS = 3;
+    private static final int NUM_CONNECTIONS = 30;
+    private static final long TIMEOUT = 10000L;
+
+    private static StubNodeRuntime masterRuntime;
+    private static StubNodeRuntime[] workerRuntimes;
+
+    @Test
+    public void testRoundRobin()
+        throws Exception
+    {
+        NIOSocketHandle server = createServer();
+        Worker[] workers = new Worker[NUM_WORKERS];
+        for (int i = 0; i < NUM_WORKERS; i++) {
+            workers[i] = new Worker(server, workerRuntimes[i]);
+            workers[i].listen();
+        }
+
+        List<Socket> clients = connect(server, NUM_CONNECTIONS);
+        waitForConnections(workers, NUM_CONNECTIONS);
+
+        for (Worker w : workers) {
+            assertEquals(NUM_CONNECTIONS / NUM_WORKERS, w.getAccepted());
+            assertEquals(NUM_CONNECTIONS / NUM_WORKERS, w.handle.getConnectionCount());
+            // Each connection must be processed by the worker's own thread and not the master's
+            assertFalse(w.wrongThread);
+        }
+
+        closeClients(clients);
+        closeAll(server, workers);
+    }
+
+    @Test
+    public void testLeastConnections()
+        throws Exception
+    {
+        NIOSocketHandle server = createServer();
+        server.setDistribution(NIOSocketHandle.Distribution.LEAST_CONNECTIONS);
+        Worker[] workers = new Worker[2];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(server, workerRuntimes[i]);
+            workers[i].listen();
+        }
+
+        List<Socket> clients = connect(server, 4);
+        waitForConnections(workers, 4);
+        assertEquals(2, workers[0].handle.getConnectionCount());
+        assertEquals(2, workers[1].handle.getConnectionCount());
+
+        // Once the first worker is idle, it should get all the new connections
+        workers[0].closeConnections();
+        assertEquals(0, workers[0].handle.getConnectionCount());
+
+        clients.addAll(connect(server, 2));
+        waitForConnections(workers, 6);
+        assertEquals(4, workers[0].getAccepted());
+        assertEquals(2, workers[1].getAccepted());
+        assertEquals(2, workers[0].handle.getConnectionCount());
+        assertEquals(2, workers[1].handle.getConnectionCount());
+
+        closeClients(clients);
+        closeAll(server, workers);
+    }
+
+    @Test
+    public void testWorkerClosed()
+        throws Exception
+    {
+        NIOSocketHandle server = createServer();
+        Worker[] workers = new Worker[2];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(server, workerRuntimes[i]);
+            workers[i].listen();
+        }
+
+        // Everything goes to the worker that is still listening
+        workers[1].close();
+        List<Socket> clients = connect(server, 4);
+        waitForConnections(workers, 4);
+        assertEquals(4, workers[0].getAccepted());
+        assertEquals(0, workers[1].getAccepted());
+
+        // With nobody listening, new connections are closed right away
+        workers[0].close();
+        Socket s = new Socket();
+        s.connect(server.getSockName());
+        s.setSoTimeout((int)TIMEOUT);
+        assertEquals(-1, s.getInputStream().read());
+        s.close();
+
+        closeClients(clients);
+        closeAll(server, workers);
+    }
+
+    private static NIOSocketHandle createServer()
+        throws Exception
+    {
+        NIOSocketHandle server = new NIOSocketHandle(masterRuntime);
+        server.bind("127.0.0.1", 0);
+        assertTrue(server.isServerChannel());
+        return server;
+    }
+
+    private static List<Socket> connect(NIOSocketHandle server, int count)
+        throws IOException
+    {
+        InetSocketAddress addr = server.getSockName();
+        assertNotEquals(0, addr.getPort());
+        ArrayList<Socket> clients = new ArrayList<Socket>();
+        for (int i = 0; i < count; i++) {
+            clients.add(new Socket(addr.getAddress(), addr.getPort()));
+        }
+        return clients;
+    }
+
+    private static void closeClients(List<Socket> clients)
+        throws IOException
+    {
+        for (Socket s : clients) {
+            s.close();
+        }
+    }
+
+    private static void closeAll(final NIOSocketHandle server, Worker[] workers)
+        throws Exception
+    {
+        for (Worker w : workers) {
+            w.closeConnections();
+            w.close();
+        }
+        runOn(masterRuntime, new Callable<Void>() {
+            @Override
+            public Void call()
+            {
+                server.close();
+                return null;
+            }
+        });
+    }
+
+    private static void waitForConnections(Worker[] workers, int count)
+        throws InterruptedException
+    {
+        long start = System.currentTimeMillis();
+        int total;
+        do {
+            total = 0;
+            for (Worker w : workers) {
+                total += w.getAccepted();
+            }
+            if (total < count) {
+                Thread.sleep(10L);
+            }
+        } while ((total < count) && ((System.currentTimeMillis() - start) < TIMEOUT));
+        assertEquals(count, total);
+    }
+
+    /**
+     * Run something in the thread of the specified runtime and wait for it.
+     */
+    private static <T> T runOn(StubNodeRuntime runtime, final Callable<T> task)
+        throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<T> result = new AtomicReference<T>();
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        runtime.executeScriptTask(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    result.set(task.call());
+                } catch (Exception e) {
+                    error.set(e);
+                } finally {
+                    latch.countDown();
+                }
+            }
+        }, null);
+        assertTrue(latch.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return result.get();
+    }
+
+    private static final class Worker
+    {
+        final StubNodeRuntime runtime;
+        final ChildServerHandle handle;
+        final ArrayList<NIOSocketHandle> connections = new ArrayList<NIOSocketHandle>();
+        volatile Thread thread;
+        volatile boolean wrongThread;
+        private int accepted;
+
+        Worker(NIOSocketHandle server, StubNodeRuntime runtime)
+        {
+            this.runtime = runtime;
+            this.handle = new ChildServerHandle(server, runtime);
+        }
+
+        synchronized int getAccepted()
+        {
+            return accepted;
+        }
+
+        void listen()
+            throws Exception
+        {
+            runOn(runtime, new Callable<Void>() {
+                @Override
+                public Void call()
+                    throws Exception
+                {
+                    thread = Thread.currentThread();
+                    handle.listen(100, new IOCompletionHandler<AbstractHandle>() {
+                        @Override
+                        public void ioComplete(int errCode, AbstractHandle value)
+                        {
+                            assertEquals(0, errCode);
+                            if (Thread.currentThread() != thread) {
+                                wrongThread = true;
+                            }
+                            synchronized (Worker.this) {
+                                connections.add((NIOSocketHandle)value);
+                                accepted++;
+                            }
+                        }
+                    });
+                    return null;
+                }
+            });
+        }
+
+        void closeConnections()
+            throws Exception
+        {
+            runOn(runtime, new Callable<Void>() {
+                @Override
+                public Void call()
+                {
+                    synchronized (Worker.this) {
+                        for (NIOSocketHandle c : connections) {
+                            c.close();
+                        }
+                        connections.clear();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        void close()
+            throws Exception
+        {
+            runOn(runtime, new Callable<Void>() {
+                @Override
+                public Void call()
+                {
+                    handle.close();
+                    return null;
+                }
+            });
+        }
+    }
+
+    @BeforeClass
+    public static void init()
+    {
+        masterRuntime = new StubNodeRuntime();
+        workerRuntimes = new StubNodeRuntime[NUM_WORKERS];
+        for (int i = 0; i < NUM_WORKERS; i++) {
+            workerRuntimes[i] = new StubNodeRuntime();
+        }
+    }
+
+    @AfterClass
+    public static void terminate()
+    {
+        masterRuntime.close();
+        for (StubNodeRuntime r : workerRuntimes) {
+            r.close();
+        }
+    }
+}
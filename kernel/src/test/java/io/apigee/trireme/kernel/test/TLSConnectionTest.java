@@ -0,0 +1,145 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.BiCallback;
+import io.apigee.trireme.kernel.Callback;
+import io.apigee.trireme.kernel.TriCallback;
+import io.apigee.trireme.kernel.tls.TLSConnection;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connect a client and server TLSConnection to each other in memory and push a lot of data through.
+ */
+
+public class TLSConnectionTest
+{
+    private static final int DATA_SIZE = 1024 * 1024;
+    private static final int CHUNK_SIZE = 65536;
+    private static final long TIMEOUT = 30000L;
+
+    private static StubNodeRuntime runtime;
+
+    @Test
+    public void testTransfer()
+        throws IOException, InterruptedException
+    {
+        transfer(false);
+    }
+
+    @Test
+    public void testPipelinedTransfer()
+        throws IOException, InterruptedException
+    {
+        transfer(true);
+    }
+
+    private void transfer(boolean pipelined)
+        throws IOException, InterruptedException
+    {
+        final byte[] data = new byte[DATA_SIZE];
+        new Random().nextBytes(data);
+
+        final TLSConnection client = new TLSConnection(runtime, false, "localhost", 443);
+        final TLSConnection server = new TLSConnection(runtime, true, null, 0);
+        TrustManager[] tms = TLSUtils.getTrustManagers();
+        client.init(TLSUtils.makeClientContext(), null, (X509TrustManager)tms[0]);
+        server.init(TLSUtils.makeServerContext(), null, null);
+        client.setPipelined(pipelined);
+        server.setPipelined(pipelined);
+
+        connect(client, server);
+        connect(server, client);
+
+        final OutputAccumulator output = new OutputAccumulator();
+        server.setReadCallback(new BiCallback<ByteBuffer, Integer>() {
+            @Override
+            public void call(ByteBuffer buf, Integer err)
+            {
+                if (buf != null) {
+                    output.ioComplete(err, buf);
+                }
+            }
+        });
+
+        final AtomicInteger writesDone = new AtomicInteger();
+        runtime.executeScriptTask(new Runnable() {
+            @Override
+            public void run()
+            {
+                client.start();
+                for (int p = 0; p < DATA_SIZE; p += CHUNK_SIZE) {
+                    client.wrap(ByteBuffer.wrap(data, p, CHUNK_SIZE), new Callback<Object>() {
+                        @Override
+                        public void call(Object val)
+                        {
+                            writesDone.incrementAndGet();
+                        }
+                    });
+                }
+            }
+        }, null);
+
+        long start = System.currentTimeMillis();
+        while ((output.getResultLength() < DATA_SIZE) &&
+               ((System.currentTimeMillis() - start) < TIMEOUT)) {
+            Thread.sleep(50L);
+        }
+
+        assertEquals(DATA_SIZE, output.getResultLength());
+        assertArrayEquals(data, output.getResults());
+        assertEquals(DATA_SIZE / CHUNK_SIZE, writesDone.get());
+        assertNull(client.getError());
+        assertNull(server.getError());
+
+        // Make sure that the data actually went through the pipelined path, or didn't
+        if (pipelined) {
+            assertTrue(client.getWrapBatchCount() > 0);
+            assertTrue(server.getUnwrapBatchCount() > 0);
+        } else {
+            assertEquals(0, client.getWrapBatchCount());
+            assertEquals(0, server.getUnwrapBatchCount());
+        }
+    }
+
+    /**
+     * Send all the output of one connection to the input of the other.
+     */
+    private static void connect(TLSConnection from, final TLSConnection to)
+    {
+        from.setWriteCallback(new TriCallback<ByteBuffer, Boolean, Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void call(ByteBuffer buf, Boolean shutdown, Object cb)
+            {
+                if (buf != null) {
+                    to.unwrap(buf, null);
+                }
+                if (cb != null) {
+                    ((Callback<Object>)cb).call(null);
+                }
+            }
+        });
+    }
+
+    @BeforeClass
+    public static void init()
+    {
+        runtime = new StubNodeRuntime();
+    }
+
+    @AfterClass
+    public static void terminate()
+    {
+        runtime.close();
+    }
+}
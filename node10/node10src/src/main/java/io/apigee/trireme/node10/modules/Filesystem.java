@@ -256,9 +256,7 @@ public class Filesystem
                 throw Utils.makeError(cx, thisObj, "Length extends beyond buffer", Constants.EINVAL);
             }
 
-            byte[] bytes = buf.getArray();
-            int bytesOffset = buf.getArrayOffset() + off;
-            final ByteBuffer readBuf = ByteBuffer.wrap(bytes, bytesOffset, len);
+            final ByteBuffer readBuf = buf.getBuffer(off, len);
 
             if (pos < 0L) {
                 // Case for a "positional read" that reads from the "current position"
@@ -308,9 +306,7 @@ public class Filesystem
                 throw Utils.makeError(cx, thisObj, "Length extends beyond buffer", "EINVAL");
             }
 
-            byte[] bytes = buf.getArray();
-            int bytesOffset = buf.getArrayOffset() + off;
-            final ByteBuffer writeBuf = ByteBuffer.wrap(bytes, bytesOffset, len);
+            final ByteBuffer writeBuf = buf.getBuffer(off, len);
 
             // Increment the position before writing. This makes certain tests work which issue
             // lots of asynchronous writes in parallel.
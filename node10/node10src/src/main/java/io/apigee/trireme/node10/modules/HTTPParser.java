@@ -44,8 +44,6 @@ import static io.apigee.trireme.core.ArgUtils.*;
 
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
-import java.util.List;
-import java.util.Map;
 
 /**
  * This is the HTTP parser required by Node's regular "http" module. It won't be used when an HTTP
@@ -257,7 +255,8 @@ public class HTTPParser
                     if (log.isDebugEnabled()) {
                         log.debug("HTTP parser error");
                     }
-                    throw new NodeOSException("HPE_INVALID_CONSTANT");
+                    throw new NodeOSException(
+                        result.isHeaderOverflow() ? "HPE_HEADER_OVERFLOW" : "HPE_INVALID_CONSTANT");
                 }
                 if (!sentCompleteHeaders) {
                     if (result.isHeadersComplete() || result.isComplete()) {
@@ -375,26 +374,21 @@ public class HTTPParser
 
         private Scriptable buildHeaders(Context cx, HTTPParsingMachine.Result result)
         {
-            return buildMap(cx, result.getHeaders());
+            return buildMap(cx, result.getHeaderArray());
         }
 
         private Scriptable buildTrailers(Context cx, HTTPParsingMachine.Result result)
         {
-            return buildMap(cx, result.getTrailers());
+            return buildMap(cx, result.getTrailerArray());
         }
 
-        private Scriptable buildMap(Context cx, List<Map.Entry<String, String>> l)
+        private Scriptable buildMap(Context cx, Object[] fields)
         {
-            if (l == null) {
+            if (fields == null) {
                 return cx.newArray(this, 0);
             }
-            Object[] headers = new Object[l.size() * 2];
-            int i = 0;
-            for (Map.Entry<String, String> hdr : l) {
-                headers[i++] = hdr.getKey();
-                headers[i++] = hdr.getValue();
-            }
-            return cx.newArray(this, headers);
+            // The parser hands us a new array of names and values that the script array can own
+            return cx.newArray(this, fields);
         }
     }
 }
@@ -23,14 +23,18 @@ package io.apigee.trireme.node10.modules;
 
 import io.apigee.trireme.core.NodeModule;
 import io.apigee.trireme.core.NodeRuntime;
+import io.apigee.trireme.core.Sandbox;
 import io.apigee.trireme.core.internal.*;
 import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.core.modules.Buffer;
 import io.apigee.trireme.core.modules.NativeModule;
 import io.apigee.trireme.kernel.handles.AbstractHandle;
+import io.apigee.trireme.kernel.handles.AsyncOutputStreamHandle;
 import io.apigee.trireme.kernel.handles.ConsoleHandle;
 import io.apigee.trireme.kernel.handles.JavaInputStreamHandle;
 import io.apigee.trireme.kernel.handles.JavaOutputStreamHandle;
+import io.apigee.trireme.kernel.handles.MemoryPipeReadHandle;
+import io.apigee.trireme.kernel.streams.MemoryPipe;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.EvaluatorException;
 import org.mozilla.javascript.Function;
@@ -43,6 +47,7 @@ import org.slf4j.LoggerFactory;
 
 import static io.apigee.trireme.core.ArgUtils.*;
 
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -548,7 +553,7 @@ public class Process
                 streamHandle = new ConsoleHandle(runner);
                 return createConsoleHandle(cx, streamHandle);
             } else {
-                streamHandle = new JavaOutputStreamHandle(runner.getStdout());
+                streamHandle = createOutputHandle(runner.getStdout());
                 return createStreamHandle(cx, streamHandle);
             }
         }
@@ -556,10 +561,32 @@ public class Process
         private Object getStderrHandle()
         {
             Context cx = Context.getCurrentContext();
-            JavaOutputStreamHandle streamHandle = new JavaOutputStreamHandle(runner.getStderr());
+            AbstractHandle streamHandle = createOutputHandle(runner.getStderr());
             return createStreamHandle(cx, streamHandle);
         }
 
+        /**
+         * If we were spawned by another script, stdout and stderr may be in-memory pipes. Otherwise the sandbox
+         * may ask for output to be written by a separate thread.
+         */
+        private AbstractHandle createOutputHandle(OutputStream out)
+        {
+            if (out instanceof MemoryPipe.PipeOutputStream) {
+                // Node 0.10 writes to pipes synchronously on Unix. Its streams hand one write at a time to the
+                // handle, so with a queueing handle the rest would wait in JavaScript and be lost on exit.
+                return new JavaOutputStreamHandle(out);
+            }
+            Sandbox sb = runner.getSandbox();
+            if ((sb != null) && sb.isAsyncOutput()) {
+                AsyncOutputStreamHandle.OverflowPolicy policy =
+                    (sb.getAsyncOutputPolicy() == null ?
+                        AsyncOutputStreamHandle.OverflowPolicy.QUEUE : sb.getAsyncOutputPolicy());
+                return new AsyncOutputStreamHandle(out, sb.getAsyncOutputSize(), policy,
+                                                   runner.getEnvironment().getStreamDrainer(), runner);
+            }
+            return new JavaOutputStreamHandle(out);
+        }
+
         /**
          * If no stream was set up, use this handle instead. trireme.js will pass it to net.socket to create
          * stdout.
@@ -572,6 +599,10 @@ public class Process
             if ((runner.getStdin() == System.in) && ConsoleHandle.isConsoleSupported()) {
                 streamHandle = new ConsoleHandle(runner);
                 return createConsoleHandle(cx, streamHandle);
+            } else if (runner.getStdin() instanceof MemoryPipe.PipeInputStream) {
+                streamHandle =
+                    new MemoryPipeReadHandle(((MemoryPipe.PipeInputStream)runner.getStdin()).getPipe(), runner);
+                return createStreamHandle(cx, streamHandle);
             } else {
                 streamHandle = new JavaInputStreamHandle(runner.getStdin(), runner);
                 return createStreamHandle(cx, streamHandle);
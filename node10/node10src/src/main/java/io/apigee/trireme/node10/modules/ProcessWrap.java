@@ -36,10 +36,13 @@ import io.apigee.trireme.core.internal.ProcessManager;
 import io.apigee.trireme.core.internal.TriremeProcess;
 import io.apigee.trireme.core.modules.Constants;
 import io.apigee.trireme.core.modules.Referenceable;
+import io.apigee.trireme.kernel.Callback;
 import io.apigee.trireme.kernel.handles.Handle;
 import io.apigee.trireme.kernel.handles.IpcHandle;
 import io.apigee.trireme.kernel.streams.BitBucketInputStream;
 import io.apigee.trireme.kernel.streams.BitBucketOutputStream;
+import io.apigee.trireme.kernel.streams.MemoryPipe;
+import io.apigee.trireme.kernel.streams.ProcessPump;
 import io.apigee.trireme.core.InternalNodeModule;
 import io.apigee.trireme.kernel.streams.NoCloseInputStream;
 import io.apigee.trireme.kernel.streams.NoCloseOutputStream;
@@ -47,8 +50,10 @@ import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.kernel.streams.StreamPiper;
 import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.kernel.handles.AbstractHandle;
-import io.apigee.trireme.kernel.handles.JavaInputStreamHandle;
 import io.apigee.trireme.kernel.handles.JavaOutputStreamHandle;
+import io.apigee.trireme.kernel.handles.MemoryPipeReadHandle;
+import io.apigee.trireme.kernel.handles.MemoryPipeWriteHandle;
+import io.apigee.trireme.kernel.handles.ProcessStreamHandle;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.EvaluatorException;
 import org.mozilla.javascript.Function;
@@ -66,8 +71,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -500,7 +503,7 @@ public class ProcessWrap
                 if (log.isDebugEnabled()) {
                     log.debug("Setting fd {} to input stream {}", arg, in);
                 }
-                JavaInputStreamHandle streamHandle = new JavaInputStreamHandle(in, parent.runner);
+                ProcessStreamHandle streamHandle = new ProcessStreamHandle(proc, in, getPump(), parent.runner);
                 Scriptable handle = createStreamHandle(cx, streamHandle);
                 opts.put("handle", opts, handle);
 
@@ -508,19 +511,15 @@ public class ProcessWrap
                 if (log.isDebugEnabled()) {
                     log.debug("Setting fd {} to discard all output", arg);
                 }
-                StreamPiper piper = new StreamPiper(in, new BitBucketOutputStream(), false);
-                piper.start(parent.runner.getUnboundedPool());
+                getPump().pipe(proc, in, new BitBucketOutputStream());
 
             } else if (STDIO_FD.equals(type)) {
-                StreamPiper piper;
                 switch (getStdioFD(opts)) {
                 case 1:
-                    piper = new StreamPiper(in, parent.runner.getStdout(), false);
-                    piper.start(parent.runner.getUnboundedPool());
+                    getPump().pipe(proc, in, parent.runner.getStdout(), parent.runner);
                     break;
                 case 2:
-                    piper = new StreamPiper(in, parent.runner.getStderr(), false);
-                    piper.start(parent.runner.getUnboundedPool());
+                    getPump().pipe(proc, in, parent.runner.getStderr(), parent.runner);
                     break;
                 default:
                     throw new AssertionError("Only FDs 0, 1, and 2 supported");
@@ -530,6 +529,11 @@ public class ProcessWrap
             }
         }
 
+        private ProcessPump getPump()
+        {
+            return parent.runner.getEnvironment().getProcessPump();
+        }
+
         @Override
         Object spawn(Context cx, List<String> execArgs, Scriptable options)
         {
@@ -576,21 +580,15 @@ public class ProcessWrap
             createInputStream(cx, stdio, 1, proc.getInputStream());
             createInputStream(cx, stdio, 2, proc.getErrorStream());
 
-            parent.runner.getUnboundedPool().submit(new Runnable()
+            getPump().watchExit(proc, new Callback<Integer>()
             {
                 @Override
-                public void run()
+                public void call(Integer exitCode)
                 {
-                    try {
-                        int exitCode = proc.waitFor();
-                        if (log.isDebugEnabled()) {
-                            log.debug("Child process exited with {}", exitCode);
-                        }
-                        parent.callOnExit(exitCode, 0);
-                    } catch (InterruptedException ie) {
-                        // TODO some signal?
-                        parent.callOnExit(0, 0);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Child process exited with {}", exitCode);
                     }
+                    parent.callOnExit(exitCode, 0);
                 }
             });
 
@@ -607,6 +605,8 @@ public class ProcessWrap
         private ScriptFuture future;
         private NodeScript script;
         private boolean ipcEnabled;
+        private MemoryPipe childStdin;
+        private final ArrayList<MemoryPipe> childOutputs = new ArrayList<MemoryPipe>();
 
         SpawnedTriremeProcess(ProcessImpl parent)
         {
@@ -638,15 +638,15 @@ public class ProcessWrap
             String type = getStdioType(opts);
             if (STDIO_PIPE.equals(type)) {
                 // Create a pipe between stdin of this new process and an output stream handle.
-                // Use piped streams here for consistency so that we do everything using standard streams.
+                // The child's "process" module recognizes the pipe and reads it from its own event loop.
                 if (log.isDebugEnabled()) {
                     log.debug("Creating input stream pipe for stdio {}", arg);
                 }
-                PipedInputStream pipeIn = new PipedInputStream(PROCESS_PIPE_SIZE);
-                PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+                MemoryPipe pipe = new MemoryPipe(PROCESS_PIPE_SIZE);
+                childStdin = pipe;
 
-                sandbox.setStdin(pipeIn);
-                JavaOutputStreamHandle streamHandle = new JavaOutputStreamHandle(pipeOut);
+                sandbox.setStdin(pipe.getInputStream());
+                MemoryPipeWriteHandle streamHandle = new MemoryPipeWriteHandle(pipe, parent.runner);
                 Scriptable handle = createStreamHandle(cx, streamHandle);
                 opts.put("handle", opts, handle);
 
@@ -682,14 +682,16 @@ public class ProcessWrap
             String type = getStdioType(opts);
 
             if (STDIO_PIPE.equals(type)) {
-                // Pipe between us using a pipe that has a maximum size and can block
+                // Pipe between us using a pipe that has a maximum size. Neither side blocks on it --
+                // each side is told when the other has made progress.
                 if (log.isDebugEnabled()) {
                     log.debug("Creating writable stream pipe for stdio {}", arg);
                 }
-                PipedInputStream pipeIn = new PipedInputStream(PROCESS_PIPE_SIZE);
-                PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+                MemoryPipe pipe = new MemoryPipe(PROCESS_PIPE_SIZE);
+                childOutputs.add(pipe);
+                OutputStream pipeOut = pipe.getOutputStream();
 
-                JavaInputStreamHandle streamHandle = new JavaInputStreamHandle(pipeIn, parent.runner);
+                MemoryPipeReadHandle streamHandle = new MemoryPipeReadHandle(pipe, parent.runner);
                 Scriptable handle = createStreamHandle(cx, streamHandle);
                 opts.put("handle", opts, handle);
 
@@ -873,6 +875,7 @@ public class ProcessWrap
                         log.debug("Child ScriptRunner exited: {}", status);
                     }
                     finished = true;
+                    closeChildPipes();
                     script.close();
                     parent.callOnExit(status.getExitCode(), 0);
                 }
@@ -880,6 +883,20 @@ public class ProcessWrap
             return Context.getUndefinedValue();
         }
 
+        /**
+         * Close the child's ends of any stdio pipes, as the OS would when a process exits, so that the
+         * parent sees EOF on output and stops writing input.
+         */
+        private void closeChildPipes()
+        {
+            if (childStdin != null) {
+                childStdin.closeRead();
+            }
+            for (MemoryPipe pipe : childOutputs) {
+                pipe.closeWrite();
+            }
+        }
+
         @Override
         protected Scriptable getChildProcessObject() {
             return script._getProcessObject();
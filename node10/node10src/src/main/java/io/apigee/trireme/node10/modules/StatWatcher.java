@@ -21,9 +21,8 @@
  */
 package io.apigee.trireme.node10.modules;
 
-import io.apigee.trireme.core.ScriptTask;
+import io.apigee.trireme.core.internal.FileStatWatcher;
 import io.apigee.trireme.core.internal.ScriptRunner;
-import io.apigee.trireme.kernel.OSException;
 import io.apigee.trireme.kernel.fs.FileStats;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
@@ -32,32 +31,23 @@ import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.annotations.JSFunction;
 import org.mozilla.javascript.annotations.JSGetter;
 import org.mozilla.javascript.annotations.JSSetter;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.io.File;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
 import static io.apigee.trireme.core.ArgUtils.*;
 
+/**
+ * This implements "fs.watchFile". The watching itself is done by FileStatWatcher.
+ */
 public class StatWatcher
     extends ScriptableObject
+    implements FileStatWatcher.Listener
 {
     public static final String CLASS_NAME = "StatWatcher";
 
-    private static final Logger log = LoggerFactory.getLogger(StatWatcher.class);
-    private static final FileStats EMPTY_STATS = new FileStats();
-
     private Function onchange;
     private Function onstop;
     private ScriptRunner runner;
-    private FileStats lastStats;
-    private String origPath;
     private boolean persistent;
-    private File file;
-    private Future<?> timer;
-    private Object domain;
+    private FileStatWatcher watcher;
 
     @Override
     public String getClassName() {
@@ -71,40 +61,17 @@ public class StatWatcher
         String filename = stringArg(args, 0);
         boolean persistent = booleanArg(args, 1);
         long interval = longArg(args, 2);
-        final StatWatcher self = (StatWatcher)thisObj;
+        StatWatcher self = (StatWatcher)thisObj;
 
         self.runner = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
-        self.file = self.runner.translatePath(filename);
-        self.origPath = filename;
         self.persistent = persistent;
 
         if (persistent) {
             self.runner.pin();
         }
 
-        // Schedule the timer to check periodically. We do this now to prevent a race
-        // on shutdown. All work gets dispatched to the same thread pool anyway.
-        if (log.isDebugEnabled()) {
-            log.debug("Going to poll stats on {} every {} milliseconds", filename, interval);
-        }
-        self.domain = self.runner.getDomain();
-        self.timer = self.runner.createTimedTask(new Runnable()
-        {
-            @Override
-            public void run()
-            {
-                self.updateStats();
-            }
-        }, interval, TimeUnit.MILLISECONDS, true, self.domain);
-
-        // Now, get the initial stats, which blocks, so use the thread pool
-        self.runner.getAsyncPool().execute(new Runnable() {
-            @Override
-            public void run()
-            {
-                self.lastStats = self.getStats();
-            }
-        });
+        self.watcher = new FileStatWatcher(self.runner, filename, self);
+        self.watcher.start(interval);
     }
 
     @JSFunction
@@ -113,8 +80,7 @@ public class StatWatcher
     {
         StatWatcher self = (StatWatcher)thisObj;
 
-        if (self.timer != null) {
-            self.timer.cancel(false);
+        if ((self.watcher != null) && self.watcher.stop()) {
             if (self.onstop != null) {
                 self.onstop.call(cx, self.onstop, null, Context.emptyArgs);
             }
@@ -125,43 +91,8 @@ public class StatWatcher
         }
     }
 
-    private FileStats getStats()
-    {
-        try {
-            return runner.getFilesystem().stat(file, origPath, false);
-        } catch (OSException ose) {
-            // Always return something, even if empty.
-            return EMPTY_STATS;
-        }
-    }
-
-    /**
-     * On every turn of the timer, check the stats, and if it differs, fire off the callback.
-     */
-    private void updateStats()
-    {
-        runner.getAsyncPool().execute(new Runnable() {
-            @Override
-            public void run() {
-                final FileStats newStats = getStats();
-
-                if (!newStats.equals(lastStats)) {
-                    log.debug("New and old stats differ -- firing callback");
-                    final FileStats oldStats = lastStats;
-                    runner.enqueueTask(new ScriptTask() {
-                        @Override
-                        public void execute(Context cx, Scriptable scope)
-                        {
-                            fireCallback(cx, oldStats, newStats);
-                        }
-                    }, domain);
-                }
-                lastStats = newStats;
-            }
-        });
-    }
-
-    private void fireCallback(Context cx, FileStats os, FileStats ns)
+    @Override
+    public void statsChanged(Context cx, FileStats os, FileStats ns)
     {
         if (onchange == null) {
             return;
@@ -359,8 +359,7 @@ public class ZLib
             deflater.setLevel(level);
             if (this.dictionary != null) {
                 try {
-                    deflater.setDictionary(this.dictionary.getArray(),
-                                           this.dictionary.getArrayOffset(), this.dictionary.getLength());
+                    deflater.setDictionary(this.dictionary.toArray());
                 } catch (IllegalArgumentException e) {
                     cb.call(cx, this, this, new Object[] { Utils.makeErrorObject(cx, this, "Bad dictionary") });
                     return false;
@@ -404,9 +403,12 @@ public class ZLib
             // Deflater works by taking a chunk of input, then producing output over several steps
             // until it reaches the end. Here we give it all the input at once.
             if (chunk != null) {
-                deflater.setInput(chunk.getArray(), chunk.getArrayOffset(), chunk.getLength());
+                // The Java 7 Deflater only takes arrays, so an off-heap Buffer must be copied
+                byte[] in = (chunk.isDirect() ? chunk.toArray() : chunk.getArray());
+                int inOff = (chunk.isDirect() ? 0 : chunk.getArrayOffset());
+                deflater.setInput(in, inOff, chunk.getLength());
                 if (mode == GZIP) {
-                    checksum.update(chunk.getArray(), chunk.getArrayOffset(), chunk.getLength());
+                    checksum.update(in, inOff, chunk.getLength());
                 }
             }
             if (flushFlag == Z_FINISH) {
@@ -568,8 +570,7 @@ public class ZLib
                             log.debug("Inflater setting dictionary {}", dictionary);
                         }
                         try {
-                            inflater.setDictionary(dictionary.getArray(),
-                                                   dictionary.getArrayOffset(), dictionary.getLength());
+                            inflater.setDictionary(dictionary.toArray());
                         } catch (IllegalArgumentException e) {
                             cb.call(cx, this, this,
                                 new Object[] { Utils.makeErrorObject(cx, this, "Bad dictionary") });
@@ -1,12 +1,15 @@
 package io.apigee.trireme.node10.test;
 
 import io.apigee.trireme.kernel.net.NetworkPolicy;
+import io.apigee.trireme.core.InvocationFuture;
 import io.apigee.trireme.core.NodeEnvironment;
 import io.apigee.trireme.core.NodeException;
 import io.apigee.trireme.core.NodeScript;
 import io.apigee.trireme.core.Sandbox;
 import io.apigee.trireme.core.ScriptFuture;
+import io.apigee.trireme.core.ScriptInvoker;
 import io.apigee.trireme.core.ScriptStatus;
+import io.apigee.trireme.core.ScriptTask;
 import io.apigee.trireme.core.ScriptStatusListener;
 import io.apigee.trireme.core.SubprocessPolicy;
 import io.apigee.trireme.core.Utils;
@@ -14,6 +17,7 @@ import io.apigee.trireme.kernel.Platform;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mozilla.javascript.Context;
 import org.mozilla.javascript.JavaScriptException;
 import org.mozilla.javascript.Scriptable;
 
@@ -23,8 +27,10 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -391,6 +397,13 @@ public class BasicTest
         runTest("javacodetest.js");
     }
 
+    @Test
+    public void testIpcClone()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        runTest("ipcclonetest.js");
+    }
+
     @Test
     public void testSpawnSuccess()
         throws InterruptedException, ExecutionException, NodeException
@@ -551,6 +564,201 @@ public class BasicTest
         future.cancel(true);
     }
 
+    @Test
+    public void testInvoke()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        ScriptFuture future = startInvokeModule();
+        try {
+            ScriptInvoker add = future.createInvoker("add");
+            assertEquals(3, ((Number)add.invoke(1, 2).get()).intValue());
+            assertEquals("HELLO", future.createInvoker("upper").invoke("hello").get());
+
+            ScriptInvoker thenable = future.createInvoker("thenable");
+            assertEquals(42, ((Number)thenable.invoke(21).get()).intValue());
+            try {
+                thenable.invoke(-1).get();
+                fail("Expected a rejected promise");
+            } catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof JavaScriptException);
+            }
+
+            ScriptInvoker failer = future.createInvoker("fail");
+            try {
+                failer.invoke("callback").get();
+                fail("Expected an error");
+            } catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof JavaScriptException);
+            }
+            try {
+                failer.invoke("throw").get();
+                fail("Expected an error");
+            } catch (ExecutionException ee) {
+                assertNotNull(ee.getCause());
+            }
+            assertEquals(0, failer.getInFlight());
+        } finally {
+            future.cancel(true);
+        }
+    }
+
+    @Test
+    public void testInvokeBatch()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        ScriptFuture future = startInvokeModule();
+        try {
+            ScriptInvoker add = future.createInvoker("add", 10);
+            ArrayList<Object[]> args = new ArrayList<Object[]>();
+            for (int i = 0; i < 10; i++) {
+                args.add(new Object[] { i, i });
+            }
+            List<InvocationFuture> results = add.invokeBatch(args);
+            assertEquals(10, results.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i * 2, ((Number)results.get(i).get()).intValue());
+            }
+
+            try {
+                args.add(new Object[] { 1, 1 });
+                add.invokeBatch(args);
+                fail("Batch should be too big");
+            } catch (IllegalArgumentException ok) {
+            }
+        } finally {
+            future.cancel(true);
+        }
+    }
+
+    @Test
+    public void testInvokeInFlight()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        ScriptFuture future = startInvokeModule();
+        try {
+            ScriptInvoker count = future.createInvoker("count", 4);
+            ArrayList<InvocationFuture> results = new ArrayList<InvocationFuture>();
+            for (int i = 0; i < 100; i++) {
+                results.add(count.invoke());
+                assertTrue(count.getInFlight() <= 4);
+            }
+            count.awaitAll();
+            assertEquals(0, count.getInFlight());
+            for (InvocationFuture f : results) {
+                assertTrue(f.isDone());
+            }
+        } finally {
+            future.cancel(true);
+        }
+    }
+
+    @Test
+    public void testInvokeFromScriptThread()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        NodeScript script = env.createScript("invokemodule.js",
+                                             new File("./target/test-classes/tests/invokemodule.js"),
+                                             null);
+        ScriptFuture future = script.executeModule();
+        try {
+            final ScriptInvoker add = future.createInvoker("add", 1);
+            final ArrayBlockingQueue<Object> results = new ArrayBlockingQueue<Object>(2);
+            script._getRuntime().enqueueTask(new ScriptTask() {
+                @Override
+                public void execute(Context cx, Scriptable scope)
+                {
+                    try {
+                        // The first call takes the only permit, and the second must not wait for it
+                        results.add(add.invoke(1, 2));
+                        add.invoke(3, 4);
+                        results.add("no exception");
+                    } catch (IllegalStateException ise) {
+                        results.add(ise);
+                    } catch (InterruptedException ie) {
+                        results.add(ie);
+                    }
+                }
+            });
+
+            Object first = results.poll(10, TimeUnit.SECONDS);
+            assertTrue(first instanceof InvocationFuture);
+            assertTrue(results.poll(10, TimeUnit.SECONDS) instanceof IllegalStateException);
+            assertEquals(3, ((Number)((InvocationFuture)first).get()).intValue());
+        } finally {
+            future.cancel(true);
+        }
+    }
+
+    @Test
+    public void testInvokeProcessExit()
+        throws InterruptedException, ExecutionException, NodeException, TimeoutException
+    {
+        ScriptFuture future = startInvokeModule();
+        try {
+            InvocationFuture call = future.createInvoker("exit").invoke(3);
+            // process.exit() in the function ends the whole script, not just the call
+            assertEquals(3, future.get(10, TimeUnit.SECONDS).getExitCode());
+            try {
+                call.get(10, TimeUnit.SECONDS);
+                fail("Invocation should have failed");
+            } catch (ExecutionException ok) {
+            }
+        } finally {
+            future.cancel(true);
+        }
+    }
+
+    @Test
+    public void testInvokeTimeout()
+        throws InterruptedException, NodeException, TimeoutException
+    {
+        NodeEnvironment timeoutEnv = new NodeEnvironment();
+        timeoutEnv.setScriptTimeLimit(1, TimeUnit.SECONDS);
+        NodeScript script = timeoutEnv.createScript("invokemodule.js",
+                                                    new File("./target/test-classes/tests/invokemodule.js"),
+                                                    null);
+        ScriptFuture future = script.executeModule();
+        try {
+            future.createInvoker("spin").invoke();
+            future.get(10, TimeUnit.SECONDS);
+            fail("Expected the script to time out");
+        } catch (ExecutionException ee) {
+            assertTrue("Expected a JavaScriptException", ee.getCause() instanceof JavaScriptException);
+        } finally {
+            future.cancel(true);
+            timeoutEnv.close();
+        }
+    }
+
+    @Test
+    public void testInvokeAfterExit()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        ScriptFuture future = startInvokeModule();
+        ScriptInvoker add = future.createInvoker("add");
+        future.cancel(true);
+        try {
+            future.get();
+        } catch (CancellationException ok) {
+        }
+        try {
+            add.invoke(1, 2).get(10, TimeUnit.SECONDS);
+            fail("Invocation should have failed");
+        } catch (ExecutionException ok) {
+        } catch (TimeoutException te) {
+            fail("Invocation never completed");
+        }
+    }
+
+    private ScriptFuture startInvokeModule()
+        throws NodeException
+    {
+        NodeScript script = env.createScript("invokemodule.js",
+                                             new File("./target/test-classes/tests/invokemodule.js"),
+                                             null);
+        return script.executeModule();
+    }
+
     @Test
     public void testBigFile()
         throws InterruptedException, ExecutionException, NodeException
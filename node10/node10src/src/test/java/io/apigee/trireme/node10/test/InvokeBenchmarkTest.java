@@ -0,0 +1,159 @@
+package io.apigee.trireme.node10.test;
+
+import io.apigee.trireme.core.InvocationFuture;
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ScriptFuture;
+import io.apigee.trireme.core.ScriptInvoker;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measure how many records per second we can push through a JavaScript function from Java, the way
+ * that the Hadoop sample does. This only runs when "runBenchmarks" is set:
+ *
+ * mvn test -Dtest=InvokeBenchmarkTest -DrunBenchmarks=true
+ */
+
+public class InvokeBenchmarkTest
+{
+    private static final int WARMUP_RECORDS = 20000;
+    private static final int RECORDS = 100000;
+    private static final int MAX_IN_FLIGHT = 64;
+    private static final String LINE = "the quick brown fox jumps over the lazy dog";
+
+    private static NodeEnvironment env;
+    private static ScriptFuture future;
+
+    @BeforeClass
+    public static void init()
+        throws Exception
+    {
+        Assume.assumeTrue(Boolean.getBoolean("runBenchmarks"));
+        env = new NodeEnvironment();
+        NodeScript script = env.createScript("invokemodule.js",
+                                             new File("./target/test-classes/tests/invokemodule.js"),
+                                             null);
+        future = script.executeModule();
+        future.getModuleResult();
+    }
+
+    @AfterClass
+    public static void terminate()
+    {
+        if (future != null) {
+            future.cancel(true);
+        }
+        if (env != null) {
+            env.close();
+        }
+    }
+
+    @Test
+    public void benchmarkInvoke()
+        throws Exception
+    {
+        Scriptable module = future.getModuleResult();
+        Function words = (Function)module.get("words", module);
+        ScriptInvoker invoker = future.createInvoker("words", MAX_IN_FLIGHT);
+
+        runRoundTrip(module, words, WARMUP_RECORDS);
+        runPipelined(invoker, WARMUP_RECORDS);
+        runBatched(invoker, WARMUP_RECORDS);
+
+        long start = System.nanoTime();
+        assertEquals(RECORDS * 9, runRoundTrip(module, words, RECORDS));
+        report("enqueueCallback and wait", start);
+
+        start = System.nanoTime();
+        assertEquals(RECORDS * 9, runPipelined(invoker, RECORDS));
+        report("invoke, " + MAX_IN_FLIGHT + " in flight", start);
+
+        start = System.nanoTime();
+        assertEquals(RECORDS * 9, runBatched(invoker, RECORDS));
+        report("invokeBatch, " + MAX_IN_FLIGHT + " per batch", start);
+    }
+
+    private static void report(String name, long start)
+    {
+        double secs = (System.nanoTime() - start) / 1000000000.0;
+        System.out.println(name + ": " + Math.round(RECORDS / secs) + " records per second");
+    }
+
+    /**
+     * This is how the Hadoop sample used to work -- one callback at a time, waiting for each one.
+     */
+    private static int runRoundTrip(Scriptable module, Function func, int records)
+        throws InterruptedException
+    {
+        final AtomicInteger total = new AtomicInteger();
+        for (int i = 0; i < records; i++) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            Function cb = new BaseFunction() {
+                @Override
+                public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args)
+                {
+                    total.addAndGet(((Number)args[1]).intValue());
+                    latch.countDown();
+                    return Undefined.instance;
+                }
+            };
+            future.getRuntime().enqueueCallback(func, module, module, new Object[] { LINE, cb });
+            latch.await();
+        }
+        return total.get();
+    }
+
+    private static int runPipelined(ScriptInvoker invoker, int records)
+        throws Exception
+    {
+        ArrayList<InvocationFuture> results = new ArrayList<InvocationFuture>(records);
+        for (int i = 0; i < records; i++) {
+            results.add(invoker.invoke(LINE));
+        }
+        return sum(results);
+    }
+
+    private static int runBatched(ScriptInvoker invoker, int records)
+        throws Exception
+    {
+        ArrayList<InvocationFuture> results = new ArrayList<InvocationFuture>(records);
+        ArrayList<Object[]> batch = new ArrayList<Object[]>(MAX_IN_FLIGHT);
+        for (int i = 0; i < records; i++) {
+            batch.add(new Object[] { LINE });
+            if (batch.size() == MAX_IN_FLIGHT) {
+                results.addAll(invoker.invokeBatch(batch));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            results.addAll(invoker.invokeBatch(batch));
+        }
+        return sum(results);
+    }
+
+    private static int sum(List<InvocationFuture> results)
+        throws Exception
+    {
+        int total = 0;
+        for (InvocationFuture f : results) {
+            total += ((Number)f.get()).intValue();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,62 @@
+// Functions for BasicTest and InvokeBenchmarkTest to call using ScriptInvoker
+
+exports.add = function(a, b, cb) {
+  setImmediate(function() {
+    cb(undefined, a + b);
+  });
+};
+
+exports.upper = function(s, cb) {
+  cb(undefined, s.toUpperCase());
+};
+
+exports.fail = function(msg, cb) {
+  if (msg === 'throw') {
+    throw new Error(msg);
+  }
+  cb(new Error(msg));
+};
+
+// Not a real Promise, but anything with "then" is treated like one
+exports.thenable = function(val) {
+  return {
+    then: function(resolve, reject) {
+      setImmediate(function() {
+        if (val < 0) {
+          reject(new Error('negative'));
+        } else {
+          resolve(val * 2);
+        }
+      });
+    }
+  };
+};
+
+var count = 0;
+exports.count = function(cb) {
+  count++;
+  setTimeout(function() {
+    cb(undefined, count);
+  }, 1);
+};
+
+exports.words = function(line, cb) {
+  var n = 0;
+  line.split(' ').forEach(function(w) {
+    if (w) {
+      n++;
+    }
+  });
+  setImmediate(function() {
+    cb(undefined, n);
+  });
+};
+
+exports.exit = function(code) {
+  process.exit(code);
+};
+
+exports.spin = function() {
+  for (;;) {
+  }
+};
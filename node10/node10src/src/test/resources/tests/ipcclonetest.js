@@ -0,0 +1,75 @@
+var assert = require('assert');
+var child_process = require('child_process');
+
+var BATCH_SIZE = 100;
+
+if (process.argv[2] === 'child') {
+  var received = 0;
+  process.on('message', function(msg) {
+    if (msg.op === 'echo') {
+      process.send(msg.value);
+    } else if (msg.op === 'count') {
+      received++;
+      if (received === BATCH_SIZE) {
+        process.send({ op: 'counted', count: received });
+      }
+    } else if (msg.op === 'exit') {
+      process.exit(0);
+    }
+  });
+
+} else {
+  var child = child_process.fork(__filename, ['child']);
+
+  var sent = {
+    num: 1.5,
+    str: 'Hello, über World!',
+    date: new Date(1444000000000),
+    buf: new Buffer('Buffer contents'),
+    list: [1, 'two', { three: 3 }],
+    nothing: null
+  };
+  sent.self = sent;
+  sent.list.push(sent.list);
+
+  var echoed = false;
+  var counted = false;
+
+  child.on('message', function(msg) {
+    if (msg.op === 'counted') {
+      assert.equal(msg.count, BATCH_SIZE);
+      counted = true;
+      child.send({ op: 'exit' });
+      return;
+    }
+
+    assert.equal(msg.num, 1.5);
+    assert.equal(msg.str, sent.str);
+    assert(msg.date instanceof Date);
+    assert.equal(msg.date.getTime(), sent.date.getTime());
+    assert(Buffer.isBuffer(msg.buf));
+    assert.equal(msg.buf.toString(), 'Buffer contents');
+    assert(Array.isArray(msg.list));
+    assert.equal(msg.list.length, 4);
+    assert.equal(msg.list[1], 'two');
+    assert.equal(msg.list[2].three, 3);
+    assert.strictEqual(msg.list[3], msg.list);
+    assert.strictEqual(msg.self, msg);
+    assert.strictEqual(msg.nothing, null);
+    echoed = true;
+
+    for (var i = 0; i < BATCH_SIZE; i++) {
+      child.send({ op: 'count', i: i });
+    }
+  });
+
+  child.send({ op: 'echo', value: sent });
+  // Changes after sending must not affect the message
+  sent.num = 2;
+  sent.buf.write('Changed');
+
+  process.on('exit', function() {
+    assert(echoed);
+    assert(counted);
+  });
+}
@@ -0,0 +1,68 @@
+var Iconv = require('iconv').Iconv;
+var assert = require('assert');
+
+var japanese = '日本語のテキスト';
+
+// Direct asynchronous conversion, in order
+(function() {
+  var iconv = new Iconv('utf-8', 'shift_jis');
+  var results = [];
+  iconv.convertAsync(new Buffer('Hello, '), false, function(err, out) {
+    assert(!err);
+    results.push(out);
+  });
+  iconv.convertAsync(new Buffer(japanese), false, function(err, out) {
+    assert(!err);
+    results.push(out);
+  });
+  iconv.convertAsync(null, true, function(err, out) {
+    assert(!err);
+    assert.equal(results.length, 2);
+    var back = new Iconv('shift_jis', 'utf-8').convert(Buffer.concat(results));
+    assert.equal(back.toString('utf8'), 'Hello, ' + japanese);
+  });
+
+  // Can't mix synchronous conversion with a pending asynchronous one
+  assert.throws(function() {
+    iconv.convert(new Buffer('x'));
+  });
+})();
+
+// Errors are returned to the callback
+(function() {
+  var iconv = new Iconv('utf-8', 'ascii');
+  iconv.convertAsync(new Buffer(japanese), function(err, out) {
+    assert(err);
+    assert.equal(err.code, 'EILSEQ');
+  });
+})();
+
+// A stream in async mode, with big chunks that go to another thread and small ones that don't
+(function() {
+  var text = '';
+  for (var i = 0; i < 20000; i++) {
+    text += i + (((i % 100) === 0) ? japanese : ' ');
+  }
+  var input = new Buffer(text);
+  var iconv = new Iconv('utf-8', 'euc-jp', { async: true });
+  var output = [];
+  var done = false;
+
+  iconv.on('data', function(chunk) {
+    output.push(chunk);
+  });
+  iconv.on('end', function() {
+    var back = new Iconv('euc-jp', 'utf-8').convert(Buffer.concat(output));
+    assert.equal(back.toString('utf8'), text);
+    done = true;
+  });
+
+  iconv.write(input.slice(0, 100000));
+  iconv.write(input.slice(100000, 100010));
+  iconv.write(input.slice(100010));
+  iconv.end();
+
+  process.on('exit', function() {
+    assert(done);
+  });
+})();
@@ -0,0 +1,39 @@
+// A spawned script that writes more than the 64K stdio pipe holds and then calls
+// process.exit() must still deliver all of its output to the parent, even if the
+// parent wasn't reading when the child exited.
+
+var common = require('../common');
+var assert = require('assert');
+
+var LINES = 10000;
+var LINE = new Array(64).join('x') + '\n';
+
+if (process.argv[2] === 'child') {
+  for (var i = 0; i < LINES; i++) {
+    process.stdout.write(LINE);
+  }
+  process.exit(0);
+} else {
+  var spawn = require('child_process').spawn;
+  var child = spawn(process.argv[0], [process.argv[1], 'child']);
+
+  var received = 0;
+  child.stdout.on('data', function(data) {
+    received += data.length;
+  });
+  child.stdout.pause();
+  setTimeout(function() {
+    child.stdout.resume();
+  }, 1000);
+
+  var closed = false;
+  child.on('close', function(code) {
+    assert.equal(code, 0);
+    closed = true;
+  });
+
+  process.on('exit', function() {
+    assert(closed);
+    assert.equal(received, LINES * LINE.length);
+  });
+}
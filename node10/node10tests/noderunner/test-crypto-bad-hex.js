@@ -0,0 +1,35 @@
+// A string that is not valid hex must come back from the crypto functions as a TypeError,
+// just like it does from "new Buffer", and not as a Java exception.
+
+var common = require('../common');
+var assert = require('assert');
+
+try {
+  var crypto = require('crypto');
+} catch (e) {
+  console.log('Not compiled with OPENSSL support.');
+  process.exit();
+}
+
+function isTypeError(e) {
+  return (e instanceof TypeError);
+}
+
+// Odd length
+assert.throws(function() {
+  crypto.createHash('md5').update('abc', 'hex');
+}, isTypeError);
+// Not hex at all
+assert.throws(function() {
+  crypto.createHmac('sha256', 'key').update('zz', 'hex');
+}, isTypeError);
+assert.throws(function() {
+  crypto.createCipher('aes192', 'password').update('0g', 'hex', 'hex');
+}, isTypeError);
+assert.throws(function() {
+  crypto.createSign('RSA-SHA256').update('abc', 'hex');
+}, isTypeError);
+
+// Valid hex still works
+assert.equal(crypto.createHash('md5').update('00ff', 'hex').digest('hex'),
+             crypto.createHash('md5').update(new Buffer([0, 255])).digest('hex'));
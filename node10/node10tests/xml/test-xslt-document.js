@@ -0,0 +1,86 @@
+var assert = require('assert');
+var fs = require('fs');
+var path = require('path');
+
+var xslt = require('trireme-xslt');
+var nodeXslt = require('node_xslt');
+
+var ss = xslt.compileStylesheet(fs.readFileSync(path.join(__dirname, './fixtures/for-each.xsl')));
+var docText = fs.readFileSync(path.join(__dirname, './fixtures/catalog.xml'), { encoding: 'utf8' });
+
+function removeWhitespace(s) {
+  return s.replace(/>\s+</g, '><');
+}
+
+// Without indentation, the output should match what xsltproc produced
+var desired = fs.readFileSync(path.join(__dirname, './fixtures/for-each-result.xml'), { encoding: 'utf8' });
+var plain = xslt.transform(ss, docText, {}, { indent: false });
+assert.equal(removeWhitespace(plain), removeWhitespace(desired));
+
+// A compiled document may be transformed over and over
+var doc = xslt.compileDocument(docText);
+var expected = xslt.transform(ss, docText);
+for (var i = 0; i < 5; i++) {
+  assert.equal(xslt.transform(ss, doc), expected);
+}
+
+var nodeSs = nodeXslt.readXsltString(fs.readFileSync(path.join(__dirname, './fixtures/for-each.xsl')));
+var nodeDoc = nodeXslt.readXmlString(docText);
+assert.equal(nodeXslt.transform(nodeSs, nodeDoc, []), expected);
+assert.equal(nodeXslt.transform(nodeSs, nodeDoc, []), expected);
+
+var asyncDone = 0;
+for (i = 0; i < 5; i++) {
+  xslt.transform(ss, doc, {}, function(err, result) {
+    assert(!err);
+    assert.equal(result, expected);
+    asyncDone++;
+  });
+}
+
+// A document that isn't XML is only reported when it is transformed
+var bad = xslt.compileDocument('This is not even XML');
+assert.throws(function() {
+  xslt.transform(ss, bad);
+}, /TransformerException/);
+assert.throws(function() {
+  xslt.transform(ss, bad);
+}, /TransformerException/);
+
+// Make a document big enough that the output arrives in several chunks
+var bigText = '<catalog>';
+for (i = 0; i < 2000; i++) {
+  bigText += '<cd><title>Title ' + i + '</title><artist>Artist ' + i + '</artist></cd>';
+}
+bigText += '</catalog>';
+var bigDoc = xslt.compileDocument(bigText);
+var bigExpected = xslt.transform(ss, bigDoc);
+
+var chunks = [];
+var streamDone = false;
+var s = xslt.transformStream(ss, bigDoc);
+s.on('data', function(chunk) {
+  assert(Buffer.isBuffer(chunk));
+  chunks.push(chunk);
+});
+s.on('end', function() {
+  assert(chunks.length > 1);
+  assert.equal(Buffer.concat(chunks).toString('utf8'), bigExpected);
+  streamDone = true;
+});
+
+var errorDone = false;
+var es = xslt.transformStream(ss, bad);
+es.on('error', function(err) {
+  assert(err);
+  errorDone = true;
+});
+es.on('data', function() {
+  assert(false);
+});
+
+process.on('exit', function() {
+  assert.equal(asyncDone, 5);
+  assert(streamDone);
+  assert(errorDone);
+});
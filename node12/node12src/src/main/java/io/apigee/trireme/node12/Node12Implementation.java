@@ -26,6 +26,7 @@ import io.apigee.trireme.core.spi.NodeImplementation;
 import io.apigee.trireme.node12.modules.CaresWrap;
 import io.apigee.trireme.node12.modules.ConsoleWrap;
 import io.apigee.trireme.node12.modules.Contextify;
+import io.apigee.trireme.node12.modules.FSEventWrap;
 import io.apigee.trireme.node12.modules.Filesystem;
 import io.apigee.trireme.node12.modules.HTTPParser;
 import io.apigee.trireme.node12.modules.JavaStreamWrap;
@@ -128,6 +129,7 @@ public class Node12Implementation
         r.add(ConsoleWrap.class);
         r.add(Contextify.class);
         r.add(Filesystem.class);
+        r.add(FSEventWrap.class);
         r.add(HTTPParser.class);
         r.add(JavaStreamWrap.class);
         r.add(PipeWrap.class);
@@ -24,11 +24,13 @@ package io.apigee.trireme.node12.internal;
 import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.core.modules.Buffer;
+import io.apigee.trireme.kernel.Callback;
 import io.apigee.trireme.kernel.ErrorCodes;
-import io.apigee.trireme.kernel.handles.JavaInputStreamHandle;
 import io.apigee.trireme.kernel.handles.JavaOutputStreamHandle;
+import io.apigee.trireme.kernel.handles.ProcessStreamHandle;
 import io.apigee.trireme.kernel.streams.BitBucketInputStream;
 import io.apigee.trireme.kernel.streams.BitBucketOutputStream;
+import io.apigee.trireme.kernel.streams.ProcessPump;
 import io.apigee.trireme.kernel.streams.StreamPiper;
 import io.apigee.trireme.node12.modules.ProcessWrap;
 import org.mozilla.javascript.Context;
@@ -36,7 +38,6 @@ import org.mozilla.javascript.Scriptable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -150,21 +151,15 @@ public class SpawnedOSProcess
             }
         }
 
-        runtime.getUnboundedPool().submit(new Runnable()
+        getPump().watchExit(proc, new Callback<Integer>()
         {
             @Override
-            public void run()
+            public void call(Integer exitCode)
             {
-                try {
-                    int exitCode = proc.waitFor();
-                    if (log.isDebugEnabled()) {
-                        log.debug("Child process exited with {}", exitCode);
-                    }
-                    parent.callOnExit(exitCode);
-                } catch (InterruptedException ie) {
-                    // TODO some signal?
-                    parent.callOnExit(0);
+                if (log.isDebugEnabled()) {
+                    log.debug("Child process exited with {}", exitCode);
                 }
+                parent.callOnExit(exitCode);
             }
         });
 
@@ -194,9 +189,7 @@ public class SpawnedOSProcess
                 // Spawn a thread to copy input buffer to process stdin -- need a thread in case
                 // there is a lot of data
                 Buffer.BufferImpl buffer = (Buffer.BufferImpl)si.get("input", si);
-                ByteArrayInputStream stdin =
-                    new ByteArrayInputStream(buffer.getArray(), buffer.getArrayOffset(), buffer.getLength());
-                StreamPiper piper = new StreamPiper(stdin, proc.getOutputStream(), true);
+                StreamPiper piper = new StreamPiper(buffer.getInputStream(), proc.getOutputStream(), true);
                 piper.start(runtime.getUnboundedPool());
             }
         }
@@ -282,7 +275,7 @@ public class SpawnedOSProcess
             if (log.isDebugEnabled()) {
                 log.debug("Setting fd {} to input stream {}", arg, in);
             }
-            JavaInputStreamHandle streamHandle = new JavaInputStreamHandle(in, parent.getRuntime());
+            ProcessStreamHandle streamHandle = new ProcessStreamHandle(proc, in, getPump(), parent.getRuntime());
             Scriptable handle = createStreamHandle(cx, streamHandle);
             stdio.put("handle", stdio, handle);
 
@@ -290,19 +283,15 @@ public class SpawnedOSProcess
             if (log.isDebugEnabled()) {
                 log.debug("Setting fd {} to discard all output", arg);
             }
-            StreamPiper piper = new StreamPiper(in, new BitBucketOutputStream(), false);
-            piper.start(parent.getRuntime().getUnboundedPool());
+            getPump().pipe(proc, in, new BitBucketOutputStream());
 
         } else if (STDIO_FD.equals(type)) {
-            StreamPiper piper;
             switch (getStdioFD(stdio)) {
             case 1:
-                piper = new StreamPiper(in, parent.getRuntime().getStdout(), false);
-                piper.start(parent.getRuntime().getUnboundedPool());
+                getPump().pipe(proc, in, parent.getRuntime().getStdout(), parent.getRuntime());
                 break;
             case 2:
-                piper = new StreamPiper(in, parent.getRuntime().getStderr(), false);
-                piper.start(parent.getRuntime().getUnboundedPool());
+                getPump().pipe(proc, in, parent.getRuntime().getStderr(), parent.getRuntime());
                 break;
             default:
                 throw new AssertionError("Only FDs 0, 1, and 2 supported");
@@ -312,6 +301,11 @@ public class SpawnedOSProcess
         }
     }
 
+    private ProcessPump getPump()
+    {
+        return parent.getRuntime().getEnvironment().getProcessPump();
+    }
+
     private void setEnvironment(List<String> pairs,
                                   Map<String, String> env)
     {
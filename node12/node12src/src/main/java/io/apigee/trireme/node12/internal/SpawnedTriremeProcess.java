@@ -28,11 +28,13 @@ import io.apigee.trireme.core.ScriptFuture;
 import io.apigee.trireme.core.ScriptStatus;
 import io.apigee.trireme.core.ScriptStatusListener;
 import io.apigee.trireme.core.Utils;
+import io.apigee.trireme.core.modules.Constants;
 import io.apigee.trireme.kernel.ErrorCodes;
-import io.apigee.trireme.kernel.handles.JavaInputStreamHandle;
-import io.apigee.trireme.kernel.handles.JavaOutputStreamHandle;
+import io.apigee.trireme.kernel.handles.MemoryPipeReadHandle;
+import io.apigee.trireme.kernel.handles.MemoryPipeWriteHandle;
 import io.apigee.trireme.kernel.streams.BitBucketInputStream;
 import io.apigee.trireme.kernel.streams.BitBucketOutputStream;
+import io.apigee.trireme.kernel.streams.MemoryPipe;
 import io.apigee.trireme.kernel.streams.NoCloseInputStream;
 import io.apigee.trireme.kernel.streams.NoCloseOutputStream;
 import io.apigee.trireme.node12.modules.PipeWrap;
@@ -45,8 +47,7 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -71,7 +72,10 @@ public class SpawnedTriremeProcess
     private final boolean detached;
 
     private ScriptFuture future;
+    private volatile String killSignal;
     private PipeWrap.PipeImpl ipcPipe;
+    private MemoryPipe childStdin;
+    private final ArrayList<MemoryPipe> childOutputs = new ArrayList<MemoryPipe>();
 
     public SpawnedTriremeProcess(List<String> execArgs, String file, File cwd,
                                  Scriptable stdio, List<String> env, boolean detached,
@@ -168,16 +172,30 @@ public class SpawnedTriremeProcess
         future.setListener(new ScriptStatusListener()
         {
             @Override
-            public void onComplete(NodeScript script, ScriptStatus status)
+            public void onComplete(NodeScript script, final ScriptStatus status)
             {
                 if (log.isDebugEnabled()) {
                     log.debug("Child script exited with exit code {}", status.getExitCode());
                 }
-                if (ipcPipe != null) {
-                    // Unlike Linux the pipe doesn't close unless we tell it to close.
-                    ipcPipe.closePipe();
+                closeChildPipes();
+                if (ipcPipe == null) {
+                    reportExit(status);
+                    return;
                 }
-                parent.callOnExit(status.getExitCode());
+
+                // Unlike Linux the pipe doesn't close unless we tell it to close. Send EOF as if the child
+                // had closed its end, so that the parent sees "disconnect." Report the exit from a timer,
+                // so that the parent has processed the "disconnect" first, as it would in regular Node.
+                final PipeWrap.PipeImpl pipe = ipcPipe;
+                pipe.getIpcHandle().partnerExited();
+                parent.getRuntime().createTimedTask(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        pipe.closePipe();
+                        reportExit(status);
+                    }
+                }, 0L, TimeUnit.MILLISECONDS, false, null);
             }
         });
 
@@ -188,6 +206,15 @@ public class SpawnedTriremeProcess
         return 0;
     }
 
+    private void reportExit(ScriptStatus status)
+    {
+        if (status.isCancelled() && (killSignal != null)) {
+            parent.callOnExit(0, killSignal);
+        } else {
+            parent.callOnExit(status.getExitCode());
+        }
+    }
+
     @Override
     public SpawnSyncResult spawnSync(Context cx, long timeout, TimeUnit unit)
     {
@@ -198,6 +225,7 @@ public class SpawnedTriremeProcess
     public void terminate(String signal)
     {
         if (future != null) {
+            killSignal = (signal == null ? Constants.SIGTERM : signal);
             future.cancel(true);
         }
     }
@@ -211,15 +239,15 @@ public class SpawnedTriremeProcess
     {
         if (STDIO_PIPE.equals(type)) {
             // Create a pipe between stdin of this new process and an output stream handle.
-            // Use piped streams here for consistency so that we do everything using standard streams.
+            // The child's "process" module recognizes the pipe and reads it from its own event loop.
             if (log.isDebugEnabled()) {
                 log.debug("Creating input stream pipe for stdio {}", arg);
             }
-            PipedInputStream pipeIn = new PipedInputStream(PROCESS_PIPE_SIZE);
-            PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+            MemoryPipe pipe = new MemoryPipe(PROCESS_PIPE_SIZE);
+            childStdin = pipe;
 
-            sandbox.setStdin(pipeIn);
-            JavaOutputStreamHandle streamHandle = new JavaOutputStreamHandle(pipeOut);
+            sandbox.setStdin(pipe.getInputStream());
+            MemoryPipeWriteHandle streamHandle = new MemoryPipeWriteHandle(pipe, parent.getRuntime());
             Scriptable handle = createStreamHandle(cx, streamHandle);
             opts.put("handle", opts, handle);
 
@@ -249,14 +277,16 @@ public class SpawnedTriremeProcess
         throws IOException
     {
         if (STDIO_PIPE.equals(type)) {
-            // Pipe between us using a pipe that has a maximum size and can block
+            // Pipe between us using a pipe that has a maximum size. Neither side blocks on it --
+            // each side is told when the other has made progress.
             if (log.isDebugEnabled()) {
                 log.debug("Creating writable stream pipe for stdio {}", arg);
             }
-            PipedInputStream pipeIn = new PipedInputStream(PROCESS_PIPE_SIZE);
-            PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+            MemoryPipe pipe = new MemoryPipe(PROCESS_PIPE_SIZE);
+            childOutputs.add(pipe);
+            OutputStream pipeOut = pipe.getOutputStream();
 
-            JavaInputStreamHandle streamHandle = new JavaInputStreamHandle(pipeIn, parent.getRuntime());
+            MemoryPipeReadHandle streamHandle = new MemoryPipeReadHandle(pipe, parent.getRuntime());
             Scriptable handle = createStreamHandle(cx, streamHandle);
             opts.put("handle", opts, handle);
 
@@ -316,6 +346,20 @@ public class SpawnedTriremeProcess
         }
     }
 
+    /**
+     * Close the child's ends of any stdio pipes, as the OS would when a process exits, so that the
+     * parent sees EOF on output and stops writing input.
+     */
+    private void closeChildPipes()
+    {
+        if (childStdin != null) {
+            childStdin.closeRead();
+        }
+        for (MemoryPipe pipe : childOutputs) {
+            pipe.closeWrite();
+        }
+    }
+
     private void setupIpc(Context cx, Scriptable fdObj, String type)
     {
         if (!"pipe".equals(type)) {
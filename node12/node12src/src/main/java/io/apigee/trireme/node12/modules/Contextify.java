@@ -26,6 +26,7 @@ import io.apigee.trireme.core.NodeRuntime;
 import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.core.internal.AbstractIdObject;
 import io.apigee.trireme.core.internal.IdPropertyMap;
+import io.apigee.trireme.core.internal.ScriptCompiler;
 import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.core.internal.ScriptUtils;
 import io.apigee.trireme.kernel.Charsets;
@@ -206,7 +207,7 @@ public class Contextify
 
             Script compiled;
             try {
-                compiled = ScriptUtils.tryCompile(cx, code, options.fileName);
+                compiled = ScriptCompiler.get(cx).compile(cx, code, options.fileName);
             } catch (Throwable t) {
                 if (options.displayErrors) {
                     String msg = t.toString() + '\n';
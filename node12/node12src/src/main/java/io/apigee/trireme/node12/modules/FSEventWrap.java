@@ -0,0 +1,219 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.node12.modules;
+
+import io.apigee.trireme.core.InternalNodeModule;
+import io.apigee.trireme.core.NodeRuntime;
+import io.apigee.trireme.core.internal.AbstractIdObject;
+import io.apigee.trireme.core.internal.IdPropertyMap;
+import io.apigee.trireme.core.internal.ScriptRunner;
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.OSException;
+import io.apigee.trireme.kernel.fs.FileWatcher;
+import io.apigee.trireme.kernel.util.PinState;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static io.apigee.trireme.core.ArgUtils.*;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * This implements the "fs_event_wrap" internal module, which "fs.watch" uses. All the watches
+ * in the environment share the environment's FileWatcher, so that we don't need a thread per watch.
+ * Like Node on Linux, the "recursive" flag is ignored.
+ */
+public class FSEventWrap
+    implements InternalNodeModule
+{
+    private static final Logger log = LoggerFactory.getLogger(FSEventWrap.class);
+
+    @Override
+    public String getModuleName()
+    {
+        return "fs_event_wrap";
+    }
+
+    @Override
+    public Scriptable registerExports(Context cx, Scriptable scope, NodeRuntime runner)
+        throws InvocationTargetException, IllegalAccessException, InstantiationException
+    {
+        Scriptable export = cx.newObject(scope);
+
+        Function impl = new FSEventImpl().exportAsClass(export);
+        export.put(FSEventImpl.CLASS_NAME, export, impl);
+        return export;
+    }
+
+    public static class FSEventImpl
+        extends AbstractIdObject<FSEventImpl>
+        implements FileWatcher.Listener
+    {
+        public static final String CLASS_NAME = "FSEvent";
+
+        private static final IdPropertyMap props = new IdPropertyMap(CLASS_NAME);
+
+        private static final int
+            Id_start = 2,
+            Id_close = 3,
+            Id_ref = 4,
+            Id_unref = 5,
+            Prop_onchange = 1;
+
+        static {
+            props.addMethod("start", Id_start, 3);
+            props.addMethod("close", Id_close, 0);
+            props.addMethod("ref", Id_ref, 0);
+            props.addMethod("unref", Id_unref, 0);
+            props.addProperty("onchange", Prop_onchange, 0);
+        }
+
+        private final PinState pinState = new PinState();
+        private ScriptRunner runtime;
+        private FileWatcher.Registration registration;
+        private Function onChange;
+        private Object domain;
+
+        public FSEventImpl()
+        {
+            super(props);
+        }
+
+        @Override
+        protected FSEventImpl defaultConstructor(Context cx, Object[] args)
+        {
+            FSEventImpl impl = new FSEventImpl();
+            impl.runtime = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
+            return impl;
+        }
+
+        @Override
+        protected FSEventImpl defaultConstructor()
+        {
+            throw new AssertionError();
+        }
+
+        @Override
+        protected Object getInstanceIdValue(int id)
+        {
+            switch (id) {
+            case Prop_onchange:
+                return onChange;
+            default:
+                return super.getInstanceIdValue(id);
+            }
+        }
+
+        @Override
+        protected void setInstanceIdValue(int id, Object val)
+        {
+            switch (id) {
+            case Prop_onchange:
+                onChange = (Function)val;
+                break;
+            default:
+                super.setInstanceIdValue(id, val);
+                break;
+            }
+        }
+
+        @Override
+        protected Object prototypeCall(int id, Context cx, Scriptable scope, Object[] args)
+        {
+            switch (id) {
+            case Id_start:
+                return start(args);
+            case Id_close:
+                close();
+                break;
+            case Id_ref:
+                pinState.ref(runtime);
+                break;
+            case Id_unref:
+                pinState.unref(runtime);
+                break;
+            default:
+                return super.prototypeCall(id, cx, scope, args);
+            }
+            return Undefined.instance;
+        }
+
+        private int start(Object[] args)
+        {
+            String fileName = stringArg(args, 0);
+            boolean persistent = booleanArg(args, 1, true);
+
+            if (registration != null) {
+                return ErrorCodes.EINVAL;
+            }
+
+            File file = runtime.translatePath(fileName);
+            if ((file == null) || !file.exists()) {
+                return ErrorCodes.ENOENT;
+            }
+
+            try {
+                registration = runtime.getEnvironment().getFileWatcher().watch(file, this);
+            } catch (OSException ose) {
+                return ose.getCode();
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Watching {} for changes", file);
+            }
+            domain = runtime.getDomain();
+            runtime.registerCloseable(registration);
+            if (persistent) {
+                pinState.requestPin(runtime);
+            }
+            return 0;
+        }
+
+        private void close()
+        {
+            if (registration != null) {
+                registration.close();
+                runtime.unregisterCloseable(registration);
+                registration = null;
+            }
+            pinState.clearPin(runtime);
+        }
+
+        /**
+         * Called in the watcher thread.
+         */
+        @Override
+        public void fileChanged(String event, String fileName)
+        {
+            Function f = onChange;
+            if (f != null) {
+                runtime.enqueueCallback(f, this, this, domain,
+                                        new Object[] { 0, event, fileName });
+            }
+        }
+    }
+}
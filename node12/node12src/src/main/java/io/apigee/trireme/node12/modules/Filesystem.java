@@ -34,20 +34,29 @@ import io.apigee.trireme.core.modules.Constants;
 import io.apigee.trireme.kernel.Charsets;
 import io.apigee.trireme.kernel.ErrorCodes;
 import io.apigee.trireme.kernel.OSException;
+import io.apigee.trireme.kernel.PathTranslator;
 import io.apigee.trireme.kernel.fs.BasicFilesystem;
+import io.apigee.trireme.kernel.fs.FileConstants;
+import io.apigee.trireme.kernel.fs.FileContentCache;
 import io.apigee.trireme.kernel.fs.FileStats;
+import io.apigee.trireme.kernel.fs.StatCache;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.json.JsonParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static io.apigee.trireme.core.ArgUtils.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.Executor;
 
@@ -78,6 +87,8 @@ public class Filesystem
         Function reqWrap = new FSReqWrap().exportAsClass(fs);
         fs.initialize(runner, runner.getAsyncPool());
         fs.put(FSReqWrap.CLASS_NAME, fs, reqWrap);
+        Function statWatcher = new StatWatcher().exportAsClass(fs);
+        fs.put(StatWatcher.CLASS_NAME, fs, statWatcher);
         return fs;
     }
 
@@ -93,6 +104,10 @@ public class Filesystem
         protected Executor pool;
         private BasicFilesystem fs;
         private Function makeStats;
+        private PathTranslator translator;
+        private StatCache statCache;
+        private FileContentCache fileCache;
+        private final HashMap<String, PackageMain> packageMainCache = new HashMap<String, PackageMain>();
 
         private static final int
             Id_chmod = 2,
@@ -121,6 +136,8 @@ public class Filesystem
             Id_writeBuffer = 25,
             Id_writeString = 26,
             Id_fsInitialize = 27,
+            Id_findModulePath = 28,
+            Id_readFile = 29,
             Id_fsReqWrap = 1;
 
         static {
@@ -151,6 +168,8 @@ public class Filesystem
             props.addMethod("rmdir", Id_rmdir, 2);
             props.addMethod("ftruncate", Id_ftruncate, 3);
             props.addMethod("FSInitialize", Id_fsInitialize, 1);
+            props.addMethod("findModulePath", Id_findModulePath, 4);
+            props.addMethod("readFile", Id_readFile, 2);
         }
 
         public FSImpl()
@@ -169,6 +188,11 @@ public class Filesystem
             this.runner = (ScriptRunner)runner;
             this.pool = fsPool;
             this.fs = this.runner.getFilesystem();
+            this.translator = this.runner.getPathTranslator();
+            if (translator.hasImmutableMounts()) {
+                this.statCache = this.runner.getEnvironment().getStatCache();
+            }
+            this.fileCache = this.runner.getEnvironment().getFileContentCache();
         }
 
         @Override
@@ -241,6 +265,32 @@ public class Filesystem
             return trans;
         }
 
+        /**
+         * Stat a file, using the environment-wide cache if the file is on an immutable mount.
+         */
+        private FileStats statFile(File f, String path, boolean noFollow)
+            throws OSException
+        {
+            if ((statCache != null) && translator.isImmutable(f)) {
+                return statCache.stat(fs, f, path, noFollow);
+            }
+            return fs.stat(f, path, noFollow);
+        }
+
+        /**
+         * Called after anything that may change the stats of a file, just in case someone changed a file
+         * on an "immutable" mount anyway.
+         */
+        private void invalidate(File f)
+        {
+            if ((statCache != null) && translator.isImmutable(f)) {
+                statCache.invalidate(f);
+            }
+            if (fileCache != null) {
+                fileCache.invalidate(f);
+            }
+        }
+
         private Buffer.BufferImpl ensureBuffer(Context cx,
                                                Object[] args, int pos)
         {
@@ -309,6 +359,10 @@ public class Filesystem
                 return readlink(cx, args);
             case Id_fsInitialize:
                 return fsInitialize(args);
+            case Id_findModulePath:
+                return findModulePath(cx, scope, args);
+            case Id_readFile:
+                return readFile(cx, scope, args);
             default:
                 return super.prototypeCall(id, cx, scope, args);
             }
@@ -323,6 +377,230 @@ public class Filesystem
             return Undefined.instance;
         }
 
+        /**
+         * This is a native version of "Module._findPath" from module.js, which otherwise makes a
+         * round trip to Java for every candidate file name. It takes the request, the array of
+         * paths to search, the array of extensions, and the cache used by "fs.realpathSync." It returns
+         * the file that was found, which the caller must still pass to "realpathSync," or false if nothing
+         * was found. If the file is on an immutable mount, then its real path is added to the cache
+         * so that "realpathSync" will return right away. It returns null if module.js needs to
+         * search on its own, which happens if a "package.json" can't be parsed so that the
+         * error message is the same.
+         */
+        private Object findModulePath(Context cx, Scriptable scope, Object[] args)
+        {
+            String request = stringArg(args, 0);
+            Scriptable paths = objArg(cx, scope, args, 1, Scriptable.class, true);
+            Scriptable extArray = objArg(cx, scope, args, 2, Scriptable.class, true);
+            Scriptable realpathCache = objArg(cx, scope, args, 3, Scriptable.class, false);
+
+            if (File.separatorChar != '/') {
+                // The path manipulation below only handles Posix paths
+                return null;
+            }
+
+            Object[] searchPaths = cx.getElements(paths);
+            Object[] extObjs = cx.getElements(extArray);
+            String[] exts = new String[extObjs.length];
+            for (int i = 0; i < extObjs.length; i++) {
+                exts[i] = Context.toString(extObjs[i]);
+            }
+
+            if (request.startsWith("/")) {
+                searchPaths = new Object[] { "" };
+            }
+            boolean trailingSlash = request.endsWith("/");
+
+            try {
+                for (Object sp : searchPaths) {
+                    String basePath = resolvePath(Context.toString(sp), request);
+                    String filename = null;
+
+                    if (!trailingSlash) {
+                        filename = tryModuleFile(basePath);
+                        if (filename == null) {
+                            filename = tryModuleExtensions(basePath, exts);
+                        }
+                    }
+                    if (filename == null) {
+                        filename = tryModulePackage(cx, scope, basePath, exts);
+                    }
+                    if (filename == null) {
+                        filename = tryModuleExtensions(resolvePath(basePath, "index"), exts);
+                    }
+
+                    if (filename != null) {
+                        if (realpathCache != null) {
+                            cacheRealPath(filename, realpathCache);
+                        }
+                        return filename;
+                    }
+                }
+                return Boolean.FALSE;
+
+            } catch (CannotResolveException cre) {
+                return null;
+            }
+        }
+
+        private String tryModuleFile(String path)
+        {
+            try {
+                File f = translatePath(path);
+                FileStats stats = statFile(f, path, false);
+                if ((stats.getMode() & FileConstants.S_IFMT) != FileConstants.S_IFDIR) {
+                    return path;
+                }
+            } catch (OSException ose) {
+                // Just like module.js, treat any error as "not found"
+            }
+            return null;
+        }
+
+        private String tryModuleExtensions(String path, String[] exts)
+        {
+            for (String ext : exts) {
+                String filename = tryModuleFile(path + ext);
+                if (filename != null) {
+                    return filename;
+                }
+            }
+            return null;
+        }
+
+        private String tryModulePackage(Context cx, Scriptable scope, String path, String[] exts)
+            throws CannotResolveException
+        {
+            String main = readPackageMain(cx, scope, path);
+            if (main == null) {
+                return null;
+            }
+
+            String filename = resolvePath(path, main);
+            String found = tryModuleFile(filename);
+            if (found == null) {
+                found = tryModuleExtensions(filename, exts);
+            }
+            if (found == null) {
+                found = tryModuleExtensions(resolvePath(filename, "index"), exts);
+            }
+            return found;
+        }
+
+        /**
+         * Return the "main" property from "package.json" in the directory, or null if there is none.
+         * The result is cached like module.js does, but unless the directory is on an immutable mount we
+         * check the modification time of "package.json" every time so that an edited file is picked up.
+         */
+        private String readPackageMain(Context cx, Scriptable scope, String path)
+            throws CannotResolveException
+        {
+            File pf;
+            try {
+                pf = translatePath(resolvePath(path, "package.json"));
+            } catch (OSException ose) {
+                pf = null;
+            }
+            boolean immutable = ((pf != null) && (statCache != null) && translator.isImmutable(pf));
+            // "lastModified" returns zero if the file does not exist
+            long modified = (((pf == null) || immutable) ? 0L : pf.lastModified());
+
+            PackageMain cached = packageMainCache.get(path);
+            if ((cached != null) && (immutable || (cached.modified == modified))) {
+                return cached.main;
+            }
+
+            String main = null;
+            String json = null;
+            try {
+                if ((pf != null) && pf.isFile()) {
+                    json = new String(Files.readAllBytes(pf.toPath()), Charsets.UTF8);
+                }
+            } catch (IOException ioe) {
+                // Not found either as far as module.js is concerned
+            }
+
+            if (json != null) {
+                Object parsed;
+                try {
+                    parsed = new JsonParser(cx, scope).parseValue(json);
+                } catch (JsonParser.ParseException pe) {
+                    throw new CannotResolveException();
+                }
+                if (parsed instanceof Scriptable) {
+                    Object m = ((Scriptable)parsed).get("main", (Scriptable)parsed);
+                    if (m instanceof CharSequence) {
+                        main = m.toString();
+                    } else if ((m != Scriptable.NOT_FOUND) && Context.toBoolean(m)) {
+                        // Something weird like a number -- let module.js deal with it
+                        throw new CannotResolveException();
+                    }
+                }
+            }
+
+            if ((main != null) && main.isEmpty()) {
+                main = null;
+            }
+            packageMainCache.put(path, new PackageMain(main, modified));
+            return main;
+        }
+
+        /**
+         * If the file is under an immutable mount, then use the environment-wide cache to find out its real
+         * path and save it in the cache that module.js passes to "realpathSync."
+         */
+        private void cacheRealPath(String path, Scriptable realpathCache)
+        {
+            if (statCache == null) {
+                return;
+            }
+            try {
+                File f = translatePath(path);
+                if (!translator.isImmutable(f)) {
+                    return;
+                }
+                File real = statCache.realPath(f, path);
+                String realPath = translator.reverseTranslateImmutable(real);
+                if (realPath != null) {
+                    realpathCache.put(path, realpathCache, realPath);
+                }
+            } catch (OSException ose) {
+                // "realpathSync" will find the same error on its own
+            }
+        }
+
+        /**
+         * Do what "path.resolve(dir, name)" does on Posix.
+         */
+        private String resolvePath(String dir, String name)
+        {
+            String path;
+            if (name.startsWith("/")) {
+                path = name;
+            } else if (dir.startsWith("/")) {
+                path = dir + '/' + name;
+            } else {
+                path = runner.getWorkingDirectory() + '/' + dir + '/' + name;
+            }
+
+            ArrayList<String> parts = new ArrayList<String>();
+            for (String part : path.split("/")) {
+                if ("..".equals(part)) {
+                    if (!parts.isEmpty()) {
+                        parts.remove(parts.size() - 1);
+                    }
+                } else if (!part.isEmpty() && !".".equals(part)) {
+                    parts.add(part);
+                }
+            }
+
+            StringBuilder result = new StringBuilder(path.length());
+            for (String part : parts) {
+                result.append('/').append(part);
+            }
+            return (result.length() == 0 ? "/" : result.toString());
+        }
+
         private Object open(Context cx, Object[] args)
         {
             final String pathStr = stringArg(args, 0);
@@ -336,6 +614,10 @@ public class Filesystem
                     throws OSException
                 {
                     File path = translatePath(pathStr);
+                    if ((flags & (FileConstants.O_CREAT | FileConstants.O_TRUNC |
+                                  FileConstants.O_WRONLY | FileConstants.O_RDWR)) != 0) {
+                        invalidate(path);
+                    }
                     return fs.open(path, pathStr, flags, mode, runner.getProcess().getUmask());
                 }
             });
@@ -374,9 +656,7 @@ public class Filesystem
                 throw Utils.makeError(cx, this, "Length extends beyond buffer", Constants.EINVAL);
             }
 
-            byte[] bytes = buf.getArray();
-            int bytesOffset = buf.getArrayOffset() + off;
-            final ByteBuffer readBuf = ByteBuffer.wrap(bytes, bytesOffset, len);
+            final ByteBuffer readBuf = buf.getBuffer(off, len);
 
             if (pos < 0L) {
                 // Case for a "positional read" that reads from the "current position"
@@ -447,9 +727,7 @@ public class Filesystem
 
             checkWritePos(cx, buf.getLength(), off, len);
 
-            byte[] bytes = buf.getArray();
-            int bytesOffset = buf.getArrayOffset() + off;
-            ByteBuffer writeBuf = ByteBuffer.wrap(bytes, bytesOffset, len);
+            ByteBuffer writeBuf = buf.getBuffer(off, len);
 
             return doWrite(cx, fd, writeBuf, req, len, pos);
         }
@@ -509,6 +787,8 @@ public class Filesystem
                     File newFile = translatePath(newPath);
 
                     fs.rename(oldFile, oldPath, newFile, newPath);
+                    invalidate(oldFile);
+                    invalidate(newFile);
                     return Undefined.instance;
                 }
             });
@@ -544,6 +824,7 @@ public class Filesystem
                 {
                     File file = translatePath(path);
                     fs.rmdir(file, path);
+                    invalidate(file);
                     return Undefined.instance;
                 }
             });
@@ -561,6 +842,7 @@ public class Filesystem
                 {
                     File file = translatePath(path);
                     fs.unlink(file, path);
+                    invalidate(file);
                     return Undefined.instance;
                 }
             });
@@ -580,11 +862,51 @@ public class Filesystem
                 {
                     File file = translatePath(path);
                     fs.mkdir(file, path, mode, runner.getProcess().getUmask());
+                    invalidate(file);
                     return Undefined.instance;
                 }
             });
         }
 
+        /**
+         * Read the whole file into a single Buffer in one operation, so that "fs.readFile" doesn't
+         * need a separate call for open, fstat, every read, and close.
+         */
+        private Object readFile(Context cx, Scriptable scope, Object[] args)
+        {
+            final String path = stringArg(args, 0);
+            FSReqWrap req = objArg(cx, scope, args, 1, FSReqWrap.class, false);
+
+            return runAction(cx, req, new AsyncAction()
+            {
+                @Override
+                public Object execute()
+                    throws OSException
+                {
+                    return doReadFile(path);
+                }
+            });
+        }
+
+        private Object doReadFile(String path)
+            throws OSException
+        {
+            File f = translatePath(path);
+            byte[] data;
+            if (fileCache == null) {
+                data = FileContentCache.readWholeFile(f, path);
+            } else {
+                data = fileCache.readFile(f, path);
+            }
+
+            Context cx = Context.enter();
+            try {
+                return Buffer.BufferImpl.newBuffer(cx, this, data);
+            } finally {
+                Context.exit();
+            }
+        }
+
         private Object readdir(Context cx, Object[] args)
         {
             final String path = stringArg(args, 0);
@@ -632,7 +954,7 @@ public class Filesystem
             });
         }
 
-        private Object makeStats(Context cx, FileStats stats)
+        Object makeStats(Context cx, FileStats stats)
         {
             // This could happen in an async thread. That should be OK since the "makestats"
             // function does very little other than assign stuff.
@@ -652,7 +974,7 @@ public class Filesystem
             Context cx = Context.enter();
             try {
                 File f = translatePath(fn);
-                FileStats stats = fs.stat(f, fn, noFollow);
+                FileStats stats = statFile(f, fn, noFollow);
                 return makeStats(cx, stats);
             } finally {
                 Context.exit();
@@ -719,6 +1041,7 @@ public class Filesystem
                     long atimeL = (long)(atime * 1000.0);
 
                     fs.utimes(f, path, mtimeL, atimeL);
+                    invalidate(f);
                     return Undefined.instance;
                 }
             });
@@ -756,6 +1079,7 @@ public class Filesystem
                 {
                     File f = translatePath(path);
                     fs.chmod(f, path, mode, runner.getProcess().getUmask(), false);
+                    invalidate(f);
                     return Undefined.instance;
                 }
             });
@@ -792,6 +1116,7 @@ public class Filesystem
                 {
                     File file = translatePath(path);
                     fs.chown(file, path, uid, gid, false);
+                    invalidate(file);
                     return Undefined.instance;
                 }
             });
@@ -830,6 +1155,7 @@ public class Filesystem
                     File targetFile = translatePath(targetPath);
                     File linkFile = translatePath(linkPath);
                     fs.link(targetFile, targetPath, linkFile, linkPath);
+                    invalidate(linkFile);
                     return Undefined.instance;
                 }
             });
@@ -851,6 +1177,7 @@ public class Filesystem
                     File srcFile = translatePath(srcPath);
                     File destFile = translatePath(destPath);
                     fs.symlink(destFile, destPath, srcFile, srcPath);
+                    invalidate(destFile);
                     return Undefined.instance;
                 }
             });
@@ -873,6 +1200,23 @@ public class Filesystem
         }
     }
 
+    private static final class CannotResolveException
+        extends Exception
+    {
+    }
+
+    private static final class PackageMain
+    {
+        final String main;
+        final long modified;
+
+        PackageMain(String main, long modified)
+        {
+            this.main = main;
+            this.modified = modified;
+        }
+    }
+
     private abstract static class AsyncAction
     {
         public abstract Object execute()
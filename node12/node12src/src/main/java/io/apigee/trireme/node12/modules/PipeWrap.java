@@ -29,6 +29,7 @@ import io.apigee.trireme.core.internal.IdPropertyMap;
 import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.core.internal.TriremeProcess;
 import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.OSException;
 import io.apigee.trireme.kernel.TriCallback;
 import io.apigee.trireme.kernel.handles.ChildServerHandle;
 import io.apigee.trireme.kernel.handles.IpcHandle;
@@ -198,14 +199,22 @@ public class PipeWrap
 
         private TCPWrap.TCPImpl convertTcpHandle(TCPWrap.TCPImpl tcp)
         {
-            // For a server, we will create a new handle here, but since the client is already listening,
-            // we don't have to actually do anything to id.
+            // A server becomes a child handle that gets connections from the original one. A connected
+            // socket moves to this script, so that its I/O happens on our thread and not the sender's.
+            if (!(tcp.getHandle() instanceof NIOSocketHandle)) {
+                return tcp;
+            }
             NIOSocketHandle sockHandle = (NIOSocketHandle)tcp.getHandle();
             SocketHandle childSockHandle;
             if (sockHandle.isServerChannel()) {
                 childSockHandle = new ChildServerHandle(sockHandle, runtime);
             } else {
-                childSockHandle = sockHandle;
+                try {
+                    childSockHandle = sockHandle.transfer(runtime);
+                } catch (OSException ose) {
+                    log.debug("Error transferring socket via IPC: {}", ose);
+                    return tcp;
+                }
             }
 
             TCPWrap.TCPImpl newHandle =
@@ -23,14 +23,19 @@ package io.apigee.trireme.node12.modules;
 
 import io.apigee.trireme.core.NodeModule;
 import io.apigee.trireme.core.NodeRuntime;
+import io.apigee.trireme.core.Sandbox;
 import io.apigee.trireme.core.internal.*;
 import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.core.modules.Buffer;
 import io.apigee.trireme.core.modules.NativeModule;
 import io.apigee.trireme.kernel.handles.AbstractHandle;
+import io.apigee.trireme.kernel.handles.AsyncOutputStreamHandle;
 import io.apigee.trireme.kernel.handles.ConsoleHandle;
 import io.apigee.trireme.kernel.handles.JavaInputStreamHandle;
 import io.apigee.trireme.kernel.handles.JavaOutputStreamHandle;
+import io.apigee.trireme.kernel.handles.MemoryPipeReadHandle;
+import io.apigee.trireme.kernel.handles.MemoryPipeWriteHandle;
+import io.apigee.trireme.kernel.streams.MemoryPipe;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.EvaluatorException;
 import org.mozilla.javascript.Function;
@@ -43,6 +48,7 @@ import org.slf4j.LoggerFactory;
 
 import static io.apigee.trireme.core.ArgUtils.*;
 
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -551,7 +557,7 @@ public class Process
                 streamHandle = new ConsoleHandle(runner);
                 return createConsoleHandle(cx, streamHandle);
             } else {
-                streamHandle = new JavaOutputStreamHandle(runner.getStdout());
+                streamHandle = createOutputHandle(runner.getStdout());
                 return createStreamHandle(cx, streamHandle, false);
             }
         }
@@ -559,10 +565,35 @@ public class Process
         private Object getStderrHandle()
         {
             Context cx = Context.getCurrentContext();
-            JavaOutputStreamHandle streamHandle = new JavaOutputStreamHandle(runner.getStderr());
+            AbstractHandle streamHandle = createOutputHandle(runner.getStderr());
             return createStreamHandle(cx, streamHandle, false);
         }
 
+        /**
+         * If we were spawned by another script, stdout and stderr may be in-memory pipes, which we write
+         * directly from our own event loop rather than blocking. Otherwise the sandbox may ask for output
+         * to be written by a separate thread.
+         */
+        private AbstractHandle createOutputHandle(OutputStream out)
+        {
+            if (out instanceof MemoryPipe.PipeOutputStream) {
+                MemoryPipeWriteHandle handle =
+                    new MemoryPipeWriteHandle(((MemoryPipe.PipeOutputStream)out).getPipe(), runner);
+                // Like a real process, deliver everything that was written before the parent sees EOF
+                handle.flushOnExit();
+                return handle;
+            }
+            Sandbox sb = runner.getSandbox();
+            if ((sb != null) && sb.isAsyncOutput()) {
+                AsyncOutputStreamHandle.OverflowPolicy policy =
+                    (sb.getAsyncOutputPolicy() == null ?
+                        AsyncOutputStreamHandle.OverflowPolicy.QUEUE : sb.getAsyncOutputPolicy());
+                return new AsyncOutputStreamHandle(out, sb.getAsyncOutputSize(), policy,
+                                                   runner.getEnvironment().getStreamDrainer(), runner);
+            }
+            return new JavaOutputStreamHandle(out);
+        }
+
         /**
          * If no stream was set up, use this handle instead. trireme.js will pass it to net.socket to create
          * stdout.
@@ -575,6 +606,10 @@ public class Process
             if ((runner.getStdin() == System.in) && ConsoleHandle.isConsoleSupported()) {
                 streamHandle = new ConsoleHandle(runner);
                 return createConsoleHandle(cx, streamHandle);
+            } else if (runner.getStdin() instanceof MemoryPipe.PipeInputStream) {
+                streamHandle =
+                    new MemoryPipeReadHandle(((MemoryPipe.PipeInputStream)runner.getStdin()).getPipe(), runner);
+                return createStreamHandle(cx, streamHandle, runner.getScriptObject()._isChildProcess());
             } else {
                 streamHandle = new JavaInputStreamHandle(runner.getStdin(), runner);
                 return createStreamHandle(cx, streamHandle, runner.getScriptObject()._isChildProcess());
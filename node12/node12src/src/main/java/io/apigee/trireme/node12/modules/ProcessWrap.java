@@ -272,12 +272,20 @@ public class ProcessWrap
         }
 
         public void callOnExit(int exitCode)
+        {
+            callOnExit(exitCode, null);
+        }
+
+        /**
+         * Report that the process exited, and if "signal" is not null, that it was killed by that signal.
+         */
+        public void callOnExit(int exitCode, String signal)
         {
             ProcessManager.get().removeProcess(pid);
             if (onExit != null) {
                 // Give scripts, especially tests, a chance to set up callbacks
-                runtime.enqueueCallback(onExit, onExit, this, runtime.getDomain(),
-                                        new Object[]{exitCode});
+                Object[] args = (signal == null ? new Object[] { exitCode } : new Object[] { exitCode, signal });
+                runtime.enqueueCallback(onExit, onExit, this, runtime.getDomain(), args);
             }
             pinState.clearPin(runtime);
         }
@@ -302,13 +310,25 @@ public class ProcessWrap
 
         private Object kill(Context cx, Object[] args)
         {
-            return Undefined.instance;
+            String signal = stringArg(args, 0, null);
+            return kill(signal);
+        }
+
+        private int kill(String signal)
+        {
+            if (spawned != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Killing {}", spawned);
+                }
+                spawned.terminate(signal);
+            }
+            return 0;
         }
 
         @Override
         public void kill(Context cx, Scriptable thisObj, int code, int signal)
         {
-            // TODO!
+            kill(String.valueOf(signal));
         }
 
         private String getCwdOption(Scriptable s)
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.node12.modules;
+
+import io.apigee.trireme.core.internal.AbstractIdObject;
+import io.apigee.trireme.core.internal.FileStatWatcher;
+import io.apigee.trireme.core.internal.IdPropertyMap;
+import io.apigee.trireme.core.internal.ScriptRunner;
+import io.apigee.trireme.kernel.fs.FileStats;
+import io.apigee.trireme.kernel.util.PinState;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Undefined;
+
+import static io.apigee.trireme.core.ArgUtils.*;
+
+/**
+ * This implements the "StatWatcher" class from the "fs" internal module, which is used by "fs.watchFile".
+ * The watching itself is done by FileStatWatcher.
+ */
+public class StatWatcher
+    extends AbstractIdObject<StatWatcher>
+    implements FileStatWatcher.Listener
+{
+    public static final String CLASS_NAME = "StatWatcher";
+
+    private static final IdPropertyMap props = new IdPropertyMap(CLASS_NAME);
+
+    private static final int
+        Id_start = 2,
+        Id_stop = 3,
+        Id_ref = 4,
+        Id_unref = 5,
+        Prop_onchange = 1,
+        Prop_onstop = 2;
+
+    static {
+        props.addMethod("start", Id_start, 3);
+        props.addMethod("stop", Id_stop, 0);
+        props.addMethod("ref", Id_ref, 0);
+        props.addMethod("unref", Id_unref, 0);
+        props.addProperty("onchange", Prop_onchange, 0);
+        props.addProperty("onstop", Prop_onstop, 0);
+    }
+
+    private final PinState pinState = new PinState();
+    private ScriptRunner runner;
+    private Filesystem.FSImpl fs;
+    private Function onChange;
+    private Function onStop;
+    private FileStatWatcher watcher;
+
+    public StatWatcher()
+    {
+        super(props);
+    }
+
+    @Override
+    protected StatWatcher defaultConstructor(Context cx, Object[] args)
+    {
+        StatWatcher w = new StatWatcher();
+        w.runner = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
+        w.fs = (Filesystem.FSImpl)w.runner.requireInternal("fs", cx);
+        return w;
+    }
+
+    @Override
+    protected StatWatcher defaultConstructor()
+    {
+        throw new AssertionError();
+    }
+
+    @Override
+    protected Object getInstanceIdValue(int id)
+    {
+        switch (id) {
+        case Prop_onchange:
+            return onChange;
+        case Prop_onstop:
+            return onStop;
+        default:
+            return super.getInstanceIdValue(id);
+        }
+    }
+
+    @Override
+    protected void setInstanceIdValue(int id, Object val)
+    {
+        switch (id) {
+        case Prop_onchange:
+            onChange = (Function)val;
+            break;
+        case Prop_onstop:
+            onStop = (Function)val;
+            break;
+        default:
+            super.setInstanceIdValue(id, val);
+            break;
+        }
+    }
+
+    @Override
+    protected Object prototypeCall(int id, Context cx, Scriptable scope, Object[] args)
+    {
+        switch (id) {
+        case Id_start:
+            start(args);
+            break;
+        case Id_stop:
+            stop(cx);
+            break;
+        case Id_ref:
+            pinState.ref(runner);
+            break;
+        case Id_unref:
+            pinState.unref(runner);
+            break;
+        default:
+            return super.prototypeCall(id, cx, scope, args);
+        }
+        return Undefined.instance;
+    }
+
+    private void start(Object[] args)
+    {
+        String path = stringArg(args, 0);
+        boolean persistent = booleanArg(args, 1);
+        long interval = longArg(args, 2);
+
+        if (persistent) {
+            pinState.requestPin(runner);
+        }
+        watcher = new FileStatWatcher(runner, path, this);
+        watcher.start(interval);
+    }
+
+    private void stop(Context cx)
+    {
+        if ((watcher != null) && watcher.stop()) {
+            if (onStop != null) {
+                onStop.call(cx, onStop, this, ScriptRuntime.emptyArgs);
+            }
+        }
+        pinState.clearPin(runner);
+    }
+
+    @Override
+    public void statsChanged(Context cx, FileStats os, FileStats ns)
+    {
+        if (onChange == null) {
+            return;
+        }
+
+        int status = (ns == FileStatWatcher.EMPTY_STATS ? -1 : 0);
+        onChange.call(cx, onChange, this,
+                      new Object[] { fs.makeStats(cx, ns), fs.makeStats(cx, os), status });
+    }
+}
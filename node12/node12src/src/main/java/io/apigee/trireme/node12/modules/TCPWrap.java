@@ -27,7 +27,9 @@ import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.core.internal.AbstractIdObject;
 import io.apigee.trireme.core.internal.IdPropertyMap;
 import io.apigee.trireme.core.internal.ScriptRunner;
+import io.apigee.trireme.kernel.ErrorCodes;
 import io.apigee.trireme.kernel.OSException;
+import io.apigee.trireme.kernel.fs.AbstractFileHandle;
 import io.apigee.trireme.kernel.handles.AbstractHandle;
 import io.apigee.trireme.kernel.handles.IOCompletionHandler;
 import io.apigee.trireme.kernel.handles.NIOSocketHandle;
@@ -94,7 +96,9 @@ public class TCPWrap
             Id_getsockname = MAX_METHOD + 7,
             Id_getpeername = MAX_METHOD + 8,
             Id_setnodelay = MAX_METHOD + 9,
-            Id_setkeepalive = MAX_METHOD + 10;
+            Id_setkeepalive = MAX_METHOD + 10,
+            Id_sendFile = MAX_METHOD + 11,
+            Id_setDistribution = MAX_METHOD + 12;
 
         static {
             JavaStreamWrap.StreamWrapImpl.defineIds(props);
@@ -109,6 +113,8 @@ public class TCPWrap
             props.addMethod("getpeername", Id_getpeername, 1);
             props.addMethod("setNoDelay", Id_setnodelay, 1);
             props.addMethod("setKeepAlive", Id_setkeepalive, 1);
+            props.addMethod("sendFile", Id_sendFile, 4);
+            props.addMethod("setDistribution", Id_setDistribution, 1);
         }
 
         public TCPImpl()
@@ -192,6 +198,10 @@ public class TCPWrap
             case Id_setkeepalive:
                 setKeepAlive(cx, args);
                 break;
+            case Id_sendFile:
+                return sendFile(cx, args);
+            case Id_setDistribution:
+                return setDistribution(args);
             default:
                 return super.prototypeCall(id, cx, scope, args);
             }
@@ -278,6 +288,78 @@ public class TCPWrap
             });
         }
 
+        /**
+         * Send part of an open file directly to the socket without copying it into a buffer. The
+         * arguments are a WriteWrap, a file descriptor from the "fs" module, the position in the file,
+         * or -1 to use the current position of the descriptor, and the number of bytes, or -1 to
+         * send until the end of the file. Just like "writeBuffer," it returns an error code, and calls
+         * "oncomplete" on the WriteWrap when done, with "bytes" set to the number of bytes sent.
+         * ENOTIMP is returned right away if this kind of socket can't do it.
+         */
+        private Object sendFile(Context cx, Object[] args)
+        {
+            final StreamWrap.WriteWrap req = objArg(cx, this, args, 0, StreamWrap.WriteWrap.class, true);
+            int fd = intArg(args, 1);
+            long position = longArg(args, 2, -1L);
+            long length = longArg(args, 3, -1L);
+
+            if (!(sockHandle instanceof NIOSocketHandle)) {
+                return ErrorCodes.ENOTIMP;
+            }
+
+            final AbstractFileHandle fileHandle;
+            try {
+                fileHandle = runtime.getFilesystem().getFileHandle(fd);
+            } catch (OSException ose) {
+                return ose.getCode();
+            }
+
+            final boolean usePosition = (position < 0L);
+            final long start = (usePosition ? fileHandle.getPosition() : position);
+            final TCPImpl self = this;
+
+            try {
+                int len = ((NIOSocketHandle)sockHandle).sendFile(fileHandle.getChannel(), start, length,
+                    new IOCompletionHandler<Integer>()
+                    {
+                        @Override
+                        public void ioComplete(int errCode, Integer value)
+                        {
+                            if (usePosition && (errCode == 0)) {
+                                fileHandle.setPosition(start + value);
+                            }
+                            req.setBytes(value);
+                            req.callOnComplete(Context.getCurrentContext(), self, self, errCode);
+                        }
+                    });
+                req.setBytes(len);
+                byteCount += len;
+            } catch (OSException ose) {
+                return ose.getCode();
+            }
+            return 0;
+        }
+
+        /**
+         * Choose how a server handle that is shared by "cluster" workers picks the worker for each new
+         * connection: "rr" for round-robin or "leastconn" for the worker with the fewest open connections.
+         */
+        private Object setDistribution(Object[] args)
+        {
+            String policy = stringArg(args, 0);
+            if (!(sockHandle instanceof NIOSocketHandle)) {
+                return ErrorCodes.EINVAL;
+            }
+            if ("rr".equals(policy)) {
+                ((NIOSocketHandle)sockHandle).setDistribution(NIOSocketHandle.Distribution.ROUND_ROBIN);
+            } else if ("leastconn".equals(policy)) {
+                ((NIOSocketHandle)sockHandle).setDistribution(NIOSocketHandle.Distribution.LEAST_CONNECTIONS);
+            } else {
+                return ErrorCodes.EINVAL;
+            }
+            return 0;
+        }
+
         private void getsockname(Context cx, Object[] args)
         {
             Scriptable out = objArg(cx, this, args, 0, Scriptable.class, true);
@@ -158,6 +158,7 @@ public class TLSWrapStream
                                 null,
                                 // TODO port
                                 0);
+        tls.setPipelined(runtime.getEnvironment().isTLSPipelining());
 
         SSLContext tlsCtx = ctx.makeContext(cx, this);
         tls.init(tlsCtx, ctx.getCiphers(), ctx.getTrustManager());
@@ -97,6 +97,10 @@ var STATUS_CODES = exports.STATUS_CODES = {
   511 : 'Network Authentication Required' // RFC 6585
 };
 
+// Sent before closing the connection when the request headers are too large to parse
+var HEADER_OVERFLOW_RESPONSE = 'HTTP/1.1 431 ' + STATUS_CODES[431] + CRLF +
+                               'Connection: close' + CRLF + CRLF;
+
 
 function ServerResponse(req) {
   OutgoingMessage.call(this);
@@ -337,13 +341,29 @@ function connectionListener(socket) {
     self.emit('clientError', e, this);
   }
 
+  function socketOnParserError(e) {
+    debug('parse error');
+    if (e.code === 'HPE_HEADER_OVERFLOW') {
+      // Tell the client why before closing, rather than just resetting the connection
+      if (!socket._headerOverflow && socket.writable) {
+        socket._headerOverflow = true;
+        socket.end(HEADER_OVERFLOW_RESPONSE, function() {
+          socket.destroy(e);
+        });
+      }
+      if (socket._headerOverflow) {
+        return;
+      }
+    }
+    socket.destroy(e);
+  }
+
   function socketOnData(d) {
     assert(!socket._paused);
     debug('SERVER socketOnData %d', d.length);
     var ret = parser.execute(d);
     if (ret instanceof Error) {
-      debug('parse error');
-      socket.destroy(ret);
+      socketOnParserError(ret);
     } else if (parser.incoming && parser.incoming.upgrade) {
       // Upgrade or CONNECT
       var bytesParsed = ret;
@@ -384,8 +404,7 @@ function connectionListener(socket) {
     var ret = parser.finish();
 
     if (ret instanceof Error) {
-      debug('parse error');
-      socket.destroy(ret);
+      socketOnParserError(ret);
       return;
     }
 
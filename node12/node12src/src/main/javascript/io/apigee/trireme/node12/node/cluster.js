@@ -91,6 +91,12 @@ function SharedHandle(key, address, port, addressType, backlog, fd) {
     this.errno = rval;
   else
     this.handle = rval;
+
+  // TRIREME: The master picks the worker for each connection, either "rr" or
+  // "leastconn".
+  var distribution = process.env.TRIREME_CLUSTER_DISTRIBUTION;
+  if (this.handle && this.handle.setDistribution && distribution)
+    this.handle.setDistribution(distribution);
 }
 
 SharedHandle.prototype.add = function(worker, send) {
@@ -223,9 +229,10 @@ function masterInit() {
   }[process.env.NODE_CLUSTER_SCHED_POLICY];
 
   if (util.isUndefined(schedulingPolicy)) {
-    // FIXME Round-robin doesn't perform well on Windows right now due to the
-    // way IOCP is wired up. Bert is going to fix that, eventually.
-    schedulingPolicy = (process.platform === 'win32') ? SCHED_NONE : SCHED_RR;
+    // TRIREME: Workers are scripts in the same JVM, and a shared handle hands
+    // each new connection straight to a worker's own thread, so there is no
+    // need to pass every connection over IPC.
+    schedulingPolicy = SCHED_NONE;
   }
 
   cluster.schedulingPolicy = schedulingPolicy;
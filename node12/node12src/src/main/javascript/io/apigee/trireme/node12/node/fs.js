@@ -259,6 +259,20 @@ fs.readFile = function(path, options, callback_) {
   var fd;
 
   var flag = options.flag || 'r';
+
+  if (flag === 'r') {
+    // Read the whole thing in Java in one operation.
+    if (!nullCheck(path, callback)) return;
+    var req = new FSReqWrap();
+    req.oncomplete = function(er, data) {
+      if (er) return callback(er);
+      if (encoding) data = data.toString(encoding);
+      callback(null, data);
+    };
+    binding.readFile(pathModule._makeLong(path), req);
+    return;
+  }
+
   fs.open(path, flag, 438 /*=0666*/, function(er, fd_) {
     if (er) return callback(er);
     fd = fd_;
@@ -349,6 +363,13 @@ fs.readFileSync = function(path, options) {
   assertEncoding(encoding);
 
   var flag = options.flag || 'r';
+
+  if (flag === 'r') {
+    nullCheck(path);
+    var data = binding.readFile(pathModule._makeLong(path));
+    return (encoding ? data.toString(encoding) : data);
+  }
+
   var fd = fs.openSync(path, flag, 438 /*=0666*/);
 
   var size;
@@ -1621,8 +1642,9 @@ ReadStream.prototype.open = function() {
 
     self.fd = fd;
     self.emit('open', fd);
-    // start the flow of data.
-    self.read();
+    // start the flow of data, unless the socket is reading the file for us.
+    if (!self._sendingFile)
+      self.read();
   });
 };
 
@@ -1720,6 +1742,74 @@ ReadStream.prototype.close = function(cb) {
 
 
 
+// When piping straight to a TCP socket, let the socket send the file itself,
+// using FileChannel.transferTo, so that the data never goes through a Buffer.
+ReadStream.prototype.pipe = function(dest, pipeOpts) {
+  if (canSendFile(this, dest)) {
+    sendFile(this, dest, pipeOpts);
+    return dest;
+  }
+  return Readable.prototype.pipe.call(this, dest, pipeOpts);
+};
+
+function canSendFile(src, dest) {
+  var rs = src._readableState;
+  var ws = dest._writableState;
+  return util.isFunction(dest._sendFile) &&
+         dest._handle && util.isFunction(dest._handle.sendFile) &&
+         ws && !ws.ended && !ws.corked && (ws.length === 0) &&
+         !src.destroyed && !rs.ended && !rs.flowing && !rs.reading &&
+         (rs.length === 0) && (rs.pipesCount === 0) && !rs.decoder &&
+         (EventEmitter.listenerCount(src, 'data') === 0);
+}
+
+function sendFile(src, dest, pipeOpts) {
+  src._sendingFile = true;
+
+  if (util.isNumber(src.fd))
+    start();
+  else
+    src.once('open', start);
+
+  function start() {
+    var position = -1;
+    var length = -1;
+    if (!util.isUndefined(src.pos)) {
+      position = src.pos;
+      if (src.end !== Infinity)
+        length = Math.max(0, src.end - src.pos + 1);
+    }
+
+    if (!dest._sendFile(src.fd, position, length, done)) {
+      // The socket can't do it after all, so read the file the usual way.
+      src._sendingFile = false;
+      Readable.prototype.pipe.call(src, dest, pipeOpts);
+      return;
+    }
+    dest.emit('pipe', src);
+  }
+
+  function done(err, bytes) {
+    src._sendingFile = false;
+    if (err) {
+      if (src.autoClose)
+        src.destroy();
+      dest.destroy(err);
+      return;
+    }
+
+    if (!util.isUndefined(src.pos))
+      src.pos += bytes;
+    // This makes the stream emit "end," which closes it.
+    src.push(null);
+    src.resume();
+
+    if (!pipeOpts || pipeOpts.end !== false)
+      dest.end();
+  }
+}
+
+
 fs.createWriteStream = function(path, options) {
   return new WriteStream(path, options);
 };
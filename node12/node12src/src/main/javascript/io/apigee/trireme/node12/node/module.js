@@ -25,6 +25,7 @@ var runInThisContext = require('vm').runInThisContext;
 var runInNewContext = require('vm').runInNewContext;
 var assert = require('assert').ok;
 var fs = require('fs');
+var fsBinding = process.binding('fs');
 
 
 // If obj.hasOwnProperty has been overridden, then calling
@@ -164,6 +165,17 @@ Module._findPath = function(request, paths) {
     return Module._pathCache[cacheKey];
   }
 
+  // Search for the file in Java, which saves a round trip for every stat.
+  // It returns null if we need to fall back to the search below.
+  var found = fsBinding.findModulePath(request, paths, exts, Module._realpathCache);
+  if (found !== null) {
+    if (found) {
+      found = fs.realpathSync(found, Module._realpathCache);
+      Module._pathCache[cacheKey] = found;
+    }
+    return found;
+  }
+
   // For each path
   for (var i = 0, PL = paths.length; i < PL; i++) {
     var basePath = path.resolve(paths[i], request);
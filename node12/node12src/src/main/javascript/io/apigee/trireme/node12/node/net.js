@@ -700,6 +700,40 @@ Socket.prototype._writeGeneric = function(writev, data, encoding, cb) {
 };
 
 
+// Send part of a file that was opened by the "fs" module straight to the
+// socket without reading it into a Buffer. "cb" is called with an error, or
+// with the number of bytes sent. Returns false, without sending anything,
+// if this socket can't do that right now.
+Socket.prototype._sendFile = function(fd, position, length, cb) {
+  if (this._connecting || !this._handle || !this._handle.sendFile)
+    return false;
+
+  var self = this;
+  var req = new WriteWrap();
+  req.oncomplete = function(status, handle, r, err) {
+    if (self.destroyed) {
+      cb(new Error('This socket is closed.'));
+      return;
+    }
+    if (status < 0) {
+      cb(errnoException(err, 'sendfile'));
+      return;
+    }
+    self._bytesDispatched += req.bytes;
+    self._unrefTimer();
+    cb(null, req.bytes);
+  };
+
+  this._unrefTimer();
+  var err = this._handle.sendFile(req, fd, position, length);
+  if (err) {
+    debug('sendFile not possible', err);
+    return false;
+  }
+  return true;
+};
+
+
 Socket.prototype._writev = function(chunks, cb) {
   this._writeGeneric(true, chunks, '', cb);
 };
@@ -101,6 +101,15 @@ public class BasicTest
         runTest("buffertest.js");
     }
 
+    @Test
+    public void testOffHeapBuffers()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        env.setOffHeapBuffers(1024);
+        runTest("buffertest.js");
+        runTest("offheapbuffertest.js");
+    }
+
     @Test
     public void testCancellation()
         throws InterruptedException, ExecutionException, NodeException
@@ -335,6 +344,20 @@ public class BasicTest
         runTest("basichttptest.js");
     }
 
+    @Test
+    public void testSendFile()
+        throws InterruptedException, ExecutionException, NodeException, IOException
+    {
+        runTest("sendfiletest.js");
+    }
+
+    @Test
+    public void testHttpHeaderOverflow()
+        throws InterruptedException, ExecutionException, NodeException, IOException
+    {
+        runTest("httpheaderoverflow.js");
+    }
+
     @Test
     public void testHttpPolicy()
         throws InterruptedException, ExecutionException, NodeException, IOException
@@ -496,6 +519,39 @@ public class BasicTest
         script.close();
     }
 
+    @Test
+    public void testMountImmutableGlobalModule()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        if (Platform.get().isWindows()) {
+            System.out.println("Mount is currently not supported on Windows");
+            return;
+        }
+
+        NodeEnvironment cacheEnv = new NodeEnvironment();
+        Sandbox sb = new Sandbox();
+        sb.mount("/usr/lib/node_modules", "./target/test-classes/global", true);
+        HashMap<String, String> env = new HashMap<String, String>();
+        env.put("NODE_PATH", "/usr/lib/node_modules");
+
+        for (int i = 0; i < 2; i++) {
+            NodeScript script = cacheEnv.createScript("globalmoduletest.js",
+                                                      new File("./target/test-classes/tests/globalmoduletest.js"), null);
+            script.setNodeVersion(NODE_VERSION);
+            script.setEnvironment(env);
+            script.setSandbox(sb);
+
+            ScriptStatus status = script.execute().get();
+            assertEquals(0, status.getExitCode());
+            script.close();
+        }
+
+        // The second script should have found everything in the cache
+        assertTrue(cacheEnv.getStatCache().size() > 0);
+        assertTrue(cacheEnv.getStatCache().getHits() > 0);
+        cacheEnv.close();
+    }
+
     @Test
     public void testMountChrootGlobalModule()
         throws InterruptedException, ExecutionException, NodeException
@@ -0,0 +1,165 @@
+package io.apigee.trireme.node12.test;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeException;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.Sandbox;
+import io.apigee.trireme.core.ScriptFuture;
+import io.apigee.trireme.core.ScriptStatus;
+import io.apigee.trireme.kernel.util.BufferPool;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Measure how much the script thread of an HTTP echo server allocates for each request, with and without
+ * the Buffer pool, using the allocation counter from resource accounting. Each configuration runs the
+ * server twice, once for the warmup requests and once for the warmup plus the measured ones, and the
+ * difference is divided by the number of measured requests so that startup is not counted. This only runs
+ * when "runBenchmarks" is set:
+ *
+ * mvn test -Dtest=BufferPoolBenchmarkTest -DrunBenchmarks=true
+ */
+
+public class BufferPoolBenchmarkTest
+{
+    private static final int PORT = 43339;
+    private static final int WARMUP_REQUESTS = 2000;
+    private static final int REQUESTS = 10000;
+    private static final int BODY_SIZE = 512;
+    private static final long SCRIPT_TIMEOUT_SECS = 120L;
+
+    @Test
+    public void benchmarkEchoServer()
+        throws Exception
+    {
+        Assume.assumeTrue(Boolean.getBoolean("runBenchmarks"));
+
+        byte[] body = new byte[BODY_SIZE];
+        Arrays.fill(body, (byte)'x');
+
+        // Run each one once first so that both get a warm JIT
+        measure(0, body, WARMUP_REQUESTS);
+        measure(BufferPool.DEFAULT_SLAB_SIZE, body, WARMUP_REQUESTS);
+
+        Result unpooled = measureRequests(0, body);
+        Result pooled = measureRequests(BufferPool.DEFAULT_SLAB_SIZE, body);
+
+        System.out.println("HTTP echo of " + BODY_SIZE + " bytes, " + REQUESTS + " requests:");
+        System.out.println("  Unpooled: " + unpooled);
+        System.out.println("  Pooled:   " + pooled);
+        long change = pooled.bytesPerRequest - unpooled.bytesPerRequest;
+        System.out.println("  Change:   " + change + " bytes per request (" +
+                           String.format("%.2f", 100.0 * change / unpooled.bytesPerRequest) + "%)");
+    }
+
+    private Result measureRequests(int slabSize, byte[] body)
+        throws Exception
+    {
+        Result warm = measure(slabSize, body, WARMUP_REQUESTS);
+        Result all = measure(slabSize, body, WARMUP_REQUESTS + REQUESTS);
+        Result r = new Result();
+        r.bytesPerRequest = (all.allocated - warm.allocated) / REQUESTS;
+        r.elapsed = all.elapsed - warm.elapsed;
+        r.allocated = all.allocated - warm.allocated;
+        return r;
+    }
+
+    private Result measure(int slabSize, byte[] body, int count)
+        throws NodeException, IOException, InterruptedException, ExecutionException, TimeoutException
+    {
+        NodeEnvironment env = new NodeEnvironment();
+        env.setDefaultNodeVersion(BasicTest.NODE_VERSION);
+        env.setSandbox(new Sandbox().setResourceAccounting(true));
+        env.setBufferPoolSize(slabSize);
+
+        NodeScript ns =
+            env.createScript("httpechoserver.js", new File("./target/test-classes/tests/httpechoserver.js"),
+                             new String[] { String.valueOf(PORT), String.valueOf(count) });
+        try {
+            ScriptFuture future = ns.execute();
+            waitForListen();
+
+            long start = System.nanoTime();
+            URL url = new URL("http://localhost:" + PORT + "/echo");
+            for (int i = 0; i < count; i++) {
+                HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+                conn.setDoOutput(true);
+                conn.setRequestMethod("POST");
+                conn.setFixedLengthStreamingMode(body.length);
+                OutputStream out = conn.getOutputStream();
+                out.write(body);
+                out.close();
+                assertEquals(200, conn.getResponseCode());
+                assertEquals(body.length, readFully(conn.getInputStream()));
+            }
+
+            ScriptStatus status = future.get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            assertEquals(0, status.getExitCode());
+
+            Result r = new Result();
+            r.elapsed = System.nanoTime() - start;
+            r.allocated = ns.getResourceUsage().getAllocatedBytes();
+            return r;
+        } finally {
+            ns.close();
+            env.close();
+        }
+    }
+
+    private static void waitForListen()
+        throws InterruptedException
+    {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", PORT).close();
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100L);
+            }
+        }
+        fail("Server never started listening");
+    }
+
+    private static int readFully(InputStream in)
+        throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] tmp = new byte[4096];
+        int r;
+        while ((r = in.read(tmp)) > 0) {
+            bos.write(tmp, 0, r);
+        }
+        in.close();
+        return bos.size();
+    }
+
+    private static final class Result
+    {
+        long allocated;
+        long elapsed;
+        long bytesPerRequest;
+
+        @Override
+        public String toString()
+        {
+            double seconds = elapsed / 1000000000.0;
+            return bytesPerRequest + " bytes per request, " +
+                   String.format("%.1f", allocated / seconds / (1024.0 * 1024.0)) + " MB/s allocated";
+        }
+    }
+}
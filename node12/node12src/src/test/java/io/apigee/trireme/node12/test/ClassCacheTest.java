@@ -0,0 +1,181 @@
+package io.apigee.trireme.node12.test;
+
+import io.apigee.trireme.core.BundleCompiler;
+import io.apigee.trireme.core.ClassCache;
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ScriptFuture;
+import io.apigee.trireme.core.ScriptStatus;
+import io.apigee.trireme.core.internal.ScriptCompiler;
+import io.apigee.trireme.core.internal.ScriptUtils;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Make sure that modules loaded by "require" go through the class cache, and come from a precompiled
+ * bundle when there is one.
+ */
+
+public class ClassCacheTest
+{
+    public static final String NODE_VERSION = "0.12.x";
+    public static final long SCRIPT_TIMEOUT_SECS = 10L;
+    private static final int NUM_SCRIPTS = 4;
+
+    @Test
+    public void testCacheHits()
+        throws Exception
+    {
+        CountingCache cache = new CountingCache();
+        NodeEnvironment env = new NodeEnvironment();
+        env.setClassCache(cache);
+
+        try {
+            runModuleTest(env).get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            int puts = cache.puts.get();
+            assertTrue(puts > 0);
+            assertEquals(0, cache.hits.get());
+
+            // The second time, everything should come from the cache
+            ScriptStatus status = runModuleTest(env).get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            assertEquals(0, status.getExitCode());
+            assertEquals(puts, cache.puts.get());
+            assertEquals(puts, cache.hits.get());
+        } finally {
+            env.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentScripts()
+        throws Exception
+    {
+        CountingCache cache = new CountingCache();
+        NodeEnvironment env = new NodeEnvironment();
+        env.setClassCache(cache);
+
+        try {
+            runModuleTest(env).get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            int puts = cache.puts.get();
+            cache.clear();
+
+            // However many scripts start at once, each module is only compiled once
+            ArrayList<ScriptFuture> futures = new ArrayList<ScriptFuture>();
+            for (int i = 0; i < NUM_SCRIPTS; i++) {
+                futures.add(runModuleTest(env));
+            }
+            for (ScriptFuture f : futures) {
+                assertEquals(0, f.get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS).getExitCode());
+            }
+            assertEquals(puts, cache.puts.get());
+        } finally {
+            env.close();
+        }
+    }
+
+    @Test
+    public void testPrecompiledBundle()
+        throws Exception
+    {
+        File bundle = new File("./target/moduletest-bundle.jar");
+        BundleCompiler compiler =
+            new BundleCompiler(new File("./target/test-classes/tests"), bundle);
+        compiler.compile();
+        assertTrue(compiler.getCompiledCount() > 0);
+
+        CountingCache cache = new CountingCache();
+        NodeEnvironment env = new NodeEnvironment();
+        env.setClassCache(cache);
+        env.addPrecompiledBundle(bundle);
+
+        try {
+            // Every module in the test directory is in the bundle, so nothing is compiled
+            ScriptStatus status = runModuleTest(env).get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            assertEquals(0, status.getExitCode());
+            assertEquals(0, cache.puts.get());
+        } finally {
+            env.close();
+        }
+    }
+
+    @Test
+    public void testTooLarge()
+    {
+        CountingCache cache = new CountingCache();
+        NodeEnvironment env = new NodeEnvironment();
+        env.setClassCache(cache);
+        ScriptCompiler compiler = new ScriptCompiler(env);
+
+        StringBuilder code = new StringBuilder();
+        while (code.length() <= ScriptUtils.MAX_COMPILED_SCRIPT_LENGTH) {
+            code.append("x = 1;\n");
+        }
+
+        Context cx = Context.enter();
+        try {
+            assertNull(compiler.compile(cx, code.toString(), "toolarge.js"));
+            int lookups = cache.lookups.get();
+            assertTrue(lookups > 0);
+            // The second time, we know not to bother
+            assertNull(compiler.compile(cx, code.toString(), "toolarge.js"));
+            assertEquals(lookups, cache.lookups.get());
+            assertEquals(0, cache.puts.get());
+        } finally {
+            Context.exit();
+            env.close();
+        }
+    }
+
+    private static ScriptFuture runModuleTest(NodeEnvironment env)
+        throws Exception
+    {
+        NodeScript ns =
+            env.createScript("moduletest.js", new File("./target/test-classes/tests/moduletest.js"), null);
+        ns.setNodeVersion(NODE_VERSION);
+        return ns.execute();
+    }
+
+    private static final class CountingCache
+        implements ClassCache
+    {
+        final ConcurrentHashMap<String, Script> scripts = new ConcurrentHashMap<String, Script>();
+        final AtomicInteger hits = new AtomicInteger();
+        final AtomicInteger puts = new AtomicInteger();
+        final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public Script getCachedScript(String key)
+        {
+            lookups.incrementAndGet();
+            Script s = scripts.get(key);
+            if (s != null) {
+                hits.incrementAndGet();
+            }
+            return s;
+        }
+
+        @Override
+        public void putCachedScript(String key, Script script)
+        {
+            puts.incrementAndGet();
+            scripts.put(key, script);
+        }
+
+        void clear()
+        {
+            scripts.clear();
+            hits.set(0);
+            puts.set(0);
+            lookups.set(0);
+        }
+    }
+}
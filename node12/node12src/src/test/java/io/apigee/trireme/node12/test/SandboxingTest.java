@@ -3,9 +3,14 @@ package io.apigee.trireme.node12.test;
 import io.apigee.trireme.core.NodeEnvironment;
 import io.apigee.trireme.core.NodeException;
 import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ResourceQuotaExceededException;
+import io.apigee.trireme.core.ResourceUsage;
 import io.apigee.trireme.core.Sandbox;
 import io.apigee.trireme.core.ScriptFuture;
 import io.apigee.trireme.core.ScriptStatus;
+import io.apigee.trireme.core.ScriptStatusListener;
+import io.apigee.trireme.kernel.handles.AsyncOutputStreamHandle;
+import io.apigee.trireme.kernel.util.BufferPool;
 import org.junit.Test;
 import org.mozilla.javascript.ClassShutter;
 
@@ -15,6 +20,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -178,6 +184,197 @@ public class SandboxingTest
         }
     }
 
+    /**
+     * Verify that asynchronous output to a slow stream gets there in order, in fewer writes, and before
+     * the script completes.
+     */
+    @Test
+    public void testAsyncStdout()
+        throws NodeException, InterruptedException, ExecutionException, TimeoutException
+    {
+        final int LINES = 2000;
+        SlowOutputStream out = new SlowOutputStream();
+        NodeEnvironment env = new NodeEnvironment();
+        env.setSandbox(new Sandbox().setStdout(out).
+            setAsyncOutput(1024, AsyncOutputStreamHandle.OverflowPolicy.QUEUE));
+
+        NodeScript ns =
+            env.createScript("asyncoutputtest.js", new File("./target/test-classes/tests/asyncoutputtest.js"),
+                             new String[] { String.valueOf(LINES) });
+        ns.setNodeVersion(NODE_VERSION);
+
+        try {
+            ScriptFuture f = ns.execute();
+            ScriptStatus result = f.get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            assertEquals(0, result.getExitCode());
+
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < LINES; i++) {
+                expected.append("Line ").append(i).append('\n');
+            }
+            assertEquals(expected.toString(), new String(out.toByteArray(), UTF8));
+            assertTrue(out.getWrites() < LINES);
+        } finally {
+            ns.close();
+            env.close();
+        }
+    }
+
+    @Test
+    public void testResourceAccounting()
+        throws NodeException, InterruptedException, ExecutionException, TimeoutException
+    {
+        NodeEnvironment env = new NodeEnvironment();
+        env.setSandbox(new Sandbox().setResourceAccounting(true));
+
+        NodeScript ns = createQuotaTest(env, 5, 10);
+        try {
+            ScriptStatus result = ns.execute().get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            assertEquals(0, result.getExitCode());
+
+            ResourceUsage usage = ns.getResourceUsage();
+            assertNotNull(usage);
+            assertTrue(usage.getCpuTime() != 0L);
+            assertTrue(usage.getAllocatedBytes() != 0L);
+            assertEquals(0L, usage.getThrottleCount());
+        } finally {
+            ns.close();
+            env.close();
+        }
+    }
+
+    @Test
+    public void testCpuQuotaThrottle()
+        throws NodeException, InterruptedException, ExecutionException, TimeoutException
+    {
+        NodeEnvironment env = new NodeEnvironment();
+        env.setSandbox(new Sandbox().
+            setCpuQuota(20L, TimeUnit.MILLISECONDS).
+            setQuotaPeriod(100L, TimeUnit.MILLISECONDS).
+            setQuotaPolicy(Sandbox.QuotaPolicy.THROTTLE));
+
+        NodeScript ns = createQuotaTest(env, 20, 10);
+        try {
+            ScriptStatus result = ns.execute().get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            assertEquals(0, result.getExitCode());
+
+            ResourceUsage usage = ns.getResourceUsage();
+            assertTrue(usage.getThrottleCount() > 0L);
+            assertTrue(usage.getThrottledTime() > 0L);
+        } finally {
+            ns.close();
+            env.close();
+        }
+    }
+
+    @Test
+    public void testCpuQuotaKill()
+        throws NodeException, InterruptedException, ExecutionException, TimeoutException
+    {
+        NodeEnvironment env = new NodeEnvironment();
+        env.setSandbox(new Sandbox().
+            setCpuQuota(50L, TimeUnit.MILLISECONDS).
+            setQuotaPolicy(Sandbox.QuotaPolicy.KILL));
+
+        // Run forever, and make sure that the listener finds out why the script stopped
+        NodeScript ns = createQuotaTest(env, 0, 10);
+        final ArrayBlockingQueue<ScriptStatus> statuses = new ArrayBlockingQueue<ScriptStatus>(1);
+        try {
+            ScriptFuture f = ns.execute();
+            f.setListener(new ScriptStatusListener()
+            {
+                @Override
+                public void onComplete(NodeScript script, ScriptStatus status)
+                {
+                    statuses.offer(status);
+                }
+            });
+
+            ScriptStatus result = statuses.poll(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            assertNotNull(result);
+            assertTrue(result.isQuotaExceeded());
+            assertTrue(result.getCause() instanceof ResourceQuotaExceededException);
+        } finally {
+            ns.close();
+            env.close();
+        }
+    }
+
+    @Test
+    public void testBufferLimit()
+        throws NodeException, InterruptedException, ExecutionException, TimeoutException
+    {
+        NodeEnvironment env = new NodeEnvironment();
+        env.setSandbox(new Sandbox().setBufferLimit(4 * 1024 * 1024));
+
+        NodeScript ns =
+            env.createScript("bufferlimittest.js", new File("./target/test-classes/tests/bufferlimittest.js"),
+                             new String[] { String.valueOf(1024 * 1024) });
+        ns.setNodeVersion(NODE_VERSION);
+        try {
+            ScriptStatus result = ns.execute().get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            assertEquals(0, result.getExitCode());
+            assertTrue(ns.getResourceUsage().getBufferBytes() <= (4 * 1024 * 1024));
+        } finally {
+            ns.close();
+            env.close();
+        }
+    }
+
+    @Test
+    public void testBufferLimitPooled()
+        throws NodeException, InterruptedException, ExecutionException, TimeoutException
+    {
+        // Small Buffers share slabs from the pool, and the slabs still count against the limit
+        NodeEnvironment env = new NodeEnvironment();
+        env.setSandbox(new Sandbox().setBufferLimit(64 * 1024));
+        env.setBufferPoolSize(BufferPool.DEFAULT_SLAB_SIZE);
+
+        NodeScript ns =
+            env.createScript("bufferlimittest.js", new File("./target/test-classes/tests/bufferlimittest.js"),
+                             new String[] { "100" });
+        ns.setNodeVersion(NODE_VERSION);
+        try {
+            ScriptStatus result = ns.execute().get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            assertEquals(0, result.getExitCode());
+            assertTrue(ns.getResourceUsage().getBufferBytes() <= (64 * 1024));
+        } finally {
+            ns.close();
+            env.close();
+        }
+    }
+
+    private static NodeScript createQuotaTest(NodeEnvironment env, int chunks, int chunkMs)
+        throws NodeException
+    {
+        NodeScript ns =
+            env.createScript("quotatest.js", new File("./target/test-classes/tests/quotatest.js"),
+                             new String[] { String.valueOf(chunks), String.valueOf(chunkMs) });
+        ns.setNodeVersion(NODE_VERSION);
+        return ns;
+    }
+
+    private static final class SlowOutputStream
+        extends ByteArrayOutputStream
+    {
+        private int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len)
+        {
+            writes++;
+            try {
+                Thread.sleep(1L);
+            } catch (InterruptedException ignore) {
+            }
+            super.write(b, off, len);
+        }
+
+        synchronized int getWrites() {
+            return writes;
+        }
+    }
+
     /**
      * Verify the support for an extra {@link ClassShutter} works as expected.
      */
@@ -0,0 +1,17 @@
+// Write a lot of lines to stdout, waiting for "drain" whenever the stream says it is full.
+
+var count = parseInt(process.argv[2]);
+var i = 0;
+
+function writeSome() {
+  while (i < count) {
+    var ok = process.stdout.write('Line ' + i + '\n');
+    i++;
+    if (!ok) {
+      process.stdout.once('drain', writeSome);
+      return;
+    }
+  }
+}
+
+writeSome();
@@ -0,0 +1,17 @@
+// Allocate Buffers of "size" bytes and keep them until allocation fails.
+var size = parseInt(process.argv[2]);
+var held = [];
+
+try {
+  for (var i = 0; i < 1000; i++) {
+    held.push(new Buffer(size));
+  }
+  console.log('Allocated everything');
+  process.exit(1);
+} catch (e) {
+  if (!(e instanceof RangeError)) {
+    console.log('Wrong error: ' + e);
+    process.exit(2);
+  }
+  console.log('Got RangeError after ' + held.length + ' Buffers');
+}
@@ -0,0 +1,29 @@
+// Echo the body of each request back to the client, and exit after "count" requests.
+var http = require('http');
+
+var port = parseInt(process.argv[2]);
+var count = parseInt(process.argv[3]);
+var served = 0;
+
+var svr = http.createServer(function(req, resp) {
+  var chunks = [];
+  req.on('data', function(chunk) {
+    chunks.push(chunk);
+  });
+  req.on('end', function() {
+    var body = Buffer.concat(chunks);
+    var last = (++served >= count);
+    resp.writeHead(200, {
+      'Content-Type': 'application/octet-stream',
+      'Content-Length': body.length,
+      // Otherwise the client's keep-alive connection keeps the script running
+      'Connection': (last ? 'close' : 'keep-alive')
+    });
+    resp.end(body);
+    if (last) {
+      svr.close();
+    }
+  });
+});
+
+svr.listen(port);
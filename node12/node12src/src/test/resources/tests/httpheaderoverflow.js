@@ -0,0 +1,41 @@
+var assert = require('assert');
+var http = require('http');
+var net = require('net');
+
+var requests = 0;
+var clientErrors = 0;
+
+var svr = http.createServer(function(req, resp) {
+  requests++;
+  resp.end('ok');
+});
+svr.on('clientError', function(err, sock) {
+  assert.equal(err.code, 'HPE_HEADER_OVERFLOW');
+  clientErrors++;
+});
+
+svr.listen(43335, function() {
+  var client = net.connect(43335, function() {
+    client.write('GET / HTTP/1.1\r\nHost: localhost\r\n');
+    // Send one enormous cookie a piece at a time, without ever ending the line
+    var cookie = new Array(1025).join('x');
+    for (var i = 0; i < 100; i++) {
+      client.write(i === 0 ? 'Cookie: ' + cookie : cookie);
+    }
+  });
+
+  var response = '';
+  client.setEncoding('ascii');
+  client.on('data', function(chunk) {
+    response += chunk;
+  });
+  client.on('error', function() {
+    // The server may reset us once it has responded
+  });
+  client.on('close', function() {
+    assert(/^HTTP\/1.1 431 /.test(response));
+    assert.equal(requests, 0);
+    assert.equal(clientErrors, 1);
+    svr.close();
+  });
+});
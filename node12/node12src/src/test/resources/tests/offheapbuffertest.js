@@ -0,0 +1,81 @@
+// Run with a small off-heap threshold so that most of these Buffers are not on the Java heap.
+var assert = require('assert');
+var crypto = require('crypto');
+var fs = require('fs');
+var path = require('path');
+var zlib = require('zlib');
+
+var SIZE = 64 * 1024;
+
+var big = new Buffer(SIZE);
+for (var i = 0; i < SIZE; i++) {
+  big[i] = i % 251;
+}
+assert.equal(big.length, SIZE);
+assert.equal(big[250], 250);
+assert.equal(big[251], 0);
+
+// Slices share memory with the parent
+var slice = big.slice(1000, 2000);
+assert.equal(slice.length, 1000);
+assert.equal(slice[0], big[1000]);
+slice[0] = 99;
+assert.equal(big[1000], 99);
+big[1000] = 1000 % 251;
+
+// Copy between off-heap and heap Buffers in both directions
+var small = new Buffer(100);
+big.copy(small, 0, 500, 600);
+assert.equal(small[0], 500 % 251);
+var big2 = new Buffer(SIZE);
+big.copy(big2);
+assert.deepEqual(big2, big);
+small.fill(7);
+small.copy(big2, SIZE - 100);
+assert.equal(big2[SIZE - 1], 7);
+
+// Numbers
+big2.writeUInt32BE(0xdeadbeef, 16);
+assert.equal(big2.readUInt32BE(16), 0xdeadbeef);
+big2.writeInt32LE(-12345, 32);
+assert.equal(big2.readInt32LE(32), -12345);
+big2.writeDoubleBE(3.5, 48);
+assert.equal(big2.readDoubleBE(48), 3.5);
+big2.writeFloatLE(1.25, 64);
+assert.equal(big2.readFloatLE(64), 1.25);
+
+// Strings
+var text = '';
+while (text.length < SIZE) {
+  text += 'Hello, off-heap world! über 世界 ';
+}
+var encoded = new Buffer(text, 'utf8');
+assert.equal(encoded.toString('utf8'), text);
+assert.equal(new Buffer(encoded.toString('base64'), 'base64').toString(), text);
+assert.equal(new Buffer(encoded.toString('hex'), 'hex').toString(), text);
+var target = new Buffer(SIZE);
+var written = target.write(text, 0, 'utf8');
+assert.equal(text.indexOf(target.slice(0, written).toString()), 0);
+target.fill('ab');
+assert.equal(target.toString('ascii', 0, 4), 'abab');
+assert.equal(Buffer.compare(big, big.slice(0, SIZE)), 0);
+assert.notEqual(Buffer.compare(big, big2), 0);
+
+// Native code
+var hash = crypto.createHash('sha256').update(big).digest('hex');
+assert.equal(crypto.createHash('sha256').update(new Buffer(big.toString('hex'), 'hex')).digest('hex'), hash);
+
+var tmp = path.join(__dirname, '../../offheaptest.tmp');
+fs.writeFileSync(tmp, big);
+var read = fs.readFileSync(tmp);
+fs.unlinkSync(tmp);
+assert.deepEqual(read, big);
+
+zlib.deflate(encoded, function(err, deflated) {
+  assert(!err);
+  zlib.inflate(deflated, function(err, inflated) {
+    assert(!err);
+    assert.equal(inflated.toString(), text);
+    console.log('Off-heap Buffers OK');
+  });
+});
@@ -0,0 +1,19 @@
+// Keep the CPU busy in chunks of "chunkMs," one per turn of the event loop.
+// Run "chunks" of them and exit, or run forever if "chunks" is zero.
+var chunks = parseInt(process.argv[2]);
+var chunkMs = parseInt(process.argv[3]);
+var done = 0;
+
+function spin() {
+  var end = Date.now() + chunkMs;
+  var junk = [];
+  while (Date.now() < end) {
+    junk.push({ count: junk.length });
+  }
+  done++;
+  if ((chunks <= 0) || (done < chunks)) {
+    setImmediate(spin);
+  }
+}
+
+spin();
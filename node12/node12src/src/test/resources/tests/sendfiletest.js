@@ -0,0 +1,73 @@
+var assert = require('assert');
+var crypto = require('crypto');
+var fs = require('fs');
+var net = require('net');
+var os = require('os');
+var path = require('path');
+
+var FILE_SIZE = 3 * 1024 * 1024 + 17;
+var fileName = path.join(os.tmpdir(), 'sendfiletest-' + process.pid);
+var data = crypto.pseudoRandomBytes(FILE_SIZE);
+fs.writeFileSync(fileName, data);
+
+var ranges = [
+  undefined,
+  { start: 1000, end: 2000000 },
+  { start: 10 }
+];
+var sendFileCalls = 0;
+
+var svr = net.createServer(function(sock) {
+  var origSendFile = sock._sendFile;
+  sock._sendFile = function() {
+    sendFileCalls++;
+    return origSendFile.apply(this, arguments);
+  };
+
+  sock.once('data', function(chunk) {
+    var opts = ranges[parseInt(chunk.toString())];
+    var src = fs.createReadStream(fileName, opts);
+    var closed = false;
+    src.on('close', function() {
+      closed = true;
+    });
+    sock.on('close', function() {
+      assert(closed);
+    });
+    src.pipe(sock);
+  });
+});
+
+function fetch(i, cb) {
+  var client = net.connect(43334, function() {
+    client.write(String(i));
+  });
+  var chunks = [];
+  client.on('data', function(chunk) {
+    chunks.push(chunk);
+  });
+  client.on('end', function() {
+    cb(Buffer.concat(chunks));
+  });
+}
+
+svr.listen(43334, function() {
+  fetch(0, function(result) {
+    assert.equal(result.length, FILE_SIZE);
+    assert.deepEqual(result, data);
+
+    fetch(1, function(result) {
+      assert.equal(result.length, 2000000 - 1000 + 1);
+      assert.deepEqual(result, data.slice(1000, 2000001));
+
+      fetch(2, function(result) {
+        assert.equal(result.length, FILE_SIZE - 10);
+        assert.deepEqual(result, data.slice(10));
+
+        assert.equal(sendFileCalls, 3);
+        svr.close();
+        fs.unlinkSync(fileName);
+      });
+    });
+  });
+});
@@ -805,9 +805,11 @@ assert.equal(16, b.writeDoubleLE(0, 8));
 buf = new Buffer('ab\ud800cd', 'utf8');
 assert.equal(buf[0], 0x61);
 assert.equal(buf[1], 0x62);
-assert.equal(buf[2], 0x3f);
-assert.equal(buf[3], 0x63);
-assert.equal(buf[4], 0x64);
+assert.equal(buf[2], 0xef);
+assert.equal(buf[3], 0xbf);
+assert.equal(buf[4], 0xbd);
+assert.equal(buf[5], 0x63);
+assert.equal(buf[6], 0x64);
 
 // test for buffer overrun
 buf = new Buffer([0, 0, 0, 0, 0]); // length: 5
@@ -25,9 +25,12 @@ import io.apigee.trireme.core.NodeEnvironment;
 import io.apigee.trireme.core.NodeException;
 import io.apigee.trireme.core.NodeScript;
 import io.apigee.trireme.core.ScriptFuture;
+import io.apigee.trireme.core.ScriptInvoker;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
+import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
 
 import java.io.File;
 import java.util.concurrent.ExecutionException;
@@ -36,9 +39,13 @@ public class HadoopBase
     extends MapReduceBase
 {
     public static final String SCRIPT_FILE_KEY = "ScriptFile";
+    public static final String MAX_IN_FLIGHT_KEY = "ScriptMaxInFlight";
+    public static final String BATCH_SIZE_KEY = "ScriptBatchSize";
 
     protected ScriptFuture runningScript;
     protected String scriptFileName;
+    protected int maxInFlight;
+    protected int batchSize;
     protected Scriptable module;
     protected NodeEnvironment env;
 
@@ -55,6 +62,8 @@ public class HadoopBase
         // filesystem. This means we probably have to do something to make this work
         // in "real" Hadoop which is distributed.
         scriptFileName = conf.get(SCRIPT_FILE_KEY);
+        maxInFlight = conf.getInt(MAX_IN_FLIGHT_KEY, ScriptInvoker.DEFAULT_MAX_IN_FLIGHT);
+        batchSize = Math.min(conf.getInt(BATCH_SIZE_KEY, 16), maxInFlight);
     }
 
     /**
@@ -72,6 +81,19 @@ public class HadoopBase
         module = runningScript.getModuleResult();
     }
 
+    /**
+     * Return an invoker for the named function in "module.exports", or null if there is no such function.
+     */
+    protected ScriptInvoker createInvoker(String name)
+        throws InterruptedException, ExecutionException
+    {
+        Object func = ScriptableObject.getProperty(module, name);
+        if (!(func instanceof Function)) {
+            return null;
+        }
+        return runningScript.createInvoker(name, maxInFlight);
+    }
+
     protected void stopNodeModule()
     {
         // If we don't call this then the script will keep running in its thread.
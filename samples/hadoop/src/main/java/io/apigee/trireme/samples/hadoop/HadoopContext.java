@@ -32,7 +32,6 @@ import org.mozilla.javascript.annotations.JSFunction;
 
 import java.io.IOException;
 import java.util.Iterator;
-import java.util.concurrent.CountDownLatch;
 
 public class HadoopContext
     extends ScriptableObject
@@ -42,8 +41,6 @@ public class HadoopContext
     private OutputCollector<Text, Text> collector;
     private Iterator<Text> values;
 
-    private final CountDownLatch doneLatch = new CountDownLatch(1);
-
     public static void initialize(Scriptable scope)
         throws Exception
     {
@@ -69,12 +66,6 @@ public class HadoopContext
         }
     }
 
-    public void await()
-        throws InterruptedException
-    {
-        doneLatch.await();
-    }
-
     @Override
     public String getClassName() {
         return CLASS_NAME;
@@ -118,11 +109,4 @@ public class HadoopContext
         Text t = values.next();
         return (t == null ? null : t.toString());
     }
-
-    @JSFunction
-    public static void done(Context cx, Scriptable thisObj, Object[] args, Function func)
-    {
-        HadoopContext self = (HadoopContext)thisObj;
-        self.doneLatch.countDown();
-    }
 }
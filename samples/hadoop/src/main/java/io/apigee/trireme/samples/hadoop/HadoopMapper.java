@@ -21,16 +21,18 @@
  */
 package io.apigee.trireme.samples.hadoop;
 
+import io.apigee.trireme.core.InvocationFuture;
+import io.apigee.trireme.core.ScriptInvoker;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
-import org.mozilla.javascript.Context;
-import org.mozilla.javascript.Function;
-import org.mozilla.javascript.ScriptableObject;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
 
 /**
  * This mapper will launch Noderunner and tell it to run a "module". (A module doesn't have to
@@ -42,7 +44,9 @@ public class HadoopMapper
     implements Mapper<LongWritable, Text, Text, Text>
 {
     private boolean running;
-    private Function mapFunc;
+    private ScriptInvoker mapper;
+    private final ArrayList<Object[]> batch = new ArrayList<Object[]>();
+    private final ArrayDeque<InvocationFuture> pending = new ArrayDeque<InvocationFuture>();
 
     private void initialize()
         throws IOException
@@ -53,13 +57,9 @@ public class HadoopMapper
 
             // The module is now running and "module" points to the JavaScript object that
             // it set in module.exports. Find the "map" function.
-            Object mapObj =
-                ScriptableObject.getProperty(module, "map");
-            if ((mapObj == null) || Context.getUndefinedValue().equals(mapObj) ||
-                (!(mapObj instanceof Function))) {
+            mapper = createInvoker("map");
+            if (mapper == null) {
                 System.err.println("Nothing to map");
-            } else {
-                mapFunc = (Function)mapObj;
             }
 
             // Initialize the "HadoopContext" class in this script's top-level scope
@@ -79,32 +79,68 @@ public class HadoopMapper
         if (!running) {
             initialize();
         }
-        if (mapFunc == null) {
+        if (mapper == null) {
             return;
         }
 
         // Create an instance of the "HadoopContext" class as a JavaScript object
         HadoopContext ctx = HadoopContext.createObject(module, out, null);
 
-        // Call "map". Since the script runs in its own thread (so it can do everything any
-        // Node.js program can do) we must do this rather than call "mapFunc" directly.
-        // This means that in theory we could launch the script once and send it a whole list
-        // of "map" functions to run, which would be efficient if they did file or network I/O.
-        runningScript.getRuntime().enqueueCallback(mapFunc, module, module,
-                                                   new Object[] { ctx, value.toString() });
+        // Since the script runs in its own thread (so it can do everything any Node.js program
+        // can do) we must call "map" through the invoker rather than call it directly. We don't
+        // wait for each record -- we send them over in batches, and the script works on up to
+        // "maxInFlight" of them at a time, which pays off when "map" does file or network I/O.
+        batch.add(new Object[] { ctx, value.toString() });
+        if (batch.size() >= batchSize) {
+            sendBatch();
+        }
+    }
+
+    private void sendBatch()
+        throws IOException
+    {
+        try {
+            pending.addAll(mapper.invokeBatch(batch));
+        } catch (InterruptedException ie) {
+            throw new IOException(ie);
+        }
+        batch.clear();
 
-        // Wait for the script (now running in a different thread) to call "done" on our context.
+        // Check for errors as we go rather than waiting until the end
+        while (!pending.isEmpty() && pending.peek().isDone()) {
+            checkResult(pending.poll());
+        }
+    }
+
+    private static void checkResult(InvocationFuture f)
+        throws IOException
+    {
         try {
-            ctx.await();
+            f.get();
         } catch (InterruptedException ie) {
             throw new IOException(ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Error from map: " + ee.getCause(), ee.getCause());
         }
     }
 
     @Override
     public void close()
+        throws IOException
     {
-        System.out.println("map.close: stopping script");
-        stopNodeModule();
+        try {
+            if (mapper != null) {
+                // Hadoop expects all the output to be collected by the time that we return
+                if (!batch.isEmpty()) {
+                    sendBatch();
+                }
+                while (!pending.isEmpty()) {
+                    checkResult(pending.poll());
+                }
+            }
+        } finally {
+            System.out.println("map.close: stopping script");
+            stopNodeModule();
+        }
     }
 }
@@ -21,16 +21,15 @@
  */
 package io.apigee.trireme.samples.hadoop;
 
+import io.apigee.trireme.core.ScriptInvoker;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
-import org.mozilla.javascript.Context;
-import org.mozilla.javascript.Function;
-import org.mozilla.javascript.ScriptableObject;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Here's our reducer. See "HadoopMapper" for more comments.
@@ -41,7 +40,7 @@ public class HadoopReducer
     implements Reducer<Text, Text, Text, Text>
 {
     private boolean running;
-    private Function reduceFunc;
+    private ScriptInvoker reducer;
 
     private void initialize()
         throws IOException
@@ -50,13 +49,9 @@ public class HadoopReducer
             System.out.println("reduce: starting script");
             startNodeModule();
 
-            Object reduceObj =
-                ScriptableObject.getProperty(module, "reduce");
-            if ((reduceObj == null) || Context.getUndefinedValue().equals(reduceObj) ||
-                (!(reduceObj instanceof Function))) {
+            reducer = createInvoker("reduce");
+            if (reducer == null) {
                 System.err.println("Nothing to reduce");
-            } else {
-                reduceFunc = (Function)reduceObj;
             }
 
             HadoopContext.initialize(module.getParentScope());
@@ -74,19 +69,19 @@ public class HadoopReducer
         if (!running) {
             initialize();
         }
-        if (reduceFunc == null) {
+        if (reducer == null) {
             return;
         }
 
         HadoopContext ctx = HadoopContext.createObject(module, out, values);
 
-        runningScript.getRuntime().enqueueCallback(reduceFunc, module, module,
-                                                   new Object[] { ctx, key.toString() });
-
+        // Unlike "map," we have to wait for each call, because "values" is only valid until we return.
         try {
-            ctx.await();
+            reducer.invoke(ctx, key.toString()).get();
         } catch (InterruptedException ie) {
             throw new IOException(ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Error from reduce: " + ee.getCause(), ee.getCause());
         }
     }
 
@@ -1,7 +1,8 @@
-// map: ctx has "collect" and "done" methods
+// map: ctx has a "collect" method
 //       input is the first value, which is always a string
+//       done is a Node-style callback, or the function may return a Promise instead
 
-function map(ctx, input) {
+function map(ctx, input, done) {
   var words = input.split(' ');
   for (i in words) {
     var val = { count: 1 };
@@ -9,13 +10,13 @@ function map(ctx, input) {
     ctx.collect(words[i], JSON.stringify(val));
   }
   // You must call this or the job will hang
-  ctx.done();
+  done();
 }
 module.exports.map = map;
 
 // reduce: ctx also has "nextValue" which returns the values from "map"
 //         key is of course the key from map as well
-function reduce(ctx, key) {
+function reduce(ctx, key, done) {
   var finalCount = 0;
   var value;
   do {
@@ -32,6 +33,6 @@ function reduce(ctx, key) {
   // Collect is the same as before
   ctx.collect(key, strValue);
   // Like before you must call this or we hang
-  ctx.done();
+  done();
 }
 module.exports.reduce = reduce;
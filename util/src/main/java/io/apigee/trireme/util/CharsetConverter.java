@@ -32,18 +32,37 @@ import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
 import java.util.regex.Pattern;
 
+/**
+ * This converts a stream of bytes from one character set to another, by decoding them to characters
+ * and encoding the result. The intermediate buffers are kept and re-used from one chunk to the next,
+ * so that converting a long stream doesn't allocate much more than the output itself. When both character
+ * sets are supersets of ASCII and a chunk contains only ASCII, the chunk is copied to the output
+ * without being decoded at all.
+ */
+
 public class CharsetConverter
 {
     private static final Pattern SLASHES = Pattern.compile("//");
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final int MIN_SCRATCH_SIZE = 1024;
+    /** Scratch buffers bigger than this are dropped after use rather than kept around. */
+    private static final int MAX_RETAINED_SCRATCH = 256 * 1024;
 
     private CharsetDecoder decoder;
     private CharsetEncoder encoder;
 
-    private ByteBuffer remainingToDecode;
-    private CharBuffer toEncode;
+    private final boolean asciiCompatible;
 
+    /** Bytes that could not be decoded yet, in "write" mode */
+    private ByteBuffer pending;
+    /** Characters that could not be encoded yet, in "write" mode */
+    private CharBuffer chars;
+    /** Scratch space for encoding */
+    private ByteBuffer encoded;
     private void parseCharset(String n, boolean makeEncoder)
         throws IllegalArgumentException
     {
@@ -98,6 +117,7 @@ public class CharsetConverter
     {
         parseCharset(from, false);
         parseCharset(to, true);
+        asciiCompatible = isAsciiCompatible(decoder.charset(), encoder.charset());
     }
 
     /**
@@ -105,8 +125,10 @@ public class CharsetConverter
      */
     public void reset()
     {
-        toEncode = null;
-        remainingToDecode = null;
+        decoder.reset();
+        encoder.reset();
+        pending = null;
+        chars = null;
     }
 
     /**
@@ -122,59 +144,184 @@ public class CharsetConverter
     public ByteBuffer convert(ByteBuffer in, boolean lastChunk)
         throws CharacterCodingException
     {
-        // We may have left over bytes -- copy them. This function can take null for either param.
-        // Here we move the positions of both buffers, and the new buffer becomes the one that we consume
-        ByteBuffer toDecode = Utils.catBuffers(remainingToDecode, in);
-
-        if ((toDecode != null) && toDecode.hasRemaining()) {
-            if (toEncode == null) {
-                toEncode =
-                    CharBuffer.allocate((int)Math.floor(toDecode.remaining() * decoder.averageCharsPerByte()));
+        if ((in != null) && canCopy(in)) {
+            // Same bytes out as in, and nothing to flush since the coders have not been used
+            ByteBuffer out = ByteBuffer.allocate(in.remaining());
+            out.put(in);
+            out.flip();
+            return (out.hasRemaining() ? out : null);
+        }
+
+        // Decode left over bytes first, if there are any. Otherwise decode straight from the input.
+        ByteBuffer toDecode;
+        if ((pending != null) && (pending.position() > 0)) {
+            if (in != null) {
+                pending = ensureCapacity(pending, in.remaining());
+                pending.put(in);
             }
-            // Actually decode
-            CoderResult result;
+            pending.flip();
+            toDecode = pending;
+        } else {
+            toDecode = (in == null) ? EMPTY : in;
+        }
+
+        int estimate = (int)Math.ceil(toDecode.remaining() * decoder.averageCharsPerByte());
+        if (chars == null) {
+            chars = CharBuffer.allocate(Math.max(estimate, MIN_SCRATCH_SIZE));
+        } else if (chars.remaining() < estimate) {
+            chars = ensureCapacity(chars, estimate);
+        }
+
+        CoderResult result;
+        do {
+            result = decoder.decode(toDecode, chars, lastChunk);
+            if (result.isOverflow()) {
+                chars = Utils.doubleBuffer(chars);
+            }
+        } while (result.isOverflow());
+        checkResult(result);
+        if (lastChunk) {
             do {
-                result = decoder.decode(toDecode, toEncode, lastChunk);
+                result = decoder.flush(chars);
                 if (result.isOverflow()) {
-                    toEncode = Utils.doubleBuffer(toEncode);
+                    chars = Utils.doubleBuffer(chars);
                 }
             } while (result.isOverflow());
             checkResult(result);
-            toEncode.flip();
+        }
 
-            // Hold on to any remaining data
-            if (toDecode.hasRemaining()) {
-                remainingToDecode = toDecode;
-            } else {
-                remainingToDecode = null;
+        // Hold on to any partial characters for the next time
+        if (toDecode == pending) {
+            pending.compact();
+        } else if (toDecode.hasRemaining()) {
+            if (pending == null) {
+                pending = ByteBuffer.allocate(Math.max(toDecode.remaining(), 16));
             }
+            pending = ensureCapacity(pending, toDecode.remaining());
+            pending.put(toDecode);
+        }
+
+        chars.flip();
+        estimate = (int)Math.ceil(chars.remaining() * encoder.averageBytesPerChar());
+        if ((encoded == null) || (encoded.capacity() < estimate)) {
+            encoded = ByteBuffer.allocate(Math.max(estimate, MIN_SCRATCH_SIZE));
         } else {
-            toEncode.flip();
+            encoded.clear();
         }
 
-        if ((toEncode != null) && toEncode.hasRemaining()) {
-            // Create a result buffer and decode
-            ByteBuffer encoded =
-                ByteBuffer.allocate((int)Math.floor(toEncode.remaining() * encoder.averageBytesPerChar()));
-            CoderResult result;
+        do {
+            result = encoder.encode(chars, encoded, lastChunk);
+            if (result.isOverflow()) {
+                encoded = Utils.doubleBuffer(encoded);
+            }
+        } while (result.isOverflow());
+        checkResult(result);
+        if (lastChunk) {
             do {
-                result = encoder.encode(toEncode, encoded, lastChunk);
+                result = encoder.flush(encoded);
                 if (result.isOverflow()) {
                     encoded = Utils.doubleBuffer(encoded);
                 }
             } while (result.isOverflow());
             checkResult(result);
-            encoded.flip();
+        }
+
+        // Keep any characters that were not encoded. "chars" is back in write mode after this.
+        chars.compact();
+        encoded.flip();
+
+        // The output must be a new buffer, since the caller will hand it to a script
+        ByteBuffer out = null;
+        if (encoded.hasRemaining()) {
+            out = ByteBuffer.allocate(encoded.remaining());
+            out.put(encoded);
+            out.flip();
+        }
+
+        if (encoded.capacity() > MAX_RETAINED_SCRATCH) {
+            encoded = null;
+        }
+        if ((chars.position() == 0) && (chars.capacity() > MAX_RETAINED_SCRATCH)) {
+            chars = null;
+        }
+        return out;
+    }
+
+    /**
+     * We may skip decoding if the input is all ASCII, both character sets treat ASCII the same way,
+     * and nothing is left over from the last chunk.
+     */
+    private boolean canCopy(ByteBuffer in)
+    {
+        if (!asciiCompatible ||
+            ((pending != null) && (pending.position() > 0)) ||
+            ((chars != null) && (chars.position() > 0))) {
+            return false;
+        }
 
-            // Consolidate the remaining un-encoded data in case there is left over data
-            if (toEncode.hasRemaining()) {
-                toEncode.compact();
-            } else {
-                toEncode.clear();
+        if (in.hasArray()) {
+            byte[] a = in.array();
+            int end = in.arrayOffset() + in.limit();
+            for (int i = in.arrayOffset() + in.position(); i < end; i++) {
+                if (a[i] < 0) {
+                    return false;
+                }
             }
-            return encoded;
+        } else {
+            for (int i = in.position(); i < in.limit(); i++) {
+                if (in.get(i) < 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return true if the character set decodes each of the 128 ASCII bytes to the same character, and
+     * encodes each of those characters back to the same byte. This also rules out stateful character sets
+     * like ISO-2022-JP, because they give special meaning to the escape and shift characters, so copying
+     * is always safe once this passes.
+     */
+    private static boolean isAsciiCompatible(Charset from, Charset to)
+    {
+        if (!from.canEncode() || !to.canEncode()) {
+            // We can't check, so don't assume
+            return false;
+        }
+        byte[] ascii = new byte[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte)i;
+        }
+        String expected = new String(ascii, Charsets.ASCII);
+
+        try {
+            return (expected.equals(new String(ascii, from)) &&
+                    Arrays.equals(ascii, expected.getBytes(from)) &&
+                    expected.equals(new String(ascii, to)) &&
+                    Arrays.equals(ascii, expected.getBytes(to)));
+        } catch (RuntimeException re) {
+            // Some of our own character sets, like "base64," can't handle arbitrary input
+            return false;
+        }
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer b, int needed)
+    {
+        ByteBuffer r = b;
+        while (r.remaining() < needed) {
+            r = Utils.doubleBuffer(r);
+        }
+        return r;
+    }
+
+    private static CharBuffer ensureCapacity(CharBuffer b, int needed)
+    {
+        CharBuffer r = b;
+        while (r.remaining() < needed) {
+            r = Utils.doubleBuffer(r);
         }
-        return null;
+        return r;
     }
 
     private static void checkResult(CoderResult r)
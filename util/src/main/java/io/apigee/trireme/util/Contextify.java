@@ -2,7 +2,9 @@ package io.apigee.trireme.util;
 
 import io.apigee.trireme.core.NativeNodeModule;
 import io.apigee.trireme.core.NodeRuntime;
+import io.apigee.trireme.core.internal.ScriptCompiler;
 import io.apigee.trireme.core.internal.ScriptRunner;
+import io.apigee.trireme.core.internal.ScriptUtils;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Script;
@@ -86,7 +88,7 @@ public class Contextify
             String fileName = stringArg(args, 1, "anonymous");
             ContextImpl self = (ContextImpl)thisObj;
 
-            return cx.evaluateString(self.globalProxy, code, fileName, 1, null);
+            return ScriptCompiler.get(cx).run(cx, self.globalProxy, code, fileName);
         }
 
         @JSFunction
@@ -104,6 +106,8 @@ public class Contextify
         public static final String CLASS_NAME = "ContextifyScript";
 
         private Script script;
+        private String source;
+        private String fileName;
 
         @Override
         public String getClassName() {
@@ -122,7 +126,12 @@ public class Contextify
             String fileName = stringArg(args, 1, "anonymous");
 
             ScriptImpl self = new ScriptImpl();
-            self.script = cx.compileString(code, fileName, 1, null);
+            self.script = ScriptCompiler.get(cx).compile(cx, code, fileName);
+            if (self.script == null) {
+                // Too large to compile, so interpret it every time it runs
+                self.source = code;
+                self.fileName = fileName;
+            }
             return self;
         }
 
@@ -133,6 +142,9 @@ public class Contextify
             ContextImpl ctx = objArg(args, 0, ContextImpl.class, true);
             ScriptImpl self = (ScriptImpl)thisObj;
 
+            if (self.script == null) {
+                return ScriptUtils.interpretScript(cx, ctx.globalProxy, self.source, self.fileName);
+            }
             return self.script.exec(cx, ctx.globalProxy);
         }
     }
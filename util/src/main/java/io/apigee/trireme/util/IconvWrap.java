@@ -22,6 +22,8 @@
 package io.apigee.trireme.util;
 
 import io.apigee.trireme.core.NodeRuntime;
+import io.apigee.trireme.core.ScriptTask;
+import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.kernel.Charsets;
 import io.apigee.trireme.core.InternalNodeModule;
 import io.apigee.trireme.core.Utils;
@@ -31,6 +33,7 @@ import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.annotations.JSConstructor;
 import org.mozilla.javascript.annotations.JSFunction;
 
@@ -45,6 +48,7 @@ import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
 import java.nio.charset.UnmappableCharacterException;
+import java.util.ArrayDeque;
 
 public class IconvWrap
     implements InternalNodeModule
@@ -145,6 +149,8 @@ public class IconvWrap
         public static final String CLASS_NAME = "Converter";
 
         private CharsetConverter converter;
+        private final ArrayDeque<AsyncConversion> asyncQueue = new ArrayDeque<AsyncConversion>();
+        private boolean converting;
 
         @Override
         public String getClassName()
@@ -177,6 +183,9 @@ public class IconvWrap
             ByteBuffer inBuf;
             IconvImpl self = (IconvImpl)thisObj;
 
+            if (self.converting) {
+                throw Utils.makeError(cx, funObj, "An asynchronous conversion is in progress", Constants.EINVAL);
+            }
             if (args[0] == null) {
                 inBuf = null;
             } else {
@@ -201,5 +210,101 @@ public class IconvWrap
                 throw Utils.makeError(cx, funObj, cce.toString(), Constants.EINVAL);
             }
         }
+
+        /**
+         * Like "convert," but convert on a thread from the async pool, and pass the result to a callback.
+         * Conversions happen one at a time in the order that they were requested. The input buffer must not
+         * be modified until the callback is called.
+         */
+        @JSFunction
+        public static void convertAsync(Context cx, Scriptable thisObj, Object[] args, Function funObj)
+        {
+            ensureArg(args, 0);
+            boolean lastChunk = booleanArg(args, 1, true);
+            Function cb = objArg(cx, thisObj, args, 2, Function.class, true);
+            IconvImpl self = (IconvImpl)thisObj;
+
+            ByteBuffer inBuf = null;
+            if (args[0] != null) {
+                Buffer.BufferImpl b = objArg(cx, thisObj, args, 0, Buffer.BufferImpl.class, true);
+                inBuf = b.getBuffer();
+            }
+
+            NodeRuntime runtime = (NodeRuntime)cx.getThreadLocal(ScriptRunner.RUNNER);
+            self.asyncQueue.add(new AsyncConversion(inBuf, lastChunk, cb, runtime.getDomain()));
+            if (!self.converting) {
+                self.startConversion(runtime);
+            }
+        }
+
+        private void startConversion(final NodeRuntime runtime)
+        {
+            final AsyncConversion conv = asyncQueue.poll();
+            if (conv == null) {
+                return;
+            }
+            converting = true;
+
+            runtime.pin();
+            runtime.getAsyncPool().execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    ByteBuffer result = null;
+                    CharacterCodingException error = null;
+                    try {
+                        result = converter.convert(conv.input, conv.lastChunk);
+                        if (conv.lastChunk) {
+                            converter.reset();
+                        }
+                    } catch (CharacterCodingException cce) {
+                        error = cce;
+                    }
+
+                    final ByteBuffer finalResult = result;
+                    final CharacterCodingException finalError = error;
+                    runtime.enqueueTask(new ScriptTask()
+                    {
+                        @Override
+                        public void execute(Context cx, Scriptable scope)
+                        {
+                            converting = false;
+                            startConversion(runtime);
+                            runtime.unPin();
+
+                            if (finalError == null) {
+                                Object out = (finalResult == null) ? null :
+                                    Buffer.BufferImpl.newBuffer(cx, scope, finalResult, false);
+                                conv.callback.call(cx, conv.callback, IconvImpl.this,
+                                                   new Object[] { Undefined.instance, out });
+                            } else {
+                                String code = (finalError instanceof UnmappableCharacterException) ?
+                                    Constants.EILSEQ : Constants.EINVAL;
+                                conv.callback.call(cx, conv.callback, IconvImpl.this, new Object[] {
+                                    Utils.makeErrorObject(cx, scope, finalError.toString(), code)
+                                });
+                            }
+                        }
+                    }, conv.domain);
+                }
+            });
+        }
+    }
+
+    private static final class AsyncConversion
+    {
+        final ByteBuffer input;
+        final boolean lastChunk;
+        final Function callback;
+        final Object domain;
+
+        AsyncConversion(ByteBuffer input, boolean lastChunk, Function callback, Object domain)
+        {
+            this.input = input;
+            this.lastChunk = lastChunk;
+            this.callback = callback;
+            this.domain = domain;
+        }
     }
 }
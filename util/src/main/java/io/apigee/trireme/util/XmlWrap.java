@@ -33,22 +33,34 @@ import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.annotations.JSFunction;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
 import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 import static io.apigee.trireme.core.ArgUtils.*;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
@@ -56,11 +68,20 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class XmlWrap
     implements InternalNodeModule
 {
     public static final int DEFAULT_MAX_JOBS = 8;
+    /** Output is delivered to "onData" in chunks of this size */
+    public static final int OUTPUT_CHUNK_SIZE = 8192;
+    /** The transformation waits once this many chunks are waiting for "onData" */
+    public static final int MAX_PENDING_CHUNKS = 4;
+    /** How long, in seconds, the transformation waits for "onData" to catch up before it fails */
+    public static final long PENDING_CHUNK_TIMEOUT = 60L;
 
     @Override
     public String getModuleName() {
@@ -83,6 +104,7 @@ public class XmlWrap
         public static final String CLASS_NAME = "_xmlWrapClass";
 
         private TransformerFactory transFactory;
+        private SAXParserFactory parserFactory;
         private NodeRuntime runtime;
         private int availableSlots = DEFAULT_MAX_JOBS;
         private final ArrayDeque<Job> jobQueue = new ArrayDeque<Job>();
@@ -96,6 +118,15 @@ public class XmlWrap
         {
             transFactory = TransformerFactory.newInstance();
             configureTransformer(cx);
+            parserFactory = SAXParserFactory.newInstance();
+            parserFactory.setNamespaceAware(true);
+            try {
+                parserFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            } catch (ParserConfigurationException pce) {
+                throw Utils.makeError(cx, this, "Error configuring XML parser: " + pce);
+            } catch (SAXException se) {
+                throw Utils.makeError(cx, this, "Error configuring XML parser: " + se);
+            }
             this.runtime = runtime;
 
             String maxJobs = System.getProperty("trireme.max.xslt.jobs");
@@ -135,14 +166,17 @@ public class XmlWrap
             Source src = self.getSource(cx, args[0]);
 
             try {
-                // Keep in mind that we are in Node.js and the factory will be single-threaded.
+                // The factory is not thread-safe, and documents are parsed with it in other threads.
                 // Set the error listener to prevent stuff being written to standard error.
-                Err errs = new Err();
-                self.transFactory.setErrorListener(errs);
-                Templates tmpl = self.transFactory.newTemplates(src);
+                Templates tmpl;
+                synchronized (self.transFactory) {
+                    Err errs = new Err();
+                    self.transFactory.setErrorListener(errs);
+                    tmpl = self.transFactory.newTemplates(src);
+                }
 
                 ScriptableObject ret = (ScriptableObject)cx.newObject(thisObj);
-                ret.associateValue("template", tmpl);
+                ret.associateValue("template", new Stylesheet(tmpl));
                 return ret;
 
             } catch (TransformerConfigurationException e) {
@@ -157,42 +191,72 @@ public class XmlWrap
             ensureArg(args, 0);
             XmlWrapImpl self = (XmlWrapImpl)thisObj;
 
-            Source src = self.getSource(cx, args[0]);
+            // Check the type now, but wait to parse so that errors are reported by "transform"
+            if (!((args[0] instanceof String) || (args[0] instanceof Buffer.BufferImpl))) {
+                throw Utils.makeError(cx, thisObj, "Input must be a string or a buffer");
+            }
             ScriptableObject ret = (ScriptableObject)cx.newObject(thisObj);
-            ret.associateValue("document", src);
+            ret.associateValue("document", new XmlDocument(self.transFactory, self.parserFactory, args[0]));
             return ret;
         }
 
+        @JSFunction
+        @SuppressWarnings("unused")
+        public static boolean isDocument(Context cx, Scriptable thisObj, Object[] args, Function funObj)
+        {
+            ScriptableObject doc = objArg(cx, thisObj, args, 0, ScriptableObject.class, false);
+            return ((doc != null) && (doc.getAssociatedValue("document") instanceof XmlDocument));
+        }
+
         @JSFunction
         @SuppressWarnings("unused")
         public static Object transform(Context cx, Scriptable thisObj, Object[] args, Function funObj)
         {
-            ScriptableObject ss = objArg(args, 0, ScriptableObject.class, true);
-            ScriptableObject doc = objArg(args, 1, ScriptableObject.class, true);
-            Scriptable params = objArg(args, 2, Scriptable.class, false);
-            Function callback = functionArg(args, 3, false);
+            ScriptableObject ss = objArg(cx, thisObj, args, 0, ScriptableObject.class, true);
+            ScriptableObject doc = objArg(cx, thisObj, args, 1, ScriptableObject.class, true);
+            Scriptable params = objArg(cx, thisObj, args, 2, Scriptable.class, false);
+            Function callback = objArg(cx, thisObj, args, 3, Function.class, false);
+            Scriptable opts = objArg(cx, thisObj, args, 4, Scriptable.class, false);
             XmlWrapImpl self = (XmlWrapImpl)thisObj;
 
-            Templates tmpl = (Templates)ss.getAssociatedValue("template");
+            Stylesheet tmpl = (Stylesheet)ss.getAssociatedValue("template");
             if (tmpl == null) {
                 throw Utils.makeError(cx, thisObj, "Stylesheet was not created by createStylesheet");
             }
 
-            Source src = (Source)doc.getAssociatedValue("document");
+            XmlDocument src = (XmlDocument)doc.getAssociatedValue("document");
             if (src == null) {
                 throw Utils.makeError(cx, thisObj, "Document was not created by createDocument");
             }
 
+            // Indentation was always on before there were options, so keep it that way by default
+            boolean indent = true;
+            Function onData = null;
+            if (opts != null) {
+                if (opts.has("indent", opts)) {
+                    indent = Context.toBoolean(opts.get("indent", opts));
+                }
+                Object od = opts.get("onData", opts);
+                if (od instanceof Function) {
+                    onData = (Function)od;
+                }
+            }
+
             if ((callback == null) || Undefined.instance.equals(callback)) {
                 // Synchronous case
+                if (onData != null) {
+                    throw Utils.makeError(cx, thisObj, "onData requires a callback");
+                }
                 try {
-                    return self.doTransform(tmpl, src, params);
+                    StringWriter output = new StringWriter();
+                    self.doTransform(tmpl, src, params, indent, new StreamResult(output));
+                    return output.toString();
                 } catch (NodeOSException nse) {
                     throw Utils.makeError(cx, thisObj, nse);
                 }
 
             } else {
-                Job job = new Job(tmpl, src, params, callback);
+                Job job = new Job(tmpl, src, params, callback, onData, indent, self.runtime.getDomain());
                 self.jobQueue.add(job);
                 self.scheduleJobs();
 
@@ -219,7 +283,22 @@ public class XmlWrap
                 public void run()
                 {
                     try {
-                        final String result = doTransform(job.tmpl, job.src, job.params);
+                        final Object result;
+                        if (job.onData == null) {
+                            StringWriter output = new StringWriter();
+                            doTransform(job.tmpl, job.src, job.params, job.indent, new StreamResult(output));
+                            result = output.toString();
+                        } else {
+                            // Stream the output to the script as it is produced
+                            ChunkOutputStream output = new ChunkOutputStream(runtime, job.onData, job.domain);
+                            doTransform(job.tmpl, job.src, job.params, job.indent, new StreamResult(output));
+                            try {
+                                output.close();
+                            } catch (IOException ioe) {
+                                throw new NodeOSException(ioe.toString());
+                            }
+                            result = Undefined.instance;
+                        }
                         runtime.enqueueTask(new ScriptTask()
                         {
                             @Override
@@ -231,7 +310,7 @@ public class XmlWrap
                                     Undefined.instance, result});
 
                             }
-                        });
+                        }, job.domain);
 
                     } catch (final NodeOSException nse) {
                         runtime.enqueueTask(new ScriptTask()
@@ -245,7 +324,7 @@ public class XmlWrap
                                     Utils.makeErrorObject(cx, XmlWrapImpl.this, nse)
                                 });
                             }
-                        });
+                        }, job.domain);
                     } finally {
                         runtime.unPin();
                     }
@@ -253,17 +332,17 @@ public class XmlWrap
             });
         }
 
-        String doTransform(Templates tmpl, Source src, Scriptable params)
+        void doTransform(Stylesheet tmpl, XmlDocument doc, Scriptable params, boolean indent, Result result)
             throws NodeOSException
         {
-            StringWriter output = new StringWriter();
-            StreamResult result = new StreamResult(output);
-
             Err errs = new Err();
+            Transformer trans = null;
             try {
-                Transformer trans = tmpl.newTransformer();
+                trans = tmpl.getTransformer();
                 trans.setErrorListener(errs);
-                trans.setOutputProperty(OutputKeys.INDENT, "yes");
+                if (indent) {
+                    trans.setOutputProperty(OutputKeys.INDENT, "yes");
+                }
 
                 if (params != null) {
                     for (Object id : params.getIds()) {
@@ -275,24 +354,26 @@ public class XmlWrap
                     }
                 }
 
-                trans.transform(src, result);
+                // The DOM is not thread-safe, so transforms of the same document take turns
+                synchronized (doc) {
+                    trans.transform(doc.getSource(), result);
+                }
 
             } catch (TransformerConfigurationException tce) {
                 throw new NodeOSException(tce.toString());
             } catch (TransformerException e) {
-                // Fall through! We already collected them below
+                // Fall through! We already collected them below -- unless it came from somewhere else,
+                // like an error writing the output
+                if (errs.getErrors().isEmpty()) {
+                    throw new NodeOSException(formatErrors(Collections.singletonList(e)));
+                }
             }
 
             // Use the error handler to collect all the errors, not just the first one.
             if (!errs.getErrors().isEmpty()) {
-                StringBuilder msgs = new StringBuilder();
-                for (TransformerException te : errs.getErrors()) {
-                    msgs.append(te.getLocationAsString() + ": " + te.toString() + '\n');
-                }
-                throw new NodeOSException(msgs.toString());
+                throw new NodeOSException(formatErrors(errs.getErrors()));
             }
-
-            return output.toString();
+            tmpl.releaseTransformer(trans);
         }
 
         private Source getSource(Context cx, Object o)
@@ -302,9 +383,7 @@ public class XmlWrap
 
             } else if (o instanceof Buffer.BufferImpl) {
                 Buffer.BufferImpl buf = (Buffer.BufferImpl)o;
-                ByteArrayInputStream bis =
-                    new ByteArrayInputStream(buf.getArray(), buf.getArrayOffset(), buf.getLength());
-                return new StreamSource(bis);
+                return new StreamSource(buf.getInputStream());
 
             } else {
                 throw Utils.makeError(cx, this, "Input must be a string or a buffer");
@@ -312,6 +391,225 @@ public class XmlWrap
         }
     }
 
+    /**
+     * This is a compiled stylesheet along with the transformers that have been created from it and are not
+     * currently in use. Transformers are not thread-safe, but they may be reset and used again by another
+     * thread, so keeping a few of them saves creating a new one for every transformation.
+     */
+    private static final class Stylesheet
+    {
+        private final Templates templates;
+        private final ConcurrentLinkedQueue<Transformer> idle = new ConcurrentLinkedQueue<Transformer>();
+
+        Stylesheet(Templates templates)
+        {
+            this.templates = templates;
+        }
+
+        Transformer getTransformer()
+            throws TransformerConfigurationException
+        {
+            Transformer t = idle.poll();
+            return (t == null) ? templates.newTransformer() : t;
+        }
+
+        void releaseTransformer(Transformer t)
+        {
+            try {
+                t.reset();
+            } catch (UnsupportedOperationException uoe) {
+                // Some transformers can't be reset, so don't re-use them
+                return;
+            }
+            if (idle.size() < DEFAULT_MAX_JOBS) {
+                idle.add(t);
+            }
+        }
+    }
+
+    /**
+     * This is an XML document that is parsed into a DOM the first time that it is transformed, and then
+     * transformed again from the DOM as many times as necessary. The DOM is built by an identity transformer
+     * from the same factory as the stylesheets, so that errors are reported the same way. The XML itself
+     * is read by a SAX reader from our own SAXParserFactory, whatever transformer was chosen, because
+     * that is the only way to give the parser an error handler that doesn't print to standard error.
+     */
+    private static final class XmlDocument
+    {
+        private final TransformerFactory factory;
+        private final SAXParserFactory parserFactory;
+        private Object input;
+        private DOMSource parsed;
+        private String parseError;
+
+        XmlDocument(TransformerFactory factory, SAXParserFactory parserFactory, Object input)
+        {
+            this.factory = factory;
+            this.parserFactory = parserFactory;
+            this.input = input;
+        }
+
+        /**
+         * Parse the document if necessary. The caller must synchronize on this object.
+         */
+        Source getSource()
+            throws NodeOSException
+        {
+            if (parseError != null) {
+                throw new NodeOSException(parseError);
+            }
+            if (parsed == null) {
+                InputSource is;
+                if (input instanceof Buffer.BufferImpl) {
+                    Buffer.BufferImpl buf = (Buffer.BufferImpl)input;
+                    is = new InputSource(buf.getInputStream());
+                } else {
+                    is = new InputSource(new StringReader(input.toString()));
+                }
+
+                Err errs = new Err();
+                try {
+                    Transformer identity;
+                    XMLReader reader;
+                    synchronized (factory) {
+                        identity = factory.newTransformer();
+                    }
+                    synchronized (parserFactory) {
+                        reader = parserFactory.newSAXParser().getXMLReader();
+                    }
+                    // The default handler prints errors to standard error
+                    reader.setErrorHandler(new DefaultHandler());
+                    identity.setErrorListener(errs);
+                    DOMResult result = new DOMResult();
+                    identity.transform(new SAXSource(reader, is), result);
+                    parsed = new DOMSource(result.getNode());
+                } catch (ParserConfigurationException pce) {
+                    parseError = pce.toString();
+                } catch (SAXException se) {
+                    parseError = se.toString();
+                } catch (TransformerConfigurationException tce) {
+                    parseError = tce.toString();
+                } catch (TransformerException te) {
+                    if (errs.getErrors().isEmpty()) {
+                        parseError = formatErrors(Collections.singletonList(te));
+                    }
+                }
+                if (!errs.getErrors().isEmpty()) {
+                    parseError = formatErrors(errs.getErrors());
+                }
+                // We won't need the original text again
+                input = null;
+                if (parseError != null) {
+                    parsed = null;
+                    throw new NodeOSException(parseError);
+                }
+            }
+            return parsed;
+        }
+    }
+
+    private static String formatErrors(List<TransformerException> errs)
+    {
+        StringBuilder msgs = new StringBuilder();
+        for (TransformerException te : errs) {
+            msgs.append(te.getLocationAsString() + ": " + te.toString() + '\n');
+        }
+        return msgs.toString();
+    }
+
+    /**
+     * Collect output in fixed-size chunks, and deliver each one to a script function as a Buffer as soon
+     * as it fills, so that a large transformation never has to be held in memory all at once. Once
+     * MAX_PENDING_CHUNKS are waiting for the script, the transformation waits too, and it fails if the
+     * script doesn't catch up within PENDING_CHUNK_TIMEOUT.
+     */
+    private static final class ChunkOutputStream
+        extends OutputStream
+    {
+        private final NodeRuntime runtime;
+        private final Function onData;
+        private final Object domain;
+        private final Semaphore pending = new Semaphore(MAX_PENDING_CHUNKS);
+        private byte[] chunk = new byte[OUTPUT_CHUNK_SIZE];
+        private int length;
+
+        ChunkOutputStream(NodeRuntime runtime, Function onData, Object domain)
+        {
+            this.runtime = runtime;
+            this.onData = onData;
+            this.domain = domain;
+        }
+
+        @Override
+        public void write(int b)
+            throws IOException
+        {
+            if (length == chunk.length) {
+                deliver();
+            }
+            chunk[length++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            int p = off;
+            int remaining = len;
+            while (remaining > 0) {
+                if (length == chunk.length) {
+                    deliver();
+                }
+                int toCopy = Math.min(remaining, chunk.length - length);
+                System.arraycopy(b, p, chunk, length, toCopy);
+                length += toCopy;
+                p += toCopy;
+                remaining -= toCopy;
+            }
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            if (length > 0) {
+                deliver();
+            }
+        }
+
+        private void deliver()
+            throws IOException
+        {
+            try {
+                if (!pending.tryAcquire(PENDING_CHUNK_TIMEOUT, TimeUnit.SECONDS)) {
+                    throw new IOException("Timed out waiting for onData");
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+
+            final byte[] full = chunk;
+            final int fullLength = length;
+            chunk = new byte[OUTPUT_CHUNK_SIZE];
+            length = 0;
+
+            runtime.enqueueTask(new ScriptTask()
+            {
+                @Override
+                public void execute(Context cx, Scriptable scope)
+                {
+                    try {
+                        onData.call(cx, onData, onData,
+                                    new Object[] { Buffer.BufferImpl.newBuffer(cx, scope, full, 0, fullLength) });
+                    } finally {
+                        pending.release();
+                    }
+                }
+            }, domain);
+        }
+    }
+
     private static final class Err
         implements ErrorListener
     {
@@ -349,17 +647,24 @@ public class XmlWrap
 
     private static final class Job
     {
-        Templates tmpl;
-        Source src;
+        Stylesheet tmpl;
+        XmlDocument src;
         Scriptable params;
         Function callback;
+        Function onData;
+        boolean indent;
+        Object domain;
 
-        Job(Templates tmpl, Source src, Scriptable params, Function callback)
+        Job(Stylesheet tmpl, XmlDocument src, Scriptable params, Function callback,
+            Function onData, boolean indent, Object domain)
         {
             this.tmpl = tmpl;
             this.src = src;
             this.params = params;
             this.callback = callback;
+            this.onData = onData;
+            this.indent = indent;
+            this.domain = domain;
         }
     }
 }
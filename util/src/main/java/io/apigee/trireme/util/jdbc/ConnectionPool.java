@@ -0,0 +1,308 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.util.jdbc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Properties;
+
+/**
+ * This is a simple pool of JDBC connections for a single URL and set of properties. Connections are
+ * handed out most-recently-used first, so that a lightly-loaded pool keeps using the same few connections
+ * and their statement caches stay warm. There is no background thread -- idle connections are checked
+ * against the maximum lifetime and the validation query when they are borrowed, and the caller tops up
+ * the pool to the minimum number of idle connections by calling "fillIdle" once it has handed the
+ * borrowed connection on. All the methods that touch the database must be called from a thread that can
+ * block, like the async pool. The settings may be changed from any thread.
+ */
+
+public class ConnectionPool
+    implements Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+
+    public static final int DEFAULT_MIN_IDLE = 0;
+    public static final int DEFAULT_MAX_IDLE = 8;
+
+    private final String url;
+    private final Properties props;
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+
+    private volatile int minIdle = DEFAULT_MIN_IDLE;
+    private volatile int maxIdle = DEFAULT_MAX_IDLE;
+    private volatile long maxLifetime;
+    private volatile String validationQuery;
+    private volatile int statementCacheSize = StatementCache.DEFAULT_SIZE;
+
+    private int active;
+    private boolean closed;
+    private boolean filling;
+
+    public ConnectionPool(String url, Properties props)
+    {
+        this.url = url;
+        this.props = props;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    /**
+     * Set the number of idle connections that the pool tries to keep open. The default is zero.
+     */
+    public ConnectionPool setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+        return this;
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * Set the largest number of idle connections that the pool will keep. Connections returned to a
+     * pool that already has this many are closed.
+     */
+    public ConnectionPool setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+        return this;
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    /**
+     * Set the number of milliseconds after which a connection is closed rather than re-used.
+     * Zero, the default, means that connections live forever.
+     */
+    public ConnectionPool setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+        return this;
+    }
+
+    public String getValidationQuery() {
+        return validationQuery;
+    }
+
+    /**
+     * Set a query that is run on an idle connection before it is handed out. If it fails then the connection
+     * is thrown away. The default is null, which means no validation.
+     */
+    public ConnectionPool setValidationQuery(String validationQuery) {
+        this.validationQuery = validationQuery;
+        return this;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Set the number of prepared statements that each connection in the pool will cache.
+     */
+    public ConnectionPool setStatementCacheSize(int size) {
+        this.statementCacheSize = size;
+        return this;
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    public synchronized int getActiveCount() {
+        return active;
+    }
+
+    /**
+     * Get a connection from the pool, opening a new one if there are no usable idle connections.
+     */
+    public PooledConnection borrow()
+        throws SQLException
+    {
+        PooledConnection pc;
+        do {
+            synchronized (this) {
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+                pc = idle.pollFirst();
+            }
+            if ((pc != null) && (isExpired(pc) || !isValid(pc))) {
+                pc.closePhysical();
+                pc = null;
+            } else if (pc == null) {
+                pc = open();
+            }
+        } while (pc == null);
+
+        synchronized (this) {
+            active++;
+        }
+        return pc;
+    }
+
+    /**
+     * Return a connection to the pool. It is rolled back if a transaction was in progress, and closed
+     * if it is too old or if there are already enough idle connections.
+     */
+    void release(PooledConnection pc)
+    {
+        boolean reusable = !isExpired(pc) && reset(pc);
+        synchronized (this) {
+            active--;
+            if (reusable && !closed && (idle.size() < maxIdle)) {
+                idle.addFirst(pc);
+                return;
+            }
+        }
+        pc.closePhysical();
+    }
+
+    /**
+     * Close all the idle connections. Connections that are in use are closed as they are returned.
+     */
+    @Override
+    public void close()
+    {
+        ArrayDeque<PooledConnection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayDeque<PooledConnection>(idle);
+            idle.clear();
+        }
+        for (PooledConnection pc : toClose) {
+            pc.closePhysical();
+        }
+    }
+
+    private PooledConnection open()
+        throws SQLException
+    {
+        Connection conn = DriverManager.getConnection(url, props);
+        if (log.isDebugEnabled()) {
+            log.debug("Opened new pooled JDBC connection to {}", conn);
+        }
+        return new PooledConnection(conn, this, statementCacheSize);
+    }
+
+    /**
+     * Open connections until the pool has the minimum number of idle ones. This blocks, so it should be
+     * called after a borrowed connection has been handed on rather than before. If another thread is
+     * already doing it then this returns right away.
+     */
+    public void fillIdle()
+    {
+        int needed;
+        synchronized (this) {
+            if (filling || closed) {
+                return;
+            }
+            needed = minIdle - idle.size();
+            if (needed <= 0) {
+                return;
+            }
+            filling = true;
+        }
+        try {
+            for (int i = 0; i < needed; i++) {
+                PooledConnection pc = open();
+                synchronized (this) {
+                    if (closed || (idle.size() >= maxIdle)) {
+                        pc.closePhysical();
+                        return;
+                    }
+                    idle.addLast(pc);
+                }
+            }
+        } catch (SQLException sqle) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error opening idle connection: {}", sqle);
+            }
+        } finally {
+            synchronized (this) {
+                filling = false;
+            }
+        }
+    }
+
+    private boolean isExpired(PooledConnection pc)
+    {
+        long lifetime = maxLifetime;
+        return ((lifetime > 0L) &&
+                ((System.currentTimeMillis() - pc.getCreated()) > lifetime));
+    }
+
+    private boolean isValid(PooledConnection pc)
+    {
+        String query = validationQuery;
+        if (query == null) {
+            return true;
+        }
+        try {
+            PreparedStatement st = pc.getStatements().take(query);
+            try {
+                st.execute();
+            } catch (SQLException sqle) {
+                st.close();
+                throw sqle;
+            }
+            pc.getStatements().release(query, st);
+            return true;
+        } catch (SQLException sqle) {
+            if (log.isDebugEnabled()) {
+                log.debug("Validation query failed on {}: {}", pc.getConnection(), sqle);
+            }
+            return false;
+        }
+    }
+
+    private static boolean reset(PooledConnection pc)
+    {
+        try {
+            Connection conn = pc.getConnection();
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            conn.clearWarnings();
+            return true;
+        } catch (SQLException sqle) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error resetting connection to be re-pooled: {}", sqle);
+            }
+            return false;
+        }
+    }
+}
@@ -23,6 +23,7 @@ package io.apigee.trireme.util.jdbc;
 
 import io.apigee.trireme.core.NodeRuntime;
 import io.apigee.trireme.core.ScriptTask;
+import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.core.modules.Buffer;
 import io.apigee.trireme.core.modules.Referenceable;
 import org.mozilla.javascript.Context;
@@ -41,6 +42,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import static io.apigee.trireme.core.ArgUtils.*;
 
@@ -51,17 +53,25 @@ public class JdbcConnection
 
     public static final String CLASS_NAME = "_triremeJdbcConnection";
 
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private PooledConnection pooled;
     private Connection conn;
+    private StatementCache statements;
     private NodeRuntime runtime;
+    private final ArrayList<JdbcResultHandle> openResults = new ArrayList<JdbcResultHandle>();
+    private boolean closed;
 
     @Override
     public String getClassName() {
         return CLASS_NAME;
     }
 
-    public void init(Connection conn, NodeRuntime runtime)
+    public void init(PooledConnection pooled, NodeRuntime runtime)
     {
-        this.conn = conn;
+        this.pooled = pooled;
+        this.conn = pooled.getConnection();
+        this.statements = pooled.getStatements();
         this.runtime = runtime;
         requestPin();
 
@@ -85,13 +95,24 @@ public class JdbcConnection
                 if (log.isDebugEnabled()) {
                     log.debug("Closing {}", self.conn);
                 }
-                try {
-                    synchronized (self) {
-                        self.conn.close();
+                ArrayList<JdbcResultHandle> results = null;
+                synchronized (self) {
+                    if (!self.closed) {
+                        self.closed = true;
+                        results = new ArrayList<JdbcResultHandle>(self.openResults);
+                        self.openResults.clear();
                     }
-                } catch (SQLException e) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Error on JDBC close. Ignoring it: {}", e);
+                }
+                if (results != null) {
+                    // Close streaming results first, outside our lock since each one takes its own lock
+                    // and then ours. Otherwise a pooled connection could go to someone else while
+                    // they are still open.
+                    for (JdbcResultHandle result : results) {
+                        result.invalidate();
+                    }
+                    synchronized (self) {
+                        // A pooled connection goes back to the pool along with its cached statements
+                        self.pooled.close();
                     }
                 }
 
@@ -218,8 +239,9 @@ public class JdbcConnection
                     }
 
                     synchronized (self) {
+                        PreparedStatement st = self.statements.take(sql);
+                        boolean reusable = false;
                         Context cx = Context.enter();
-                        PreparedStatement st = self.conn.prepareCall(sql);
                         try {
                             if (params != null) {
                                 self.setParams(params, st, cx);
@@ -245,13 +267,15 @@ public class JdbcConnection
                                 }
                             }
 
+                            reusable = true;
+
                             // We should have a "result" object and maybe some "rows". Call back.
                             self.runtime.enqueueCallback(cb, cb, self, domain,
                                                          new Object[] { Undefined.instance, result, rows});
 
                         } finally {
                             Context.exit();
-                            st.close();
+                            self.releaseStatement(sql, st, reusable);
                         }
                     }
 
@@ -285,8 +309,9 @@ public class JdbcConnection
                     }
 
                     synchronized (self) {
+                        PreparedStatement st = self.statements.take(sql);
+                        boolean reusable = false;
                         Context cx = Context.enter();
-                        PreparedStatement st = self.conn.prepareCall(sql);
                         try {
                             if (params != null) {
                                 self.setParams(params, st, cx);
@@ -299,15 +324,19 @@ public class JdbcConnection
                             Object resultHandle = Undefined.instance;
 
                             if (isResultSet) {
+                                // The handle owns the statement now, and gives it back when it is closed
                                 ResultSet rs = st.getResultSet();
                                 JdbcResultHandle handle = (JdbcResultHandle)cx.newObject(self, JdbcResultHandle.CLASS_NAME);
-                                handle.init(self.runtime, rs, st);
+                                handle.init(self.runtime, rs, st, self, sql);
+                                self.openResults.add(handle);
                                 resultHandle = handle;
+                                st = null;
                             } else {
                                 int updateCount = st.getUpdateCount();
                                 if (updateCount >= 0) {
                                     result.put("updateCount", result, updateCount);
                                 }
+                                reusable = true;
                             }
 
                             // We should have a "result" object and maybe some "rows". Call back.
@@ -316,6 +345,9 @@ public class JdbcConnection
 
                         } finally {
                             Context.exit();
+                            if (st != null) {
+                                self.releaseStatement(sql, st, reusable);
+                            }
                         }
                     }
 
@@ -326,6 +358,131 @@ public class JdbcConnection
         });
     }
 
+    /**
+     * Execute the same SQL once for each element of an array of parameter arrays, sending them to the
+     * database in batches of "batchSize" rows, and call back once with the total update count and the
+     * update count for each batch. The parameters are converted to Java values here on the script thread.
+     * If a batch fails, the error has "updateCount" and "batchCounts" properties for the batches that
+     * ran before it. With auto-commit on, those batches are already committed.
+     */
+    @JSFunction
+    @SuppressWarnings("unused")
+    public static void executeBatch(Context cx, Scriptable thisObj, Object[] args, Function func)
+    {
+        final String sql = stringArg(args, 0);
+        Scriptable rows = objArg(cx, thisObj, args, 1, Scriptable.class, true);
+        final int batchSize = intArg(args, 2, DEFAULT_BATCH_SIZE);
+        final Function cb = objArg(cx, thisObj, args, 3, Function.class, true);
+        final JdbcConnection self = (JdbcConnection)thisObj;
+
+        if (batchSize <= 0) {
+            throw Utils.makeRangeError(cx, thisObj, "batchSize must be positive");
+        }
+        final int numRows =
+            rows.has("length", rows) ? (int)Context.toNumber(rows.get("length", rows)) : 0;
+
+        final Object domain = self.runtime.getDomain();
+        final ArrayList<Object[]> rowParams = new ArrayList<Object[]>(numRows);
+        try {
+            for (int row = 0; row < numRows; row++) {
+                Object params = rows.get(row, rows);
+                if (!(params instanceof Scriptable)) {
+                    throw new SQLException("Invalid parameters for row " + row);
+                }
+                rowParams.add(convertParams((Scriptable)params));
+            }
+        } catch (SQLException se) {
+            self.returnError(cb, domain, se);
+            return;
+        }
+
+        self.runtime.getAsyncPool().execute(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    if (log.isTraceEnabled()) {
+                        log.trace("Executing {} in batches of {} for {} rows", sql, batchSize, numRows);
+                    }
+
+                    synchronized (self) {
+                        PreparedStatement st = self.statements.take(sql);
+                        boolean reusable = false;
+                        Object[] batchCounts = new Object[(numRows + batchSize - 1) / batchSize];
+                        int totalCount = 0;
+                        int row = 0;
+                        int b = 0;
+                        Context cx = Context.enter();
+                        try {
+                            for (; b < batchCounts.length; b++) {
+                                int batchEnd = Math.min(row + batchSize, numRows);
+                                for (; row < batchEnd; row++) {
+                                    bindParams(rowParams.get(row), st);
+                                    st.addBatch();
+                                }
+
+                                // Drivers may return SUCCESS_NO_INFO rather than a count for each row
+                                int batchCount = 0;
+                                for (int count : st.executeBatch()) {
+                                    if (count > 0) {
+                                        batchCount += count;
+                                    }
+                                }
+                                batchCounts[b] = batchCount;
+                                totalCount += batchCount;
+                            }
+
+                            Scriptable result = cx.newObject(self);
+                            result.put("updateCount", result, totalCount);
+                            result.put("batchCounts", result, cx.newArray(self, batchCounts));
+                            reusable = true;
+
+                            self.runtime.enqueueCallback(cb, cb, self, domain,
+                                                         new Object[] { Undefined.instance, result });
+
+                        } catch (SQLException se) {
+                            self.returnBatchError(cb, domain, se, totalCount, Arrays.copyOf(batchCounts, b));
+                        } finally {
+                            Context.exit();
+                            self.releaseStatement(sql, st, reusable);
+                        }
+                    }
+
+                } catch (SQLException se) {
+                    self.returnError(cb, domain, se);
+                }
+            }
+        });
+    }
+
+    /**
+     * Put a statement back in the cache once we are done with it, unless it failed, or unless the
+     * connection has been closed in the meantime and someone else may be using the cache.
+     */
+    void releaseStatement(String sql, PreparedStatement st, boolean reusable)
+    {
+        synchronized (this) {
+            if (reusable && !closed) {
+                statements.release(sql, st);
+                return;
+            }
+        }
+        try {
+            st.close();
+        } catch (SQLException sqle) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error closing statement: {}", sqle);
+            }
+        }
+    }
+
+    void removeResult(JdbcResultHandle result)
+    {
+        synchronized (this) {
+            openResults.remove(result);
+        }
+    }
+
     private Scriptable retrieveRows(Context cx, ResultSet rs)
         throws SQLException
     {
@@ -344,43 +501,46 @@ public class JdbcConnection
 
     private void setParams(Scriptable params, PreparedStatement st, Context cx)
         throws SQLException
+    {
+        bindParams(convertParams(params), st);
+    }
+
+    /**
+     * Turn an array of JavaScript parameters into Java values that "bindParams" can use on any thread.
+     */
+    private static Object[] convertParams(Scriptable params)
+        throws SQLException
     {
         if (!params.has("length", params)) {
-            return;
+            return ScriptRuntime.emptyArgs;
         }
 
         int length = ((Number)params.get("length", params)).intValue();
+        Object[] values = new Object[length];
         for (int i = 0; i < length; i++) {
             Object p = params.get(i, params);
             if ((p == null) || Undefined.instance.equals(p)) {
-                st.setNull(i + 1, Types.NULL);
-            } else if (p instanceof String) {
-                st.setString(i + 1, (String) p);
-            } else if (p instanceof Boolean) {
-                st.setBoolean(i + 1, ((Boolean) p).booleanValue());
-            } else if (p instanceof Integer) {
-                st.setInt(i + 1, ((Integer) p).intValue());
+                values[i] = null;
+            } else if (p instanceof CharSequence) {
+                // Strings built by concatenation are not always java.lang.String
+                values[i] = p.toString();
+            } else if ((p instanceof Boolean) || (p instanceof Integer)) {
+                values[i] = p;
             } else if (p instanceof Number) {
-                st.setDouble(i + 1, ((Number)p).doubleValue());
+                values[i] = ((Number)p).doubleValue();
 
             } else if (p instanceof Buffer.BufferImpl) {
+                // Copy, since the script may change the buffer before the statement runs
                 ByteBuffer bb = ((Buffer.BufferImpl)p).getBuffer();
-                if (bb.hasArray() && (bb.arrayOffset() == 0) && (bb.position() == 0) &&
-                    (bb.remaining() == bb.array().length)) {
-                  // We can safely just pass the whole array by reference into SQL
-                  st.setBytes(i + 1, bb.array());
-                } else {
-                  // We have to make a copy
-                  byte[] tmp = new byte[bb.remaining()];
-                  bb.get(tmp);
-                  st.setBytes(i + 1, tmp);
-                }
+                byte[] tmp = new byte[bb.remaining()];
+                bb.get(tmp);
+                values[i] = tmp;
 
             } else if (p instanceof Scriptable) {
                 try {
                     // Optimistically think that this is a Date.
                     java.util.Date d = (java.util.Date)Context.jsToJava(p, java.util.Date.class);
-                    st.setDate(i + 1, new java.sql.Date(d.getTime()));
+                    values[i] = new java.sql.Date(d.getTime());
                 } catch (Exception e) {
                     throw new SQLException("Invalid JavaScript object for parameter " + i + ": " + e);
                 }
@@ -389,6 +549,30 @@ public class JdbcConnection
                 throw new SQLException("Invalid type for parameter " + i + ": " + p);
             }
         }
+        return values;
+    }
+
+    private static void bindParams(Object[] values, PreparedStatement st)
+        throws SQLException
+    {
+        for (int i = 0; i < values.length; i++) {
+            Object v = values[i];
+            if (v == null) {
+                st.setNull(i + 1, Types.NULL);
+            } else if (v instanceof String) {
+                st.setString(i + 1, (String)v);
+            } else if (v instanceof Boolean) {
+                st.setBoolean(i + 1, (Boolean)v);
+            } else if (v instanceof Integer) {
+                st.setInt(i + 1, (Integer)v);
+            } else if (v instanceof Double) {
+                st.setDouble(i + 1, (Double)v);
+            } else if (v instanceof byte[]) {
+                st.setBytes(i + 1, (byte[])v);
+            } else {
+                st.setDate(i + 1, (java.sql.Date)v);
+            }
+        }
     }
 
     private void returnError(final Function cb, Object domain, final SQLException se)
@@ -405,4 +589,25 @@ public class JdbcConnection
             }
         }, domain);
     }
+
+    /**
+     * Like "returnError," but add the update counts of the batches that ran before the failure.
+     */
+    private void returnBatchError(final Function cb, Object domain, final SQLException se,
+                                  final int updateCount, final Object[] batchCounts)
+    {
+        if (log.isDebugEnabled()) {
+            log.debug("Error in SQL batch: {}", se);
+        }
+        runtime.enqueueTask(new ScriptTask() {
+            @Override
+            public void execute(Context cx, Scriptable scope)
+            {
+                Scriptable err = JdbcWrap.makeSqlError(cx, JdbcConnection.this, se);
+                err.put("updateCount", err, updateCount);
+                err.put("batchCounts", err, cx.newArray(JdbcConnection.this, batchCounts));
+                cb.call(cx, cb, JdbcConnection.this, new Object[] { err });
+            }
+        }, domain);
+    }
 }
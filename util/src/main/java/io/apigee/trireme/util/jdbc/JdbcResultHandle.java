@@ -33,9 +33,9 @@ import org.mozilla.javascript.annotations.JSFunction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 
 import static io.apigee.trireme.core.ArgUtils.*;
@@ -49,21 +49,27 @@ public class JdbcResultHandle
 
     private NodeRuntime runtime;
     private ResultSet results;
-    private Statement statement;
+    private PreparedStatement statement;
+    private JdbcConnection connection;
+    private String sql;
     private ResultProcessor processor;
     private boolean closed;
+    private boolean invalidated;
 
     @Override
     public String getClassName() {
         return CLASS_NAME;
     }
 
-    public void init(NodeRuntime runtime, ResultSet rs, Statement st)
+    public void init(NodeRuntime runtime, ResultSet rs, PreparedStatement st,
+                     JdbcConnection connection, String sql)
         throws SQLException
     {
         this.runtime = runtime;
         this.results = rs;
         this.statement = st;
+        this.connection = connection;
+        this.sql = sql;
         this.processor = new ResultProcessor(rs);
     }
 
@@ -121,6 +127,53 @@ public class JdbcResultHandle
         });
     }
 
+    /**
+     * Like "fetchRows," but return the rows as a JdbcRowBlock, which packs them into columns on this
+     * thread and only turns them into JavaScript values when the script reads them.
+     */
+    @JSFunction
+    @SuppressWarnings("unused")
+    public static void fetchColumns(Context cx, Scriptable thisObj, Object[] args, Function func)
+    {
+        final int maxRows = intArg(args, 0);
+        final Function cb = objArg(cx, thisObj, args, 1, Function.class, true);
+        final JdbcResultHandle self = (JdbcResultHandle)thisObj;
+
+        final Object domain = self.runtime.getDomain();
+        self.runtime.getAsyncPool().execute(new Runnable() {
+            @Override
+            public void run()
+            {
+                synchronized (self) {
+                    if (self.closed) {
+                        return;
+                    }
+                    Context cx = Context.enter();
+                    try {
+                        JdbcRowBlock block = (JdbcRowBlock)cx.newObject(self, JdbcRowBlock.CLASS_NAME);
+                        block.fill(self.processor, maxRows);
+                        self.runtime.enqueueCallback(cb, cb, self, domain, new Object[] {
+                            Undefined.instance, block, (block.getRowCount() < maxRows)
+                        });
+
+                    } catch (final SQLException sqle) {
+                        self.runtime.enqueueTask(new ScriptTask() {
+                            @Override
+                            public void execute(Context cx, Scriptable scope)
+                            {
+                                cb.call(cx, cb, self, new Object[] {
+                                    JdbcWrap.makeSqlError(cx, scope, sqle)
+                                });
+                            }
+                        }, domain);
+                    } finally {
+                        Context.exit();
+                    }
+                }
+            }
+        });
+    }
+
     @JSFunction
     @SuppressWarnings("unused")
     public static void close(Context cx, Scriptable thisObj, Object[] args, Function func)
@@ -128,14 +181,46 @@ public class JdbcResultHandle
         JdbcResultHandle self = (JdbcResultHandle)thisObj;
 
         synchronized (self) {
+            if (self.invalidated) {
+                // The connection closed it already
+                return;
+            }
             if (self.closed) {
                 throw Utils.makeError(cx, self, "Already closed");
             }
 
+            boolean reusable;
             try {
                 self.closed = true;
                 self.results.close();
-                self.statement.close();
+                reusable = true;
+            } catch (SQLException se) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Error closing result set: {}", se);
+                }
+                reusable = false;
+            }
+            // Give the statement back to the connection's cache
+            self.connection.releaseStatement(self.sql, self.statement, reusable);
+            self.connection.removeResult(self);
+        }
+    }
+
+    /**
+     * Close the result set and its statement because the connection is being closed. The statement
+     * is not cached, since the connection may already belong to someone else by the time we are done.
+     */
+    void invalidate()
+    {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            invalidated = true;
+            try {
+                results.close();
+                statement.close();
             } catch (SQLException se) {
                 if (log.isDebugEnabled()) {
                     log.debug("Error closing result set: {}", se);
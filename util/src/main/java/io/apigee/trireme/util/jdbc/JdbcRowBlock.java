@@ -0,0 +1,412 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.util.jdbc;
+
+import io.apigee.trireme.core.Utils;
+import io.apigee.trireme.core.modules.Buffer;
+import io.apigee.trireme.kernel.Charsets;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.annotations.JSFunction;
+import org.mozilla.javascript.annotations.JSGetter;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import static io.apigee.trireme.core.ArgUtils.*;
+
+/**
+ * This is a block of rows from a result set, stored by column rather than by row. It is filled in on
+ * a worker thread, where each column is packed into a single byte array: numbers as big-endian 32-bit
+ * integers or 64-bit doubles, booleans as one byte each, dates as a double containing milliseconds, and
+ * strings and binary data concatenated together with a separate array of offsets. Nothing is turned into
+ * a JavaScript object until the script asks for a particular cell or row, and the raw columns may be
+ * read directly as Buffers.
+ */
+
+public class JdbcRowBlock
+    extends ScriptableObject
+{
+    public static final String CLASS_NAME = "_triremeJdbcRowBlock";
+
+    private static final int INITIAL_ROWS = 64;
+    private static final int INITIAL_VAR_SIZE = 32;
+
+    enum Kind { INT32, DOUBLE, BOOLEAN, DATE, STRING, BINARY, NULL }
+
+    private Column[] columns;
+    private HashMap<String, Integer> columnIndex;
+    private int rowCount;
+
+    @Override
+    public String getClassName() {
+        return CLASS_NAME;
+    }
+
+    /**
+     * Read up to "maxRows" rows from the result set, starting with the next one.
+     */
+    void fill(ResultProcessor rp, int maxRows)
+        throws SQLException
+    {
+        ResultSet rs = rp.getResultSet();
+        int numCols = rs.getMetaData().getColumnCount();
+        int initialRows = Math.max(1, Math.min(maxRows, INITIAL_ROWS));
+
+        columns = new Column[numCols];
+        columnIndex = new HashMap<String, Integer>(numCols * 2);
+        for (int i = 0; i < numCols; i++) {
+            columns[i] = new Column(rp.getColumnName(i + 1), rp.getColumnType(i + 1), initialRows);
+            columnIndex.put(columns[i].name, i);
+        }
+
+        while ((rowCount < maxRows) && rs.next()) {
+            for (int i = 0; i < numCols; i++) {
+                columns[i].read(rs, i + 1, rowCount);
+            }
+            rowCount++;
+        }
+    }
+
+    @JSGetter("rowCount")
+    @SuppressWarnings("unused")
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @JSGetter("columnCount")
+    @SuppressWarnings("unused")
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    @JSFunction
+    @SuppressWarnings("unused")
+    public static Object getColumnNames(Context cx, Scriptable thisObj, Object[] args, Function func)
+    {
+        JdbcRowBlock self = (JdbcRowBlock)thisObj;
+        Object[] names = new Object[self.columns.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = self.columns[i].name;
+        }
+        return cx.newArray(thisObj, names);
+    }
+
+    /**
+     * Return the way that a column is packed: "int32", "double", "boolean", "date", "string",
+     * "binary", or "null".
+     */
+    @JSFunction
+    @SuppressWarnings("unused")
+    public static String getColumnType(Context cx, Scriptable thisObj, Object[] args, Function func)
+    {
+        JdbcRowBlock self = (JdbcRowBlock)thisObj;
+        return self.columns[self.columnArg(cx, args, 0)].kind.name().toLowerCase();
+    }
+
+    @JSFunction
+    @SuppressWarnings("unused")
+    public static boolean isNull(Context cx, Scriptable thisObj, Object[] args, Function func)
+    {
+        JdbcRowBlock self = (JdbcRowBlock)thisObj;
+        int row = self.rowArg(cx, args, 0);
+        return self.columns[self.columnArg(cx, args, 1)].nulls.get(row);
+    }
+
+    /**
+     * Decode a single cell, identified by row number and column number or name.
+     */
+    @JSFunction
+    @SuppressWarnings("unused")
+    public static Object get(Context cx, Scriptable thisObj, Object[] args, Function func)
+    {
+        JdbcRowBlock self = (JdbcRowBlock)thisObj;
+        int row = self.rowArg(cx, args, 0);
+        return self.columns[self.columnArg(cx, args, 1)].get(cx, self, row);
+    }
+
+    /**
+     * Decode a whole row into an object, just like "fetchRows" would have returned it.
+     */
+    @JSFunction
+    @SuppressWarnings("unused")
+    public static Object getRow(Context cx, Scriptable thisObj, Object[] args, Function func)
+    {
+        JdbcRowBlock self = (JdbcRowBlock)thisObj;
+        int row = self.rowArg(cx, args, 0);
+        Scriptable obj = cx.newObject(self);
+        for (Column col : self.columns) {
+            obj.put(col.name, obj, col.get(cx, self, row));
+        }
+        return obj;
+    }
+
+    /**
+     * Return a copy of the packed data for a column as a Buffer, so that changing it doesn't change
+     * what "get" and "getRow" return.
+     */
+    @JSFunction
+    @SuppressWarnings("unused")
+    public static Object getColumn(Context cx, Scriptable thisObj, Object[] args, Function func)
+    {
+        JdbcRowBlock self = (JdbcRowBlock)thisObj;
+        Column col = self.columns[self.columnArg(cx, args, 0)];
+        return Buffer.BufferImpl.newBuffer(cx, self, Arrays.copyOf(col.data, col.length));
+    }
+
+    /**
+     * For a string or binary column, return a Buffer of rowCount + 1 big-endian 32-bit integers. The value
+     * for row "n" runs from offset "n" up to offset "n + 1" in the column data.
+     */
+    @JSFunction
+    @SuppressWarnings("unused")
+    public static Object getOffsets(Context cx, Scriptable thisObj, Object[] args, Function func)
+    {
+        JdbcRowBlock self = (JdbcRowBlock)thisObj;
+        Column col = self.columns[self.columnArg(cx, args, 0)];
+        if (col.offsets == null) {
+            throw Utils.makeTypeError(cx, self, "Column " + col.name + " is not variable-length");
+        }
+        byte[] packed = new byte[(self.rowCount + 1) * 4];
+        for (int i = 0; i <= self.rowCount; i++) {
+            putInt(packed, i * 4, col.offsets[i]);
+        }
+        return Buffer.BufferImpl.newBuffer(cx, self, packed);
+    }
+
+    private int rowArg(Context cx, Object[] args, int pos)
+    {
+        int row = intArg(args, pos);
+        if ((row < 0) || (row >= rowCount)) {
+            throw Utils.makeRangeError(cx, this, "Row " + row + " out of range");
+        }
+        return row;
+    }
+
+    private int columnArg(Context cx, Object[] args, int pos)
+    {
+        ensureArg(args, pos);
+        if (args[pos] instanceof CharSequence) {
+            Integer ix = columnIndex.get(args[pos].toString());
+            if (ix == null) {
+                throw Utils.makeRangeError(cx, this, "No column named " + args[pos]);
+            }
+            return ix;
+        }
+        int col = intArg(args, pos);
+        if ((col < 0) || (col >= columns.length)) {
+            throw Utils.makeRangeError(cx, this, "Column " + col + " out of range");
+        }
+        return col;
+    }
+
+    static Kind getKind(int sqlType)
+    {
+        switch (sqlType) {
+        case Types.BOOLEAN:
+            return Kind.BOOLEAN;
+        case Types.SMALLINT:
+        case Types.TINYINT:
+        case Types.INTEGER:
+            return Kind.INT32;
+        case Types.FLOAT:
+        case Types.DOUBLE:
+        case Types.NUMERIC:
+        case Types.REAL:
+            return Kind.DOUBLE;
+        case Types.TIMESTAMP:
+            return Kind.DATE;
+        case Types.BINARY:
+        case Types.BLOB:
+        case Types.VARBINARY:
+        case Types.LONGVARBINARY:
+            return Kind.BINARY;
+        case Types.NULL:
+            return Kind.NULL;
+        default:
+            // This matches ResultProcessor, which uses "getString" for everything else
+            return Kind.STRING;
+        }
+    }
+
+    private static void putInt(byte[] b, int p, int v)
+    {
+        b[p] = (byte)(v >>> 24);
+        b[p + 1] = (byte)(v >>> 16);
+        b[p + 2] = (byte)(v >>> 8);
+        b[p + 3] = (byte)v;
+    }
+
+    private static int getInt(byte[] b, int p)
+    {
+        return ((b[p] & 0xff) << 24) | ((b[p + 1] & 0xff) << 16) | ((b[p + 2] & 0xff) << 8) | (b[p + 3] & 0xff);
+    }
+
+    private static final class Column
+    {
+        final String name;
+        final int sqlType;
+        final Kind kind;
+        final BitSet nulls = new BitSet();
+        final int width;
+        byte[] data;
+        int length;
+        int[] offsets;
+
+        Column(String name, int sqlType, int initialRows)
+        {
+            this.name = name;
+            this.sqlType = sqlType;
+            this.kind = getKind(sqlType);
+
+            switch (kind) {
+            case INT32:
+                width = 4;
+                break;
+            case DOUBLE:
+            case DATE:
+                width = 8;
+                break;
+            case BOOLEAN:
+                width = 1;
+                break;
+            default:
+                width = 0;
+                break;
+            }
+
+            if (width > 0) {
+                data = new byte[initialRows * width];
+            } else {
+                data = new byte[kind == Kind.NULL ? 0 : initialRows * INITIAL_VAR_SIZE];
+                offsets = new int[initialRows + 1];
+            }
+        }
+
+        void read(ResultSet rs, int i, int row)
+            throws SQLException
+        {
+            switch (kind) {
+            case INT32:
+                int iv = rs.getInt(i);
+                ensure(4);
+                putInt(data, length, iv);
+                length += 4;
+                break;
+            case DOUBLE:
+                // ResultProcessor reads FLOAT columns as floats, so do the same for consistency
+                double dv = (sqlType == Types.FLOAT) ? rs.getFloat(i) : rs.getDouble(i);
+                putLong(Double.doubleToRawLongBits(dv));
+                break;
+            case DATE:
+                Timestamp ts = rs.getTimestamp(i);
+                putLong(Double.doubleToRawLongBits(ts == null ? 0.0 : (double)ts.getTime()));
+                break;
+            case BOOLEAN:
+                boolean bv = rs.getBoolean(i);
+                ensure(1);
+                data[length++] = (byte)(bv ? 1 : 0);
+                break;
+            case STRING:
+                String sv = rs.getString(i);
+                putVariable(row, (sv == null) ? null : sv.getBytes(Charsets.UTF8));
+                break;
+            case BINARY:
+                putVariable(row, rs.getBytes(i));
+                break;
+            case NULL:
+                putVariable(row, null);
+                break;
+            default:
+                throw new AssertionError();
+            }
+
+            if (rs.wasNull()) {
+                nulls.set(row);
+            }
+        }
+
+        Object get(Context cx, Scriptable scope, int row)
+        {
+            if (nulls.get(row)) {
+                return null;
+            }
+            switch (kind) {
+            case INT32:
+                return getInt(data, row * 4);
+            case DOUBLE:
+                return Double.longBitsToDouble(getLong(row * 8));
+            case DATE:
+                return cx.newObject(scope, "Date", new Object[] { Double.longBitsToDouble(getLong(row * 8)) });
+            case BOOLEAN:
+                return Boolean.valueOf(data[row] != 0);
+            case STRING:
+                return new String(data, offsets[row], offsets[row + 1] - offsets[row], Charsets.UTF8);
+            case BINARY:
+                // Copy, since scripts may modify the Buffer
+                return Buffer.BufferImpl.newBuffer(cx, scope, Arrays.copyOfRange(data, offsets[row], offsets[row + 1]));
+            default:
+                return null;
+            }
+        }
+
+        private void putLong(long v)
+        {
+            ensure(8);
+            putInt(data, length, (int)(v >>> 32));
+            putInt(data, length + 4, (int)v);
+            length += 8;
+        }
+
+        private long getLong(int p)
+        {
+            return ((long)getInt(data, p) << 32) | (getInt(data, p + 4) & 0xffffffffL);
+        }
+
+        private void putVariable(int row, byte[] val)
+        {
+            if ((row + 2) > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            if (val != null) {
+                ensure(val.length);
+                System.arraycopy(val, 0, data, length, val.length);
+                length += val.length;
+            }
+            offsets[row + 1] = length;
+        }
+
+        private void ensure(int needed)
+        {
+            if ((length + needed) > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + needed));
+            }
+        }
+    }
+}
@@ -27,6 +27,7 @@ import io.apigee.trireme.core.NodeRuntime;
 import io.apigee.trireme.core.ScriptTask;
 import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.core.modules.Referenceable;
+import io.apigee.trireme.kernel.Charsets;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
@@ -35,18 +36,26 @@ import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.annotations.JSFunction;
 import org.mozilla.javascript.annotations.JSGetter;
 
+import java.io.Closeable;
 import java.lang.reflect.InvocationTargetException;
-import java.sql.Connection;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 import static io.apigee.trireme.core.ArgUtils.*;
 
 public class JdbcWrap
     implements InternalNodeModule
 {
-    public static final String INTERFACE_VERSION = "1.0.0";
+    public static final String INTERFACE_VERSION = "1.1.0";
+
+    private static final String POOLS_KEY = "trireme-jdbc-pools";
 
     @Override
     public String getModuleName() {
@@ -61,6 +70,8 @@ public class JdbcWrap
         ScriptableObject.defineClass(global, JdbcImpl.class);
         ScriptableObject.defineClass(global, JdbcConnection.class, false, true);
         ScriptableObject.defineClass(global, JdbcResultHandle.class);
+        ScriptableObject.defineClass(global, JdbcRowBlock.class);
+        ScriptableObject.defineClass(global, JdbcPool.class);
         JdbcImpl impl = (JdbcImpl)cx.newObject(global, JdbcImpl.CLASS_NAME);
         impl.init(runtime);
         return impl;
@@ -120,7 +131,118 @@ public class JdbcWrap
                 public void run()
                 {
                     try {
-                        final Connection jdbcConn = DriverManager.getConnection(url, finalProps);
+                        // A connection of its own is closed after use, so it doesn't cache statements
+                        final PooledConnection jdbcConn =
+                            new PooledConnection(DriverManager.getConnection(url, finalProps), null, 0);
+
+                        self.runtime.pin();
+                        self.runtime.enqueueTask(new ScriptTask() {
+                            @Override
+                            public void execute(Context cx, Scriptable scope)
+                            {
+                                try {
+                                    JdbcConnection conn =
+                                        (JdbcConnection)cx.newObject(self, JdbcConnection.CLASS_NAME);
+                                    conn.init(jdbcConn, self.runtime);
+                                    cb.call(cx, cb, self, new Object[] {Undefined.instance, conn});
+                                } finally {
+                                    self.runtime.unPin();
+                                }
+                            }
+                        }, domain);
+
+                    } catch (final SQLException sqle) {
+                        self.runtime.enqueueTask(new ScriptTask() {
+                            @Override
+                            public void execute(Context cx, Scriptable scope)
+                            {
+                                cb.call(cx, cb, self, new Object[] { makeSqlError(cx, scope, sqle) });
+                            }
+                        }, domain);
+                    } finally {
+                        self.runtime.unPin();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Return a pool of connections for the specified URL and properties. The pool is shared by every
+         * script in the NodeEnvironment, so the options are only used by the first script that asks
+         * for a pool with a particular URL and set of properties.
+         */
+        @JSFunction
+        @SuppressWarnings("unused")
+        public static Object createPool(Context cx, Scriptable thisObj, Object[] args, Function func)
+        {
+            String url = stringArg(args, 0);
+            Scriptable props = objArg(cx, thisObj, args, 1, Scriptable.class, false);
+            Scriptable opts = objArg(cx, thisObj, args, 2, Scriptable.class, false);
+            JdbcImpl self = (JdbcImpl)thisObj;
+
+            Properties properties = (props == null) ? new Properties() : makeProperties(props);
+            ConnectionPool pool = getPools(self.runtime).get(url, properties, opts);
+
+            JdbcPool jsPool = (JdbcPool)cx.newObject(self, JdbcPool.CLASS_NAME);
+            jsPool.init(pool, self.runtime);
+            return jsPool;
+        }
+    }
+
+    public static class JdbcPool
+        extends ScriptableObject
+    {
+        public static final String CLASS_NAME = "_triremeJdbcPool";
+
+        private ConnectionPool pool;
+        private NodeRuntime runtime;
+
+        @Override
+        public String getClassName() {
+            return CLASS_NAME;
+        }
+
+        void init(ConnectionPool pool, NodeRuntime runtime)
+        {
+            this.pool = pool;
+            this.runtime = runtime;
+        }
+
+        @JSGetter("idleCount")
+        @SuppressWarnings("unused")
+        public int getIdleCount()
+        {
+            return pool.getIdleCount();
+        }
+
+        @JSGetter("activeCount")
+        @SuppressWarnings("unused")
+        public int getActiveCount()
+        {
+            return pool.getActiveCount();
+        }
+
+        @JSFunction
+        @SuppressWarnings("unused")
+        public static void getConnection(Context cx, Scriptable thisObj, Object[] args, Function func)
+        {
+            final Function cb = objArg(cx, thisObj, args, 0, Function.class, true);
+            final JdbcPool self = (JdbcPool)thisObj;
+
+            // If the script exits before the callback runs, this gives the connection back to the pool
+            final PendingConnection pending = new PendingConnection();
+            self.runtime.registerCloseable(pending);
+
+            self.runtime.pin();
+            final Object domain = self.runtime.getDomain();
+            self.runtime.getAsyncPool().execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try {
+                        if (!pending.setConnection(self.pool.borrow())) {
+                            return;
+                        }
 
                         self.runtime.pin();
                         self.runtime.enqueueTask(new ScriptTask() {
@@ -128,6 +250,11 @@ public class JdbcWrap
                             public void execute(Context cx, Scriptable scope)
                             {
                                 try {
+                                    self.runtime.unregisterCloseable(pending);
+                                    PooledConnection jdbcConn = pending.take();
+                                    if (jdbcConn == null) {
+                                        return;
+                                    }
                                     JdbcConnection conn =
                                         (JdbcConnection)cx.newObject(self, JdbcConnection.CLASS_NAME);
                                     conn.init(jdbcConn, self.runtime);
@@ -138,11 +265,15 @@ public class JdbcWrap
                             }
                         }, domain);
 
+                        // Top up the idle connections now that the caller doesn't have to wait for it
+                        self.pool.fillIdle();
+
                     } catch (final SQLException sqle) {
                         self.runtime.enqueueTask(new ScriptTask() {
                             @Override
                             public void execute(Context cx, Scriptable scope)
                             {
+                                self.runtime.unregisterCloseable(pending);
                                 cb.call(cx, cb, self, new Object[] { makeSqlError(cx, scope, sqle) });
                             }
                         }, domain);
@@ -154,6 +285,145 @@ public class JdbcWrap
         }
     }
 
+    /**
+     * This holds a connection that has been borrowed for a script but not yet handed to it. It is
+     * registered with the runtime as a Closeable, so that the connection goes back to the pool if the
+     * script exits before the callback can run.
+     */
+    private static final class PendingConnection
+        implements Closeable
+    {
+        private PooledConnection conn;
+        private boolean done;
+
+        /**
+         * Called in the async pool once the connection has been borrowed. Return false, and give the
+         * connection back, if the script is already gone.
+         */
+        boolean setConnection(PooledConnection pc)
+        {
+            synchronized (this) {
+                if (!done) {
+                    conn = pc;
+                    return true;
+                }
+            }
+            pc.close();
+            return false;
+        }
+
+        /**
+         * Called in the script thread to claim the connection. Return null if it was already given back.
+         */
+        synchronized PooledConnection take()
+        {
+            done = true;
+            PooledConnection pc = conn;
+            conn = null;
+            return pc;
+        }
+
+        @Override
+        public void close()
+        {
+            PooledConnection pc;
+            synchronized (this) {
+                done = true;
+                pc = conn;
+                conn = null;
+            }
+            if (pc != null) {
+                pc.close();
+            }
+        }
+    }
+
+    private static PoolRegistry getPools(NodeRuntime runtime)
+    {
+        Object pools = runtime.getEnvironment().getSharedObject(POOLS_KEY);
+        if (pools == null) {
+            pools = runtime.getEnvironment().setSharedObjectIfAbsent(POOLS_KEY, new PoolRegistry());
+        }
+        return (PoolRegistry)pools;
+    }
+
+    /**
+     * This holds all the pools in a NodeEnvironment, and is closed along with it.
+     */
+    private static final class PoolRegistry
+        implements Closeable
+    {
+        private final HashMap<String, ConnectionPool> pools = new HashMap<String, ConnectionPool>();
+
+        synchronized ConnectionPool get(String url, Properties props, Scriptable opts)
+        {
+            String key = makeKey(url, props);
+            ConnectionPool pool = pools.get(key);
+            if (pool == null) {
+                pool = new ConnectionPool(url, props);
+                if (opts != null) {
+                    configurePool(pool, opts);
+                }
+                pools.put(key, pool);
+            }
+            return pool;
+        }
+
+        /**
+         * Identify a pool by its URL and user plus a digest of all the properties, so that the password
+         * is not kept in a map key for the life of the environment.
+         */
+        private static String makeKey(String url, Properties props)
+        {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException nse) {
+                throw new AssertionError(nse);
+            }
+            // Properties is a Hashtable, so sort it to get the same digest every time
+            for (Map.Entry<Object, Object> e : new TreeMap<Object, Object>(props).entrySet()) {
+                md.update(String.valueOf(e.getKey()).getBytes(Charsets.UTF8));
+                md.update((byte)0);
+                md.update(String.valueOf(e.getValue()).getBytes(Charsets.UTF8));
+                md.update((byte)0);
+            }
+            return url + '\n' + props.getProperty("user") + '\n' +
+                   Utils.bufferToString(ByteBuffer.wrap(md.digest()), Charsets.NODE_HEX);
+        }
+
+        @Override
+        public synchronized void close()
+        {
+            for (ConnectionPool pool : pools.values()) {
+                pool.close();
+            }
+            pools.clear();
+        }
+    }
+
+    private static void configurePool(ConnectionPool pool, Scriptable opts)
+    {
+        if (opts.has("minIdle", opts)) {
+            pool.setMinIdle((int)Context.toNumber(opts.get("minIdle", opts)));
+        }
+        if (opts.has("maxIdle", opts)) {
+            pool.setMaxIdle((int)Context.toNumber(opts.get("maxIdle", opts)));
+        }
+        if (opts.has("maxLifetime", opts)) {
+            pool.setMaxLifetime((long)Context.toNumber(opts.get("maxLifetime", opts)));
+        }
+        if (opts.has("statementCacheSize", opts)) {
+            pool.setStatementCacheSize((int)Context.toNumber(opts.get("statementCacheSize", opts)));
+        }
+        if (opts.has("validationQuery", opts)) {
+            Object q = opts.get("validationQuery", opts);
+            if ((q != null) && !Undefined.instance.equals(q)) {
+                pool.setValidationQuery(Context.toString(q));
+            }
+        }
+    }
+
     private static Properties makeProperties(Scriptable s)
     {
         Properties p = new Properties();
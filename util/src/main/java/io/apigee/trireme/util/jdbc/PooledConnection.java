@@ -0,0 +1,96 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.util.jdbc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * This is a JDBC connection along with its cache of prepared statements. It may belong to a
+ * ConnectionPool, in which case "close" returns it to the pool, or it may stand alone.
+ */
+
+public class PooledConnection
+{
+    private static final Logger log = LoggerFactory.getLogger(PooledConnection.class);
+
+    private final Connection conn;
+    private final ConnectionPool pool;
+    private final StatementCache statements;
+    private final long created = System.currentTimeMillis();
+
+    public PooledConnection(Connection conn, ConnectionPool pool, int statementCacheSize)
+    {
+        this.conn = conn;
+        this.pool = pool;
+        this.statements = new StatementCache(conn, statementCacheSize);
+    }
+
+    public Connection getConnection() {
+        return conn;
+    }
+
+    public StatementCache getStatements() {
+        return statements;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public boolean isPooled() {
+        return (pool != null);
+    }
+
+    /**
+     * Return the connection to the pool, or close it if it doesn't belong to one.
+     */
+    public void close()
+    {
+        if (pool == null) {
+            closePhysical();
+        } else {
+            pool.release(this);
+        }
+    }
+
+    /**
+     * Really close the underlying connection, along with all the statements in the cache.
+     */
+    void closePhysical()
+    {
+        if (log.isDebugEnabled()) {
+            log.debug("Closing JDBC connection {}", conn);
+        }
+        statements.clear();
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error on JDBC close. Ignoring it: {}", e);
+            }
+        }
+    }
+}
@@ -57,6 +57,24 @@ public class ResultProcessor
         return metadata.length;
     }
 
+    ResultSet getResultSet() {
+        return rs;
+    }
+
+    /**
+     * Return the JDBC type of a column, counting from one like JDBC does.
+     */
+    int getColumnType(int i) {
+        return metadata[i].sqlType;
+    }
+
+    /**
+     * Return the label of a column, counting from one like JDBC does.
+     */
+    String getColumnName(int i) {
+        return metadata[i].name;
+    }
+
     /**
      * Make the current row into an object. The caller is responsible for positioning.
      */
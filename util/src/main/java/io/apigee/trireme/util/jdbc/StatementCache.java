@@ -0,0 +1,129 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.util.jdbc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This is a per-connection cache of prepared statements, keyed by the SQL text, that closes the least
+ * recently used statement when it gets too big. A statement is removed from the cache while it is being
+ * used, so that a streaming result set that is still open can't be clobbered by another query that
+ * happens to use the same SQL. A size of zero turns caching off, so that every statement is closed when
+ * it is released. The caller synchronizes on the connection, so this class does no locking.
+ */
+
+public class StatementCache
+{
+    private static final Logger log = LoggerFactory.getLogger(StatementCache.class);
+
+    public static final int DEFAULT_SIZE = 32;
+
+    private final Connection conn;
+    private final int maxSize;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    public StatementCache(Connection conn, final int maxSize)
+    {
+        this.conn = conn;
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+            {
+                if (size() > maxSize) {
+                    closeStatement(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return a statement for the specified SQL, either from the cache or newly prepared. The statement
+     * belongs to the caller until it is passed to "release".
+     */
+    public PreparedStatement take(String sql)
+        throws SQLException
+    {
+        PreparedStatement st = statements.remove(sql);
+        if (st == null) {
+            if (log.isTraceEnabled()) {
+                log.trace("Preparing new statement for {}", sql);
+            }
+            return conn.prepareCall(sql);
+        }
+        st.clearParameters();
+        return st;
+    }
+
+    /**
+     * Return a statement to the cache once its results have been read. If there is already a statement
+     * for the same SQL then this one is closed.
+     */
+    public void release(String sql, PreparedStatement st)
+    {
+        if (maxSize <= 0) {
+            closeStatement(st);
+            return;
+        }
+        PreparedStatement old = statements.put(sql, st);
+        if ((old != null) && (old != st)) {
+            closeStatement(old);
+        }
+    }
+
+    public int size()
+    {
+        return statements.size();
+    }
+
+    /**
+     * Close every cached statement. Statements that have been taken and not released are the
+     * caller's problem.
+     */
+    public void clear()
+    {
+        for (PreparedStatement st : statements.values()) {
+            closeStatement(st);
+        }
+        statements.clear();
+    }
+
+    private static void closeStatement(PreparedStatement st)
+    {
+        try {
+            st.close();
+        } catch (SQLException sqle) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error closing cached statement: {}", sqle);
+            }
+        }
+    }
+}
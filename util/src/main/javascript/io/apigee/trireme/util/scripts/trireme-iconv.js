@@ -32,18 +32,42 @@ var wrap = process.binding('iconv-wrap');
 
 var FLUSH = {};
 
-function Iconv(fromEnc, toEnc) {
+// When streaming with "async" set, chunks at least this big are converted on another thread
+var ASYNC_THRESHOLD = 65536;
+
+/*
+ * Options, which are not part of the original "iconv" module:
+ *   async: When used as a stream, convert large chunks in the background rather than on
+ *     the main thread.
+ */
+function Iconv(fromEnc, toEnc, options) {
   if (!(this instanceof Iconv)) {
-    return new Iconv(fromEnc, toEnc);
+    return new Iconv(fromEnc, toEnc, options);
   }
   stream.Transform.call(this);
 
   this.converter = new wrap.Converter(fromEnc, toEnc);
+  this.async = !!(options && options.async);
 }
 util.inherits(Iconv, stream.Transform);
 exports.Iconv = Iconv;
 
 Iconv.prototype._transform = function(inBuf, encoding, callback) {
+  var self = this;
+  if (this.async && (inBuf.length >= ASYNC_THRESHOLD)) {
+    this.convertAsync(inBuf, false, function(err, outBuf) {
+      if (err) {
+        callback(err);
+      } else {
+        if (outBuf) {
+          self.push(outBuf);
+        }
+        callback();
+      }
+    });
+    return;
+  }
+
   var outBuf = this.convert(inBuf, false);
   if (outBuf) {
     this.push(outBuf);
@@ -72,3 +96,23 @@ Iconv.prototype.convert = function(inBuf, lc) {
   return this.converter.convert(inBuf, lastChunk);
 };
 
+// Like "convert," but the conversion happens on another thread and the result is passed
+// to "callback." Calls are processed in order, and the input must not be modified until then.
+Iconv.prototype.convertAsync = function(inBuf, lc, callback) {
+  if (typeof lc === 'function') {
+    callback = lc;
+    lc = undefined;
+  }
+  if (typeof(inBuf) === 'string') {
+    inBuf = new Buffer(inBuf);
+  }
+  if (inBuf && !(inBuf instanceof Buffer)) {
+    throw new Error('Bad argument.');
+  }
+  if (typeof callback !== 'function') {
+    throw new Error('callback must be a function');
+  }
+
+  var lastChunk = (lc == undefined ? true : lc);
+  this.converter.convertAsync(inBuf, lastChunk, callback);
+};
@@ -21,6 +21,7 @@
  */
 
 var binding = process.binding('xml-wrap');
+var Readable = require('stream').Readable;
 
 function setTransformer(transformerClass) {
   binding.setTransformer(transformerClass);
@@ -31,25 +32,46 @@ function compileStylesheet(stylesheet) {
   return binding.createStylesheet(stylesheet);
 }
 
-function transform(stylesheet, document, p, callback) {
+/*
+ * Return a document that is parsed the first time it is transformed, and may then be passed
+ * to "transform" many times without being parsed again.
+ */
+function compileDocument(document) {
+  checkInput(document, 'document');
+  return binding.createDocument(document);
+}
+
+/*
+ * transform(stylesheet, document, [params], [options], [callback])
+ *
+ * "options" may contain "indent," which defaults to true.
+ */
+function transform(stylesheet, document, p, o, callback) {
   if (!stylesheet) {
     throw new Error('stylesheet must be set');
   }
   if (typeof p === 'function') {
     callback = p;
     p = undefined;
+    o = undefined;
+  } else if (typeof o === 'function') {
+    callback = o;
+    o = undefined;
   }
   if (p && (typeof p !== 'object')) {
     throw new Error('parameters must be an object');
   }
+  if (o && (typeof o !== 'object')) {
+    throw new Error('options must be an object');
+  }
   if (callback && (typeof callback !== 'function')) {
     throw new Error('callback must be a function');
   }
-  checkInput(document, 'document');
   var parameters = (p ? p : {});
+  var options = { indent: (o && (o.indent !== undefined)) ? o.indent : true };
 
   try {
-    var parsedDoc = binding.createDocument(document);
+    var parsedDoc = getDocument(document);
 
     var cb;
     if (callback) {
@@ -58,7 +80,7 @@ function transform(stylesheet, document, p, callback) {
       };
     }
 
-    var result = binding.transform(stylesheet, parsedDoc, parameters, cb);
+    var result = binding.transform(stylesheet, parsedDoc, parameters, cb, options);
     if (!cb) {
       return result;
     }
@@ -72,6 +94,49 @@ function transform(stylesheet, document, p, callback) {
   }
 }
 
+/*
+ * Transform in the background and return a readable stream of Buffers, so that a large result
+ * doesn't have to be held in memory as a single string. "options" is the same as for "transform."
+ */
+function transformStream(stylesheet, document, p, o) {
+  if (!stylesheet) {
+    throw new Error('stylesheet must be set');
+  }
+  if (p && (typeof p !== 'object')) {
+    throw new Error('parameters must be an object');
+  }
+  var parsedDoc = getDocument(document);
+
+  var stream = new Readable();
+  stream._read = function() {
+    // The transformation pushes data as it is produced
+  };
+
+  var options = {
+    indent: (o && (o.indent !== undefined)) ? o.indent : true,
+    onData: function(chunk) {
+      stream.push(chunk);
+    }
+  };
+
+  binding.transform(stylesheet, parsedDoc, (p ? p : {}), function(err) {
+    if (err) {
+      stream.emit('error', err);
+    } else {
+      stream.push(null);
+    }
+  }, options);
+  return stream;
+}
+
+function getDocument(document) {
+  if (binding.isDocument(document)) {
+    return document;
+  }
+  checkInput(document, 'document');
+  return binding.createDocument(document);
+}
+
 function checkInput(inp, name) {
   if ((typeof inp !== 'string') && (!(inp instanceof Buffer))) {
     throw new Error(name + ' must be a string or a Buffer');
@@ -80,4 +145,6 @@ function checkInput(inp, name) {
 
 module.exports.setTransformer = setTransformer;
 module.exports.compileStylesheet = compileStylesheet;
+module.exports.compileDocument = compileDocument;
 module.exports.transform = transform;
+module.exports.transformStream = transformStream;
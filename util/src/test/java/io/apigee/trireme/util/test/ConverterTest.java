@@ -3,13 +3,18 @@ package io.apigee.trireme.util.test;
 import io.apigee.trireme.util.CharsetConverter;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
 
 import static org.junit.Assert.*;
 
 public class ConverterTest
 {
+    private static final String JAPANESE = "日本語のテキスト";
+    private static final String CHINESE = "中文文本";
+
     @Test
     public void testBasic()
         throws IOException
@@ -22,6 +27,107 @@ public class ConverterTest
         assertEquals(from, result);
     }
 
+    @Test
+    public void testChunked()
+        throws IOException
+    {
+        // Split the input at every possible place, including in the middle of characters
+        String text = "Some ASCII, then " + JAPANESE + " and more ASCII " + JAPANESE + '!';
+        byte[] in = text.getBytes("Shift_JIS");
+        CharsetConverter c = new CharsetConverter("Shift_JIS", "utf8");
+
+        for (int chunk = 1; chunk <= in.length; chunk++) {
+            assertEquals(text, convertChunks(c, in, chunk, "utf8"));
+        }
+    }
+
+    @Test
+    public void testChunkedToGbk()
+        throws IOException
+    {
+        String text = CHINESE + " plain text " + CHINESE + " plain text";
+        byte[] in = text.getBytes("utf8");
+        CharsetConverter c = new CharsetConverter("utf8", "GBK");
+
+        for (int chunk = 1; chunk <= in.length; chunk++) {
+            assertEquals(text, convertChunks(c, in, chunk, "GBK"));
+        }
+    }
+
+    @Test
+    public void testStateful()
+        throws IOException
+    {
+        // ISO-2022-JP shifts in and out of ASCII, so an all-ASCII chunk after a Japanese one must be decoded
+        String text = "abc" + JAPANESE + "def";
+        byte[] in = text.getBytes("ISO-2022-JP");
+        CharsetConverter c = new CharsetConverter("ISO-2022-JP", "utf8");
+
+        for (int chunk = 1; chunk <= in.length; chunk++) {
+            assertEquals(text, convertChunks(c, in, chunk, "utf8"));
+        }
+
+        c = new CharsetConverter("utf8", "ISO-2022-JP");
+        in = text.getBytes("utf8");
+        for (int chunk = 1; chunk <= in.length; chunk++) {
+            assertEquals(text, convertChunks(c, in, chunk, "ISO-2022-JP"));
+        }
+    }
+
+    @Test
+    public void testLarge()
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append(i).append(((i % 100) == 0) ? JAPANESE : " ");
+        }
+        String text = sb.toString();
+        byte[] in = text.getBytes("utf8");
+        CharsetConverter c = new CharsetConverter("utf8", "EUC-JP");
+
+        assertEquals(text, convertChunks(c, in, in.length, "EUC-JP"));
+        assertEquals(text, convertChunks(c, in, 65536, "EUC-JP"));
+        assertEquals(text, convertChunks(c, in, 4096, "EUC-JP"));
+    }
+
+    @Test
+    public void testPartialAtEnd()
+        throws IOException
+    {
+        // Half of a multi-byte character at the end of the input is an error
+        byte[] in = JAPANESE.getBytes("utf8");
+        CharsetConverter c = new CharsetConverter("utf8", "utf16le");
+        assertNotNull(c.convert(ByteBuffer.wrap(in, 0, in.length - 1), false));
+        try {
+            c.convert(null, true);
+            assertTrue(false);
+        } catch (CharacterCodingException ok) {
+            // Expected
+        }
+    }
+
+    private static String convertChunks(CharsetConverter c, byte[] in, int chunkSize, String outCs)
+        throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (int p = 0; p < in.length; p += chunkSize) {
+            ByteBuffer chunk = ByteBuffer.wrap(in, p, Math.min(chunkSize, in.length - p));
+            append(bos, c.convert(chunk, false));
+            assertFalse(chunk.hasRemaining());
+        }
+        append(bos, c.convert(null, true));
+        c.reset();
+        return new String(bos.toByteArray(), outCs);
+    }
+
+    private static void append(ByteArrayOutputStream bos, ByteBuffer bb)
+    {
+        if (bb != null) {
+            bos.write(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+        }
+    }
+
     private String toString(ByteBuffer bb, String cs)
         throws IOException
     {
@@ -39,6 +39,29 @@ public class JdbcTest
         runTest("teststreaming.js");
     }
 
+    @Test
+    public void columnsTest()
+        throws InterruptedException, NodeException
+    {
+        runTest("testcolumns.js");
+    }
+
+    @Test
+    public void batchTest()
+        throws InterruptedException, NodeException
+    {
+        runTest("testbatch.js");
+    }
+
+    @Test
+    public void poolTest()
+        throws InterruptedException, NodeException
+    {
+        // The second script uses the pool that the first one created
+        runTest("testpool.js");
+        runTest("testpoolshared.js");
+    }
+
     private void runTest(String name)
         throws InterruptedException, NodeException
     {
@@ -0,0 +1,145 @@
+var assert = require('assert');
+
+var jdbc = process.binding('trireme-jdbc-wrap');
+
+var db;
+
+function connect(done) {
+  jdbc.createConnection('jdbc:hsqldb:mem:batch', null,
+    function(err, conn) {
+      assert(!err);
+      db = conn;
+      done();
+    });
+}
+
+function createTable(done) {
+  db.execute('create table batched (NAME varchar(128), ID integer primary key)',
+    null,
+    function(err) {
+      assert(!err);
+      done();
+    });
+}
+
+function dropTable(done) {
+  db.execute('drop table batched',
+    null,
+    function(err) {
+      assert(!err);
+      done();
+    });
+}
+
+function close(done) {
+  db.close(function(err) {
+    assert(!err);
+    done();
+  });
+}
+
+function makeRows(start, count) {
+  var rows = [];
+  for (var i = start; i < (start + count); i++) {
+    rows.push([ 'Row ' + i, i ]);
+  }
+  return rows;
+}
+
+function insertBatches(done) {
+  db.executeBatch('insert into batched (name, id) values (?, ?)',
+    makeRows(0, 2500), 1000,
+    function(err, result) {
+      assert(!err);
+      assert.equal(result.updateCount, 2500);
+      assert.deepEqual(result.batchCounts, [ 1000, 1000, 500 ]);
+      done();
+    });
+}
+
+function insertDefaultSize(done) {
+  db.executeBatch('insert into batched (name, id) values (?, ?)',
+    makeRows(2500, 10), undefined,
+    function(err, result) {
+      assert(!err);
+      assert.equal(result.updateCount, 10);
+      assert.deepEqual(result.batchCounts, [ 10 ]);
+      done();
+    });
+}
+
+function insertNothing(done) {
+  db.executeBatch('insert into batched (name, id) values (?, ?)',
+    [], 100,
+    function(err, result) {
+      assert(!err);
+      assert.equal(result.updateCount, 0);
+      assert.deepEqual(result.batchCounts, []);
+      done();
+    });
+}
+
+function insertInvalid(done) {
+  db.executeBatch('insert into nonexistent (name, id) values (?, ?)',
+    makeRows(0, 10), 5,
+    function(err, result) {
+      assert(err);
+      done();
+    });
+}
+
+// The second batch fails on a duplicate key, and the first one has already been committed
+function insertPartial(done) {
+  var rows = makeRows(3000, 5).concat([[ 'Duplicate', 3000 ]]);
+  db.executeBatch('insert into batched (name, id) values (?, ?)',
+    rows, 5,
+    function(err, result) {
+      assert(err);
+      assert.equal(err.updateCount, 5);
+      assert.deepEqual(err.batchCounts, [ 5 ]);
+      db.execute('delete from batched where id >= 3000', null, function(err, result) {
+        assert(!err);
+        assert.equal(result.updateCount, 5);
+        done();
+      });
+    });
+}
+
+function checkRows(done) {
+  db.execute('select count(*) as C, max(ID) as M from batched',
+    null,
+    function(err, result, rows) {
+      assert(!err);
+      assert.equal(rows[0]['C'], 2510);
+      assert.equal(rows[0]['M'], 2509);
+      done();
+    });
+}
+
+var success = false;
+
+connect(function() {
+  createTable(function() {
+    insertBatches(function() {
+      insertDefaultSize(function() {
+        insertNothing(function() {
+          insertInvalid(function() {
+            insertPartial(function() {
+              checkRows(function() {
+                dropTable(function() {
+                  close(function() {
+                    success = true;
+                  });
+                });
+              });
+            });
+          });
+        });
+      });
+    });
+  });
+});
+
+process.on('exit', function() {
+  assert(success);
+});
@@ -0,0 +1,193 @@
+var assert = require('assert');
+
+var jdbc = process.binding('trireme-jdbc-wrap');
+
+var db;
+var numRows = 25;
+
+function connect(done) {
+  jdbc.createConnection('jdbc:hsqldb:mem:columns', null,
+    function(err, conn) {
+      assert(!err);
+      db = conn;
+      done();
+    });
+}
+
+function createTable(done) {
+  db.execute('create table cols (ID integer, NAME varchar(128), SCORE double, ACTIVE boolean, ' +
+             'SMALL smallint, DATA varbinary(16), CREATED timestamp)',
+    null,
+    function(err) {
+      assert(!err);
+      done();
+    });
+}
+
+function populate(done) {
+  var rows = [];
+  for (var i = 0; i < numRows; i++) {
+    rows.push([ i, 'Row ' + i + ' é中', i * 1.5, ((i % 2) === 0), i * 2, new Buffer([ i, 255 - i, 0 ]) ]);
+  }
+  db.executeBatch('insert into cols (id, name, score, active, small, data) values (?, ?, ?, ?, ?, ?)',
+    rows, 10,
+    function(err) {
+      assert(!err);
+      db.execute("update cols set created = timestamp '2015-06-01 12:34:56' where id < 10",
+        null,
+        function(err) {
+          assert(!err);
+          // One row where everything but the ID is null
+          db.execute('insert into cols (id) values (?)',
+            [ numRows ],
+            function(err) {
+              assert(!err);
+              done();
+            });
+        });
+    });
+}
+
+function dropTable(done) {
+  db.execute('drop table cols',
+    null,
+    function(err) {
+      assert(!err);
+      done();
+    });
+}
+
+function close(done) {
+  db.close(function(err) {
+    assert(!err);
+    done();
+  });
+}
+
+function normalize(v) {
+  if (v instanceof Date) {
+    return v.getTime();
+  }
+  if (Buffer.isBuffer(v)) {
+    return v.toString('hex');
+  }
+  return v;
+}
+
+function compareRows(expected, block) {
+  var names = block.getColumnNames();
+  assert.equal(block.columnCount, 7);
+  assert.equal(names.length, 7);
+  assert.equal(block.getColumnType('ID'), 'int32');
+  assert.equal(block.getColumnType(1), 'string');
+  assert.equal(block.getColumnType('SCORE'), 'double');
+  assert.equal(block.getColumnType('ACTIVE'), 'boolean');
+  assert.equal(block.getColumnType('DATA'), 'binary');
+  assert.equal(block.getColumnType('CREATED'), 'date');
+
+  for (var r = 0; r < block.rowCount; r++) {
+    var exp = expected.shift();
+    var row = block.getRow(r);
+    names.forEach(function(name, c) {
+      assert.deepEqual(normalize(block.get(r, name)), normalize(exp[name]));
+      assert.deepEqual(normalize(block.get(r, c)), normalize(exp[name]));
+      assert.deepEqual(normalize(row[name]), normalize(exp[name]));
+      assert.equal(block.isNull(r, c), (exp[name] === null));
+    });
+  }
+}
+
+function checkRawColumns(block) {
+  var ids = block.getColumn('ID');
+  assert.equal(ids.length, block.rowCount * 4);
+  for (var r = 0; r < block.rowCount; r++) {
+    assert.equal(ids.readInt32BE(r * 4), block.get(r, 'ID'));
+  }
+  // The Buffer is a copy, so changing it doesn't change the block
+  if (block.rowCount > 0) {
+    var first = block.get(0, 'ID');
+    ids.writeInt32BE(first + 1, 0);
+    assert.equal(block.get(0, 'ID'), first);
+  }
+
+  var names = block.getColumn('NAME');
+  var offsets = block.getOffsets('NAME');
+  assert.equal(offsets.length, (block.rowCount + 1) * 4);
+  for (r = 0; r < block.rowCount; r++) {
+    var name = names.toString('utf8', offsets.readInt32BE(r * 4), offsets.readInt32BE((r + 1) * 4));
+    assert.equal(name, block.get(r, 'NAME') || '');
+  }
+
+  assert.throws(function() {
+    block.getOffsets('ID');
+  });
+  assert.throws(function() {
+    block.get(block.rowCount, 0);
+  });
+  assert.throws(function() {
+    block.get(0, 'NONEXISTENT');
+  });
+}
+
+function fetchAllRows(done) {
+  db.executeStreaming('select * from cols order by id',
+    null,
+    function(err, result, handle) {
+      assert(!err);
+      handle.fetchRows(1000, function(err, rows) {
+        assert(!err);
+        assert.equal(rows.length, numRows + 1);
+        handle.close();
+        done(rows);
+      });
+    });
+}
+
+function fetchColumns(expected, done) {
+  db.executeStreaming('select * from cols order by id',
+    null,
+    function(err, result, handle) {
+      assert(!err);
+      var blocks = 0;
+
+      function fetchNext() {
+        handle.fetchColumns(10, function(err, block, eof) {
+          assert(!err);
+          compareRows(expected, block);
+          checkRawColumns(block);
+          blocks++;
+          if (eof) {
+            assert.equal(expected.length, 0);
+            assert.equal(blocks, 3);
+            handle.close();
+            done();
+          } else {
+            fetchNext();
+          }
+        });
+      }
+      fetchNext();
+    });
+}
+
+var success = false;
+
+connect(function() {
+  createTable(function() {
+    populate(function() {
+      fetchAllRows(function(rows) {
+        fetchColumns(rows, function() {
+          dropTable(function() {
+            close(function() {
+              success = true;
+            });
+          });
+        });
+      });
+    });
+  });
+});
+
+process.on('exit', function() {
+  assert(success);
+});
@@ -0,0 +1,183 @@
+var assert = require('assert');
+
+var jdbc = process.binding('trireme-jdbc-wrap');
+
+var pool = jdbc.createPool('jdbc:hsqldb:mem:pool', null,
+  { minIdle: 1, maxIdle: 2, maxLifetime: 60000, validationQuery: 'values (1)' });
+
+var db;
+
+function connect(done) {
+  pool.getConnection(function(err, conn) {
+    assert(!err);
+    assert.equal(pool.activeCount, 1);
+    db = conn;
+    // The pool should open another connection to reach "minIdle" after handing this one over
+    waitForIdle(1, done);
+  });
+}
+
+function waitForIdle(count, done) {
+  var tries = 0;
+  function check() {
+    if (pool.idleCount === count) {
+      done();
+    } else {
+      assert(++tries < 100);
+      setTimeout(check, 10);
+    }
+  }
+  check();
+}
+
+function createTable(done) {
+  db.execute('create table pooled (NAME varchar(128), ID integer)',
+    null,
+    function(err) {
+      assert(!err);
+      done();
+    });
+}
+
+var numRows = 50;
+
+// The same SQL over and over again should use the same prepared statement
+function insertRow(id, done) {
+  if (id < numRows) {
+    db.execute('insert into pooled (name, id) values (?, ?)',
+      [ 'Row ' + id, id ],
+      function(err, result) {
+        assert(!err);
+        assert.equal(result.updateCount, 1);
+        insertRow(id + 1, done);
+      });
+  } else {
+    done();
+  }
+}
+
+function selectRow(id, done) {
+  db.execute('select * from pooled where id = ?',
+    [ id ],
+    function(err, result, rows) {
+      assert(!err);
+      assert.equal(rows.length, 1);
+      assert.equal(rows[0]['NAME'], 'Row ' + id);
+      done();
+    });
+}
+
+function streamRows(done) {
+  db.executeStreaming('select * from pooled where id < ?',
+    [ 10 ],
+    function(err, result, handle) {
+      assert(!err);
+      handle.fetchRows(100, function(err, rows, eof) {
+        assert(!err);
+        assert.equal(rows.length, 10);
+        assert(eof);
+        handle.close();
+        done();
+      });
+    });
+}
+
+// Leave a transaction open when the connection goes back to the pool -- it must be rolled back
+function abandonTransaction(done) {
+  db.setAutoCommit(false);
+  db.execute('insert into pooled (name, id) values (?, ?)',
+    [ 'Abandoned', 9999 ],
+    function(err, result) {
+      assert(!err);
+      assert.equal(result.updateCount, 1);
+      db.close(function() {
+        assert.equal(pool.activeCount, 0);
+        assert.equal(pool.idleCount, 2);
+        done();
+      });
+    });
+}
+
+function checkRolledBack(done) {
+  pool.getConnection(function(err, conn) {
+    assert(!err);
+    db = conn;
+    db.execute('select * from pooled where id = ?',
+      [ 9999 ],
+      function(err, result, rows) {
+        assert(!err);
+        assert.equal(rows.length, 0);
+        done();
+      });
+  });
+}
+
+function twoAtOnce(done) {
+  pool.getConnection(function(err, conn2) {
+    assert(!err);
+    assert.equal(pool.activeCount, 2);
+    conn2.execute('select count(*) as C from pooled',
+      null,
+      function(err, result, rows) {
+        assert(!err);
+        assert.equal(rows[0]['C'], numRows);
+        conn2.close(done);
+      });
+  });
+}
+
+// Closing a connection must close any streaming results that are still open before the connection
+// goes back to the pool
+function closeWithOpenResult(done) {
+  pool.getConnection(function(err, conn2) {
+    assert(!err);
+    conn2.executeStreaming('select * from pooled', null, function(err, result, handle) {
+      assert(!err);
+      conn2.close(function() {
+        assert.equal(pool.activeCount, 1);
+        // Already closed by the connection, so this does nothing
+        handle.close();
+        done();
+      });
+    });
+  });
+}
+
+function close(done) {
+  db.close(function(err) {
+    assert(!err);
+    done();
+  });
+}
+
+var success = false;
+
+connect(function() {
+  createTable(function() {
+    insertRow(0, function() {
+      selectRow(1, function() {
+        selectRow(2, function() {
+          streamRows(function() {
+            streamRows(function() {
+              abandonTransaction(function() {
+                checkRolledBack(function() {
+                  twoAtOnce(function() {
+                    closeWithOpenResult(function() {
+                      close(function() {
+                        success = true;
+                      });
+                    });
+                  });
+                });
+              });
+            });
+          });
+        });
+      });
+    });
+  });
+});
+
+process.on('exit', function() {
+  assert(success);
+});
@@ -0,0 +1,32 @@
+var assert = require('assert');
+
+var jdbc = process.binding('trireme-jdbc-wrap');
+
+// "testpool.js" already ran in the same environment, so this pool should already have connections,
+// and the table that it created
+var pool = jdbc.createPool('jdbc:hsqldb:mem:pool', null, { minIdle: 0 });
+assert(pool.idleCount > 0);
+
+var success = false;
+
+pool.getConnection(function(err, db) {
+  assert(!err);
+  db.execute('select count(*) as C from pooled',
+    null,
+    function(err, result, rows) {
+      assert(!err);
+      assert.equal(rows[0]['C'], 50);
+      db.execute('drop table pooled',
+        null,
+        function(err) {
+          assert(!err);
+          db.close(function() {
+            success = true;
+          });
+        });
+    });
+});
+
+process.on('exit', function() {
+  assert(success);
+});